@@ -1,6 +1,8 @@
 package com.example.bot;
 
 import com.example.bot.database.DatabaseManager;
+import com.example.bot.database.PoolSettings;
+import com.example.bot.service.UpdateDispatcher;
 import io.github.cdimascio.dotenv.Dotenv;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
@@ -8,6 +10,8 @@ import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+
 public class BotApplication {
     public static void main(String[] args) {
         try {
@@ -31,9 +35,22 @@ public class BotApplication {
 
             System.out.println("Подключение к базе данных: " + dbUrl);
 
-            DatabaseManager databaseManager = new DatabaseManager(dbUrl, dbUsername, dbPassword);
+            PoolSettings poolSettings = new PoolSettings(
+                    intEnv(dotenv, "DATABASE_POOL_MIN_IDLE", PoolSettings.DEFAULT_MIN_IDLE),
+                    intEnv(dotenv, "DATABASE_POOL_MAX_SIZE", PoolSettings.DEFAULT_MAX_POOL_SIZE),
+                    Duration.ofMillis(intEnv(dotenv, "DATABASE_POOL_ACQUIRE_TIMEOUT_MS",
+                            (int) PoolSettings.DEFAULT_ACQUIRE_TIMEOUT.toMillis())),
+                    PoolSettings.DEFAULT_VALIDATION_TIMEOUT,
+                    Duration.ofMillis(intEnv(dotenv, "DATABASE_POOL_LEAK_DETECTION_MS",
+                            (int) PoolSettings.DEFAULT_LEAK_DETECTION_THRESHOLD.toMillis())),
+                    intEnv(dotenv, "DATABASE_STATEMENT_CACHE_SIZE", PoolSettings.DEFAULT_STATEMENT_CACHE_SIZE)
+            );
+
+            DatabaseManager databaseManager = new DatabaseManager(dbUrl, dbUsername, dbPassword, poolSettings);
 
-            ChatBot bot = new ChatBot(botUsername, botToken, databaseManager,weatherApiKey);
+            int maxInFlightUpdates = intEnv(dotenv, "BOT_MAX_IN_FLIGHT_UPDATES", UpdateDispatcher.DEFAULT_MAX_IN_FLIGHT);
+
+            ChatBot bot = new ChatBot(botUsername, botToken, databaseManager, weatherApiKey, maxInFlightUpdates);
             botsApi.registerBot(bot);
 
             System.out.println("Бот успешно запущен!");
@@ -53,4 +70,16 @@ public class BotApplication {
 
     }
 
+    private static int intEnv(Dotenv dotenv, String key, int defaultValue) {
+        String value = dotenv.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(key + " должен быть целым числом, получено: " + value);
+        }
+    }
+
 }
\ No newline at end of file
@@ -4,23 +4,27 @@ package com.example.bot;
 import com.example.bot.command.CommandRegistry;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.model.City;
-import com.example.bot.model.JsonCity;
+import com.example.bot.model.CitySnapshot;
 import com.example.bot.service.*;
 import com.example.bot.command.impl.*;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.commands.SetMyCommands;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
+import java.time.Duration;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class ChatBot extends TelegramLongPollingBot {
     private static final Logger logger = LoggerFactory.getLogger(ChatBot.class);
+    private static final Duration UPDATE_DRAIN_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration OUTBOUND_DRAIN_TIMEOUT = Duration.ofSeconds(10);
 
     private final String botUsername;
     private final String botToken;
@@ -28,19 +32,33 @@ public class ChatBot extends TelegramLongPollingBot {
 
     private final MessageHandlerService messageHandler;
     private final CallbackHandlerService callbackHandler;
-    @SuppressWarnings("deprecation")
+    private final InlineQueryHandlerService inlineQueryHandler;
+    private final TaskSchedulerService taskSchedulerService;
+    private final UserStateService userStateService;
+    private final UpdateDispatcher updateDispatcher;
+    private final TelegramMessageSender messageSender;
+    private final WeatherService weatherService;
+
     public ChatBot(String botUsername, String botToken, DatabaseManager databaseManager, String weatherApiKey) {
+        this(botUsername, botToken, databaseManager, weatherApiKey, UpdateDispatcher.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    @SuppressWarnings("deprecation")
+    public ChatBot(String botUsername, String botToken, DatabaseManager databaseManager, String weatherApiKey,
+                   int maxInFlightUpdates) {
         this.botUsername = botUsername;
         this.botToken = botToken;
         this.databaseManager = databaseManager;
+        this.updateDispatcher = new UpdateDispatcher(maxInFlightUpdates);
 
         // Инициализация зависимостей
         List<City> cities = loadCitiesFromResource();
         CityService cityService = new CityService(cities);
-        WeatherService weatherService = new WeatherService(weatherApiKey);
-        MessageSender messageSender = new TelegramMessageSender(this);
+        this.weatherService = new WeatherService(weatherApiKey, new DatabaseWeatherCacheTier(databaseManager), cityService);
+        this.messageSender = new TelegramMessageSender(this);
         CommandRegistry commandRegistry = new CommandRegistry();
-        MorningNewsletterService newsletterService = new MorningNewsletterService(databaseManager, this, weatherApiKey);
+        MorningNewsletterService newsletterService = new MorningNewsletterService(
+                databaseManager, messageSender, weatherService, new DailyTarotService());
 
         // Команды
         TodoCommand todoCommand = new TodoCommand(databaseManager, null); // UserStateService установим потом
@@ -60,7 +78,7 @@ public class ChatBot extends TelegramLongPollingBot {
         commandRegistry.registerCommand(new MenuCommand());
 
         // UserStateService
-        UserStateService userStateService = new UserStateService(cityService, databaseManager, messageSender, commandRegistry);
+        this.userStateService = new UserStateService(cityService, databaseManager, messageSender, commandRegistry);
         todoCommand.setUserStateService(userStateService);
         // Сервисы
         this.messageHandler = new MessageHandlerService(
@@ -69,9 +87,10 @@ public class ChatBot extends TelegramLongPollingBot {
         this.callbackHandler = new CallbackHandlerService(
                 databaseManager, commandRegistry, messageSender, userStateService, cityService
         );
+        this.inlineQueryHandler = new InlineQueryHandlerService(cityService, messageSender);
 
         // Запуск фоновых задач
-        TaskSchedulerService taskSchedulerService = new TaskSchedulerService(databaseManager, newsletterService, messageSender);
+        this.taskSchedulerService = new TaskSchedulerService(databaseManager, newsletterService, messageSender);
         taskSchedulerService.startAllTasks();
         userStateService.startEditTimeoutCleanup();
 
@@ -112,38 +131,71 @@ public class ChatBot extends TelegramLongPollingBot {
 
     private void performCleanupOperations() {
         databaseManager.cleanupOldProductivityStats();
-        databaseManager.saveAllUsersProductivityStats();
-        databaseManager.cleanupAllDailyTasks();
+        var rollup = databaseManager.saveAllUsersProductivityStats();
+        logger.info("Статистика продуктивности пересчитана: {}", rollup);
+        // При запуске сегодняшние задачи не трогаем — удаляются только прошлые дни
+        databaseManager.cleanupPastDailyTasks();
         databaseManager.cleanupUnlockedWishes();
     }
 
+    // Двоичный снимок собирается при сборке; без него (запуск из IDE без mvn) читаем JSON
     public static List<City> loadCitiesFromResource() {
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            InputStream is = ChatBot.class.getClassLoader().getResourceAsStream("cities_russia.json");
+        ClassLoader classLoader = ChatBot.class.getClassLoader();
+        try (InputStream snapshot = classLoader.getResourceAsStream(CitySnapshot.RESOURCE)) {
+            if (snapshot != null) {
+                return CitySnapshot.read(snapshot.readAllBytes());
+            }
+        } catch (Exception e) {
+            logger.warn("Снимок городов не прочитан, загружаем JSON: {}", e.getMessage());
+        }
+        try (InputStream is = classLoader.getResourceAsStream(CitySnapshot.JSON_RESOURCE)) {
             if (is == null) {
                 throw new RuntimeException("❌ cities_russia.json не найден в src/main/resources/");
             }
-            List<JsonCity> rawCities = mapper.readValue(is, mapper.getTypeFactory().constructCollectionType(List.class, JsonCity.class));
-            return rawCities.stream().map(JsonCity::toCity).collect(Collectors.toList());
+            return CitySnapshot.fromJson(is);
         } catch (Exception e) {
             throw new RuntimeException("💥 Ошибка при загрузке списка городов", e);
         }
     }
 
     @Override
+    // Обработка уходит на виртуальные потоки: медленный запрос одного чата не задерживает остальные,
+    // а обновления одного чата по-прежнему обрабатываются по порядку
     public void onUpdateReceived(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
-            messageHandler.handleMessage(update.getMessage());
+            Message message = update.getMessage();
+            updateDispatcher.submit(message.getChatId(), () -> messageHandler.handleMessage(message));
+        } else if (update.hasMessage() && update.getMessage().hasLocation()) {
+            Message message = update.getMessage();
+            updateDispatcher.submit(message.getChatId(), () -> messageHandler.handleLocation(message));
         } else if (update.hasCallbackQuery()) {
-            callbackHandler.handleCallback(update.getCallbackQuery());
+            CallbackQuery callbackQuery = update.getCallbackQuery();
+            Long key = callbackQuery.getMessage() != null
+                    ? callbackQuery.getMessage().getChatId()
+                    : callbackQuery.getFrom().getId();
+            updateDispatcher.submit(key, () -> callbackHandler.handleCallback(callbackQuery));
+        } else if (update.hasInlineQuery()) {
+            InlineQuery inlineQuery = update.getInlineQuery();
+            inlineQueryHandler.markLatest(inlineQuery);
+            updateDispatcher.submit(inlineQuery.getFrom().getId(), () -> inlineQueryHandler.handleInlineQuery(inlineQuery));
         }
     }
 
+    public UpdateDispatcher.DispatcherMetrics getUpdateMetrics() {
+        return updateDispatcher.getMetrics();
+    }
+
     @Override
     public void onClosing() {
         logger.info("Завершение работы бота...");
-        // Можно добавить shutdown для сервисов, если нужно
+        // Дорабатываем уже принятые обновления, затем останавливаем фоновые задачи,
+        // отправляем оставшиеся в очереди сообщения и только потом закрываем пул соединений
+        updateDispatcher.shutdown(UPDATE_DRAIN_TIMEOUT);
+        taskSchedulerService.shutdown();
+        userStateService.shutdown();
+        messageSender.shutdown(OUTBOUND_DRAIN_TIMEOUT);
+        weatherService.shutdown();
+        databaseManager.close();
         super.onClosing();
     }
 
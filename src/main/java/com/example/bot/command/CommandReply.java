@@ -0,0 +1,70 @@
+package com.example.bot.command;
+
+import com.example.bot.service.MessageSender;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ответ команды: текст для отправки сразу и, если часть данных ещё не готова, будущий полный текст
+ *
+ * @param text   текст ответа (с заглушкой, если update не null)
+ * @param update полный текст, которым нужно заменить отправленное сообщение, или null
+ */
+public record CommandReply(String text, CompletableFuture<String> update) {
+
+    public static CommandReply complete(String text) {
+        return new CommandReply(text, null);
+    }
+
+    /**
+     * Ответ, в котором placeholder заменяется значением value, когда оно придёт.
+     * Уже готовое значение подставляется сразу, ошибка — текстом fallback.
+     * Отмена update (сообщение не отправилось) отменяет и value.
+     */
+    public static CommandReply deferred(String text, String placeholder, CompletableFuture<String> value,
+                                        String fallback) {
+        if (value.isDone()) {
+            return complete(text.replace(placeholder, value.exceptionally(e -> fallback).join()));
+        }
+        CompletableFuture<String> update = value
+                .exceptionally(e -> fallback)
+                .thenApply(ready -> text.replace(placeholder, ready));
+        update.whenComplete((full, e) -> {
+            if (update.isCancelled()) {
+                value.cancel(true);
+            }
+        });
+        return new CommandReply(text, update);
+    }
+
+    public boolean isComplete() {
+        return update == null;
+    }
+
+    /**
+     * Полный текст ответа, с ожиданием недостающих данных
+     */
+    public String awaitText() {
+        return isComplete() ? text : update.join();
+    }
+
+    /**
+     * Когда отправка sent удалась и полный текст готов, правит отправленное сообщение.
+     * Если отправить не удалось, ожидание данных отменяется.
+     */
+    public void editWhenReady(MessageSender messageSender, Long chatId, CompletableFuture<Message> sent,
+                              InlineKeyboardMarkup keyboard) {
+        if (isComplete()) {
+            return;
+        }
+        sent.whenComplete((message, e) -> {
+            if (e != null || message == null) {
+                update.cancel(true);
+                return;
+            }
+            update.thenAccept(updated -> messageSender.editMessageText(chatId, message.getMessageId(), updated, keyboard));
+        });
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.bot.command;
+
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+/**
+ * Команда, часть ответа которой приходит позже (например, погода из API).
+ * Ответ отправляется сразу с заглушкой, а когда данные готовы — сообщение правится на месте.
+ * execute() по-прежнему возвращает полный ответ, дожидаясь недостающих данных.
+ */
+public interface DeferredCommand extends Command {
+    CommandReply executeDeferred(Message message);
+}
@@ -1,13 +1,15 @@
 package com.example.bot.command.impl;
 
 import com.example.bot.command.AbstractCommand;
+import com.example.bot.command.CommandReply;
+import com.example.bot.command.DeferredCommand;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.model.City;
 import com.example.bot.service.CityService;
 import com.example.bot.service.WeatherService;
 import org.telegram.telegrambots.meta.api.objects.Message;
 
-public class SetCityCommand extends AbstractCommand {
+public class SetCityCommand extends AbstractCommand implements DeferredCommand {
     private final DatabaseManager databaseManager;
     private final CityService cityService;
     private final WeatherService weatherService;
@@ -45,6 +47,14 @@ public class SetCityCommand extends AbstractCommand {
     }
     @Override
     public String execute(Message message) {
+        return executeDeferred(message).awaitText();
+    }
+
+    /**
+     * Текущий город показывается сразу, погода — как в /stats: заглушка, затем правка сообщения
+     */
+    @Override
+    public CommandReply executeDeferred(Message message) {
         String rawInput = getCommandArgument(message).trim();
         Long userId = message.getFrom().getId();
 
@@ -52,21 +62,26 @@ public class SetCityCommand extends AbstractCommand {
         if (rawInput.isEmpty()) {
             String currentCity = databaseManager.getUserCity(userId);
             if (currentCity != null && !currentCity.isBlank()) {
-                String weather = weatherService.getTodayForecast(currentCity);
-                return String.format(
+                String text = String.format(
                         "Ваш текущий город: *%s*\n\n🌤️ *Погода сегодня:*\n%s\n\nХотите изменить город?",
                         currentCity,
-                        weather
+                        StatsCommand.WEATHER_PLACEHOLDER
                 );
+                return CommandReply.deferred(text, StatsCommand.WEATHER_PLACEHOLDER,
+                        weatherService.getTodayForecastAsync(currentCity), StatsCommand.WEATHER_UNAVAILABLE);
             } else {
-                return """
+                return CommandReply.complete("""
                 У вас пока не установлен город.
                 
                 Укажите город, чтобы включить персонализацию:
                 `/setcity Москва`
-                """;
+                """);
             }
         }
+        return CommandReply.complete(setCity(userId, rawInput));
+    }
+
+    private String setCity(Long userId, String rawInput) {
         // Если аргумент есть — пытаемся установить новый город
         City matchedCity = cityService.findCity(rawInput);
 
@@ -1,14 +1,21 @@
 package com.example.bot.command.impl;
 
 import com.example.bot.command.AbstractCommand;
+import com.example.bot.command.CommandReply;
+import com.example.bot.command.DeferredCommand;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.service.WeatherService;
 import org.telegram.telegrambots.meta.api.objects.Message;
 
 import java.util.List;
 import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+
+public class StatsCommand extends AbstractCommand implements DeferredCommand {
+    // Подставляется вместо погоды, пока прогноз не пришёл; затем сообщение правится
+    static final String WEATHER_PLACEHOLDER = "⏳ Загружаю прогноз...";
+    static final String WEATHER_UNAVAILABLE = "🌫️ Не удалось получить прогноз погоды.";
 
-public class StatsCommand extends AbstractCommand {
     private final DatabaseManager databaseManager;
     private final WeatherService weatherService;
 
@@ -32,7 +39,7 @@ public class StatsCommand extends AbstractCommand {
         
         *📊 Что показывает:*
         • Текущий прогресс за сегодня
-        • Город (если он установлен)
+        • Город и погоду: сейчас, сегодня и завтра
         • Сохраненную статистику
         • Среднюю продуктивность за неделю
         • Детальную статистику по дням
@@ -42,12 +49,27 @@ public class StatsCommand extends AbstractCommand {
 
     @Override
     public String execute(Message message) {
+        return executeDeferred(message).awaitText();
+    }
+
+    /**
+     * Статистика из БД готова сразу; если прогноза нет в кэше, вместо погоды стоит заглушка,
+     * а полный текст приходит в CommandReply.update, когда ответит API
+     */
+    @Override
+    public CommandReply executeDeferred(Message message) {
         Long userId = message.getFrom().getId();
         String argument = getCommandArgument(message).trim().toLowerCase();
 
-        return switch (argument) {
-            case "week", "неделя" -> showWeeklyStats(userId);
-            case "" -> showTodayStats(userId); // Пустой аргумент - статистика за сегодня
+        String city = databaseManager.getUserCity(userId);
+        boolean weekly = argument.equals("week") || argument.equals("неделя");
+        CompletableFuture<String> weather = !isValidCity(city) ? null
+                : weekly ? weatherService.getTodayForecastAsync(city)
+                : weatherService.getWeatherOverviewAsync(city); // сейчас, сегодня и завтра
+
+        String text = switch (argument) {
+            case "week", "неделя" -> showWeeklyStats(userId, city);
+            case "" -> showTodayStats(userId, city); // Пустой аргумент - статистика за сегодня
             default -> """
             ❓ *Неизвестный параметр:* '%s'
             
@@ -56,21 +78,28 @@ public class StatsCommand extends AbstractCommand {
             💡 *Доступные варианты:*
             `/stats` - статистика за сегодня
             `/stats week` - статистика за неделю
-            """.formatted(argument, showTodayStats(userId)); // Неизвестный аргумент - показываем помощь
+            """.formatted(argument, showTodayStats(userId, city)); // Неизвестный аргумент - показываем помощь
         };
+
+        if (weather == null || !text.contains(WEATHER_PLACEHOLDER)) {
+            if (weather != null) {
+                weather.cancel(true); // Погода в ответ не попала (нет статистики за неделю)
+            }
+            return CommandReply.complete(text);
+        }
+        // Прогноз из кэша уже готов — ответ уйдёт целиком, без правки
+        return CommandReply.deferred(text, WEATHER_PLACEHOLDER, weather, WEATHER_UNAVAILABLE);
     }
 
-    private String showTodayStats(Long userId) {
+    private String showTodayStats(Long userId, String city) {
         double currentCompletionRate = databaseManager.getDailyCompletionRate(userId);
         Double savedCompletionRate = databaseManager.getTodayStats(userId);
-        String city = databaseManager.getUserCity(userId);
 
         StringBuilder sb = new StringBuilder("*📊 Статистика за сегодня:*\n\n");
         // Добавляем город если установлен
         if (isValidCity(city)) {
             sb.append("🏙️ *Город:* ").append(city).append("\n");
-            String weather = weatherService.getTodayForecast(city);
-            sb.append("🌤️ *Погода:*\n").append(weather).append("\n\n");
+            sb.append("🌤️ *Погода:*\n").append(WEATHER_PLACEHOLDER).append("\n\n");
         } else {
             sb.append("💡 Установите город: `/setcity Москва`\n\n");
         }
@@ -114,10 +143,9 @@ public class StatsCommand extends AbstractCommand {
         return sb.toString();
     }
 
-    private String showWeeklyStats(Long userId) {
+    private String showWeeklyStats(Long userId, String city) {
         // Получаем статистику ТОЛЬКО за текущую календарную неделю (Пн–Вс)
         List<DatabaseManager.ProductivityStat> weeklyStats = databaseManager.getWeeklyProductivityStats(userId);
-        String city = databaseManager.getUserCity(userId);
 
         if (weeklyStats.isEmpty()) {
             return """
@@ -134,8 +162,7 @@ public class StatsCommand extends AbstractCommand {
         // Город
         if (isValidCity(city)) {
             sb.append("🏙️ *Город:* ").append(city).append("\n");
-            String weather = weatherService.getTodayForecast(city);
-            sb.append("🌤️ *Погода сегодня:*\n").append(weather).append("\n\n");
+            sb.append("🌤️ *Погода сегодня:*\n").append(WEATHER_PLACEHOLDER).append("\n\n");
         }
 
         // Средняя продуктивность
@@ -0,0 +1,141 @@
+package com.example.bot.database;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Ограниченный пул физических соединений с PostgreSQL (HikariCP).
+ * Соединения проверяются перед выдачей, не возвращённые вовремя логируются как утечки,
+ * а prepared statements кэшируются драйвером на каждом физическом соединении.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final String POOL_NAME = "bot-db";
+
+    private final HikariDataSource dataSource;
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public ConnectionPool(String url, String username, String password, PoolSettings settings) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(POOL_NAME);
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMinimumIdle(settings.minIdle());
+        config.setMaximumPoolSize(settings.maxPoolSize());
+        config.setConnectionTimeout(settings.acquireTimeout().toMillis());
+        config.setValidationTimeout(settings.validationTimeout().toMillis());
+        config.setLeakDetectionThreshold(settings.leakDetectionThreshold().toMillis());
+        // Не падаем при старте, если БД ещё недоступна: соединения будут открыты по требованию
+        config.setInitializationFailTimeout(-1);
+
+        // Кэш prepared statements драйвера живёт на физическом соединении,
+        // поэтому с пулом он наконец начинает переиспользоваться между запросами
+        config.addDataSourceProperty("preparedStatementCacheQueries", settings.statementCacheSize());
+        config.addDataSourceProperty("prepareThreshold", settings.statementCacheSize() > 0 ? 1 : 0);
+
+        config.setMetricsTrackerFactory(this::createMetricsTracker);
+
+        this.dataSource = new HikariDataSource(config);
+        logger.info("Пул соединений запущен: min={}, max={}, acquireTimeout={} мс",
+                settings.minIdle(), settings.maxPoolSize(), settings.acquireTimeout().toMillis());
+    }
+
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    public PoolMetrics getMetrics() {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        long count = acquisitions.get();
+        double avgWaitMillis = count > 0
+                ? TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / count) / 1000.0
+                : 0.0;
+        double maxWaitMillis = TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get()) / 1000.0;
+        return new PoolMetrics(
+                pool != null ? pool.getActiveConnections() : 0,
+                pool != null ? pool.getIdleConnections() : 0,
+                pool != null ? pool.getTotalConnections() : 0,
+                pool != null ? pool.getThreadsAwaitingConnection() : 0,
+                count,
+                avgWaitMillis,
+                maxWaitMillis,
+                timeouts.get()
+        );
+    }
+
+    public boolean isClosed() {
+        return dataSource.isClosed();
+    }
+
+    @Override
+    public void close() {
+        if (dataSource.isClosed()) {
+            return;
+        }
+        logger.info("Закрытие пула соединений: {}", getMetrics());
+        dataSource.close();
+    }
+
+    private IMetricsTracker createMetricsTracker(String poolName, PoolStats poolStats) {
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquisitions.incrementAndGet();
+                totalWaitNanos.addAndGet(elapsedAcquiredNanos);
+                maxWaitNanos.accumulate(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.incrementAndGet();
+                logger.warn("Не удалось получить соединение из пула {} за отведённое время", poolName);
+            }
+        };
+    }
+
+    /**
+     * Снимок состояния пула.
+     *
+     * @param active        соединения, выданные прямо сейчас
+     * @param idle          свободные соединения
+     * @param total         всего физических соединений
+     * @param waiting       потоки, ожидающие соединение
+     * @param acquisitions  сколько раз соединение было выдано
+     * @param avgWaitMillis среднее время ожидания соединения
+     * @param maxWaitMillis максимальное время ожидания соединения
+     * @param timeouts      сколько раз соединение не удалось получить за acquireTimeout
+     */
+    public record PoolMetrics(
+            int active,
+            int idle,
+            int total,
+            int waiting,
+            long acquisitions,
+            double avgWaitMillis,
+            double maxWaitMillis,
+            long timeouts
+    ) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "active=%d, idle=%d, total=%d, waiting=%d, acquisitions=%d, avgWait=%.2f мс, maxWait=%.2f мс, timeouts=%d",
+                    active, idle, total, waiting, acquisitions, avgWaitMillis, maxWaitMillis, timeouts);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.bot.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Управляет дневными партициями daily_tasks (PARTITION BY RANGE (created_on)).
+ * Партиции создаются заранее, а смена дня — это DROP TABLE партиции вместо DELETE по строкам.
+ * Строки, попавшие в партицию по умолчанию, переносятся в дневную партицию при её создании.
+ */
+public class DailyTaskPartitionManager {
+    private static final Logger logger = LoggerFactory.getLogger(DailyTaskPartitionManager.class);
+    public static final String PARENT_TABLE = "daily_tasks";
+    public static final String DEFAULT_PARTITION = "daily_tasks_default";
+    private static final String PARTITION_PREFIX = "daily_tasks_p";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+
+    public static String partitionName(LocalDate day) {
+        return PARTITION_PREFIX + day.format(PARTITION_SUFFIX);
+    }
+
+    /**
+     * Текущая дата по часам БД — именно она попадает в created_on по умолчанию
+     */
+    public LocalDate currentDate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CURRENT_DATE")) {
+            rs.next();
+            return rs.getDate(1).toLocalDate();
+        }
+    }
+
+    /**
+     * Создаёт недостающие партиции на days дней начиная с from.
+     * @return количество созданных партиций
+     */
+    public int ensurePartitions(Connection conn, LocalDate from, int days) throws SQLException {
+        List<LocalDate> existing = listPartitions(conn);
+        int created = 0;
+        for (int i = 0; i < days; i++) {
+            LocalDate day = from.plusDays(i);
+            if (!existing.contains(day)) {
+                createPartition(conn, day);
+                created++;
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Удаляет партиции за дни раньше day и такие же строки из партиции по умолчанию.
+     * @return количество удалённых партиций
+     */
+    public int dropPartitionsBefore(Connection conn, LocalDate day) throws SQLException {
+        int dropped = 0;
+        for (LocalDate partitionDay : listPartitions(conn)) {
+            if (partitionDay.isBefore(day)) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("DROP TABLE IF EXISTS " + partitionName(partitionDay));
+                }
+                dropped++;
+            }
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "DELETE FROM " + DEFAULT_PARTITION + " WHERE created_on < ?")) {
+            stmt.setDate(1, Date.valueOf(day));
+            int deleted = stmt.executeUpdate();
+            if (deleted > 0) {
+                logger.info("Из партиции по умолчанию удалено {} задач до {}", deleted, day);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Дни, для которых уже есть партиция, по возрастанию
+     */
+    public List<LocalDate> listPartitions(Connection conn) throws SQLException {
+        String sql = """
+            SELECT c.relname
+            FROM pg_inherits i
+            JOIN pg_class c ON c.oid = i.inhrelid
+            WHERE i.inhparent = ?::regclass
+            ORDER BY c.relname
+            """;
+        List<LocalDate> days = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, PARENT_TABLE);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String name = rs.getString("relname");
+                if (!name.startsWith(PARTITION_PREFIX)) {
+                    continue;
+                }
+                try {
+                    days.add(LocalDate.parse(name.substring(PARTITION_PREFIX.length()), PARTITION_SUFFIX));
+                } catch (DateTimeParseException e) {
+                    logger.warn("Неизвестная партиция {} пропущена", name);
+                }
+            }
+        }
+        return days;
+    }
+
+    // Таблица создаётся отдельно и подключается как партиция: так в одной транзакции
+    // в неё можно перенести строки этого дня из партиции по умолчанию
+    private void createPartition(Connection conn, LocalDate day) throws SQLException {
+        String name = partitionName(day);
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE " + name + " (LIKE " + PARENT_TABLE + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+            int moved = stmt.executeUpdate("WITH moved AS (DELETE FROM " + DEFAULT_PARTITION
+                    + " WHERE created_on = DATE '" + day + "' RETURNING *) INSERT INTO " + name + " SELECT * FROM moved");
+            stmt.execute("ALTER TABLE " + PARENT_TABLE + " ATTACH PARTITION " + name
+                    + " FOR VALUES FROM ('" + day + "') TO ('" + day.plusDays(1) + "')");
+            conn.commit();
+            logger.info("Создана партиция {} (перенесено задач: {})", name, moved);
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+}
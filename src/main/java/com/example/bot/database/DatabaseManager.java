@@ -1,16 +1,46 @@
 package com.example.bot.database;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 @SuppressWarnings("CallToPrintStackTrace")
-public class DatabaseManager {
-    private final String url;
-    private final String username;
-    private final String password;
+public class DatabaseManager implements AutoCloseable {
+    private final ConnectionPool connectionPool;
+    private final DailyTaskPartitionManager partitionManager = new DailyTaskPartitionManager();
+    // Снимок данных пользователя, привязанный к потоку, обрабатывающему текущее обновление
+    private final ThreadLocal<RequestScope> requestScope = new ThreadLocal<>();
     public static final int WISHLIST_LOCK_DAYS = 60;
+    // Сколько дневных партиций задач держать созданными заранее (сегодня и завтра)
+    public static final int TASK_PARTITIONS_AHEAD = 2;
+    // Получатели рассылки читаются страницами по user_id, каждая страница — отдельный короткий запрос
+    public static final int NEWSLETTER_PAGE_SIZE = 500;
+    // Запуски рассылки старше этого срока удаляются вместе с отметками о доставке
+    public static final int NEWSLETTER_HISTORY_DAYS = 7;
+
+    // Подсчёт статистики по задачам из daily_tasks; условие WHERE и GROUP BY добавляет вызывающий метод.
+    // Процент округляется так же, как в saveProductivityStats
+    private static final String PRODUCTIVITY_ROLLUP_SQL = """
+            INSERT INTO productivity_stats (user_id, completion_rate, stat_date, total_tasks, completed_tasks)
+            SELECT user_id,
+                   ROUND(COUNT(*) FILTER (WHERE completed) * 100.0 / COUNT(*), 2),
+                   created_on,
+                   COUNT(*),
+                   COUNT(*) FILTER (WHERE completed)
+            FROM daily_tasks
+            """;
+    private static final String PRODUCTIVITY_ROLLUP_CONFLICT_SQL = """
+            ON CONFLICT (user_id, stat_date)
+            DO UPDATE SET
+                completion_rate = EXCLUDED.completion_rate,
+                total_tasks = EXCLUDED.total_tasks,
+                completed_tasks = EXCLUDED.completed_tasks,
+                created_at = CURRENT_TIMESTAMP
+            """;
 
     public static class Task {
         private final int id;
@@ -95,80 +125,304 @@ public class DatabaseManager {
     }
 
 
+    /**
+     * Итог ночного пересчёта статистики
+     */
+    public static class ProductivityRollup {
+        public final int users;
+        public final int rows;
+        public final long durationMillis;
+
+        public ProductivityRollup(int users, int rows, long durationMillis) {
+            this.users = users;
+            this.rows = rows;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return users + " пользователей, " + rows + " записей за " + durationMillis + " мс";
+        }
+    }
+
+    /**
+     * Запуск утренней рассылки за день. status — RUNNING или DONE
+     */
+    public static class NewsletterRun {
+        public static final String RUNNING = "RUNNING";
+        public static final String DONE = "DONE";
+
+        public final LocalDate runDate;
+        public final String status;
+        public final int sentCount;
+        public final int failedCount;
+
+        public NewsletterRun(LocalDate runDate, String status, int sentCount, int failedCount) {
+            this.runDate = runDate;
+            this.status = status;
+            this.sentCount = sentCount;
+            this.failedCount = failedCount;
+        }
+
+        public boolean isFinished() { return DONE.equals(status); }
+    }
+
+    /**
+     * Получатель рассылки: пользователь и его город (может быть null)
+     */
+    public static class NewsletterRecipient {
+        public final Long userId;
+        public final String city;
+
+        public NewsletterRecipient(Long userId, String city) {
+            this.userId = userId;
+            this.city = city;
+        }
+    }
+
+    /**
+     * Строка общего кэша погоды: прогноз города в JSON и дата загрузки из API
+     */
+    public static class WeatherCacheRow {
+        public final String city;
+        public final String payload;
+        public final LocalDate cachedAt;
+
+        public WeatherCacheRow(String city, String payload, LocalDate cachedAt) {
+            this.city = city;
+            this.payload = payload;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+    /**
+     * Всё, что нужно командам и клавиатурам для ответа одному пользователю:
+     * город, блокировка карты желаний, задачи на сегодня, желания и сохранённая статистика.
+     * Загружается одним запросом в {@link #loadUserSnapshot(Long, String)}.
+     */
+    public static class UserSnapshot {
+        private final Long userId;
+        private final String city;
+        private final boolean locked;
+        private final LocalDateTime lockUntil;
+        private final List<Task> tasks;
+        private final List<Wish> wishes;
+        private final Double savedCompletionRate;
+
+        public UserSnapshot(Long userId, String city, boolean locked, LocalDateTime lockUntil,
+                            List<Task> tasks, List<Wish> wishes, Double savedCompletionRate) {
+            this.userId = userId;
+            this.city = city;
+            this.locked = locked;
+            this.lockUntil = lockUntil;
+            this.tasks = List.copyOf(tasks);
+            this.wishes = List.copyOf(wishes);
+            this.savedCompletionRate = savedCompletionRate;
+        }
+
+        public Long getUserId() { return userId; }
+        public String getCity() { return city; }
+        public List<Task> getTasks() { return tasks; }
+        public List<Wish> getWishes() { return wishes; }
+        public Double getSavedCompletionRate() { return savedCompletionRate; }
+
+        // Срок блокировки, как его возвращает getLockUntil: только для установленной блокировки
+        public LocalDateTime getLockUntil() { return locked ? lockUntil : null; }
+
+        public boolean isWishlistLocked() {
+            return locked && lockUntil != null && lockUntil.isAfter(LocalDateTime.now());
+        }
+
+        // Блокировка установлена, но её срок уже истёк — её нужно снять в БД
+        public boolean hasExpiredLock() {
+            return locked && !isWishlistLocked();
+        }
+
+        // Тот же процент, что считает getDailyCompletionRate: ROUND(completed * 100 / total, 2)
+        public double getCompletionRate() {
+            if (tasks.isEmpty()) {
+                return 0.0;
+            }
+            long completed = tasks.stream().filter(Task::isCompleted).count();
+            return BigDecimal.valueOf(completed * 100)
+                    .divide(BigDecimal.valueOf(tasks.size()), 2, RoundingMode.HALF_UP)
+                    .doubleValue();
+        }
+    }
+
+    /**
+     * Состояние текущего запроса: для кого он и загружен ли уже снимок
+     */
+    private static final class RequestScope {
+        private final Long userId;
+        private final String username;
+        private UserSnapshot snapshot;
+        private boolean unavailable;
+
+        private RequestScope(Long userId, String username) {
+            this.userId = userId;
+            this.username = username;
+        }
+    }
+
     // === ВЛОЖЕННЫЕ КЛАССЫ ===
 
     public DatabaseManager(String url, String username, String password) {
-        this.url = url;
-        this.username = username;
-        this.password = password;
+        this(url, username, password, PoolSettings.defaults());
+    }
+
+    public DatabaseManager(String url, String username, String password, PoolSettings poolSettings) {
+        this.connectionPool = new ConnectionPool(url, username, password, poolSettings);
         initializeDatabase();
     }
 
     private void initializeDatabase() {
         try (Connection conn = getConnection()) {
-            // Таблица пользователей
-            conn.createStatement().execute("""
-                CREATE TABLE IF NOT EXISTS users (
-                    user_id BIGINT PRIMARY KEY,
-                    username VARCHAR(100),
-                    city VARCHAR(100),
-                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-                )
-            """);
-
-            // Таблица ежедневных задач
-            conn.createStatement().execute("""
-                CREATE TABLE IF NOT EXISTS daily_tasks (
-                    id SERIAL PRIMARY KEY,
-                    user_id BIGINT REFERENCES users(user_id),
-                    task_text TEXT NOT NULL,
-                    completed BOOLEAN DEFAULT FALSE,
-                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-                )
-            """);
-
-            // Таблица карты желаний
-            conn.createStatement().execute("""
-                CREATE TABLE IF NOT EXISTS wishlist (
-                    id SERIAL PRIMARY KEY,
-                    user_id BIGINT REFERENCES users(user_id),
-                    wish_text TEXT NOT NULL,
-                    completed BOOLEAN DEFAULT FALSE,
-                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-                )
-            """);
-            //таблица блокировок
-            conn.createStatement().execute("""
-                CREATE TABLE IF NOT EXISTS wishlist_locks (
-                    user_id BIGINT PRIMARY KEY REFERENCES users(user_id),
-                    locked BOOLEAN DEFAULT FALSE,
-                    lock_until TIMESTAMP,
-                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-                )
-            """);
-
-            conn.createStatement().execute("""
-                CREATE TABLE IF NOT EXISTS productivity_stats (
-                    id SERIAL PRIMARY KEY,
-                    user_id BIGINT REFERENCES users(user_id),
-                    completion_rate DECIMAL(5,2) NOT NULL,
-                    stat_date DATE NOT NULL,
-                    total_tasks INT DEFAULT 0,
-                    completed_tasks INT DEFAULT 0,
-                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-                    UNIQUE(user_id, stat_date)
-                )
-            """);
-
-            System.out.println("База данных инициализирована успешно");
-
+            int applied = new SchemaMigrator(Migrations.all()).migrate(conn);
+            LocalDate today = partitionManager.currentDate(conn);
+            partitionManager.ensurePartitions(conn, today, TASK_PARTITIONS_AHEAD);
+            System.out.println("База данных инициализирована успешно (применено миграций: " + applied + ")");
         } catch (SQLException e) {
             System.err.println("Ошибка инициализации БД: " + e.getMessage());
         }
     }
 
     private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(url, username, password);
+        return connectionPool.getConnection();
+    }
+
+    /**
+     * Текущее состояние пула соединений (активные, свободные, время ожидания)
+     */
+    public ConnectionPool.PoolMetrics getPoolMetrics() {
+        return connectionPool.getMetrics();
+    }
+
+    /**
+     * Закрывает пул соединений. Вызывается при остановке бота.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+
+    // Снимок пользователя на время обработки обновления
+
+    /**
+     * Регистрирует пользователя и загружает его снимок одним запросом.
+     * До {@link #endRequest()} методы чтения для этого пользователя в текущем потоке
+     * отвечают из снимка, а методы записи сбрасывают его — следующее чтение загрузит свежий.
+     */
+    public UserSnapshot beginRequest(Long userId, String username) {
+        RequestScope scope = new RequestScope(userId, username);
+        requestScope.set(scope);
+        scope.snapshot = loadUserSnapshot(userId, username);
+        if (scope.snapshot == null) {
+            // БД недоступна — методы чтения работают как без снимка
+            scope.unavailable = true;
+        }
+        return scope.snapshot;
+    }
+
+    public void endRequest() {
+        requestScope.remove();
+    }
+
+    /**
+     * Сохраняет пользователя и за один запрос возвращает его город, блокировку,
+     * сегодняшние задачи, желания и сохранённую статистику за сегодня.
+     */
+    public UserSnapshot loadUserSnapshot(Long userId, String username) {
+        // Имя обновляется только при изменении, чтобы не плодить версии строки на каждое сообщение.
+        // Если обновления не было, город читается из users (до вставки строки там нет — её вернёт upserted)
+        String sql = """
+            WITH upserted AS (
+                INSERT INTO users (user_id, username) VALUES (?, ?)
+                ON CONFLICT (user_id) DO UPDATE SET username = EXCLUDED.username
+                WHERE users.username IS DISTINCT FROM EXCLUDED.username
+                RETURNING city
+            )
+            SELECT 'U' AS kind, NULL::INT AS id, NULL::TEXT AS text, NULL::BOOLEAN AS completed,
+                   NULL::TIMESTAMP AS created_at,
+                   COALESCE((SELECT city FROM upserted), (SELECT city FROM users WHERE user_id = ?)) AS city,
+                   l.locked, l.lock_until,
+                   (SELECT completion_rate FROM productivity_stats
+                    WHERE user_id = ? AND stat_date = CURRENT_DATE) AS saved_rate
+            FROM (SELECT 1) AS one
+            LEFT JOIN wishlist_locks l ON l.user_id = ?
+            UNION ALL
+            SELECT 'T', id, task_text, completed, created_at, NULL, NULL, NULL, NULL
+            FROM daily_tasks WHERE user_id = ? AND created_on = CURRENT_DATE
+            UNION ALL
+            SELECT 'W', id, wish_text, completed, created_at, NULL, NULL, NULL, NULL
+            FROM wishlist WHERE user_id = ?
+            ORDER BY kind, created_at, id
+        """;
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, userId);
+            stmt.setString(2, username);
+            for (int i = 3; i <= 7; i++) {
+                stmt.setLong(i, userId);
+            }
+            String city = null;
+            boolean locked = false;
+            LocalDateTime lockUntil = null;
+            Double savedRate = null;
+            List<Task> tasks = new ArrayList<>();
+            List<Wish> wishes = new ArrayList<>();
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                switch (rs.getString("kind")) {
+                    case "U" -> {
+                        city = rs.getString("city");
+                        locked = rs.getBoolean("locked");
+                        Timestamp until = rs.getTimestamp("lock_until");
+                        lockUntil = until != null ? until.toLocalDateTime() : null;
+                        double rate = rs.getDouble("saved_rate");
+                        savedRate = rs.wasNull() ? null : rate;
+                    }
+                    case "T" -> tasks.add(new Task(
+                            rs.getInt("id"),
+                            rs.getString("text"),
+                            rs.getBoolean("completed"),
+                            rs.getTimestamp("created_at").toLocalDateTime()
+                    ));
+                    case "W" -> wishes.add(new Wish(
+                            rs.getInt("id"),
+                            rs.getString("text"),
+                            rs.getBoolean("completed"),
+                            rs.getTimestamp("created_at").toLocalDateTime()
+                    ));
+                    default -> { }
+                }
+            }
+            return new UserSnapshot(userId, city, locked, lockUntil, tasks, wishes, savedRate);
+        } catch (SQLException e) {
+            System.err.println("Ошибка загрузки данных пользователя: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Снимок пользователя из текущего запроса или null, если чтение нужно делать из БД
+     */
+    private UserSnapshot currentSnapshot(Long userId) {
+        RequestScope scope = requestScope.get();
+        if (scope == null || scope.unavailable || !scope.userId.equals(userId)) {
+            return null;
+        }
+        if (scope.snapshot == null) {
+            scope.snapshot = loadUserSnapshot(scope.userId, scope.username);
+            scope.unavailable = scope.snapshot == null;
+        }
+        return scope.snapshot;
+    }
+
+    private void invalidateSnapshot(Long userId) {
+        RequestScope scope = requestScope.get();
+        if (scope != null && (userId == null || scope.userId.equals(userId))) {
+            scope.snapshot = null;
+        }
     }
 
     // Методы для пользователей
@@ -199,6 +453,7 @@ public class DatabaseManager {
         }
     }
     public void updateUserCity(Long userId, String city) {
+        invalidateSnapshot(userId);
         String sql = "UPDATE users SET city = ? WHERE user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, city);
@@ -256,11 +511,35 @@ public class DatabaseManager {
         return userIds;
     }
 
+    /**
+     * Различные города пользователей (без пустых), для прогрева кэша погоды
+     */
+    public List<String> getDistinctUserCities() {
+        String sql = "SELECT DISTINCT TRIM(city) AS city FROM users WHERE city IS NOT NULL AND TRIM(city) <> ''";
+        List<String> cities = new ArrayList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                cities.add(rs.getString("city"));
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка получения списка городов: " + e.getMessage());
+        }
+        return cities;
+    }
+
+    /**
+     * Ночная очистка: удаляет все задачи до конца сегодняшнего дня.
+     * Партиции за прошедшие дни и сегодня удаляются целиком, завтрашняя создаётся заранее.
+     */
     public void cleanupAllDailyTasks() {
+        invalidateSnapshot(null);
         try (Connection conn = getConnection()) {
-            String sql = "DELETE FROM daily_tasks";
-            int deleted = conn.createStatement().executeUpdate(sql);
-            System.out.println("🧹 Удалено задач: " + deleted);
+            LocalDate tomorrow = partitionManager.currentDate(conn).plusDays(1);
+            partitionManager.ensurePartitions(conn, tomorrow, TASK_PARTITIONS_AHEAD);
+            int dropped = partitionManager.dropPartitionsBefore(conn, tomorrow);
+            System.out.println("🧹 Удалено партиций задач: " + dropped);
         } catch (SQLException e) {
             System.err.println(" Ошибка при принудительной очистке: " + e.getMessage());
             //noinspection CallToPrintStackTrace
@@ -268,7 +547,27 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Очистка при запуске: удаляет только задачи прошлых дней, сегодняшние остаются.
+     */
+    public void cleanupPastDailyTasks() {
+        invalidateSnapshot(null);
+        try (Connection conn = getConnection()) {
+            LocalDate today = partitionManager.currentDate(conn);
+            partitionManager.ensurePartitions(conn, today, TASK_PARTITIONS_AHEAD);
+            int dropped = partitionManager.dropPartitionsBefore(conn, today);
+            System.out.println("🧹 Удалено партиций задач прошлых дней: " + dropped);
+        } catch (SQLException e) {
+            System.err.println(" Ошибка при очистке задач прошлых дней: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     public String getUserCity(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return snapshot.getCity();
+        }
         String sql = "SELECT city FROM users WHERE user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -284,6 +583,7 @@ public class DatabaseManager {
 
     // Методы для ежедневных задач
     public int addDailyTask(Long userId, String taskText) {
+        invalidateSnapshot(userId);
         String sql = "INSERT INTO daily_tasks (user_id, task_text) VALUES (?, ?) RETURNING id";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -302,6 +602,7 @@ public class DatabaseManager {
     }
 
     public boolean updateDailyTask(Long userId, int taskId, String newText) {
+        invalidateSnapshot(userId);
         // Используем правильное имя столбца - task_text
         String sql = "UPDATE daily_tasks SET task_text = ? WHERE id = ? AND user_id = ? AND completed = false";
 
@@ -323,6 +624,7 @@ public class DatabaseManager {
     }
 
     public boolean completeDailyTask(Long userId, int taskId) {
+        invalidateSnapshot(userId);
         String sql = "UPDATE daily_tasks SET completed = TRUE WHERE id = ? AND user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, taskId);
@@ -342,23 +644,35 @@ public class DatabaseManager {
     }
 
     public void saveCurrentStats(Long userId) {
-        // Получаем задачи пользователя за сегодня
-        List<Task> tasks = getDailyTasks(userId);
-        int totalTasks = tasks.size();
-        int completedTasks = (int) tasks.stream().filter(Task::isCompleted).count();
-
-        if (totalTasks > 0 || completedTasks > 0) {
-            saveProductivityStats(userId, completedTasks, totalTasks);
-            double rate = totalTasks > 0 ? (double) completedTasks / totalTasks * 100 : 0.0;
-            System.out.println("📊 Сохранена статистика для пользователя " + userId + ": " + String.format("%.2f", rate) + "% (" + completedTasks + "/" + totalTasks + ")");
-        } else {
-            System.out.println("ℹ️ Нет задач для пользователя " + userId + " — сохранение пропущено");
+        invalidateSnapshot(userId);
+        // Если задач за сегодня нет, GROUP BY не вернёт строк и сохранять будет нечего
+        String sql = PRODUCTIVITY_ROLLUP_SQL + """
+                WHERE user_id = ? AND created_on = CURRENT_DATE
+                GROUP BY user_id, created_on
+            """ + PRODUCTIVITY_ROLLUP_CONFLICT_SQL
+                + " RETURNING completion_rate, completed_tasks, total_tasks";
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                System.out.println("📊 Сохранена статистика для пользователя " + userId + ": "
+                        + String.format("%.2f", rs.getDouble("completion_rate")) + "% ("
+                        + rs.getInt("completed_tasks") + "/" + rs.getInt("total_tasks") + ")");
+            } else {
+                System.out.println("ℹ️ Нет задач для пользователя " + userId + " — сохранение пропущено");
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка сохранения статистики: " + e.getMessage());
         }
     }
     public List<Task> getDailyTasks(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return new ArrayList<>(snapshot.getTasks());
+        }
         List<Task> tasks = new ArrayList<>();
         // Показываем все сегодняшние задачи
-        String sql = "SELECT id, task_text, completed, created_at FROM daily_tasks WHERE user_id = ? AND DATE(created_at) = CURRENT_DATE ORDER BY created_at";
+        String sql = "SELECT id, task_text, completed, created_at FROM daily_tasks WHERE user_id = ? AND created_on = CURRENT_DATE ORDER BY created_at";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
             ResultSet rs = stmt.executeQuery();
@@ -378,6 +692,7 @@ public class DatabaseManager {
 
     // Методы для карты желаний
     public int addWish(Long userId, String wishText) {
+        invalidateSnapshot(userId);
         String sql = "INSERT INTO wishlist (user_id, wish_text) VALUES (?, ?) RETURNING id";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -393,6 +708,10 @@ public class DatabaseManager {
     }
 
     public List<Wish> getWishes(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return new ArrayList<>(snapshot.getWishes());
+        }
         List<Wish> wishes = new ArrayList<>();
         String sql = "SELECT id, wish_text, completed, created_at FROM wishlist WHERE user_id = ? ORDER BY created_at";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -413,6 +732,10 @@ public class DatabaseManager {
     }
 
     public int getWishCount(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return snapshot.getWishes().size();
+        }
         String sql = "SELECT COUNT(*) as count FROM wishlist WHERE user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -427,6 +750,7 @@ public class DatabaseManager {
     }
 
     public boolean completeWish(Long userId, int wishId) {
+        invalidateSnapshot(userId);
         String sql = "UPDATE wishlist SET completed = TRUE WHERE id = ? AND user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, wishId);
@@ -440,6 +764,10 @@ public class DatabaseManager {
 
 
     public boolean isWishlistLocked(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null && !snapshot.hasExpiredLock()) {
+            return snapshot.isWishlistLocked();
+        }
         String sql = "SELECT locked, lock_until FROM wishlist_locks WHERE user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -465,6 +793,7 @@ public class DatabaseManager {
     }
 
     public void lockWishlist(Long userId) {
+        invalidateSnapshot(userId);
         String sql = "INSERT INTO wishlist_locks (user_id, locked, lock_until) " +
                 "VALUES (?, TRUE, DATE_TRUNC('day', CURRENT_TIMESTAMP + INTERVAL '" + WISHLIST_LOCK_DAYS + " days') + INTERVAL '23 hours 59 minutes') " +
                 "ON CONFLICT (user_id) DO UPDATE SET " +
@@ -491,6 +820,7 @@ public class DatabaseManager {
     }
 
     public void unlockWishlist(Long userId) {
+        invalidateSnapshot(userId);
         String sql = "UPDATE wishlist_locks SET locked = FALSE WHERE user_id = ?";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -503,6 +833,10 @@ public class DatabaseManager {
 
 
     public LocalDateTime getLockUntil(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return snapshot.getLockUntil();
+        }
         String sql = "SELECT lock_until FROM wishlist_locks WHERE user_id = ? AND locked = TRUE";
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -519,6 +853,7 @@ public class DatabaseManager {
 
 
     public void cleanupUnlockedWishes() {
+        invalidateSnapshot(null);
         try (Connection conn = getConnection()) {
             // Удаляем ВСЕ желания пользователей, у которых нет активной блокировки
             String deleteSql = """
@@ -544,6 +879,10 @@ public class DatabaseManager {
 
     // Методы для статистики
     public double getDailyCompletionRate(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return snapshot.getCompletionRate();
+        }
         String sql = """
             SELECT
                 COALESCE(
@@ -552,7 +891,7 @@ public class DatabaseManager {
                     ), 2
                 ), 0.0) as completion_rate
             FROM daily_tasks
-            WHERE user_id = ? AND DATE(created_at) = CURRENT_DATE
+            WHERE user_id = ? AND created_on = CURRENT_DATE
         """;
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
@@ -570,10 +909,9 @@ public class DatabaseManager {
         try (Connection conn = getConnection()) {
             String sql = """
                 SELECT
-                    COUNT(*) as total_tasks,
-                    COUNT(CASE WHEN DATE(created_at) < CURRENT_DATE THEN 1 END) as old_tasks,
-                    COUNT(CASE WHEN DATE(created_at) = CURRENT_DATE THEN 1 END) as today_tasks
-                FROM daily_tasks
+                    (SELECT COUNT(*) FROM daily_tasks) as total_tasks,
+                    (SELECT COUNT(*) FROM daily_tasks WHERE created_on < CURRENT_DATE) as old_tasks,
+                    (SELECT COUNT(*) FROM daily_tasks WHERE created_on = CURRENT_DATE) as today_tasks
                 """;
             try (PreparedStatement stmt = conn.prepareStatement(sql);
                  ResultSet rs = stmt.executeQuery()) {
@@ -596,7 +934,7 @@ public class DatabaseManager {
      */
     public int getTodayTasksCount() {
         try (Connection conn = getConnection()) {
-            String sql = "SELECT COUNT(*) as today_tasks FROM daily_tasks WHERE DATE(created_at) = CURRENT_DATE";
+            String sql = "SELECT COUNT(*) as today_tasks FROM daily_tasks WHERE created_on = CURRENT_DATE";
             try (PreparedStatement stmt = conn.prepareStatement(sql);
                  ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -611,6 +949,7 @@ public class DatabaseManager {
 
     // Метод для сохранения/обновления статистики (только процент)
     public void saveProductivityStats(Long userId, int completedTasks, int totalTasks) {
+        invalidateSnapshot(userId);
         double rate = totalTasks > 0 ? (double) completedTasks / totalTasks * 100 : 0.0;
         String sql = """
         INSERT INTO productivity_stats
@@ -641,7 +980,7 @@ public class DatabaseManager {
         SELECT DISTINCT user_id
         FROM daily_tasks
         WHERE completed = false
-          AND DATE(created_at) = CURRENT_DATE
+          AND created_on = CURRENT_DATE
         """;
         List<Long> userIds = new ArrayList<>();
         try (Connection conn = getConnection();
@@ -658,6 +997,10 @@ public class DatabaseManager {
 
     // Метод для получения статистики пользователя за сегодня
     public Double getTodayStats(Long userId) {
+        UserSnapshot snapshot = currentSnapshot(userId);
+        if (snapshot != null) {
+            return snapshot.getSavedCompletionRate();
+        }
         String sql = "SELECT completion_rate FROM productivity_stats WHERE user_id = ? AND stat_date = CURRENT_DATE";
 
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -675,39 +1018,272 @@ public class DatabaseManager {
 
 
     // Метод для сохранения статистики всех активных пользователей
-    public void saveAllUsersProductivityStats() {
-        try (Connection conn = getConnection()) {
-            // Получаем всех пользователей, у которых есть задачи за сегодня
-            String usersSql = "SELECT DISTINCT user_id FROM daily_tasks WHERE DATE(created_at) = CURRENT_DATE";
-            List<Long> activeUserIds = new ArrayList<>();
+    public ProductivityRollup saveAllUsersProductivityStats() {
+        // Один оператор вместо цикла по пользователям: считает и сохраняет статистику
+        // сразу для всех пользователей и всех дней, задачи которых ещё лежат в daily_tasks.
+        // Дни старше срока хранения статистики не пересчитываются
+        String sql = "WITH rolled AS (" + PRODUCTIVITY_ROLLUP_SQL + """
+                WHERE created_on BETWEEN CURRENT_DATE - 14 AND CURRENT_DATE
+                GROUP BY user_id, created_on
+            """ + PRODUCTIVITY_ROLLUP_CONFLICT_SQL + """
+                RETURNING user_id
+            )
+            SELECT COUNT(*) AS row_count, COUNT(DISTINCT user_id) AS user_count FROM rolled
+            """;
+        long start = System.nanoTime();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            invalidateSnapshot(null);
+            if (rs.next()) {
+                ProductivityRollup rollup = new ProductivityRollup(
+                        rs.getInt("user_count"),
+                        rs.getInt("row_count"),
+                        (System.nanoTime() - start) / 1_000_000
+                );
+                System.out.println("✅ Сохранена статистика: " + rollup);
+                return rollup;
+            }
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка при сохранении статистики всех пользователей: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return new ProductivityRollup(0, 0, (System.nanoTime() - start) / 1_000_000);
+    }
 
-            try (PreparedStatement stmt = conn.prepareStatement(usersSql);
-                 ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    activeUserIds.add(rs.getLong("user_id"));
+    // Методы утренней рассылки
+
+    /**
+     * Начинает рассылку за день или возвращает уже начатую (в том числе завершённую).
+     * Заодно удаляет запуски старше NEWSLETTER_HISTORY_DAYS.
+     */
+    public NewsletterRun startNewsletterRun(LocalDate day) {
+        // DO UPDATE без изменений нужен, чтобы RETURNING вернул существующую строку
+        String sql = """
+            INSERT INTO newsletter_runs (run_date) VALUES (?)
+            ON CONFLICT (run_date) DO UPDATE SET run_date = EXCLUDED.run_date
+            RETURNING run_date, status, sent_count, failed_count
+            """;
+        try (Connection conn = getConnection()) {
+            try (PreparedStatement cleanup = conn.prepareStatement("DELETE FROM newsletter_runs WHERE run_date < ?")) {
+                cleanup.setDate(1, Date.valueOf(day.minusDays(NEWSLETTER_HISTORY_DAYS)));
+                cleanup.executeUpdate();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setDate(1, Date.valueOf(day));
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    return readNewsletterRun(rs);
                 }
             }
+        } catch (SQLException e) {
+            System.err.println("Ошибка начала рассылки: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Запуск рассылки за день или null, если её ещё не было
+     */
+    public NewsletterRun getNewsletterRun(LocalDate day) {
+        String sql = "SELECT run_date, status, sent_count, failed_count FROM newsletter_runs WHERE run_date = ?";
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(day));
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                return readNewsletterRun(rs);
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка получения рассылки: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Передаёт consumer всех пользователей, которым рассылка за день ещё не доставлена, по возрастанию user_id.
+     * Получатели читаются страницами по NEWSLETTER_PAGE_SIZE: соединение берётся из пула только на время
+     * чтения страницы и возвращается до того, как consumer начнёт её обрабатывать.
+     * @return сколько получателей передано
+     * @throws RuntimeException если страницу не удалось прочитать — рассылку нельзя считать завершённой
+     */
+    public int streamNewsletterRecipients(LocalDate day, Consumer<NewsletterRecipient> consumer) {
+        return streamNewsletterRecipients(day, NEWSLETTER_PAGE_SIZE, consumer);
+    }
+
+    int streamNewsletterRecipients(LocalDate day, int pageSize, Consumer<NewsletterRecipient> consumer) {
+        int count = 0;
+        long afterUserId = Long.MIN_VALUE;
+        while (true) {
+            List<NewsletterRecipient> page = readNewsletterRecipientsPage(day, afterUserId, pageSize);
+            page.forEach(consumer);
+            count += page.size();
+            if (page.size() < pageSize) {
+                return count;
+            }
+            afterUserId = page.get(page.size() - 1).userId;
+        }
+    }
+
+    private List<NewsletterRecipient> readNewsletterRecipientsPage(LocalDate day, long afterUserId, int pageSize) {
+        String sql = """
+            SELECT u.user_id, u.city
+            FROM users u
+            WHERE u.user_id > ?
+              AND NOT EXISTS (
+                SELECT 1 FROM newsletter_deliveries d
+                WHERE d.run_date = ? AND d.user_id = u.user_id
+              )
+            ORDER BY u.user_id
+            LIMIT ?
+            """;
+        List<NewsletterRecipient> page = new ArrayList<>(pageSize);
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, afterUserId);
+            stmt.setDate(2, Date.valueOf(day));
+            stmt.setInt(3, pageSize);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                page.add(new NewsletterRecipient(rs.getLong("user_id"), rs.getString("city")));
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка чтения получателей рассылки: " + e.getMessage());
+            throw new RuntimeException("Failed to read newsletter recipients", e);
+        }
+        return page;
+    }
+
+    /**
+     * Отмечает доставку рассылки пачкой пользователей и увеличивает счётчик запуска.
+     * Повторная отметка того же пользователя не учитывается.
+     * @return сколько новых отметок записано
+     */
+    public int recordNewsletterDeliveries(LocalDate day, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        String sql = """
+            WITH inserted AS (
+                INSERT INTO newsletter_deliveries (run_date, user_id)
+                SELECT ?, unnest(?::bigint[])
+                ON CONFLICT DO NOTHING
+                RETURNING user_id
+            )
+            UPDATE newsletter_runs SET sent_count = sent_count + (SELECT COUNT(*) FROM inserted)
+            WHERE run_date = ?
+            RETURNING (SELECT COUNT(*) FROM inserted) AS recorded
+            """;
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(day));
+            stmt.setArray(2, conn.createArrayOf("bigint", userIds.toArray()));
+            stmt.setDate(3, Date.valueOf(day));
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                return rs.getInt("recorded");
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка записи доставок рассылки: " + e.getMessage());
+        }
+        return 0;
+    }
 
-            System.out.println("👥 Найдено активных пользователей с задачами: " + activeUserIds.size());
+    public void finishNewsletterRun(LocalDate day, int failedCount) {
+        String sql = """
+            UPDATE newsletter_runs
+            SET status = 'DONE', finished_at = CURRENT_TIMESTAMP, failed_count = ?
+            WHERE run_date = ?
+            """;
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, failedCount);
+            stmt.setDate(2, Date.valueOf(day));
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Ошибка завершения рассылки: " + e.getMessage());
+        }
+    }
 
-            int savedCount = 0;
-            for (Long userId : activeUserIds) {
-                List<Task> tasks = getDailyTasks(userId);
-                int totalTasks = tasks.size();
-                int completedTasks = (int) tasks.stream().filter(Task::isCompleted).count();
+    // Методы общего кэша погоды
 
-                saveProductivityStats(userId, completedTasks, totalTasks);
-                savedCount++;
+    /**
+     * Сохраняет прогноз города. Более старый прогноз не затирает более свежий,
+     * если два экземпляра бота загрузили город почти одновременно.
+     */
+    public void upsertWeatherCache(String city, String payload, LocalDate cachedAt) {
+        String sql = """
+            INSERT INTO weather_cache (city, payload, cached_at) VALUES (?, ?, ?)
+            ON CONFLICT (city) DO UPDATE
+            SET payload = EXCLUDED.payload, cached_at = EXCLUDED.cached_at, updated_at = CURRENT_TIMESTAMP
+            WHERE weather_cache.cached_at <= EXCLUDED.cached_at
+            """;
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, city);
+            stmt.setString(2, payload);
+            stmt.setDate(3, Date.valueOf(cachedAt));
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Ошибка сохранения прогноза погоды: " + e.getMessage());
+        }
+    }
 
-                double rate = totalTasks > 0 ? (double) completedTasks / totalTasks * 100 : 0.0;
-                System.out.println("   → " + userId + ": " + String.format("%.2f", rate) + "% (" + completedTasks + "/" + totalTasks + ")");
+    /**
+     * Прогноз города или null, если его нет
+     */
+    public WeatherCacheRow getWeatherCache(String city) {
+        String sql = "SELECT city, payload, cached_at FROM weather_cache WHERE city = ?";
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, city);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                return readWeatherCacheRow(rs);
             }
+        } catch (SQLException e) {
+            System.err.println("Ошибка получения прогноза погоды: " + e.getMessage());
+        }
+        return null;
+    }
 
-            System.out.println("✅ Сохранена статистика для " + savedCount + " пользователей");
+    /**
+     * Все прогнозы, загруженные не раньше since — для прогрева кэша при запуске
+     */
+    public List<WeatherCacheRow> getWeatherCacheSince(LocalDate since) {
+        String sql = "SELECT city, payload, cached_at FROM weather_cache WHERE cached_at >= ?";
+        List<WeatherCacheRow> rows = new ArrayList<>();
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(since));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                rows.add(readWeatherCacheRow(rs));
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка загрузки кэша погоды: " + e.getMessage());
+        }
+        return rows;
+    }
 
+    /**
+     * Удаляет прогнозы, загруженные раньше date
+     * @return сколько удалено
+     */
+    public int deleteWeatherCacheBefore(LocalDate date) {
+        String sql = "DELETE FROM weather_cache WHERE cached_at < ?";
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(date));
+            return stmt.executeUpdate();
         } catch (SQLException e) {
-            System.err.println("❌ Ошибка при сохранении статистики всех пользователей: " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("Ошибка очистки кэша погоды: " + e.getMessage());
         }
+        return 0;
+    }
+
+    private WeatherCacheRow readWeatherCacheRow(ResultSet rs) throws SQLException {
+        return new WeatherCacheRow(rs.getString("city"), rs.getString("payload"), rs.getDate("cached_at").toLocalDate());
+    }
+
+    private NewsletterRun readNewsletterRun(ResultSet rs) throws SQLException {
+        return new NewsletterRun(
+                rs.getDate("run_date").toLocalDate(),
+                rs.getString("status"),
+                rs.getInt("sent_count"),
+                rs.getInt("failed_count")
+        );
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package com.example.bot.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Одна версия схемы БД. Применяется ровно один раз, в отдельной транзакции.
+ *
+ * @param version     номер версии (строго возрастает)
+ * @param description краткое описание изменения
+ * @param step        действия над схемой
+ */
+public record Migration(int version, String description, Step step) {
+
+    @FunctionalInterface
+    public interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    public Migration {
+        if (version < 1) {
+            throw new IllegalArgumentException("Версия миграции должна быть >= 1: " + version);
+        }
+        if (description == null || description.isBlank()) {
+            throw new IllegalArgumentException("У миграции " + version + " нет описания");
+        }
+        if (step == null) {
+            throw new IllegalArgumentException("У миграции " + version + " нет действий");
+        }
+    }
+
+    /**
+     * Миграция из набора SQL-выражений, выполняемых по порядку
+     */
+    public static Migration sql(int version, String description, String... statements) {
+        return new Migration(version, description, conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : statements) {
+                    stmt.execute(sql);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.bot.database;
+
+import java.util.List;
+
+/**
+ * Все миграции схемы в порядке применения.
+ * Уже выпущенные миграции не редактируются — изменения схемы добавляются новой версией.
+ */
+public final class Migrations {
+
+    private Migrations() {
+    }
+
+    public static List<Migration> all() {
+        return List.of(
+                Migration.sql(1, "Базовые таблицы",
+                        """
+                        CREATE TABLE IF NOT EXISTS users (
+                            user_id BIGINT PRIMARY KEY,
+                            username VARCHAR(100),
+                            city VARCHAR(100),
+                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                        )
+                        """,
+                        """
+                        CREATE TABLE IF NOT EXISTS daily_tasks (
+                            id SERIAL PRIMARY KEY,
+                            user_id BIGINT REFERENCES users(user_id),
+                            task_text TEXT NOT NULL,
+                            completed BOOLEAN DEFAULT FALSE,
+                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                        )
+                        """,
+                        """
+                        CREATE TABLE IF NOT EXISTS wishlist (
+                            id SERIAL PRIMARY KEY,
+                            user_id BIGINT REFERENCES users(user_id),
+                            wish_text TEXT NOT NULL,
+                            completed BOOLEAN DEFAULT FALSE,
+                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                        )
+                        """,
+                        """
+                        CREATE TABLE IF NOT EXISTS wishlist_locks (
+                            user_id BIGINT PRIMARY KEY REFERENCES users(user_id),
+                            locked BOOLEAN DEFAULT FALSE,
+                            lock_until TIMESTAMP,
+                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                        )
+                        """,
+                        """
+                        CREATE TABLE IF NOT EXISTS productivity_stats (
+                            id SERIAL PRIMARY KEY,
+                            user_id BIGINT REFERENCES users(user_id),
+                            completion_rate DECIMAL(5,2) NOT NULL,
+                            stat_date DATE NOT NULL,
+                            total_tasks INT DEFAULT 0,
+                            completed_tasks INT DEFAULT 0,
+                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                            UNIQUE(user_id, stat_date)
+                        )
+                        """
+                ),
+                // DATE(created_at) = CURRENT_DATE не может использовать индекс,
+                // поэтому день задачи хранится отдельной колонкой
+                Migration.sql(2, "daily_tasks.created_on и индексы по дню",
+                        "ALTER TABLE daily_tasks ADD COLUMN IF NOT EXISTS created_on DATE",
+                        "UPDATE daily_tasks SET created_on = COALESCE(created_at::date, CURRENT_DATE) WHERE created_on IS NULL",
+                        "ALTER TABLE daily_tasks ALTER COLUMN created_on SET DEFAULT CURRENT_DATE",
+                        "ALTER TABLE daily_tasks ALTER COLUMN created_on SET NOT NULL",
+                        "CREATE INDEX IF NOT EXISTS idx_daily_tasks_user_day ON daily_tasks (user_id, created_on)",
+                        // Напоминания ищут только незавершённые задачи за день
+                        "CREATE INDEX IF NOT EXISTS idx_daily_tasks_incomplete ON daily_tasks (created_on, user_id) WHERE completed = FALSE"
+                ),
+                Migration.sql(3, "Индексы для wishlist и productivity_stats",
+                        // Желания не фильтруются по дню, а сортируются по времени создания
+                        "CREATE INDEX IF NOT EXISTS idx_wishlist_user_created ON wishlist (user_id, created_at)",
+                        "CREATE INDEX IF NOT EXISTS idx_productivity_stats_date ON productivity_stats (stat_date)"
+                ),
+                // Задачи живут один день: партиция на день удаляется целиком вместо DELETE по строкам.
+                // Старые строки попадают в партицию по умолчанию, дневные партиции создаёт DailyTaskPartitionManager
+                Migration.sql(4, "daily_tasks секционирована по дням",
+                        "ALTER TABLE daily_tasks RENAME TO daily_tasks_legacy",
+                        "ALTER INDEX daily_tasks_pkey RENAME TO daily_tasks_legacy_pkey",
+                        "DROP INDEX IF EXISTS idx_daily_tasks_user_day",
+                        "DROP INDEX IF EXISTS idx_daily_tasks_incomplete",
+                        """
+                        CREATE TABLE daily_tasks (
+                            id INT NOT NULL DEFAULT nextval('daily_tasks_id_seq'),
+                            user_id BIGINT REFERENCES users(user_id),
+                            task_text TEXT NOT NULL,
+                            completed BOOLEAN DEFAULT FALSE,
+                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                            created_on DATE NOT NULL DEFAULT CURRENT_DATE,
+                            PRIMARY KEY (id, created_on)
+                        ) PARTITION BY RANGE (created_on)
+                        """,
+                        "CREATE TABLE daily_tasks_default PARTITION OF daily_tasks DEFAULT",
+                        "ALTER SEQUENCE daily_tasks_id_seq OWNED BY daily_tasks.id",
+                        """
+                        INSERT INTO daily_tasks (id, user_id, task_text, completed, created_at, created_on)
+                        SELECT id, user_id, task_text, completed, created_at, created_on FROM daily_tasks_legacy
+                        """,
+                        "DROP TABLE daily_tasks_legacy",
+                        "CREATE INDEX idx_daily_tasks_user_day ON daily_tasks (user_id, created_on)",
+                        "CREATE INDEX idx_daily_tasks_incomplete ON daily_tasks (created_on, user_id) WHERE completed = FALSE"
+                ),
+                // Прогресс утренней рассылки: после перезапуска она продолжается с тех, кому ещё не отправлено
+                Migration.sql(5, "Контрольные точки утренней рассылки",
+                        """
+                        CREATE TABLE IF NOT EXISTS newsletter_runs (
+                            run_date DATE PRIMARY KEY,
+                            status VARCHAR(16) NOT NULL DEFAULT 'RUNNING',
+                            started_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                            finished_at TIMESTAMP,
+                            sent_count INT NOT NULL DEFAULT 0,
+                            failed_count INT NOT NULL DEFAULT 0
+                        )
+                        """,
+                        """
+                        CREATE TABLE IF NOT EXISTS newsletter_deliveries (
+                            run_date DATE REFERENCES newsletter_runs(run_date) ON DELETE CASCADE,
+                            user_id BIGINT NOT NULL,
+                            delivered_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                            PRIMARY KEY (run_date, user_id)
+                        )
+                        """
+                ),
+                // Прогнозы погоды, общие для всех экземпляров бота: город запрашивается в API один раз
+                Migration.sql(6, "Общий кэш прогнозов погоды",
+                        """
+                        CREATE TABLE IF NOT EXISTS weather_cache (
+                            city VARCHAR(100) PRIMARY KEY,
+                            payload TEXT NOT NULL,
+                            cached_at DATE NOT NULL,
+                            updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                        )
+                        """
+                )
+        );
+    }
+}
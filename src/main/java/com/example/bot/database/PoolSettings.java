@@ -0,0 +1,63 @@
+package com.example.bot.database;
+
+import java.time.Duration;
+
+/**
+ * Настройки пула соединений с PostgreSQL.
+ *
+ * @param minIdle                минимальное число простаивающих соединений
+ * @param maxPoolSize            максимальный размер пула
+ * @param acquireTimeout         сколько ждать свободное соединение, прежде чем сдаться
+ * @param validationTimeout      таймаут проверки соединения перед выдачей
+ * @param leakDetectionThreshold через сколько не возвращённое соединение считается утечкой (0 — выключено, иначе от 2 с)
+ * @param statementCacheSize     сколько prepared statements кэшировать на одном физическом соединении
+ */
+public record PoolSettings(
+        int minIdle,
+        int maxPoolSize,
+        Duration acquireTimeout,
+        Duration validationTimeout,
+        Duration leakDetectionThreshold,
+        int statementCacheSize
+) {
+    public static final int DEFAULT_MIN_IDLE = 2;
+    public static final int DEFAULT_MAX_POOL_SIZE = 10;
+    public static final Duration DEFAULT_ACQUIRE_TIMEOUT = Duration.ofSeconds(5);
+    public static final Duration DEFAULT_VALIDATION_TIMEOUT = Duration.ofSeconds(2);
+    public static final Duration DEFAULT_LEAK_DETECTION_THRESHOLD = Duration.ofSeconds(30);
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 256;
+
+    public PoolSettings {
+        if (maxPoolSize < 1) {
+            throw new IllegalArgumentException("maxPoolSize должен быть >= 1");
+        }
+        if (minIdle < 0 || minIdle > maxPoolSize) {
+            throw new IllegalArgumentException("minIdle должен быть в диапазоне 0.." + maxPoolSize);
+        }
+        if (acquireTimeout == null || acquireTimeout.toMillis() < 250) {
+            throw new IllegalArgumentException("acquireTimeout должен быть не меньше 250 мс");
+        }
+        if (validationTimeout == null || validationTimeout.toMillis() < 250) {
+            throw new IllegalArgumentException("validationTimeout должен быть не меньше 250 мс");
+        }
+        // Hikari молча выключает поиск утечек при пороге от 1 до 1999 мс
+        if (leakDetectionThreshold == null || leakDetectionThreshold.isNegative()
+                || (!leakDetectionThreshold.isZero() && leakDetectionThreshold.toMillis() < 2000)) {
+            throw new IllegalArgumentException("leakDetectionThreshold должен быть 0 или не меньше 2000 мс");
+        }
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("statementCacheSize не может быть отрицательным");
+        }
+    }
+
+    public static PoolSettings defaults() {
+        return new PoolSettings(
+                DEFAULT_MIN_IDLE,
+                DEFAULT_MAX_POOL_SIZE,
+                DEFAULT_ACQUIRE_TIMEOUT,
+                DEFAULT_VALIDATION_TIMEOUT,
+                DEFAULT_LEAK_DETECTION_THRESHOLD,
+                DEFAULT_STATEMENT_CACHE_SIZE
+        );
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.bot.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Применяет версионированные миграции схемы и запоминает их в таблице schema_migrations.
+ * Несколько экземпляров бота, стартующих одновременно, сериализуются через advisory lock.
+ */
+public class SchemaMigrator {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+    // Произвольный, но постоянный ключ блокировки миграций
+    private static final long MIGRATION_LOCK_KEY = 4_815_162_342L;
+
+    private final List<Migration> migrations;
+
+    public SchemaMigrator(List<Migration> migrations) {
+        List<Migration> sorted = new ArrayList<>(migrations);
+        sorted.sort(Comparator.comparingInt(Migration::version));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).version() == sorted.get(i - 1).version()) {
+                throw new IllegalArgumentException("Повторяющаяся версия миграции: " + sorted.get(i).version());
+            }
+        }
+        this.migrations = List.copyOf(sorted);
+    }
+
+    public List<Migration> getMigrations() {
+        return migrations;
+    }
+
+    /**
+     * Применяет все ещё не применённые миграции.
+     * @return количество применённых миграций
+     */
+    public int migrate(Connection conn) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS schema_migrations (
+                    version INT PRIMARY KEY,
+                    description VARCHAR(200) NOT NULL,
+                    applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                )
+            """);
+            stmt.execute("SELECT pg_advisory_lock(" + MIGRATION_LOCK_KEY + ")");
+        }
+
+        try {
+            Set<Integer> applied = loadAppliedVersions(conn);
+            int count = 0;
+            conn.setAutoCommit(false);
+            for (Migration migration : migrations) {
+                if (applied.contains(migration.version())) {
+                    continue;
+                }
+                apply(conn, migration);
+                count++;
+            }
+            return count;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SELECT pg_advisory_unlock(" + MIGRATION_LOCK_KEY + ")");
+            }
+        }
+    }
+
+    private Set<Integer> loadAppliedVersions(Connection conn) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version FROM schema_migrations")) {
+            while (rs.next()) {
+                versions.add(rs.getInt("version"));
+            }
+        }
+        return versions;
+    }
+
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            migration.step().apply(conn);
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO schema_migrations (version, description) VALUES (?, ?)")) {
+                stmt.setInt(1, migration.version());
+                stmt.setString(2, migration.description());
+                stmt.executeUpdate();
+            }
+            conn.commit();
+            logger.info("Миграция V{} применена за {} мс: {}",
+                    migration.version(), (System.nanoTime() - start) / 1_000_000, migration.description());
+        } catch (SQLException e) {
+            conn.rollback();
+            throw new SQLException("Миграция V" + migration.version() + " (" + migration.description()
+                    + ") не применена: " + e.getMessage(), e);
+        }
+    }
+}
@@ -23,9 +23,7 @@ public class City {
     public String getName() { return name; }
     public String getRegion() { return region; }
     public long getPopulation() { return population; }
-    @SuppressWarnings("unused")
     public double getLat() { return lat; }
-    @SuppressWarnings("unused")
     public double getLng() { return lng; }
 
     @Override
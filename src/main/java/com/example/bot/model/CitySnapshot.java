@@ -0,0 +1,155 @@
+package com.example.bot.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Двоичный снимок справочника городов. Собирается из cities_russia.json при сборке (exec-maven-plugin)
+ * и читается при старте одним readAllBytes без JSON-парсера.
+ * <p>
+ * Формат (big-endian): MAGIC, VERSION, пул строк — число строк, смещения и один блок UTF-8,
+ * затем столбцы по числу городов: индекс названия, индекс региона, население, широта, долгота.
+ * Одинаковые строки (регионы) хранятся и создаются один раз.
+ */
+public final class CitySnapshot {
+    public static final String RESOURCE = "cities_russia.bin";
+    public static final String JSON_RESOURCE = "cities_russia.json";
+    static final int MAGIC = 0x43495459; // "CITY"
+    static final int VERSION = 1;
+
+    private CitySnapshot() {
+    }
+
+    public static List<City> fromJson(InputStream json) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<JsonCity> rawCities = mapper.readValue(json,
+                mapper.getTypeFactory().constructCollectionType(List.class, JsonCity.class));
+        List<City> cities = new ArrayList<>(rawCities.size());
+        for (JsonCity raw : rawCities) {
+            cities.add(raw.toCity());
+        }
+        return cities;
+    }
+
+    public static void write(List<City> cities, OutputStream target) throws IOException {
+        Map<String, Integer> poolIndex = new HashMap<>();
+        List<String> pool = new ArrayList<>();
+        int[] names = new int[cities.size()];
+        int[] regions = new int[cities.size()];
+        for (int i = 0; i < cities.size(); i++) {
+            names[i] = intern(cities.get(i).getName(), poolIndex, pool);
+            regions[i] = intern(cities.get(i).getRegion(), poolIndex, pool);
+        }
+
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        int[] offsets = new int[pool.size() + 1];
+        for (int i = 0; i < pool.size(); i++) {
+            blob.writeBytes(pool.get(i).getBytes(StandardCharsets.UTF_8));
+            offsets[i + 1] = blob.size();
+        }
+
+        DataOutputStream out = new DataOutputStream(target);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(pool.size());
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        blob.writeTo(out);
+        out.writeInt(cities.size());
+        for (int name : names) out.writeInt(name);
+        for (int region : regions) out.writeInt(region);
+        for (City city : cities) out.writeLong(city.getPopulation());
+        for (City city : cities) out.writeDouble(city.getLat());
+        for (City city : cities) out.writeDouble(city.getLng());
+        out.flush();
+    }
+
+    /**
+     * Города из снимка в том же порядке, в котором они были в JSON
+     */
+    public static List<City> read(byte[] snapshot) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Не снимок справочника городов");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Неподдерживаемая версия снимка городов: " + version);
+            }
+
+            int poolSize = buffer.getInt();
+            int[] offsets = new int[poolSize + 1];
+            for (int i = 0; i <= poolSize; i++) {
+                offsets[i] = buffer.getInt();
+            }
+            int blobStart = buffer.position();
+            String[] pool = new String[poolSize];
+            for (int i = 0; i < poolSize; i++) {
+                pool[i] = new String(snapshot, blobStart + offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+            }
+            buffer.position(blobStart + offsets[poolSize]);
+
+            int count = buffer.getInt();
+            int namesAt = buffer.position();
+            int regionsAt = namesAt + count * Integer.BYTES;
+            int populationAt = regionsAt + count * Integer.BYTES;
+            int latAt = populationAt + count * Long.BYTES;
+            int lngAt = latAt + count * Double.BYTES;
+            if (lngAt + count * Double.BYTES != snapshot.length) {
+                throw new IOException("Снимок справочника городов повреждён");
+            }
+            List<City> cities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                cities.add(new City(
+                        pool[buffer.getInt(namesAt + i * Integer.BYTES)],
+                        pool[buffer.getInt(regionsAt + i * Integer.BYTES)],
+                        buffer.getLong(populationAt + i * Long.BYTES),
+                        buffer.getDouble(latAt + i * Double.BYTES),
+                        buffer.getDouble(lngAt + i * Double.BYTES)));
+            }
+            return cities;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Снимок справочника городов повреждён", e);
+        }
+    }
+
+    private static int intern(String value, Map<String, Integer> poolIndex, List<String> pool) {
+        return poolIndex.computeIfAbsent(value, v -> {
+            pool.add(v);
+            return pool.size() - 1;
+        });
+    }
+
+    /**
+     * Шаг сборки: cities_russia.json → cities_russia.bin. Аргументы: путь к JSON и путь к снимку.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Использование: CitySnapshot <cities_russia.json> <cities_russia.bin>");
+        }
+        List<City> cities;
+        try (InputStream json = Files.newInputStream(Path.of(args[0]))) {
+            cities = fromJson(json);
+        }
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        write(cities, snapshot);
+        Files.write(Path.of(args[1]), snapshot.toByteArray());
+        System.out.printf("Снимок городов: %d городов, %d байт -> %s%n", cities.size(), snapshot.size(), args[1]);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.bot.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Прогноз по 3-часовым слотам на несколько дней вперёд (ответ /forecast целиком).
+ * Слоты хранятся по колонкам — время, температура, описание — и отсортированы по времени,
+ * так один прогноз на 40 слотов занимает три массива вместо сорока объектов.
+ */
+public final class Forecast {
+    private final long[] times; // секунды epoch
+    private final double[] temps;
+    private final String[] descriptions;
+
+    @JsonCreator
+    public Forecast(
+            @JsonProperty("times") long[] times,
+            @JsonProperty("temps") double[] temps,
+            @JsonProperty("descriptions") String[] descriptions
+    ) {
+        if (times == null || temps == null || descriptions == null
+                || times.length != temps.length || times.length != descriptions.length) {
+            throw new IllegalArgumentException("Колонки прогноза должны быть одной длины");
+        }
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1]) {
+                throw new IllegalArgumentException("Слоты прогноза должны идти по возрастанию времени");
+            }
+        }
+        this.times = times;
+        this.temps = temps;
+        this.descriptions = descriptions;
+    }
+
+    // Геттеры для сериализации в кэш
+    public long[] getTimes() { return times.clone(); }
+    public double[] getTemps() { return temps.clone(); }
+    public String[] getDescriptions() { return descriptions.clone(); }
+
+    public int size() {
+        return times.length;
+    }
+
+    public Instant time(int slot) {
+        return Instant.ofEpochSecond(times[slot]);
+    }
+
+    public double temp(int slot) {
+        return temps[slot];
+    }
+
+    public String description(int slot) {
+        return descriptions[slot];
+    }
+
+    /**
+     * Есть ли в прогнозе слоты на этот день
+     */
+    public boolean covers(LocalDate day, ZoneId zone) {
+        int from = firstSlotFrom(day.atStartOfDay(zone).toEpochSecond());
+        return from < times.length && times[from] < day.plusDays(1).atStartOfDay(zone).toEpochSecond();
+    }
+
+    /**
+     * Доходит ли прогноз до этого дня (есть слоты в этот день или позже)
+     */
+    public boolean reaches(LocalDate day, ZoneId zone) {
+        return times.length > 0 && times[times.length - 1] >= day.atStartOfDay(zone).toEpochSecond();
+    }
+
+    /**
+     * Итог дня: минимум и максимум температуры, первое описание. null, если слотов на день нет
+     */
+    public DaySummary summarize(LocalDate day, ZoneId zone) {
+        long end = day.plusDays(1).atStartOfDay(zone).toEpochSecond();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        String description = null;
+        int slots = 0;
+        for (int i = firstSlotFrom(day.atStartOfDay(zone).toEpochSecond()); i < times.length && times[i] < end; i++) {
+            if (!Double.isNaN(temps[i])) {
+                min = Math.min(min, temps[i]);
+                max = Math.max(max, temps[i]);
+                slots++;
+            }
+            if (description == null) {
+                description = descriptions[i];
+            }
+        }
+        return slots == 0 ? null : new DaySummary(min, max, description, slots);
+    }
+
+    /**
+     * Слот, ближайший к moment, или -1 для пустого прогноза
+     */
+    public int nearestSlot(Instant moment) {
+        if (times.length == 0) {
+            return -1;
+        }
+        long second = moment.getEpochSecond();
+        int next = firstSlotFrom(second);
+        if (next == times.length) {
+            return times.length - 1;
+        }
+        if (next == 0) {
+            return 0;
+        }
+        return second - times[next - 1] <= times[next] - second ? next - 1 : next;
+    }
+
+    // Первый слот не раньше second (двоичный поиск)
+    private int firstSlotFrom(long second) {
+        int index = Arrays.binarySearch(times, second);
+        if (index < 0) {
+            return -index - 1;
+        }
+        while (index > 0 && times[index - 1] == second) {
+            index--;
+        }
+        return index;
+    }
+
+    public static Builder builder(int expectedSlots) {
+        return new Builder(expectedSlots);
+    }
+
+    /**
+     * Собирает прогноз из слотов в порядке времени
+     */
+    public static final class Builder {
+        private long[] times;
+        private double[] temps;
+        private String[] descriptions;
+        private int size = 0;
+
+        private Builder(int expectedSlots) {
+            int capacity = Math.max(expectedSlots, 1);
+            this.times = new long[capacity];
+            this.temps = new double[capacity];
+            this.descriptions = new String[capacity];
+        }
+
+        public Builder add(long epochSecond, double temp, String description) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                temps = Arrays.copyOf(temps, size * 2);
+                descriptions = Arrays.copyOf(descriptions, size * 2);
+            }
+            times[size] = epochSecond;
+            temps[size] = temp;
+            descriptions[size] = description;
+            size++;
+            return this;
+        }
+
+        public Forecast build() {
+            return new Forecast(Arrays.copyOf(times, size), Arrays.copyOf(temps, size), Arrays.copyOf(descriptions, size));
+        }
+    }
+
+    /**
+     * Итог одного дня прогноза
+     *
+     * @param minTemp     минимальная температура
+     * @param maxTemp     максимальная температура
+     * @param description описание первого слота дня (может быть null)
+     * @param slots       слотов с температурой
+     */
+    public record DaySummary(double minTemp, double maxTemp, String description, int slots) {
+    }
+}
@@ -3,14 +3,18 @@ package com.example.bot.service;
 
 import com.example.bot.command.Command;
 import com.example.bot.command.CommandRegistry;
+import com.example.bot.command.CommandReply;
+import com.example.bot.command.DeferredCommand;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.keyboard.InlineKeyboardFactory;
 import org.telegram.telegrambots.meta.api.objects.*;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class CallbackHandlerService {
     private final DatabaseManager databaseManager;
@@ -40,6 +44,8 @@ public class CallbackHandlerService {
         Long chatId = callbackQuery.getMessage().getChatId();
 
         try {
+            databaseManager.beginRequest(userId, callbackQuery.getFrom().getUserName());
+
             if (data.equals("change_city_yes")) {
                 showCitySelectionMenu(chatId);
             } else if (data.equals("change_city_no")) {
@@ -47,13 +53,15 @@ public class CallbackHandlerService {
             } else if (data.startsWith("select_city:")) {
                 handleSelectCity(chatId, userId, data.substring("select_city:".length()));
             } else if (data.equals("select_city_manual")) {
-                messageSender.sendText(chatId, "Введите название города вручную (только РФ):");
+                messageSender.sendTextWithKeyboard(chatId,
+                        "Введите название города вручную (только РФ) или отправьте геопозицию — подберу ближайший город:",
+                        KeyboardService.shareLocation());
                 userStateService.startCitySelectionState(userId);
             } else if (data.startsWith("select_city_from_state:")) {
                 handleSelectCityFromState(chatId, userId, data.substring("select_city_from_state:".length()));
             } else if (data.equals("cancel_city_selection")) {
                 userStateService.cancelUserState(userId);
-                messageSender.sendText(chatId, "❌ Выбор города отменён.");
+                messageSender.sendTextWithKeyboard(chatId, "❌ Выбор города отменён.", KeyboardService.mainMenu());
             } else if (data.equals("stats:week")) {
                 handleWeekStats(chatId, userId);
             } else if (data.startsWith("todo:")) {
@@ -63,6 +71,8 @@ public class CallbackHandlerService {
             }
         } catch (Exception e) {
             messageSender.sendText(chatId, "Произошла ошибка. Попробуйте снова.");
+        } finally {
+            databaseManager.endRequest();
         }
     }
 
@@ -105,7 +115,8 @@ public class CallbackHandlerService {
 
     private void handleSelectCityFromState(Long chatId, Long userId, String cityName) {
         Message fakeMessage = createFakeMessage(chatId, userId, "/setcity " + cityName);
-        executeCommand(fakeMessage, chatId);
+        // Выбор города заменил главное меню кнопкой геопозиции — возвращаем его вместе с ответом
+        executeCommand(fakeMessage, chatId, KeyboardService.mainMenu());
         userStateService.cancelUserState(userId);
     }
 
@@ -336,13 +347,26 @@ public class CallbackHandlerService {
     }
 
     private void executeCommand(Message fakeMessage, Long chatId) {
+        executeCommand(fakeMessage, chatId, null);
+    }
+
+    private void executeCommand(Message fakeMessage, Long chatId, ReplyKeyboardMarkup replyKeyboard) {
         Command cmd = commandRegistry.findCommandForMessage(fakeMessage);
-        if (cmd != null) {
+        if (cmd instanceof DeferredCommand deferred) {
+            CommandReply reply = deferred.executeDeferred(fakeMessage);
+            reply.editWhenReady(messageSender, chatId, send(chatId, reply.text(), replyKeyboard), null);
+        } else if (cmd != null) {
             String response = cmd.execute(fakeMessage);
-            messageSender.sendText(chatId, response);
+            send(chatId, response, replyKeyboard);
         }
     }
 
+    private CompletableFuture<Message> send(Long chatId, String text, ReplyKeyboardMarkup replyKeyboard) {
+        return replyKeyboard == null
+                ? messageSender.sendText(chatId, text)
+                : messageSender.sendTextWithKeyboard(chatId, text, replyKeyboard);
+    }
+
     private int getDisplayIndexByRealId(Long userId, int realTaskId) {
         var tasks = databaseManager.getDailyTasks(userId);
         for (int i = 0; i < tasks.size(); i++) {
@@ -0,0 +1,113 @@
+package com.example.bot.service;
+
+import com.example.bot.model.City;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * KD-дерево городов для поиска ближайшего к точке.
+ * Координаты переводятся в точки единичной сферы: хорда монотонна расстоянию по поверхности,
+ * поэтому евклидово дерево в трёх измерениях находит ближайший город без поправок на широту
+ * и разрыв долготы на 180°. Дерево неявное: узел — середина отрезка массива, потомки — половины.
+ */
+final class CityKdTree {
+    static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final City[] cities;
+    // Координаты точек в порядке дерева: points[i * 3 + axis]
+    private final double[] points;
+
+    CityKdTree(Collection<City> source) {
+        // Города без координат (0, 0) в дерево не попадают
+        City[] order = source.stream()
+                .filter(city -> city.getLat() != 0 || city.getLng() != 0)
+                .toArray(City[]::new);
+        build(order, 0, order.length, 0);
+        this.cities = order;
+        this.points = new double[order.length * 3];
+        for (int i = 0; i < order.length; i++) {
+            toUnitVector(order[i].getLat(), order[i].getLng(), points, i * 3);
+        }
+    }
+
+    /**
+     * Ближайший город или null, если городов нет
+     */
+    CityService.NearestCity nearest(double lat, double lon) {
+        if (cities.length == 0) {
+            return null;
+        }
+        double[] target = new double[3];
+        toUnitVector(lat, lon, target, 0);
+        Search search = new Search(target);
+        search(search, 0, cities.length, 0);
+        double chord = Math.sqrt(search.bestDistance);
+        double distanceKm = 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, chord / 2));
+        return new CityService.NearestCity(cities[search.best], distanceKm);
+    }
+
+    private void search(Search search, int from, int to, int axis) {
+        if (from >= to) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        int base = mid * 3;
+        double dx = points[base] - search.target[0];
+        double dy = points[base + 1] - search.target[1];
+        double dz = points[base + 2] - search.target[2];
+        double distance = dx * dx + dy * dy + dz * dz;
+        if (distance < search.bestDistance) {
+            search.bestDistance = distance;
+            search.best = mid;
+        }
+        double diff = search.target[axis] - points[base + axis];
+        int next = (axis + 1) % 3;
+        // Сначала половина, где лежит точка; вторую — только если её плоскость ближе лучшего найденного
+        if (diff < 0) {
+            search(search, from, mid, next);
+            if (diff * diff < search.bestDistance) {
+                search(search, mid + 1, to, next);
+            }
+        } else {
+            search(search, mid + 1, to, next);
+            if (diff * diff < search.bestDistance) {
+                search(search, from, mid, next);
+            }
+        }
+    }
+
+    private static void build(City[] order, int from, int to, int axis) {
+        if (to - from <= 1) {
+            return;
+        }
+        double[] point = new double[3];
+        Arrays.sort(order, from, to, Comparator.comparingDouble(city -> {
+            toUnitVector(city.getLat(), city.getLng(), point, 0);
+            return point[axis];
+        }));
+        int mid = (from + to) >>> 1;
+        int next = (axis + 1) % 3;
+        build(order, from, mid, next);
+        build(order, mid + 1, to, next);
+    }
+
+    private static void toUnitVector(double lat, double lon, double[] out, int offset) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        out[offset] = Math.cos(phi) * Math.cos(lambda);
+        out[offset + 1] = Math.cos(phi) * Math.sin(lambda);
+        out[offset + 2] = Math.sin(phi);
+    }
+
+    private static final class Search {
+        final double[] target;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        int best = -1;
+
+        Search(double[] target) {
+            this.target = target;
+        }
+    }
+}
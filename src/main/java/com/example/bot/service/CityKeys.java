@@ -0,0 +1,102 @@
+package com.example.bot.service;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Ключи поиска города: нормализованное название и его латинские транслитерации.
+ * Ввод пользователя приводится к тому же виду через normalize, поэтому «Ростов на дону»,
+ * «ростов-на-Дону» и «rostov-na-donu» дают один и тот же ключ.
+ */
+final class CityKeys {
+    // ГОСТ 7.79-2000, система Б (без апострофов — их всё равно срезает normalize)
+    private static final Map<Character, String> GOST = table(
+            "a", "b", "v", "g", "d", "e", "zh", "z", "i", "j", "k", "l", "m", "n", "o", "p",
+            "r", "s", "t", "u", "f", "x", "cz", "ch", "sh", "shh", "", "y", "", "e", "yu", "ya");
+    // Загранпаспорт РФ (ICAO Doc 9303)
+    private static final Map<Character, String> PASSPORT = table(
+            "a", "b", "v", "g", "d", "e", "zh", "z", "i", "i", "k", "l", "m", "n", "o", "p",
+            "r", "s", "t", "u", "f", "kh", "ts", "ch", "sh", "shch", "ie", "y", "", "e", "iu", "ia");
+    // Как обычно пишут латиницей: «nizhniy», «yaroslavl», «tsivilsk»
+    private static final Map<Character, String> COMMON = table(
+            "a", "b", "v", "g", "d", "e", "zh", "z", "i", "y", "k", "l", "m", "n", "o", "p",
+            "r", "s", "t", "u", "f", "kh", "ts", "ch", "sh", "shch", "", "y", "", "e", "yu", "ya");
+    // Английское написание: «е» в начале слова и после гласной — «ye», окончания «-ий/-ый» — «y»
+    private static final Pattern IOTATED_E = Pattern.compile("(?<=^|[ аеиоуыэюяьъ])е");
+    private static final Pattern ADJECTIVE_ENDING = Pattern.compile("[иы]й(?= |$)");
+
+    private CityKeys() {
+    }
+
+    /**
+     * Регистр, «ё» → «е», знаки препинания и дефисы → пробел, лишние пробелы убраны
+     */
+    static String normalize(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder key = new StringBuilder(lower.length());
+        boolean space = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (c == 'ё') {
+                c = 'е';
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (space && !key.isEmpty()) {
+                    key.append(' ');
+                }
+                key.append(c);
+                space = false;
+            } else if (c != '\'' && c != '`' && c != 'ʼ') {
+                space = true;
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Все ключи названия: нормализованное и латинские варианты по каждой таблице транслитерации
+     */
+    static Set<String> of(String name) {
+        String normalized = normalize(name);
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(normalized);
+        keys.add(transliterate(normalized, GOST));
+        keys.add(transliterate(normalized, PASSPORT));
+        keys.add(transliterate(normalized, COMMON));
+        keys.add(english(normalized));
+        return keys;
+    }
+
+    // «Yekaterinburg», «Nizhny Novgorod»: правила поверх привычной таблицы
+    private static String english(String normalized) {
+        String spelled = IOTATED_E.matcher(normalized).replaceAll("йе");
+        spelled = ADJECTIVE_ENDING.matcher(spelled).replaceAll("ы");
+        return transliterate(spelled, COMMON);
+    }
+
+    private static String transliterate(String normalized, Map<Character, String> table) {
+        StringBuilder latin = new StringBuilder(normalized.length() + 8);
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            latin.append(table.getOrDefault(c, String.valueOf(c)));
+        }
+        return latin.toString();
+    }
+
+    // Таблица по алфавиту «а»–«я» без «ё» (её убирает normalize)
+    private static Map<Character, String> table(String... latin) {
+        String alphabet = "абвгдежзийклмнопрстуфхцчшщъыьэюя";
+        if (latin.length != alphabet.length()) {
+            throw new IllegalArgumentException("Таблица транслитерации должна покрывать " + alphabet.length() + " букв");
+        }
+        Map<Character, String> table = new HashMap<>();
+        for (int i = 0; i < latin.length; i++) {
+            table.put(alphabet.charAt(i), latin[i]);
+        }
+        return Map.copyOf(table);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.bot.service;
+
+import com.example.bot.model.City;
+import me.xdrop.fuzzywuzzy.FuzzySearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Инвертированный индекс триграмм названий городов для нечёткого поиска.
+ * Строится один раз; запрос касается только городов, у которых есть общие с ним триграммы,
+ * и оценивает FuzzySearch лишь короткий список лучших по числу совпавших триграмм.
+ */
+final class CityNameIndex {
+    // Сколько кандидатов на один запрошенный результат оценивается полным скорером
+    static final int SHORTLIST_PER_RESULT = 8;
+    static final int MIN_SHORTLIST = 40;
+    private static final int[] NO_POSTINGS = new int[0];
+
+    private final City[] cities;
+    private final String[] names;
+    // Триграмма → номера городов по возрастанию
+    private final Map<String, int[]> postings;
+
+    CityNameIndex(Collection<City> cities) {
+        this.cities = cities.toArray(new City[0]);
+        this.names = new String[this.cities.length];
+        Map<String, List<Integer>> building = new HashMap<>();
+        for (int id = 0; id < this.cities.length; id++) {
+            names[id] = this.cities[id].getName();
+            for (String trigram : trigrams(names[id])) {
+                building.computeIfAbsent(trigram, t -> new ArrayList<>()).add(id);
+            }
+        }
+        this.postings = new HashMap<>(building.size() * 2);
+        building.forEach((trigram, ids) -> postings.put(trigram, ids.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    /**
+     * До limit городов с оценкой FuzzySearch.weightedRatio не ниже minScore,
+     * по убыванию оценки, при равной оценке — по убыванию населения
+     */
+    List<City> search(String input, int limit, int minScore) {
+        Set<String> queryTrigrams = trigrams(input);
+        int[] overlap = new int[cities.length];
+        int[] touched = new int[cities.length];
+        int touchedCount = 0;
+        for (String trigram : queryTrigrams) {
+            for (int id : postings.getOrDefault(trigram, NO_POSTINGS)) {
+                if (overlap[id]++ == 0) {
+                    touched[touchedCount++] = id;
+                }
+            }
+        }
+        if (touchedCount == 0) {
+            return List.of();
+        }
+
+        // Короткий список: больше всего общих триграмм, при равенстве — короче название
+        Integer[] shortlist = new Integer[touchedCount];
+        for (int i = 0; i < touchedCount; i++) {
+            shortlist[i] = touched[i];
+        }
+        Arrays.sort(shortlist, Comparator.<Integer>comparingInt(id -> -overlap[id])
+                .thenComparingInt(id -> names[id].length()));
+        int shortlistSize = Math.min(touchedCount, Math.max(MIN_SHORTLIST, limit * SHORTLIST_PER_RESULT));
+
+        List<Scored> scored = new ArrayList<>(shortlistSize);
+        for (int i = 0; i < shortlistSize; i++) {
+            int id = shortlist[i];
+            int score = FuzzySearch.weightedRatio(input, names[id]);
+            if (score >= minScore) {
+                scored.add(new Scored(cities[id], score));
+            }
+        }
+        scored.sort(Comparator.comparingInt(Scored::score).reversed()
+                .thenComparing(s -> s.city().getPopulation(), Comparator.reverseOrder()));
+        return scored.stream().limit(limit).map(Scored::city).toList();
+    }
+
+    // Триграммы с отступами по краям: первые буквы дают свои триграммы, короткий ввод тоже находит кандидатов
+    static Set<String> trigrams(String text) {
+        String padded = "  " + CityKeys.normalize(text) + " ";
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+
+    private record Scored(City city, int score) {
+    }
+}
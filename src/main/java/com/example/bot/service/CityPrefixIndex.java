@@ -0,0 +1,108 @@
+package com.example.bot.service;
+
+import com.example.bot.model.City;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Префиксное дерево по ключам городов (CityKeys) для автодополнения.
+ * В каждом узле заранее лежат до MAX_RESULTS крупнейших городов с таким префиксом,
+ * поэтому запрос — это проход по символам префикса без перебора и сортировки.
+ * Индексируется и начало каждого слова: «новг» находит Нижний и Великий Новгород.
+ */
+final class CityPrefixIndex {
+    static final int MAX_RESULTS = 20;
+
+    private final City[] cities;
+    private final Node root = new Node();
+
+    CityPrefixIndex(Collection<City> cities) {
+        // Номер города = место по населению, значит номера в узле сразу идут по убыванию населения
+        this.cities = cities.stream()
+                .sorted(Comparator.comparingLong(City::getPopulation).reversed().thenComparing(City::getName))
+                .toArray(City[]::new);
+        for (int id = 0; id < this.cities.length; id++) {
+            root.offer(id);
+            for (String key : CityKeys.of(this.cities[id].getName())) {
+                for (int start = 0; start < key.length(); start++) {
+                    if (start == 0 || key.charAt(start - 1) == ' ') {
+                        insert(key, start, id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * До limit городов, у которых название или одно из слов начинается с prefix, крупные первыми.
+     * Пустой префикс — крупнейшие города.
+     */
+    List<City> suggest(String prefix, int limit) {
+        String key = CityKeys.normalize(prefix);
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        if (node == null) {
+            return List.of();
+        }
+        int count = Math.min(limit, node.size);
+        List<City> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(cities[node.top[i]]);
+        }
+        return result;
+    }
+
+    private void insert(String key, int start, int id) {
+        Node node = root;
+        for (int i = start; i < key.length(); i++) {
+            node = node.childOrCreate(key.charAt(i));
+            node.offer(id);
+        }
+    }
+
+    private static final class Node {
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private int[] top = new int[0];
+        private int size;
+
+        Node child(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node childOrCreate(char c) {
+            Node existing = child(c);
+            if (existing != null) {
+                return existing;
+            }
+            Node created = new Node();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = c;
+            children[children.length - 1] = created;
+            return created;
+        }
+
+        // Города приходят по убыванию населения: хватает отсечь повтор и переполнение
+        void offer(int id) {
+            if (size == MAX_RESULTS || (size > 0 && top[size - 1] == id)) {
+                return;
+            }
+            if (size == top.length) {
+                top = Arrays.copyOf(top, Math.min(MAX_RESULTS, Math.max(2, size * 2)));
+            }
+            top[size++] = id;
+        }
+    }
+}
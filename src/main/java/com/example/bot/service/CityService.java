@@ -1,20 +1,40 @@
 package com.example.bot.service;
 
 import com.example.bot.model.City;
-import me.xdrop.fuzzywuzzy.FuzzySearch;
-import me.xdrop.fuzzywuzzy.model.ExtractedResult;
 
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 public class CityService {
+    /**
+     * Сокращения и народные названия; ключи сравниваются после CityKeys.normalize
+     */
+    public static final Map<String, String> DEFAULT_ALIASES = Map.of(
+            "мск", "Москва",
+            "спб", "Санкт-Петербург",
+            "питер", "Санкт-Петербург",
+            "екб", "Екатеринбург",
+            "нск", "Новосибирск",
+            "нн", "Нижний Новгород",
+            "msk", "Москва",
+            "spb", "Санкт-Петербург"
+    );
+
     private final List<City> cities;
     private final Map<String, City> cityByName;
+    // Нормализованный ключ, транслитерация или псевдоним → город
+    private final Map<String, City> cityByKey;
+    private final CityNameIndex nameIndex;
+    private final CityPrefixIndex prefixIndex;
+    private final CityKdTree locationIndex;
 
     public CityService(List<City> cities) {
+        this(cities, DEFAULT_ALIASES);
+    }
+
+    public CityService(List<City> cities, Map<String, String> aliases) {
         this.cities = cities;
         this.cityByName = cities.stream()
                 .collect(Collectors.toMap(
@@ -22,6 +42,27 @@ public class CityService {
                         c -> c,
                         this::resolveDuplicate // метод для разрешения конфликтов
                 ));
+        this.cityByKey = buildKeys(aliases);
+        this.nameIndex = new CityNameIndex(cityByName.values());
+        this.prefixIndex = new CityPrefixIndex(cityByName.values());
+        this.locationIndex = new CityKdTree(cityByName.values());
+    }
+
+    private Map<String, City> buildKeys(Map<String, String> aliases) {
+        Map<String, City> keys = new HashMap<>(cityByName.size() * 8);
+        for (City city : cityByName.values()) {
+            for (String key : CityKeys.of(city.getName())) {
+                keys.merge(key, city, this::resolveDuplicate);
+            }
+        }
+        // Псевдоним сильнее совпадения транслитераций
+        aliases.forEach((alias, name) -> {
+            City city = cityByName.get(name);
+            if (city != null) {
+                keys.put(CityKeys.normalize(alias), city);
+            }
+        });
+        return Map.copyOf(keys);
     }
 
     private City resolveDuplicate(City existing, City replacement) {
@@ -31,37 +72,46 @@ public class CityService {
         }
         return replacement;
     }
-    private static final Map<String, String> ABBREVIATIONS = Map.of(
-            "мск", "Москва",
-            "спб", "Санкт-Петербург",
-            "екб", "Екатеринбург",
-            "нск", "Новосибирск"
-    );
 
+    /**
+     * Точный поиск без учёта регистра, «ё», дефисов и лишних пробелов; понимает латиницу
+     * («moskva», «ekaterinburg») и псевдонимы. Один поиск в заранее построенной таблице ключей.
+     */
     public City findCity(String input) {
         if (input == null || input.trim().isEmpty()) {
             return null;
         }
-        String clean = input.trim().toLowerCase(Locale.ROOT);
-        String full = ABBREVIATIONS.get(clean);
-        return cityByName.get(Objects.requireNonNullElse(full, input));
+        return cityByKey.get(CityKeys.normalize(input));
     }
     /**
      * Найти до `limit` городов с помощью нечёткого поиска.
-     * Возвращает города с рейтингом >= minScore (0–100).
+     * Возвращает города с рейтингом >= minScore (0–100); при равном рейтинге крупные города первыми.
+     * Рейтинг считается только для кандидатов из индекса триграмм, а не для всех городов.
      */
     public List<City> findCitiesFuzzy(String input, int limit, int minScore) {
         if (input == null || input.trim().isEmpty()) {
             return List.of();
         }
+        return nameIndex.search(input, limit, minScore);
+    }
 
-        List<ExtractedResult> results = FuzzySearch.extractTop(input, cityByName.keySet(), limit);
-        return results.stream()
-                .filter(r -> r.getScore() >= minScore)
-                .map(ExtractedResult::getString)
-                .map(cityByName::get)
-                .filter(Objects::nonNull)
-                .toList();
+    /**
+     * Автодополнение: до `limit` городов, чьё название или слово в нём начинается с prefix
+     * (в том числе латиницей), крупные первыми. Не больше CityPrefixIndex.MAX_RESULTS.
+     */
+    public List<City> suggestCities(String prefix, int limit) {
+        if (prefix == null) {
+            return List.of();
+        }
+        return prefixIndex.suggest(prefix, limit);
+    }
+
+    /**
+     * Ближайший к точке город из справочника и расстояние до него по поверхности Земли.
+     * null, если координат нет ни у одного города.
+     */
+    public NearestCity findNearestCity(double lat, double lon) {
+        return locationIndex.nearest(lat, lon);
     }
 
     public List<String> getTop10Cities() {
@@ -75,4 +125,7 @@ public class CityService {
                 .map(City::getName)
                 .toList();
     }
-}
\ No newline at end of file
+
+    public record NearestCity(City city, double distanceKm) {
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.bot.service;
+
+import com.example.bot.database.DatabaseManager;
+import com.example.bot.model.Forecast;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Общий кэш погоды в таблице weather_cache. Прогноз хранится как JSON модели Forecast,
+ * так все экземпляры бота делят один запрос к API на ячейку или город (столбец city хранит ключ кэша).
+ */
+public class DatabaseWeatherCacheTier implements WeatherCacheTier {
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseWeatherCacheTier.class);
+
+    private final DatabaseManager databaseManager;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public DatabaseWeatherCacheTier(DatabaseManager databaseManager) {
+        this.databaseManager = databaseManager;
+    }
+
+    @Override
+    public WeatherCacheStorage.CachedForecast load(String key) {
+        DatabaseManager.WeatherCacheRow row = databaseManager.getWeatherCache(key);
+        return row != null ? toCachedForecast(row) : null;
+    }
+
+    @Override
+    public Map<String, WeatherCacheStorage.CachedForecast> loadSince(LocalDate since) {
+        Map<String, WeatherCacheStorage.CachedForecast> result = new HashMap<>();
+        for (DatabaseManager.WeatherCacheRow row : databaseManager.getWeatherCacheSince(since)) {
+            WeatherCacheStorage.CachedForecast cached = toCachedForecast(row);
+            if (cached != null) {
+                result.put(row.city, cached);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void store(String key, WeatherCacheStorage.CachedForecast forecast) {
+        try {
+            databaseManager.upsertWeatherCache(key, objectMapper.writeValueAsString(forecast.getForecast()),
+                    forecast.getCachedAt());
+        } catch (Exception e) {
+            logger.warn("Не удалось сохранить прогноз для {} в общий кэш", key, e);
+        }
+    }
+
+    @Override
+    public void removeOlderThan(LocalDate date) {
+        int removed = databaseManager.deleteWeatherCacheBefore(date);
+        if (removed > 0) {
+            logger.debug("Из общего кэша погоды удалено прогнозов: {}", removed);
+        }
+    }
+
+    // Повреждённая строка считается промахом: город будет загружен из API и перезаписан
+    private WeatherCacheStorage.CachedForecast toCachedForecast(DatabaseManager.WeatherCacheRow row) {
+        try {
+            return new WeatherCacheStorage.CachedForecast(objectMapper.readValue(row.payload, Forecast.class), row.cachedAt);
+        } catch (Exception e) {
+            logger.warn("Не удалось прочитать прогноз для {} из общего кэша", row.city, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.bot.service;
+
+import com.example.bot.model.Forecast;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Потоковый разбор ответа /forecast. Из каждого слота берутся только dt, main.temp
+ * и weather[0].description — сразу в массивы Forecast, без дерева JsonNode и без
+ * строки со всем телом ответа. Остальные поля пропускаются, не создавая объектов.
+ */
+public final class ForecastParser {
+    // Столько слотов отдаёт API: 5 дней по 3 часа
+    private static final int EXPECTED_SLOTS = 40;
+
+    private final JsonFactory jsonFactory;
+
+    public ForecastParser() {
+        this(new JsonFactory());
+    }
+
+    public ForecastParser(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Разбирает ответ API и закрывает поток.
+     * @return прогноз (возможно, пустой) или null, если в ответе нет списка list
+     */
+    public Forecast parse(InputStream in) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Ответ прогноза должен быть объектом");
+            }
+            Forecast forecast = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("list".equals(field) && value == JsonToken.START_ARRAY) {
+                    forecast = readSlots(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return forecast;
+        }
+    }
+
+    // Слоты без времени и идущие не по порядку пропускаются, как и раньше
+    private Forecast readSlots(JsonParser parser) throws IOException {
+        Forecast.Builder builder = Forecast.builder(EXPECTED_SLOTS);
+        long previous = Long.MIN_VALUE;
+        for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            long dt = 0;
+            double temp = Double.NaN;
+            String description = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "dt" -> dt = value.isNumeric() ? parser.getLongValue() : 0;
+                    case "main" -> temp = readTemp(parser, value);
+                    case "weather" -> description = readDescription(parser, value);
+                    default -> parser.skipChildren();
+                }
+            }
+            if (dt == 0 || dt < previous) continue;
+            previous = dt;
+            builder.add(dt, temp, description);
+        }
+        return builder.build();
+    }
+
+    private double readTemp(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return Double.NaN;
+        }
+        double temp = Double.NaN;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken fieldValue = parser.nextToken();
+            if ("temp".equals(field) && fieldValue.isNumeric()) {
+                temp = parser.getDoubleValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return temp;
+    }
+
+    // Описание берётся только из первого элемента weather
+    private String readDescription(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        String description = null;
+        boolean first = true;
+        for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+            if (first && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    if ("description".equals(field)) {
+                        description = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+        return description;
+    }
+}
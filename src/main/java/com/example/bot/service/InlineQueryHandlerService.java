@@ -0,0 +1,114 @@
+package com.example.bot.service;
+
+import com.example.bot.model.City;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultsButton;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inline-режим: «@bot Екат» подсказывает города по префиксу, выбор отправляет «/setcity Екатеринбург».
+ * Ответ на префикс кэшируется на CACHE_TTL и в боте, и на стороне Telegram (cache_time).
+ * Пока пользователь печатает, устаревшие запросы пропускаются: отвечаем только на последний.
+ * Подсказки выдаются только в личном чате с ботом: в другом чате «/setcity …» увидят собеседники,
+ * а бот сообщение не получит, поэтому там предлагается кнопка перехода в чат с ботом.
+ */
+public class InlineQueryHandlerService {
+    private static final Logger logger = LoggerFactory.getLogger(InlineQueryHandlerService.class);
+    public static final int MAX_RESULTS = 10;
+    public static final Duration CACHE_TTL = Duration.ofSeconds(60);
+    static final int MAX_CACHED_PREFIXES = 2_000;
+    // chat_type inline-запроса из личного чата с самим ботом
+    static final String BOT_CHAT_TYPE = "sender";
+    static final String START_PARAMETER = "setcity";
+
+    private final CityService cityService;
+    private final MessageSender messageSender;
+    private final Clock clock;
+    private final Duration cacheTtl;
+
+    private final Map<String, CachedAnswer> answers = new ConcurrentHashMap<>();
+    // Последний inline-запрос каждого пользователя
+    private final Map<Long, String> latestQueries = new ConcurrentHashMap<>();
+
+    public InlineQueryHandlerService(CityService cityService, MessageSender messageSender) {
+        this(cityService, messageSender, Clock.systemUTC(), CACHE_TTL);
+    }
+
+    InlineQueryHandlerService(CityService cityService, MessageSender messageSender, Clock clock, Duration cacheTtl) {
+        this.cityService = cityService;
+        this.messageSender = messageSender;
+        this.clock = clock;
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * Вызывается сразу при получении обновления, до очереди обработки: запоминает самый свежий запрос
+     */
+    public void markLatest(InlineQuery inlineQuery) {
+        latestQueries.put(inlineQuery.getFrom().getId(), inlineQuery.getId());
+    }
+
+    public void handleInlineQuery(InlineQuery inlineQuery) {
+        Long userId = inlineQuery.getFrom().getId();
+        // Пользователь уже напечатал больше — этот ответ никто не увидит
+        if (!latestQueries.remove(userId, inlineQuery.getId()) && latestQueries.containsKey(userId)) {
+            logger.debug("Inline-запрос {} пользователя {} устарел, пропускаем", inlineQuery.getId(), userId);
+            return;
+        }
+        if (!BOT_CHAT_TYPE.equals(inlineQuery.getChatType())) {
+            messageSender.answerInlineQuery(userId, inlineQuery.getId(), InlineQueryResultsButton.builder()
+                    .text("Выбрать город в чате с ботом")
+                    .startParameter(START_PARAMETER)
+                    .build());
+            return;
+        }
+        String prefix = CityKeys.normalize(inlineQuery.getQuery() == null ? "" : inlineQuery.getQuery());
+        messageSender.answerInlineQuery(userId, inlineQuery.getId(), resultsFor(prefix), (int) cacheTtl.toSeconds());
+    }
+
+    List<InlineQueryResult> resultsFor(String prefix) {
+        long now = clock.millis();
+        CachedAnswer cached = answers.get(prefix);
+        if (cached != null && cached.expiresAt() > now) {
+            return cached.results();
+        }
+        List<InlineQueryResult> results = buildResults(cityService.suggestCities(prefix, MAX_RESULTS));
+        if (answers.size() >= MAX_CACHED_PREFIXES) {
+            answers.values().removeIf(answer -> answer.expiresAt() <= now);
+        }
+        if (answers.size() < MAX_CACHED_PREFIXES) {
+            answers.put(prefix, new CachedAnswer(results, now + cacheTtl.toMillis()));
+        }
+        return results;
+    }
+
+    private static List<InlineQueryResult> buildResults(List<City> cities) {
+        List<InlineQueryResult> results = new ArrayList<>(cities.size());
+        for (int i = 0; i < cities.size(); i++) {
+            City city = cities.get(i);
+            results.add(InlineQueryResultArticle.builder()
+                    .id("city:" + i)
+                    .title(city.getName())
+                    .description(String.format("%s · %,d жителей", city.getRegion(), city.getPopulation()))
+                    .inputMessageContent(InputTextMessageContent.builder()
+                            .messageText("/setcity " + city.getName())
+                            .build())
+                    .build());
+        }
+        return List.copyOf(results);
+    }
+
+    private record CachedAnswer(List<InlineQueryResult> results, long expiresAt) {
+    }
+}
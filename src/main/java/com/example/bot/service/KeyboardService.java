@@ -2,6 +2,7 @@
 package com.example.bot.service;
 
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
 
 import java.util.List;
@@ -30,4 +31,22 @@ public class KeyboardService {
                 .oneTimeKeyboard(false)
                 .build();
     }
+
+    // Выбор города: кнопка отправки геопозиции, клавиатура скрывается после нажатия
+    public static ReplyKeyboardMarkup shareLocation() {
+        KeyboardRow row1 = new KeyboardRow();
+        row1.add(KeyboardButton.builder()
+                .text("📍 Отправить геопозицию")
+                .requestLocation(true)
+                .build());
+
+        KeyboardRow row2 = new KeyboardRow();
+        row2.add("отмена");
+
+        return ReplyKeyboardMarkup.builder()
+                .keyboard(List.of(row1, row2))
+                .resizeKeyboard(true)
+                .oneTimeKeyboard(true)
+                .build();
+    }
 }
\ No newline at end of file
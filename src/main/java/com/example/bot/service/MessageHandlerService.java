@@ -3,9 +3,15 @@ package com.example.bot.service;
 
 import com.example.bot.command.Command;
 import com.example.bot.command.CommandRegistry;
+import com.example.bot.command.CommandReply;
+import com.example.bot.command.DeferredCommand;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.keyboard.InlineKeyboardFactory;
+import org.telegram.telegrambots.meta.api.objects.Location;
 import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+
+import java.util.concurrent.CompletableFuture;
 
 public class MessageHandlerService {
     private final DatabaseManager databaseManager;
@@ -31,15 +37,10 @@ public class MessageHandlerService {
             String text = message.getText().trim();
             Long chatId = message.getChatId();
 
-            databaseManager.saveUser(userId, message.getFrom().getUserName());
+            // Регистрирует пользователя и одним запросом загружает всё, что понадобится командам
+            databaseManager.beginRequest(userId, message.getFrom().getUserName());
 
-            if (userStateService.hasActiveState(userId) && userStateService.isEditTimedOut(userId)) {
-                userStateService.cleanupEditState(userId);
-                messageSender.sendText(chatId, """
-                    ⏰ *Время редактирования истекло*
-                    
-                    Редактирование автоматически отменено через 10 секунд бездействия.
-                    Попробуйте снова.""");
+            if (expireTimedOutState(userId, chatId)) {
                 return;
             }
 
@@ -52,8 +53,17 @@ public class MessageHandlerService {
             if (command != null) {
                 System.out.println("Обработка команды '{}' для пользователя {}"+ text+ userId);
                 try {
-                    String response = command.execute(message);
-                    sendResponseWithKeyboardIfNeeded(chatId, text, response, userId);
+                    if (command instanceof DeferredCommand deferred) {
+                        // Ответ уходит сразу, недостающие данные дописываются правкой сообщения.
+                        // Правка без той же клавиатуры убрала бы кнопки, поэтому она выбирается один раз
+                        CommandReply reply = deferred.executeDeferred(message);
+                        InlineKeyboardMarkup keyboard = inlineKeyboardFor(text, userId);
+                        CompletableFuture<Message> sent = sendResponseWithKeyboardIfNeeded(chatId, text, reply.text(), keyboard);
+                        reply.editWhenReady(messageSender, chatId, sent, keyboard);
+                    } else {
+                        String response = command.execute(message);
+                        sendResponseWithKeyboardIfNeeded(chatId, text, response, inlineKeyboardFor(text, userId));
+                    }
                 } catch (Exception e) {
                     System.out.println("Ошибка при выполнении команды '{}' у пользователя {}"+ text+ userId+ e.getMessage());
                     messageSender.sendText(chatId, "Произошла ошибка при обработке команды.");
@@ -70,34 +80,74 @@ public class MessageHandlerService {
         } catch (Exception e) {
             // Логирование можно добавить через отдельный Logger
             messageSender.sendText(message.getChatId(), "Произошла ошибка при обработке команды.");
+        } finally {
+            databaseManager.endRequest();
+        }
+    }
+
+    /**
+     * Геопозиция из чата: в состоянии выбора города определяет ближайший город
+     */
+    public void handleLocation(Message message) {
+        try {
+            Long userId = message.getFrom().getId();
+            Long chatId = message.getChatId();
+            databaseManager.beginRequest(userId, message.getFrom().getUserName());
+
+            if (expireTimedOutState(userId, chatId)) {
+                return;
+            }
+            Location location = message.getLocation();
+            userStateService.handleUserLocation(userId, location.getLatitude(), location.getLongitude(), chatId);
+        } catch (Exception e) {
+            messageSender.sendText(message.getChatId(), "Произошла ошибка при обработке геопозиции.");
+        } finally {
+            databaseManager.endRequest();
         }
     }
 
-    private void sendResponseWithKeyboardIfNeeded(Long chatId, String text, String response, Long userId) {
+    private boolean expireTimedOutState(Long userId, Long chatId) {
+        if (!userStateService.hasActiveState(userId) || !userStateService.isEditTimedOut(userId)) {
+            return false;
+        }
+        userStateService.expireState(userId, chatId);
+        return true;
+    }
+
+    private CompletableFuture<Message> sendResponseWithKeyboardIfNeeded(Long chatId, String text, String response,
+                                                                       InlineKeyboardMarkup inlineKeyboard) {
         if ("/start".equals(text) || "/help".equals(text) || "/menu".equals(text)) {
-            messageSender.sendTextWithKeyboard(chatId, response, KeyboardService.mainMenu());
-        } else if ("/todo".equals(text)) {
-            messageSender.sendTextWithInlineKeyboard(chatId, response, InlineKeyboardFactory.getTodoActionsKeyboard());
+            return messageSender.sendTextWithKeyboard(chatId, response, KeyboardService.mainMenu());
+        } else if (inlineKeyboard != null) {
+            return messageSender.sendTextWithInlineKeyboard(chatId, response, inlineKeyboard);
+        } else {
+            return messageSender.sendText(chatId, response);
+        }
+    }
+
+    /**
+     * Inline-клавиатура под ответом команды или null, если кнопок нет
+     */
+    private InlineKeyboardMarkup inlineKeyboardFor(String text, Long userId) {
+        if ("/todo".equals(text)) {
+            return InlineKeyboardFactory.getTodoActionsKeyboard();
         } else if ("/wishlist".equals(text)) {
             boolean isLocked = databaseManager.isWishlistLocked(userId);
             boolean hasWishes = !databaseManager.getWishes(userId).isEmpty();
-            var keyboard = InlineKeyboardFactory.getWishlistActionsKeyboard(isLocked, hasWishes);
-            messageSender.sendTextWithInlineKeyboard(chatId, response, keyboard);
+            return InlineKeyboardFactory.getWishlistActionsKeyboard(isLocked, hasWishes);
         } else if ("/setcity".equals(text)) {
             String currentCity = databaseManager.getUserCity(userId);
-            if (currentCity != null && !currentCity.isBlank()) {
-                messageSender.sendTextWithInlineKeyboard(
-                        chatId,
-                        response,
-                        InlineKeyboardFactory.getChangeCityConfirmationKeyboard()
-                );
-                return;
-            }
-            messageSender.sendText(chatId, response);
-        } else if ("/stats".equals(text) || (text.startsWith("/stats ") && !text.contains("week"))) {
-            messageSender.sendTextWithInlineKeyboard(chatId, response, InlineKeyboardFactory.getWeekStatsKeyboard());
+            return currentCity != null && !currentCity.isBlank()
+                    ? InlineKeyboardFactory.getChangeCityConfirmationKeyboard()
+                    : null;
+        } else if (isTodayStats(text)) {
+            return InlineKeyboardFactory.getWeekStatsKeyboard();
         } else {
-            messageSender.sendText(chatId, response);
+            return null;
         }
     }
+
+    private boolean isTodayStats(String text) {
+        return "/stats".equals(text) || (text.startsWith("/stats ") && !text.contains("week"));
+    }
 }
\ No newline at end of file
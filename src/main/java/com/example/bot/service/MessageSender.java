@@ -1,12 +1,28 @@
 // src/main/java/com/example/bot/service/MessageSender.java
 package com.example.bot.service;
 
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultsButton;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Отправка сообщений пользователям. Методы не блокируют вызывающий поток:
+ * результат (отправленное сообщение или ошибка) приходит в CompletableFuture.
+ * Ответы пользователю отправляются в первую очередь, массовые рассылки (sendBulk) — на оставшемся лимите.
+ */
 public interface MessageSender {
-    void sendText(Long chatId, String text);
-    void sendTextWithKeyboard(Long chatId, String text, ReplyKeyboardMarkup keyboard);
-    void sendTextWithInlineKeyboard(Long chatId, String text, InlineKeyboardMarkup keyboard);
-    void editMessageText(Long chatId, Integer messageId, String text, InlineKeyboardMarkup keyboard);
+    CompletableFuture<Message> sendText(Long chatId, String text);
+    CompletableFuture<Message> sendTextWithKeyboard(Long chatId, String text, ReplyKeyboardMarkup keyboard);
+    CompletableFuture<Message> sendTextWithInlineKeyboard(Long chatId, String text, InlineKeyboardMarkup keyboard);
+    CompletableFuture<Message> sendBulk(Long chatId, String text, ReplyKeyboard keyboard);
+    CompletableFuture<Serializable> editMessageText(Long chatId, Integer messageId, String text, InlineKeyboardMarkup keyboard);
+    CompletableFuture<Boolean> answerInlineQuery(Long userId, String inlineQueryId, List<InlineQueryResult> results, int cacheSeconds);
+    CompletableFuture<Boolean> answerInlineQuery(Long userId, String inlineQueryId, InlineQueryResultsButton button);
 }
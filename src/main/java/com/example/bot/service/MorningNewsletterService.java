@@ -1,111 +1,399 @@
 package com.example.bot.service;
 
 import com.example.bot.database.DatabaseManager;
+import com.example.bot.database.DatabaseManager.NewsletterRecipient;
+import com.example.bot.database.DatabaseManager.NewsletterRun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.bots.AbsSender;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Утренняя рассылка, собранная из стадий:
+ * <ol>
+ *     <li>получатели читаются из БД страницами по user_id (город приходит в той же строке);</li>
+ *     <li>прогноз запрашивается один раз на город, как только город встретился впервые;</li>
+ *     <li>несколько потоков собирают тексты: шапка с погодой готовится один раз на город;</li>
+ *     <li>отправка идёт через очередь в полосе BULK, число неподтверждённых отправок ограничено;</li>
+ *     <li>доставленные пачками отмечаются в newsletter_deliveries.</li>
+ * </ol>
+ * Запуск за день хранится в newsletter_runs: после перезапуска бота рассылка продолжается
+ * только для тех, кому ещё не доставлена, а завершённая повторно не отправляется.
+ */
 public class MorningNewsletterService {
     private static final Logger logger = LoggerFactory.getLogger(MorningNewsletterService.class);
 
+    public static final int DEFAULT_RENDER_WORKERS = 4;
+    // Одновременных запросов к OpenWeather при прогреве кэша
+    public static final int WEATHER_PREFETCH_PARALLELISM = 8;
+    // Не больше, чем помещается в очередь отправки, иначе лишние сообщения будут отклонены
+    public static final int DEFAULT_MAX_PENDING_SENDS = 200;
+    private static final int STAGE_BUFFER = 1000;
+    private static final int CHECKPOINT_BATCH = 100;
+    private static final long CHECKPOINT_POLL_MILLIS = 200;
+    private static final NewsletterRecipient END = new NewsletterRecipient(null, null);
+    private static final String NO_CITY = "";
+    private static final String NO_CITY_FORECAST = "🌤️ Город не указан — не могу показать погоду.";
+    private static final String FORECAST_UNAVAILABLE = "🌫️ Не удалось получить прогноз погоды.";
+    private static final String FOOTER = """
+
+            📝 Не забудьте обновить свой to-do список!
+            Используйте команду /todo, чтобы добавить задачи на сегодня.
+            """;
+
     private final DatabaseManager databaseManager;
-    private final AbsSender bot;
+    private final MessageSender messageSender;
     private final WeatherService weatherService;
     private final DailyTarotService tarotService;
+    private final int renderWorkers;
+    private final int maxPendingSends;
 
-    public MorningNewsletterService(DatabaseManager databaseManager, AbsSender bot, String openWeatherApiKey) {
+    public MorningNewsletterService(DatabaseManager databaseManager, MessageSender messageSender, String openWeatherApiKey) {
+        this(databaseManager, messageSender, new WeatherService(openWeatherApiKey), new DailyTarotService());
+    }
+
+    public MorningNewsletterService(DatabaseManager databaseManager, MessageSender messageSender,
+                                    WeatherService weatherService, DailyTarotService tarotService) {
+        this(databaseManager, messageSender, weatherService, tarotService,
+                DEFAULT_RENDER_WORKERS, DEFAULT_MAX_PENDING_SENDS);
+    }
+
+    // Пакетно-видимый конструктор для тестов
+    MorningNewsletterService(DatabaseManager databaseManager, MessageSender messageSender,
+                             WeatherService weatherService, DailyTarotService tarotService,
+                             int renderWorkers, int maxPendingSends) {
+        if (renderWorkers < 1 || maxPendingSends < 1) {
+            throw new IllegalArgumentException("Некорректные параметры рассылки");
+        }
         this.databaseManager = databaseManager;
-        this.bot = bot;
-        this.weatherService = new WeatherService(openWeatherApiKey); //
-        this.tarotService = new DailyTarotService();
+        this.messageSender = messageSender;
+        this.weatherService = weatherService;
+        this.tarotService = tarotService;
+        this.renderWorkers = renderWorkers;
+        this.maxPendingSends = maxPendingSends;
+    }
+
+    public NewsletterReport sendNewsletterToAllUsers() {
+        return sendNewsletter(LocalDate.now());
     }
 
-    public void sendNewsletterToAllUsers() {
-        logger.info("📧 Запуск утренней рассылки...");
-        Map<String, List<Long>> usersByCity = new HashMap<>();
-        List<Long> allUserIds = databaseManager.getAllUserIds();
+    /**
+     * Загружает в кэш прогнозы для всех городов пользователей, чтобы рассылка не ждала API
+     */
+    public WeatherService.PrefetchReport prefetchWeather() {
+        List<String> cities = databaseManager.getDistinctUserCities();
+        return weatherService.prefetch(cities, WEATHER_PREFETCH_PARALLELISM);
+    }
+
+    /**
+     * Есть ли сегодняшняя рассылка, прерванная до завершения (например, перезапуском бота)
+     */
+    public boolean hasUnfinishedRun() {
+        NewsletterRun run = databaseManager.getNewsletterRun(LocalDate.now());
+        return run != null && !run.isFinished();
+    }
+
+    NewsletterReport sendNewsletter(LocalDate day) {
+        NewsletterRun run = databaseManager.startNewsletterRun(day);
+        if (run == null) {
+            logger.error("❌ Не удалось начать рассылку за {}", day);
+            return NewsletterReport.skipped(day);
+        }
+        if (run.isFinished()) {
+            logger.info("📧 Рассылка за {} уже отправлена ({} пользователей)", day, run.sentCount);
+            return NewsletterReport.skipped(day);
+        }
+        boolean resumed = run.sentCount > 0;
+        logger.info(resumed
+                ? "📧 Продолжение утренней рассылки (уже доставлено: {})..."
+                : "📧 Запуск утренней рассылки...", run.sentCount);
+
+        long weatherMissesBefore = weatherService.getCacheStats().misses();
+        Pipeline pipeline = new Pipeline(day);
+        pipeline.run();
+        long weatherMisses = weatherService.getCacheStats().misses() - weatherMissesBefore;
+        if (weatherMisses > 0) {
+            logger.info("🌍 Прогнозов загружено во время рассылки (не было в кэше): {}", weatherMisses);
+        }
 
-        for (Long userId : allUserIds) {
-            String city = databaseManager.getUserCity(userId);
-            if (city != null && !city.trim().isEmpty()) {
-                usersByCity.computeIfAbsent(city, k -> new ArrayList<>()).add(userId);
+        NewsletterReport report = pipeline.report(resumed);
+        if (pipeline.interrupted) {
+            // Запуск остаётся RUNNING: недоставленные получат рассылку после перезапуска
+            logger.warn("⚠️ Утренняя рассылка прервана: {}", report);
+        } else {
+            databaseManager.finishNewsletterRun(day, (int) report.failed());
+            logger.info("✅ Утренняя рассылка завершена: {}", report);
+        }
+        return report;
+    }
+
+    /**
+     * Состояние одного запуска рассылки
+     */
+    private final class Pipeline {
+        private final LocalDate day;
+        private final String date;
+        private final long startNanos = System.nanoTime();
+        private final BlockingQueue<NewsletterRecipient> recipients = new ArrayBlockingQueue<>(STAGE_BUFFER);
+        private final LinkedBlockingQueue<Long> delivered = new LinkedBlockingQueue<>();
+        // Шапка сообщения с погодой: одна на город, готова, когда пришёл прогноз
+        private final Map<String, CompletableFuture<String>> headers = new ConcurrentHashMap<>();
+        private final String noCityHeader;
+        private final Semaphore pendingSends = new Semaphore(maxPendingSends);
+
+        private final StageCounter loaded = new StageCounter();
+        private final StageCounter cities = new StageCounter();
+        private final StageCounter rendered = new StageCounter();
+        private final StageCounter sent = new StageCounter();
+        private final StageCounter checkpointed = new StageCounter();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile boolean sending = true;
+        private volatile boolean interrupted = false;
+
+        private Pipeline(LocalDate day) {
+            this.day = day;
+            this.date = day.format(DateTimeFormatter.ofPattern("EEEE, d MMMM", new Locale("ru")));
+            this.noCityHeader = header(NO_CITY_FORECAST);
+        }
+
+        private void run() {
+            try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+                CompletableFuture<Void> checkpoint = CompletableFuture.runAsync(this::checkpointLoop, workers);
+                List<CompletableFuture<Void>> renderers = new ArrayList<>();
+                for (int i = 0; i < renderWorkers; i++) {
+                    renderers.add(CompletableFuture.runAsync(this::renderLoop, workers));
+                }
+
+                load();
+                CompletableFuture.allOf(renderers.toArray(new CompletableFuture<?>[0])).join();
+                // Все разрешения вернутся, когда на каждую отправку придёт ответ
+                pendingSends.acquireUninterruptibly(maxPendingSends);
+                sending = false;
+                checkpoint.join();
             }
         }
 
-        // 2. ДОБАВЛЯЕМ ПОЛЬЗОВАТЕЛЕЙ БЕЗ ГОРОДА (им отправим нейтральный прогноз)
-        List<Long> usersWithoutCity = new ArrayList<>();
-        for (Long userId : allUserIds) {
-            String city = databaseManager.getUserCity(userId);
-            if (city == null || city.trim().isEmpty()) {
-                usersWithoutCity.add(userId);
+        private void load() {
+            try {
+                databaseManager.streamNewsletterRecipients(day, recipient -> {
+                    String city = cityKey(recipient.city);
+                    if (!city.isEmpty()) {
+                        // Прогноз грузится асинхронно: поток рассылки не ждёт ответа API
+                        headers.computeIfAbsent(city, c -> weatherService.getTodayForecastAsync(c)
+                                .handle((forecast, e) -> {
+                                    cities.record();
+                                    if (e != null) {
+                                        logger.warn("Не удалось получить прогноз для {}: {}", c, e.getMessage());
+                                        return header(FORECAST_UNAVAILABLE);
+                                    }
+                                    return header(forecast);
+                                }));
+                    }
+                    put(recipient);
+                    loaded.record();
+                });
+            } catch (RuntimeException e) {
+                // Не все получатели прочитаны: запуск нельзя отмечать завершённым
+                interrupted = true;
+                logger.error("❌ Ошибка чтения получателей рассылки", e);
+            } finally {
+                for (int i = 0; i < renderWorkers; i++) {
+                    put(END);
+                }
             }
         }
 
-        if (!usersWithoutCity.isEmpty()) {
-            usersByCity.put("", usersWithoutCity); // ключ "" = без города
+        private void put(NewsletterRecipient recipient) {
+            try {
+                recipients.put(recipient);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
         }
 
-        // 3. ОТПРАВЛЯЕМ РАССЫЛКУ ПО ГРУППАМ
-        int sentCount = 0;
-        String date = LocalDate.now()
-                .format(DateTimeFormatter.ofPattern("EEEE, d MMMM", new Locale("ru")));
+        private void renderLoop() {
+            while (true) {
+                NewsletterRecipient recipient;
+                try {
+                    recipient = recipients.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (recipient == END) {
+                    return;
+                }
+                try {
+                    String message = render(recipient);
+                    rendered.record();
+                    send(recipient.userId, message);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Ошибка при подготовке рассылки пользователю: " + recipient.userId, e);
+                }
+            }
+        }
+
+        private String render(NewsletterRecipient recipient) {
+            String city = cityKey(recipient.city);
+            String header = city.isEmpty() ? noCityHeader : headers.get(city).join();
+            DailyTarotService.TarotReading reading = tarotService.getRandomReading();
+            return header + reading.cardName() + "\n_" + reading.fullMeaning() + "_\n" + FOOTER;
+        }
 
-        for (Map.Entry<String, List<Long>> entry : usersByCity.entrySet()) {
-            String city = entry.getKey();
-            List<Long> userIds = entry.getValue();
+        private String header(String weather) {
+            return "☀️ *Доброе утро!*\n\nПогода на " + date + ":\n" + weather + "\n\n🃏 *Карта дня:* ";
+        }
 
-            // Получаем прогноз (с кэшированием!)
+        private void send(Long userId, String message) {
+            pendingSends.acquireUninterruptibly();
+            try {
+                // Рассылка идёт в полосе BULK и не задерживает ответы пользователям
+                messageSender.sendBulk(userId, message, KeyboardService.mainMenu()) // ← единая клавиатура
+                        .whenComplete((result, e) -> {
+                            if (e == null) {
+                                sent.record();
+                                delivered.add(userId);
+                            } else {
+                                onSendFailed(e);
+                            }
+                            pendingSends.release();
+                        });
+            } catch (RuntimeException e) {
+                pendingSends.release();
+                onSendFailed(e);
+            }
+        }
 
-            String weather = city.isEmpty()
-                    ? "🌤️ Город не указан — не могу показать погоду."
-                    : weatherService.getTodayForecast(city);
+        private void onSendFailed(Throwable e) {
+            failed.incrementAndGet();
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof RejectedExecutionException || cause instanceof CancellationException) {
+                interrupted = true;
+            }
+        }
 
-            for (Long userId : userIds) {
+        // Отмечает доставленных пачками, пока идёт отправка, и дописывает остаток в конце
+        private void checkpointLoop() {
+            while (sending || !delivered.isEmpty()) {
+                Long userId;
                 try {
-                    DailyTarotService.TarotReading reading = tarotService.getRandomReading();
-                    String message = String.format("""
-                                    ☀️ *Доброе утро!*
-                                    
-                                    Погода на %s:
-                                    %s
-                                    
-                                    🃏 *Карта дня:* %s
-                                    _%s_
-                                    
-                                    📝 Не забудьте обновить свой to-do список!
-                                    Используйте команду /todo, чтобы добавить задачи на сегодня.
-                                    """,
-                            date,
-                            weather,
-                            reading.cardName(),
-                            reading.fullMeaning()
-                    );
-
-                    // В MorningNewsletterService.sendNewsletterToAllUsers()
-                    SendMessage msg = SendMessage.builder()
-                            .chatId(userId.toString())
-                            .text(message)
-                            .parseMode("Markdown")
-                            .replyMarkup(KeyboardService.mainMenu()) // ← единая клавиатура
-                            .build();
-
-                    bot.execute(msg);
-                    sentCount++;
-                } catch (TelegramApiException e) {
-                    logger.warn("Не удалось отправить рассылку пользователю {}: {}", userId, e.getMessage());
-                } catch (Exception e) {
-                    logger.error("Ошибка при отправке рассылки пользователю: " + userId, e);
+                    userId = delivered.poll(CHECKPOINT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (userId == null) {
+                    continue;
                 }
+                List<Long> batch = new ArrayList<>(CHECKPOINT_BATCH);
+                batch.add(userId);
+                delivered.drainTo(batch, CHECKPOINT_BATCH - 1);
+                databaseManager.recordNewsletterDeliveries(day, batch);
+                checkpointed.record(batch.size());
             }
         }
 
-        logger.info("✅ Утренняя рассылка отправлена {} пользователям", sentCount);
+        private NewsletterReport report(boolean resumed) {
+            return new NewsletterReport(
+                    day,
+                    resumed,
+                    loaded.rate(startNanos),
+                    cities.rate(startNanos),
+                    rendered.rate(startNanos),
+                    sent.rate(startNanos),
+                    checkpointed.rate(startNanos),
+                    failed.get()
+            );
+        }
+    }
+
+    private static String cityKey(String city) {
+        return city == null ? NO_CITY : city.trim();
+    }
+
+    /**
+     * Счётчик стадии: сколько обработано и когда закончилась последняя обработка
+     */
+    private static final class StageCounter {
+        private final AtomicLong count = new AtomicLong();
+        private volatile long lastNanos;
+
+        private void record() {
+            record(1);
+        }
+
+        private void record(int items) {
+            count.addAndGet(items);
+            lastNanos = System.nanoTime();
+        }
+
+        private StageRate rate(long startNanos) {
+            long items = count.get();
+            return new StageRate(items, items > 0 ? TimeUnit.NANOSECONDS.toMillis(lastNanos - startNanos) : 0);
+        }
+    }
+
+    /**
+     * Пропускная способность стадии с начала рассылки до последней обработанной записи.
+     *
+     * @param count  обработано записей
+     * @param millis время от начала рассылки до последней записи
+     */
+    public record StageRate(long count, long millis) {
+        public double perSecond() {
+            return millis > 0 ? count * 1000.0 / millis : count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d за %d мс (%.1f/с)", count, millis, perSecond());
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Итог запуска рассылки по стадиям.
+     *
+     * @param day          день рассылки
+     * @param resumed      рассылка продолжена после перезапуска
+     * @param loaded       прочитано получателей
+     * @param cities       получено прогнозов (по одному на город)
+     * @param rendered     подготовлено сообщений
+     * @param sent         доставлено сообщений
+     * @param checkpointed отмечено доставок в БД
+     * @param failed       не удалось подготовить или отправить
+     */
+    public record NewsletterReport(LocalDate day, boolean resumed, StageRate loaded, StageRate cities,
+                                   StageRate rendered, StageRate sent, StageRate checkpointed, long failed) {
+        static NewsletterReport skipped(LocalDate day) {
+            StageRate none = new StageRate(0, 0);
+            return new NewsletterReport(day, false, none, none, none, none, none, 0);
+        }
+
+        @Override
+        public String toString() {
+            return day + (resumed ? " (продолжение)" : "") + ": загружено " + loaded + ", городов " + cities
+                    + ", подготовлено " + rendered + ", отправлено " + sent + ", отмечено " + checkpointed
+                    + ", ошибок " + failed;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.example.bot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Очередь исходящих запросов к Telegram Bot API с учётом лимитов.
+ * Общий token bucket держит ~30 сообщений в секунду на бота, отдельный bucket на чат — ~1 в секунду
+ * с небольшим всплеском. В один чат одновременно отправляется не больше одного запроса, поэтому порядок
+ * сообщений сохраняется. Ответ 429 повторяется после retry_after; лимит Telegram общий для бота, поэтому
+ * на это время приостанавливается и общий bucket, а не только чат. Очередь ограничена: при переполнении
+ * submit ждёт свободного места и отклоняет запрос, если место не освободилось.
+ * <p>
+ * Запросы делятся на две полосы. Ответы пользователям (INTERACTIVE) идут первыми, массовые рассылки (BULK)
+ * получают одну отправку из {@code interactiveWeight + 1}, пока есть интерактивные запросы, и не трогают
+ * последние {@code bulkReserve} токенов общего лимита — они остаются на внезапные ответы пользователям.
+ */
+public class OutboundMessageQueue {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundMessageQueue.class);
+
+    public static final double DEFAULT_GLOBAL_PER_SECOND = 30;
+    public static final double DEFAULT_CHAT_PER_SECOND = 1;
+    public static final int DEFAULT_CHAT_BURST = 3;
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final Duration DEFAULT_OFFER_TIMEOUT = Duration.ofSeconds(5);
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
+    public static final int DEFAULT_BULK_RESERVE = 5;
+    private static final int THROUGHPUT_WINDOW_SECONDS = 10;
+
+    public enum Priority {
+        INTERACTIVE,
+        BULK
+    }
+
+    /**
+     * Тот, кто на самом деле выполняет запрос (в боте — ChatBot.execute)
+     */
+    @FunctionalInterface
+    public interface ApiExecutor {
+        <T extends Serializable> T execute(BotApiMethod<T> method) throws TelegramApiException;
+    }
+
+    private final ApiExecutor api;
+    private final double chatPerSecond;
+    private final int chatBurst;
+    private final int maxRetries;
+    private final Duration offerTimeout;
+    private final int interactiveWeight;
+    private final int bulkReserve;
+    private final TokenBucket globalBucket;
+    private final Semaphore capacity;
+    private final ExecutorService senders = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("outbound-", 0).factory());
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Порядок вставки используется для очереди по кругу между чатами
+    private final Map<Long, ChatQueue> chats = new LinkedHashMap<>();
+    private final Thread scheduler;
+    private int queued = 0;
+    private int inFlight = 0;
+    // Сколько интерактивных отправок подряд прошло, пока ждали массовые
+    private int interactiveStreak = 0;
+    private volatile boolean closed = false;
+    private final Map<Priority, LaneStats> lanes = Map.of(
+            Priority.INTERACTIVE, new LaneStats(),
+            Priority.BULK, new LaneStats()
+    );
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public OutboundMessageQueue(ApiExecutor api) {
+        this(api, DEFAULT_GLOBAL_PER_SECOND, DEFAULT_CHAT_PER_SECOND, DEFAULT_CHAT_BURST,
+                DEFAULT_CAPACITY, DEFAULT_MAX_RETRIES, DEFAULT_OFFER_TIMEOUT);
+    }
+
+    public OutboundMessageQueue(ApiExecutor api, double globalPerSecond, double chatPerSecond, int chatBurst,
+                                int capacity, int maxRetries, Duration offerTimeout) {
+        this(api, globalPerSecond, chatPerSecond, chatBurst, capacity, maxRetries, offerTimeout,
+                DEFAULT_INTERACTIVE_WEIGHT, Math.max(0, Math.min(DEFAULT_BULK_RESERVE, (int) globalPerSecond - 1)));
+    }
+
+    public OutboundMessageQueue(ApiExecutor api, double globalPerSecond, double chatPerSecond, int chatBurst,
+                                int capacity, int maxRetries, Duration offerTimeout,
+                                int interactiveWeight, int bulkReserve) {
+        if (globalPerSecond <= 0 || chatPerSecond <= 0 || chatBurst < 1 || capacity < 1 || maxRetries < 0) {
+            throw new IllegalArgumentException("Некорректные лимиты очереди отправки");
+        }
+        int globalBurst = Math.max(1, (int) globalPerSecond);
+        if (interactiveWeight < 1 || bulkReserve < 0 || bulkReserve >= globalBurst) {
+            throw new IllegalArgumentException("Некорректные веса полос очереди отправки");
+        }
+        this.api = api;
+        this.chatPerSecond = chatPerSecond;
+        this.chatBurst = chatBurst;
+        this.maxRetries = maxRetries;
+        this.offerTimeout = offerTimeout;
+        this.interactiveWeight = interactiveWeight;
+        this.bulkReserve = bulkReserve;
+        this.globalBucket = new TokenBucket(globalBurst, globalPerSecond);
+        this.capacity = new Semaphore(capacity);
+        this.scheduler = Thread.ofPlatform().daemon().name("outbound-scheduler").start(this::runScheduler);
+    }
+
+    /**
+     * Ставит ответ пользователю в очередь чата. Результат — ответ Telegram или исключение после всех попыток.
+     */
+    public <T extends Serializable> CompletableFuture<T> submit(Long chatId, BotApiMethod<T> method) {
+        return submit(chatId, method, Priority.INTERACTIVE);
+    }
+
+    public <T extends Serializable> CompletableFuture<T> submit(Long chatId, BotApiMethod<T> method, Priority priority) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("Очередь отправки остановлена"));
+            return future;
+        }
+        try {
+            if (!capacity.tryAcquire(offerTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                logger.warn("Очередь отправки переполнена, сообщение в чат {} отклонено", chatId);
+                future.completeExceptionally(new RejectedExecutionException("Очередь отправки переполнена"));
+                return future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        lock.lock();
+        try {
+            chats.computeIfAbsent(chatId, id -> new ChatQueue(new TokenBucket(chatBurst, chatPerSecond)))
+                    .lane(priority).addLast(new Outbound<>(chatId, method, future, priority, System.nanoTime()));
+            queued++;
+            lanes.get(priority).queued++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    private void runScheduler() {
+        List<Outbound<?>> ready = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                if (closed && queued == 0 && inFlight == 0) {
+                    return;
+                }
+                long waitNanos = collectReady(System.nanoTime(), ready);
+                if (ready.isEmpty()) {
+                    changed.awaitNanos(waitNanos);
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            for (Outbound<?> item : ready) {
+                senders.execute(() -> send(item));
+            }
+            ready.clear();
+        }
+    }
+
+    // Вызывается под lock. Забирает готовые к отправке запросы и возвращает, сколько ждать следующего
+    private long collectReady(long now, List<Outbound<?>> ready) {
+        long waitNanos = TimeUnit.SECONDS.toNanos(1);
+        // Чаты, которые могут отправить прямо сейчас, по полосе их первого запроса
+        ArrayDeque<Long> interactiveReady = new ArrayDeque<>();
+        ArrayDeque<Long> bulkReady = new ArrayDeque<>();
+        Iterator<Map.Entry<Long, ChatQueue>> it = chats.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, ChatQueue> entry = it.next();
+            ChatQueue chat = entry.getValue();
+            if (chat.isEmpty() && !chat.inFlight && chat.bucket.isFull(now)) {
+                // Чат давно молчит: его bucket полон, хранить состояние незачем
+                it.remove();
+                continue;
+            }
+            if (chat.inFlight || chat.isEmpty()) {
+                continue;
+            }
+            if (chat.notBefore > now) {
+                waitNanos = Math.min(waitNanos, chat.notBefore - now);
+                continue;
+            }
+            long chatWait = chat.bucket.nanosUntilTokens(now, 1);
+            if (chatWait > 0) {
+                waitNanos = Math.min(waitNanos, chatWait);
+                continue;
+            }
+            (chat.interactive.isEmpty() ? bulkReady : interactiveReady).add(entry.getKey());
+        }
+
+        List<Long> dispatched = new ArrayList<>();
+        while (!interactiveReady.isEmpty() || !bulkReady.isEmpty()) {
+            boolean canInteractive = !interactiveReady.isEmpty() && globalBucket.nanosUntilTokens(now, 1) == 0;
+            boolean canBulk = !bulkReady.isEmpty() && globalBucket.nanosUntilTokens(now, 1 + bulkReserve) == 0;
+            if (!canInteractive && !canBulk) {
+                long globalWait = !interactiveReady.isEmpty()
+                        ? globalBucket.nanosUntilTokens(now, 1)
+                        : globalBucket.nanosUntilTokens(now, 1 + bulkReserve);
+                waitNanos = Math.min(waitNanos, globalWait);
+                break;
+            }
+            boolean takeInteractive = canInteractive && (!canBulk || interactiveStreak < interactiveWeight);
+            Long chatId = takeInteractive ? interactiveReady.pollFirst() : bulkReady.pollFirst();
+            interactiveStreak = takeInteractive ? interactiveStreak + 1 : 0;
+
+            ChatQueue chat = chats.get(chatId);
+            Outbound<?> item = (takeInteractive ? chat.interactive : chat.bulk).pollFirst();
+            chat.bucket.take(now);
+            globalBucket.take(now);
+            chat.inFlight = true;
+            queued--;
+            inFlight++;
+            LaneStats lane = lanes.get(item.priority);
+            lane.queued--;
+            if (item.attempts == 0) {
+                lane.recordQueueWait(now - item.enqueuedAt);
+            }
+            ready.add(item);
+            dispatched.add(chatId);
+        }
+        // Отправившие чаты уходят в конец, чтобы остальные не ждали своей очереди дольше
+        for (Long chatId : dispatched) {
+            chats.put(chatId, chats.remove(chatId));
+        }
+        return Math.max(waitNanos, 1);
+    }
+
+    private <T extends Serializable> void send(Outbound<T> item) {
+        boolean requeued = false;
+        try {
+            T result = api.execute(item.method);
+            sent.incrementAndGet();
+            lanes.get(item.priority).recordSent(System.nanoTime());
+            item.future.complete(result);
+        } catch (TelegramApiRequestException e) {
+            Integer retryAfter = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+            if (retryAfter != null && item.attempts < maxRetries && !closed) {
+                item.attempts++;
+                logger.warn("Telegram ограничил отправку в чат {}: повтор через {} с (попытка {})",
+                        item.chatId, retryAfter, item.attempts);
+                requeue(item, TimeUnit.SECONDS.toNanos(retryAfter));
+                requeued = true;
+                retries.incrementAndGet();
+            } else {
+                fail(item, e);
+            }
+        } catch (Exception e) {
+            fail(item, e);
+        } finally {
+            if (!requeued) {
+                finish(item.chatId);
+                capacity.release();
+            }
+        }
+    }
+
+    private void fail(Outbound<?> item, Exception e) {
+        failed.incrementAndGet();
+        lanes.get(item.priority).failed.incrementAndGet();
+        item.future.completeExceptionally(e);
+    }
+
+    private void requeue(Outbound<?> item, long delayNanos) {
+        lock.lock();
+        try {
+            ChatQueue chat = chats.computeIfAbsent(item.chatId,
+                    id -> new ChatQueue(new TokenBucket(chatBurst, chatPerSecond)));
+            chat.lane(item.priority).addFirst(item);
+            long notBefore = System.nanoTime() + delayNanos;
+            chat.notBefore = notBefore;
+            // Flood limit действует на весь бот: остальные чаты тоже ждут retry_after
+            globalBucket.pauseUntil(notBefore);
+            chat.inFlight = false;
+            queued++;
+            lanes.get(item.priority).queued++;
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(Long chatId) {
+        lock.lock();
+        try {
+            ChatQueue chat = chats.get(chatId);
+            if (chat != null) {
+                chat.inFlight = false;
+            }
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Прекращает приём запросов и ждёт отправки уже принятых.
+     * Не успевшие уйти за timeout запросы завершаются CancellationException.
+     * @return true, если очередь опустела вовремя
+     */
+    public boolean shutdown(Duration timeout) {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean drained = false;
+        try {
+            scheduler.join(timeout.toMillis());
+            drained = !scheduler.isAlive();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!drained) {
+            scheduler.interrupt();
+            cancelQueued();
+            logger.warn("Очередь отправки остановлена принудительно: {}", getMetrics());
+        } else {
+            logger.info("Очередь отправки остановлена: {}", getMetrics());
+        }
+        senders.shutdown();
+        return drained;
+    }
+
+    private void cancelQueued() {
+        lock.lock();
+        try {
+            for (ChatQueue chat : chats.values()) {
+                for (ArrayDeque<Outbound<?>> items : List.of(chat.interactive, chat.bulk)) {
+                    for (Outbound<?> item : items) {
+                        item.future.completeExceptionally(new CancellationException("Очередь отправки остановлена"));
+                        rejected.incrementAndGet();
+                        capacity.release();
+                    }
+                    items.clear();
+                }
+            }
+            queued = 0;
+            lanes.values().forEach(lane -> lane.queued = 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public QueueMetrics getMetrics() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            return new QueueMetrics(queued, inFlight, chats.size(),
+                    sent.get(), retries.get(), failed.get(), rejected.get(),
+                    lanes.get(Priority.INTERACTIVE).snapshot(now),
+                    lanes.get(Priority.BULK).snapshot(now));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Outbound<T extends Serializable> {
+        private final Long chatId;
+        private final BotApiMethod<T> method;
+        private final CompletableFuture<T> future;
+        private final Priority priority;
+        private final long enqueuedAt;
+        private int attempts = 0;
+
+        private Outbound(Long chatId, BotApiMethod<T> method, CompletableFuture<T> future,
+                         Priority priority, long enqueuedAt) {
+            this.chatId = chatId;
+            this.method = method;
+            this.future = future;
+            this.priority = priority;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static final class ChatQueue {
+        private final ArrayDeque<Outbound<?>> interactive = new ArrayDeque<>();
+        private final ArrayDeque<Outbound<?>> bulk = new ArrayDeque<>();
+        private final TokenBucket bucket;
+        private boolean inFlight;
+        private long notBefore;
+
+        private ChatQueue(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        private ArrayDeque<Outbound<?>> lane(Priority priority) {
+            return priority == Priority.INTERACTIVE ? interactive : bulk;
+        }
+
+        private boolean isEmpty() {
+            return interactive.isEmpty() && bulk.isEmpty();
+        }
+    }
+
+    /**
+     * Статистика одной полосы. queued и время ожидания меняются под lock очереди,
+     * счётчик отправленных — из потоков отправки
+     */
+    private static final class LaneStats {
+        private int queued;
+        private long dispatched;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        // Отправки по секундам за последние THROUGHPUT_WINDOW_SECONDS секунд
+        private final long[] windowCounts = new long[THROUGHPUT_WINDOW_SECONDS];
+        private final long[] windowSeconds = new long[THROUGHPUT_WINDOW_SECONDS];
+
+        private void recordQueueWait(long waitNanos) {
+            dispatched++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+
+        private void recordSent(long now) {
+            sent.incrementAndGet();
+            long second = TimeUnit.NANOSECONDS.toSeconds(now);
+            int slot = (int) (second % THROUGHPUT_WINDOW_SECONDS);
+            synchronized (windowCounts) {
+                if (windowSeconds[slot] != second) {
+                    windowSeconds[slot] = second;
+                    windowCounts[slot] = 0;
+                }
+                windowCounts[slot]++;
+            }
+        }
+
+        private LaneMetrics snapshot(long now) {
+            long second = TimeUnit.NANOSECONDS.toSeconds(now);
+            long recent = 0;
+            synchronized (windowCounts) {
+                for (int i = 0; i < THROUGHPUT_WINDOW_SECONDS; i++) {
+                    if (second - windowSeconds[i] < THROUGHPUT_WINDOW_SECONDS) {
+                        recent += windowCounts[i];
+                    }
+                }
+            }
+            return new LaneMetrics(
+                    queued,
+                    sent.get(),
+                    failed.get(),
+                    (double) recent / THROUGHPUT_WINDOW_SECONDS,
+                    dispatched > 0 ? TimeUnit.NANOSECONDS.toMicros(totalWaitNanos / dispatched) / 1000.0 : 0.0,
+                    TimeUnit.NANOSECONDS.toMicros(maxWaitNanos) / 1000.0
+            );
+        }
+    }
+
+    /**
+     * Снимок состояния очереди отправки.
+     *
+     * @param queued      ждут отправки (включая ожидающие retry_after)
+     * @param inFlight    отправляются прямо сейчас
+     * @param chats       чаты, для которых хранится состояние лимита
+     * @param sent        успешно отправлено
+     * @param retries     повторов после 429
+     * @param failed      не удалось отправить
+     * @param rejected    отклонено из-за переполнения или остановки
+     * @param interactive полоса ответов пользователям
+     * @param bulk        полоса массовых рассылок
+     */
+    public record QueueMetrics(int queued, int inFlight, int chats, long sent, long retries, long failed, long rejected,
+                               LaneMetrics interactive, LaneMetrics bulk) {
+        @Override
+        public String toString() {
+            return "queued=" + queued + ", inFlight=" + inFlight + ", chats=" + chats + ", sent=" + sent
+                    + ", retries=" + retries + ", failed=" + failed + ", rejected=" + rejected
+                    + ", interactive=[" + interactive + "], bulk=[" + bulk + "]";
+        }
+    }
+
+    /**
+     * Снимок состояния одной полосы.
+     *
+     * @param queued              ждут отправки
+     * @param sent                успешно отправлено
+     * @param failed              не удалось отправить
+     * @param throughputPerSecond отправок в секунду за последние 10 секунд
+     * @param avgQueueMillis      среднее время от постановки в очередь до отправки
+     * @param maxQueueMillis      максимальное время от постановки в очередь до отправки
+     */
+    public record LaneMetrics(int queued, long sent, long failed, double throughputPerSecond,
+                              double avgQueueMillis, double maxQueueMillis) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "queued=%d, sent=%d, failed=%d, %.1f/с, avgWait=%.1f мс, maxWait=%.1f мс",
+                    queued, sent, failed, throughputPerSecond, avgQueueMillis, maxQueueMillis);
+        }
+    }
+}
@@ -122,7 +122,8 @@ public class TaskSchedulerService {
 
     private void performCleanupOperations() {
         databaseManager.cleanupOldProductivityStats();
-        databaseManager.saveAllUsersProductivityStats();
+        var rollup = databaseManager.saveAllUsersProductivityStats();
+        logger.info("Статистика продуктивности пересчитана: {}", rollup);
         databaseManager.cleanupAllDailyTasks();
         databaseManager.cleanupUnlockedWishes();
     }
@@ -149,6 +150,35 @@ public class TaskSchedulerService {
         );
 
         logger.info("📧 Утренняя рассылка запланирована на 07:00 (UTC+5)");
+
+        // За 15 минут до рассылки загружаем прогнозы для всех городов
+        LocalTime prefetchTime = sendTime.minusMinutes(15);
+        ZonedDateTime nextPrefetch = now.toLocalDate().atTime(prefetchTime).atZone(tz);
+        if (now.toLocalTime().isAfter(prefetchTime)) {
+            nextPrefetch = nextPrefetch.plusDays(1);
+        }
+        scheduler.scheduleAtFixedRate(
+                this::prefetchWeather,
+                Duration.between(now, nextPrefetch).getSeconds(),
+                TimeUnit.DAYS.toSeconds(1),
+                TimeUnit.SECONDS
+        );
+        logger.info("🌍 Прогрев кэша погоды запланирован на {} (UTC+5)", prefetchTime);
+
+        // Бот перезапустился посреди сегодняшней рассылки — досылаем оставшимся
+        if (newsletterService.hasUnfinishedRun()) {
+            logger.info("📧 Найдена незавершённая утренняя рассылка, продолжаем");
+            scheduler.execute(newsletterService::sendNewsletterToAllUsers);
+        }
+    }
+
+    protected void prefetchWeather() {
+        try {
+            WeatherService.PrefetchReport report = newsletterService.prefetchWeather();
+            logger.info("🌍 Кэш погоды прогрет перед рассылкой: {}", report);
+        } catch (Exception e) {
+            logger.error("Ошибка при прогреве кэша погоды", e);
+        }
     }
 
     // === Напоминания ===
@@ -201,7 +231,7 @@ public class TaskSchedulerService {
             int sentCount = 0;
             for (Long userId : userIds) {
                 try {
-                    messageSender.sendText(userId, messageText);
+                    messageSender.sendBulk(userId, messageText, null);
                     sentCount++;
                 } catch (Exception e) {
                     logger.warn("Не удалось отправить напоминание пользователю {}: {}", userId, e.getMessage());
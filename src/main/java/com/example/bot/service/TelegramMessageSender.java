@@ -3,34 +3,49 @@ package com.example.bot.service;
 import com.example.bot.ChatBot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultsButton;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class TelegramMessageSender implements MessageSender {
     private static final Logger logger = LoggerFactory.getLogger(TelegramMessageSender.class);
-    private final ChatBot chatBot;
+    private final OutboundMessageQueue outboundQueue;
 
     public TelegramMessageSender(ChatBot chatBot) {
-        this.chatBot = chatBot;
+        this(new OutboundMessageQueue(chatBot::execute));
+    }
+
+    public TelegramMessageSender(OutboundMessageQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
     }
 
     @Override
-    public void sendText(Long chatId, String text) {
+    public CompletableFuture<Message> sendText(Long chatId, String text) {
         SendMessage msg = SendMessage.builder()
                 .chatId(chatId.toString())
                 .text(text)
                 .parseMode("Markdown")
                 .build();
-        try {
-            chatBot.execute(msg);
-        } catch (TelegramApiException e) {
-            logger.error("Ошибка отправки сообщения в чат {}", chatId, e);
-        }
+        return outboundQueue.submit(chatId, msg).whenComplete((sent, e) -> {
+            if (e != null) {
+                logger.error("Ошибка отправки сообщения в чат {}", chatId, e);
+            }
+        });
     }
-    public void editMessageText(Long chatId, Integer messageId, String text, InlineKeyboardMarkup replyMarkup) {
+
+    @Override
+    public CompletableFuture<Serializable> editMessageText(Long chatId, Integer messageId, String text, InlineKeyboardMarkup replyMarkup) {
         EditMessageText editMessage = EditMessageText.builder()
                 .chatId(chatId.toString()) // chatId может быть Long, но API принимает String
                 .messageId(messageId)
@@ -39,39 +54,100 @@ public class TelegramMessageSender implements MessageSender {
                 .replyMarkup(replyMarkup)
                 .build();
 
-        try {
-            chatBot.execute(editMessage); // execute — метод из TelegramLongPollingBot
-        } catch (TelegramApiException e) {
-            logger.error("Не удалось отредактировать сообщение", e);
-        }
+        return outboundQueue.submit(chatId, editMessage).whenComplete((edited, e) -> {
+            if (e != null) {
+                logger.error("Не удалось отредактировать сообщение", e);
+            }
+        });
     }
+
     @Override
-    public void sendTextWithKeyboard(Long chatId, String text, ReplyKeyboardMarkup keyboard) {
+    public CompletableFuture<Message> sendTextWithKeyboard(Long chatId, String text, ReplyKeyboardMarkup keyboard) {
         SendMessage msg = SendMessage.builder()
                 .chatId(chatId.toString())
                 .text(text)
                 .parseMode("Markdown")
                 .replyMarkup(keyboard)
                 .build();
-        try {
-            chatBot.execute(msg);
-        } catch (TelegramApiException e) {
-            logger.error("Ошибка отправки сообщения с клавиатурой в чат {}", chatId, e);
-        }
+        return outboundQueue.submit(chatId, msg).whenComplete((sent, e) -> {
+            if (e != null) {
+                logger.error("Ошибка отправки сообщения с клавиатурой в чат {}", chatId, e);
+            }
+        });
     }
 
     @Override
-    public void sendTextWithInlineKeyboard(Long chatId, String text, InlineKeyboardMarkup inlineKeyboard) {
+    public CompletableFuture<Message> sendTextWithInlineKeyboard(Long chatId, String text, InlineKeyboardMarkup inlineKeyboard) {
         SendMessage msg = SendMessage.builder()
                 .chatId(chatId.toString())
                 .text(text)
                 .parseMode("Markdown")
                 .replyMarkup(inlineKeyboard)
                 .build();
-        try {
-            chatBot.execute(msg);
-        } catch (TelegramApiException e) {
-            logger.error("Ошибка отправки сообщения с inline-клавиатурой в чат {}", chatId, e);
-        }
+        return outboundQueue.submit(chatId, msg).whenComplete((sent, e) -> {
+            if (e != null) {
+                logger.error("Ошибка отправки сообщения с inline-клавиатурой в чат {}", chatId, e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Message> sendBulk(Long chatId, String text, ReplyKeyboard keyboard) {
+        SendMessage msg = SendMessage.builder()
+                .chatId(chatId.toString())
+                .text(text)
+                .parseMode("Markdown")
+                .replyMarkup(keyboard)
+                .build();
+        return outboundQueue.submit(chatId, msg, OutboundMessageQueue.Priority.BULK).whenComplete((sent, e) -> {
+            if (e != null) {
+                logger.warn("Не удалось отправить рассылку в чат {}: {}", chatId, e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> answerInlineQuery(Long userId, String inlineQueryId,
+                                                        List<InlineQueryResult> results, int cacheSeconds) {
+        // Ответы одинаковы для всех пользователей, поэтому Telegram может кэшировать их общим кэшем
+        AnswerInlineQuery answer = AnswerInlineQuery.builder()
+                .inlineQueryId(inlineQueryId)
+                .results(results)
+                .cacheTime(cacheSeconds)
+                .isPersonal(false)
+                .build();
+        return submitInlineAnswer(userId, answer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> answerInlineQuery(Long userId, String inlineQueryId, InlineQueryResultsButton button) {
+        // Ответ зависит от чата, где набран запрос, поэтому его не кэшируем
+        AnswerInlineQuery answer = AnswerInlineQuery.builder()
+                .inlineQueryId(inlineQueryId)
+                .results(List.of())
+                .button(button)
+                .cacheTime(0)
+                .isPersonal(true)
+                .build();
+        return submitInlineAnswer(userId, answer);
+    }
+
+    private CompletableFuture<Boolean> submitInlineAnswer(Long userId, AnswerInlineQuery answer) {
+        return outboundQueue.submit(userId, answer).whenComplete((answered, e) -> {
+            if (e != null) {
+                logger.warn("Не удалось ответить на inline-запрос пользователя {}: {}", userId, e.getMessage());
+            }
+        });
+    }
+
+    public OutboundMessageQueue.QueueMetrics getMetrics() {
+        return outboundQueue.getMetrics();
+    }
+
+    /**
+     * Дожидается отправки уже поставленных в очередь сообщений
+     */
+    public void shutdown(Duration timeout) {
+        outboundQueue.shutdown(timeout);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+package com.example.bot.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: capacity токенов, пополнение perSecond в секунду.
+ * Собственной синхронизации нет — владелец вызывает методы под своей блокировкой
+ * (lock очереди отправки, монитор бюджета запросов к погоде).
+ */
+final class TokenBucket {
+    private final int capacity;
+    private final double perNano;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(int capacity, double perSecond) {
+        this.capacity = capacity;
+        this.perNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * perNano);
+            lastRefill = now;
+        }
+    }
+
+    long nanosUntilTokens(long now, int count) {
+        refill(now);
+        if (tokens >= count) {
+            return 0;
+        }
+        // Во время паузы токены начинают копиться только с её окончания
+        return Math.max(0, lastRefill - now) + (long) Math.ceil((count - tokens) / perNano);
+    }
+
+    void take(long now) {
+        refill(now);
+        tokens -= 1;
+    }
+
+    boolean isFull(long now) {
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    void drain(long now) {
+        refill(now);
+        tokens = 0;
+    }
+
+    // Ни одного токена до until, дальше пополнение с нуля
+    void pauseUntil(long until) {
+        if (until > lastRefill) {
+            tokens = 0;
+            lastRefill = until;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.bot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Обрабатывает обновления параллельно на виртуальных потоках, сохраняя порядок внутри одного чата.
+ * Для каждого ключа (чата) держится своя очередь, которую разбирает не больше одного потока.
+ * Число обновлений в работе ограничено: при переполнении submit ждёт, притормаживая long polling.
+ */
+public class UpdateDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateDispatcher.class);
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final ExecutorService executor;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+    private final Map<Long, KeyQueue> queues = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LongAccumulator maxKeyDepth = new LongAccumulator(Long::max, 0);
+
+    public UpdateDispatcher() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public UpdateDispatcher(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight должен быть >= 1");
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("update-", 0).factory());
+    }
+
+    /**
+     * Ставит обработку в очередь чата. Обработки одного ключа выполняются строго по порядку.
+     * @return false, если диспетчер остановлен и обновление отброшено
+     */
+    public boolean submit(Long key, Runnable task) {
+        if (closed) {
+            rejected.incrementAndGet();
+            logger.warn("Диспетчер остановлен, обновление для {} отброшено", key);
+            return false;
+        }
+        if (!inFlightPermits.tryAcquire()) {
+            logger.warn("Достигнут предел {} обновлений в работе, ожидание свободного места", maxInFlight);
+            try {
+                inFlightPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        submitted.incrementAndGet();
+        pending.incrementAndGet();
+        boolean[] startDrainer = {false};
+        queues.compute(key, (k, queue) -> {
+            KeyQueue q = queue != null ? queue : new KeyQueue();
+            q.tasks.add(task);
+            maxKeyDepth.accumulate(q.tasks.size());
+            if (!q.draining) {
+                q.draining = true;
+                startDrainer[0] = true;
+            }
+            return q;
+        });
+
+        if (startDrainer[0]) {
+            try {
+                executor.execute(() -> drain(key));
+            } catch (RejectedExecutionException e) {
+                // Остановка началась между проверкой closed и запуском обработчика
+                KeyQueue dropped = queues.remove(key);
+                int count = dropped != null ? dropped.tasks.size() : 0;
+                pending.addAndGet(-count);
+                rejected.addAndGet(count);
+                inFlightPermits.release(count);
+                logger.warn("Диспетчер остановлен, отброшено обновлений для {}: {}", key, count);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Разбирает очередь одного ключа, пока она не опустеет; пустая очередь удаляется из карты
+    private void drain(Long key) {
+        while (true) {
+            Runnable[] next = {null};
+            queues.compute(key, (k, q) -> {
+                if (q == null) {
+                    return null;
+                }
+                next[0] = q.tasks.poll();
+                if (next[0] == null) {
+                    q.draining = false;
+                    return null;
+                }
+                return q;
+            });
+            if (next[0] == null) {
+                return;
+            }
+
+            pending.decrementAndGet();
+            running.incrementAndGet();
+            try {
+                next[0].run();
+                completed.incrementAndGet();
+            } catch (Throwable e) {
+                failed.incrementAndGet();
+                logger.error("Ошибка при обработке обновления для {}", key, e);
+            } finally {
+                running.decrementAndGet();
+                inFlightPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Прекращает приём обновлений и дожидается обработки уже принятых.
+     * @return true, если все принятые обновления успели обработаться
+     */
+    public boolean shutdown(Duration timeout) {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.info("Диспетчер обновлений остановлен: {}", getMetrics());
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        logger.warn("Диспетчер обновлений остановлен принудительно: {}", getMetrics());
+        return false;
+    }
+
+    public boolean isShutdown() {
+        return closed;
+    }
+
+    public DispatcherMetrics getMetrics() {
+        return new DispatcherMetrics(
+                pending.get(),
+                running.get(),
+                queues.size(),
+                maxKeyDepth.get(),
+                submitted.get(),
+                completed.get(),
+                failed.get(),
+                rejected.get()
+        );
+    }
+
+    private static final class KeyQueue {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean draining;
+    }
+
+    /**
+     * Снимок состояния диспетчера.
+     *
+     * @param pending     принятые, но ещё не начатые обновления
+     * @param running     обновления, обрабатываемые прямо сейчас
+     * @param activeKeys  чаты, обновления которых сейчас ждут или обрабатываются
+     * @param maxKeyDepth наибольшая глубина очереди одного чата за всё время
+     * @param submitted   всего принято обновлений
+     * @param completed   успешно обработано
+     * @param failed      завершились исключением
+     * @param rejected    отброшены (диспетчер остановлен или поток прерван)
+     */
+    public record DispatcherMetrics(
+            int pending,
+            int running,
+            int activeKeys,
+            long maxKeyDepth,
+            long submitted,
+            long completed,
+            long failed,
+            long rejected
+    ) {
+        @Override
+        public String toString() {
+            return "pending=" + pending + ", running=" + running + ", activeKeys=" + activeKeys
+                    + ", maxKeyDepth=" + maxKeyDepth + ", submitted=" + submitted + ", completed=" + completed
+                    + ", failed=" + failed + ", rejected=" + rejected;
+        }
+    }
+}
@@ -32,6 +32,13 @@ public class UserStateService {
     private final CommandRegistry commandRegistry;
 
     public static final long EDIT_TIMEOUT_MS = 10_000; // 10 секунд
+    // Дальше этого ближайший город из справочника уже не «ваш»
+    public static final double MAX_NEAREST_CITY_KM = 500;
+    private static final String TIMEOUT_MESSAGE = """
+            ⏰ *Время редактирования истекло*
+            
+            Редактирование автоматически отменено через 10 секунд бездействия.
+            Попробуйте снова.""";
     private final ScheduledExecutorService stateScheduler = Executors.newScheduledThreadPool(1);
 
     // ✅ КОНСТРУКТОР: НЕТ ЗАВИСИМОСТИ ОТ TodoCommand
@@ -109,13 +116,23 @@ public class UserStateService {
         editStartTimes.remove(userId);
     }
 
+    /**
+     * Сбрасывает просроченное состояние и сообщает об этом пользователю
+     */
+    public void expireState(Long userId, Long chatId) {
+        UserState expired = userStates.get(userId);
+        cleanupEditState(userId);
+        sendStateEnded(chatId, TIMEOUT_MESSAGE, expired);
+    }
+
     public void handleUserState(Long userId, String text, Long chatId) {
         if (isCancelOrMenuCommand(text)) {
+            UserState cancelled = userStates.get(userId);
             cleanupEditState(userId);
             if (text.trim().toLowerCase().contains("меню") || text.equals("/menu")) {
                 messageSender.sendTextWithKeyboard(chatId, "🏠 Вы вернулись в главное меню.", KeyboardService.mainMenu());
             } else {
-                messageSender.sendText(chatId, "❌ Действие отменено.");
+                sendStateEnded(chatId, "❌ Действие отменено.", cancelled);
             }
             return;
         }
@@ -125,13 +142,50 @@ public class UserStateService {
 
         try {
             String response = processUserState(userId, text, state);
-            if (!response.isEmpty()) {
+            if (response.isEmpty()) {
+                return;
+            }
+            if (userStates.containsKey(userId)) {
+                // Состояние не завершено (например, город не найден) — клавиатура остаётся прежней
                 messageSender.sendText(chatId, response);
+            } else {
+                sendStateEnded(chatId, response, state);
             }
         } catch (Exception e) {
             logger.error("Ошибка при обработке состояния пользователя {}", userId, e);
             cleanupEditState(userId);
-            messageSender.sendText(chatId, "Произошла ошибка при обработке. Состояние сброшено.");
+            sendStateEnded(chatId, "Произошла ошибка при обработке. Состояние сброшено.", state);
+        }
+    }
+
+    /**
+     * Геопозиция в состоянии выбора города: устанавливает ближайший город из справочника
+     */
+    public void handleUserLocation(Long userId, double lat, double lon, Long chatId) {
+        UserState state = userStates.get(userId);
+        if (state == null || state.getType() != StateType.SETTING_CITY) {
+            messageSender.sendText(chatId, "📍 Геопозицией можно выбрать город: /setcity → «✏️ Ввести вручную».");
+            return;
+        }
+
+        try {
+            CityService.NearestCity nearest = cityService.findNearestCity(lat, lon);
+            if (nearest == null || nearest.distanceKm() > MAX_NEAREST_CITY_KM) {
+                messageSender.sendText(chatId, """
+                    ❌ Рядом с этой точкой нет городов России из справочника.
+                    Введите название города или напишите *отмена*.""");
+                return;
+            }
+            City city = nearest.city();
+            databaseManager.updateUserCity(userId, city.getName());
+            cleanupEditState(userId);
+            messageSender.sendTextWithKeyboard(chatId, String.format(
+                    "✅ Город установлен: *%s*\nрегион: %s\n📍 ближайший к вам, ~%d км\nЧтобы посмотреть погоду /stats",
+                    city.getName(), city.getRegion(), Math.round(nearest.distanceKm())), KeyboardService.mainMenu());
+        } catch (Exception e) {
+            logger.error("Ошибка при выборе города по геопозиции для пользователя {}", userId, e);
+            cleanupEditState(userId);
+            sendStateEnded(chatId, "Произошла ошибка при обработке. Состояние сброшено.", state);
         }
     }
 
@@ -142,22 +196,23 @@ public class UserStateService {
             Long userId = entry.getKey();
             Long startTime = entry.getValue();
             if (startTime != null && (currentTime - startTime) > EDIT_TIMEOUT_MS) {
-                cleanupEditState(userId);
-                sendTimeoutNotification(userId);
+                UserState expired = userStates.remove(userId);
+                sendStateEnded(userId, TIMEOUT_MESSAGE, expired);
                 return true;
             }
             return false;
         });
     }
 
-    private void sendTimeoutNotification(Long userId) {
-        String message = """
-            ⏰ *Время редактирования истекло*
-            
-            Редактирование автоматически отменено через 10 секунд бездействия.
-            Попробуйте снова.""";
-
-        messageSender.sendText(userId, message);
+    /**
+     * Выбор города заменяет главное меню кнопкой геопозиции, поэтому при выходе из него меню возвращается
+     */
+    private void sendStateEnded(Long chatId, String text, UserState state) {
+        if (state != null && state.getType() == StateType.SETTING_CITY) {
+            messageSender.sendTextWithKeyboard(chatId, text, KeyboardService.mainMenu());
+        } else {
+            messageSender.sendText(chatId, text);
+        }
     }
 
     private boolean isCancelOrMenuCommand(String text) {
@@ -1,6 +1,8 @@
 package com.example.bot.service;
 
+import com.example.bot.model.Forecast;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -11,57 +13,286 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class WeatherCacheStorage {
     private static final Logger logger = LoggerFactory.getLogger(WeatherCacheStorage.class);
     private static final String CACHE_DIR = "data";
     private static final String CACHE_FILE = "weather_cache.json";
+    // Изменения за это время записываются на диск одним разом
+    public static final Duration DEFAULT_FLUSH_DELAY = Duration.ofSeconds(5);
+    // Журнал переписывается в снимок, когда в нём столько записей и больше, чем городов в кэше
+    static final int COMPACT_MIN_ENTRIES = 256;
     private final Path cachePath;
+    private final Path journalPath;
     private final ObjectMapper objectMapper;
-    private Map<String, CachedForecast> cacheMap = new HashMap<>();
+    private final Duration flushDelay;
+    private final ScheduledExecutorService flusher;
+    // Общий для экземпляров бота уровень кэша (или NONE)
+    private final WeatherCacheTier sharedTier;
+    // Записи в файлы идут по одной: из фоновой задачи, flush() и shutdown()
+    private final Object fileLock = new Object();
+    // Кэш читают и пишут параллельно (обработчики обновлений, планировщик, рассылка) без блокировок
+    private final ConcurrentMap<String, CachedForecast> cacheMap = new ConcurrentHashMap<>();
+    // Изменения, которых ещё нет в журнале, в порядке их применения к cacheMap
+    private final ConcurrentLinkedQueue<JournalEntry> pending = new ConcurrentLinkedQueue<>();
+    // Запись уже запланирована, новые изменения попадут в неё
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Записей в журнале на диске, сколько было дозаписей и не удалась ли последняя; меняются только под fileLock
+    private int journalEntries = 0;
+    private int journalWrites = 0;
+    private boolean journalBroken = false;
     // Основной конструктор (для продакшена)
     public WeatherCacheStorage() {
-        this(Paths.get(CACHE_DIR, CACHE_FILE));
+        this(WeatherCacheTier.NONE);
+    }
+    // Локальный кэш поверх общего: при запуске прогревается из него, промахи ищутся в нём же
+    public WeatherCacheStorage(WeatherCacheTier sharedTier) {
+        this(Paths.get(CACHE_DIR, CACHE_FILE), DEFAULT_FLUSH_DELAY, sharedTier);
     }
     // Пакетно-видимый конструктор для тестов
     WeatherCacheStorage(Path cachePath) {
+        this(cachePath, DEFAULT_FLUSH_DELAY);
+    }
+
+    WeatherCacheStorage(Path cachePath, Duration flushDelay) {
+        this(cachePath, flushDelay, WeatherCacheTier.NONE);
+    }
+
+    WeatherCacheStorage(Path cachePath, Duration flushDelay, WeatherCacheTier sharedTier) {
         this.cachePath = cachePath;
+        this.sharedTier = sharedTier;
+        this.journalPath = cachePath.resolveSibling(cachePath.getFileName() + ".journal");
+        this.flushDelay = flushDelay;
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
         this.objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("weather-cache-flush").daemon().factory());
         loadCacheFromFile();
+        warmUpFromSharedTier(LocalDate.now(WeatherService.TZ));
     }
     private Path getCachePath() {
         return cachePath;
     }
-    public void save(String cityName, String forecast, LocalDate date) {
-        cacheMap.put(cityName.toLowerCase(), new CachedForecast(forecast, date));
-        saveCacheToFile();
+    public void save(String cityName, Forecast forecast, LocalDate date) {
+        String key = cityName.toLowerCase();
+        CachedForecast entry = new CachedForecast(forecast, date);
+        put(key, entry);
+        // Сразу, а не с фоновой записью: другой экземпляр может искать этот город прямо сейчас
+        sharedTier.store(key, entry);
     }
 
     public CachedForecast get(String cityName) {
         return cacheMap.get(cityName.toLowerCase());
     }
 
+    /**
+     * Прогноз, годный для дня day. Если в локальном кэше его нет, ищет в общем уровне —
+     * город мог загрузить другой экземпляр бота.
+     */
+    public CachedForecast get(String cityName, LocalDate day) {
+        String key = cityName.toLowerCase();
+        CachedForecast local = cacheMap.get(key);
+        if (local != null && local.isUsableFor(day)) {
+            return local;
+        }
+        CachedForecast shared = sharedTier.load(key);
+        if (shared == null || !shared.isUsableFor(day)) {
+            return null;
+        }
+        putIfNewer(key, shared);
+        return shared;
+    }
+
     public void removeExpired(LocalDate today) {
-        cacheMap.entrySet().removeIf(entry -> entry.getValue().isExpired(today));
-        saveCacheToFile();
+        boolean removed = false;
+        for (Map.Entry<String, CachedForecast> entry : cacheMap.entrySet()) {
+            if (!entry.getValue().isExpired(today)) {
+                continue;
+            }
+            // Запись, которую за время обхода заменили свежим прогнозом, не удаляется
+            removed |= cacheMap.computeIfPresent(entry.getKey(), (k, current) -> {
+                if (current != entry.getValue()) {
+                    return current;
+                }
+                pending.add(new JournalEntry(k, null));
+                return null;
+            }) == null;
+        }
+        if (removed) {
+            scheduleFlush();
+        }
+        // Общий уровень чистится в фоне, чтобы не задерживать запрос, на котором сменился день
+        if (!flusher.isShutdown()) {
+            try {
+                flusher.execute(() -> sharedTier.removeOlderThan(today.minusDays(CachedForecast.MAX_AGE_DAYS)));
+            } catch (RejectedExecutionException e) {
+                logger.debug("Очистка общего кэша погоды пропущена: хранилище остановлено");
+            }
+        }
+    }
+
+    /**
+     * Сразу записывает несохранённые изменения в журнал
+     */
+    public void flush() {
+        flushToDisk();
     }
 
-    private void saveCacheToFile() {
+    /**
+     * Останавливает фоновую запись и сохраняет последние изменения
+     */
+    public void shutdown() {
+        flusher.shutdown();
         try {
-            Files.createDirectories(cachePath.getParent());
+            if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                flusher.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            flusher.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        flushToDisk();
+    }
 
-            String json = objectMapper.writerWithDefaultPrettyPrinter()
-                    .writeValueAsString(cacheMap);
+    int getJournalEntries() {
+        synchronized (fileLock) {
+            return journalEntries + pending.size();
+        }
+    }
 
-            Files.writeString(cachePath, json, StandardCharsets.UTF_8);
+    // Завершённые дозаписи журнала: под fileLock запись в файл уже закончена
+    int getJournalWrites() {
+        synchronized (fileLock) {
+            return journalWrites;
+        }
+    }
+
+    // Изменение ставится в журнал под блокировкой ключа, так порядок в журнале совпадает с порядком в cacheMap
+    private void put(String key, CachedForecast entry) {
+        cacheMap.compute(key, (k, old) -> {
+            pending.add(new JournalEntry(k, entry));
+            return entry;
+        });
+        scheduleFlush();
+    }
+
+    // Запись из общего уровня не заменяет более свежую локальную
+    private void putIfNewer(String key, CachedForecast entry) {
+        boolean[] replaced = {false};
+        cacheMap.compute(key, (k, old) -> {
+            if (old != null && old.getCachedAt().isAfter(entry.getCachedAt())) {
+                return old;
+            }
+            pending.add(new JournalEntry(k, entry));
+            replaced[0] = true;
+            return entry;
+        });
+        if (replaced[0]) {
+            scheduleFlush();
+        }
+    }
+
+    // Прогнозы, загруженные другими экземплярами (или этим до перезапуска), попадают в память сразу
+    private void warmUpFromSharedTier(LocalDate today) {
+        Map<String, CachedForecast> shared = sharedTier.loadSince(today.minusDays(CachedForecast.MAX_AGE_DAYS));
+        int loaded = 0;
+        for (Map.Entry<String, CachedForecast> entry : shared.entrySet()) {
+            if (!entry.getValue().isExpired(today)) {
+                putIfNewer(entry.getKey(), entry.getValue());
+                loaded++;
+            }
+        }
+        if (loaded > 0) {
+            logger.info("Кэш погоды прогрет из общего хранилища: {} городов", loaded);
+        }
+    }
+
+    // Запись откладывается на flushDelay: серия сохранений даёт одну запись файла
+    private void scheduleFlush() {
+        if (!flusher.isShutdown() && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.schedule(this::flushToDisk, flushDelay.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false); // остановлен между проверкой и планированием, сохранит shutdown()
+            }
+        }
+    }
+
+    // Изменения дописываются в конец журнала строками JSON — запись пропорциональна числу изменений,
+    // а не размеру кэша. Когда журнал разрастается, он сворачивается в снимок.
+    private void flushToDisk() {
+        synchronized (fileLock) {
+            flushScheduled.set(false);
+            List<JournalEntry> batch = new ArrayList<>();
+            for (JournalEntry change; (change = pending.poll()) != null; ) {
+                batch.add(change);
+            }
+            if (batch.isEmpty() && !journalBroken) {
+                return;
+            }
+
+            if (!journalBroken) {
+                try {
+                    Files.createDirectories(cachePath.getParent());
+                    StringBuilder lines = new StringBuilder();
+                    for (JournalEntry change : batch) {
+                        lines.append(objectMapper.writeValueAsString(change)).append('\n');
+                    }
+                    Files.writeString(journalPath, lines, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    journalEntries += batch.size();
+                    journalWrites++;
+                } catch (Exception e) {
+                    System.out.println("❌ Ошибка при сохранении кэша погоды: " + e.getMessage());
+                    // Изменения уже в cacheMap, их сохранит полный снимок
+                    journalBroken = true;
+                }
+            }
+
+            if (journalBroken || journalEntries >= Math.max(COMPACT_MIN_ENTRIES, cacheMap.size())) {
+                compact();
+            }
+        }
+    }
+
+    // Снимок cacheMap пишется во временный файл и подменяет прежний переименованием: при сбое
+    // остаётся целая старая версия. Журнал после этого больше не нужен — всё, что в нём было,
+    // уже применено к cacheMap до копирования.
+    private void compact() {
+        try {
+            Files.createDirectories(cachePath.getParent());
+            Map<String, CachedForecast> snapshot = new HashMap<>(cacheMap);
+            Path tmp = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+            Files.write(tmp, objectMapper.writeValueAsBytes(snapshot));
+            try {
+                Files.move(tmp, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, cachePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.deleteIfExists(journalPath);
+            journalEntries = 0;
+            journalBroken = false;
 
             System.out.println("✅ Кэш погоды сохранён в " + cachePath.toAbsolutePath());
         } catch (Exception e) {
@@ -69,38 +300,107 @@ public class WeatherCacheStorage {
         }
     }
 
+    // Снимок, затем журнал поверх него. Недописанная последняя строка журнала (сбой при записи) пропускается.
     private void loadCacheFromFile() {
         try {
             Files.createDirectories(cachePath.getParent());
             if (Files.exists(cachePath)) {
                 String json = Files.readString(cachePath, StandardCharsets.UTF_8);
-                cacheMap = objectMapper.readValue(json, new TypeReference<>() {
-                });
+                cacheMap.putAll(objectMapper.readValue(json, new TypeReference<Map<String, CachedForecast>>() {
+                }));
                 System.out.println("✅ Кэш погоды загружен из файла");
             }
         } catch (Exception e) {
             System.out.println("⚠️ Не удалось загрузить кэш погоды из файла: " + e.getMessage());
         }
+
+        try {
+            if (Files.exists(journalPath)) {
+                for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                    if (line.isBlank()) continue;
+                    JournalEntry change;
+                    try {
+                        change = objectMapper.readValue(line, JournalEntry.class);
+                    } catch (IOException e) {
+                        System.out.println("⚠️ Пропущена повреждённая запись журнала кэша погоды");
+                        continue;
+                    }
+                    if (change.value() == null) {
+                        cacheMap.remove(change.city());
+                    } else {
+                        cacheMap.put(change.city(), change.value());
+                    }
+                    journalEntries++;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("⚠️ Не удалось прочитать журнал кэша погоды: " + e.getMessage());
+        }
+
+        // Записи старого формата (только готовый текст на один день) не используются
+        cacheMap.values().removeIf(entry -> entry.forecast == null);
+    }
+
+    /**
+     * Строка журнала: новое значение для города или его удаление (value == null)
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record JournalEntry(String city, CachedForecast value) {
     }
 
+    /**
+     * Прогноз на несколько дней и дата, когда он загружен. Запись хранится, пока прогноз доходит
+     * до сегодняшнего дня. Отвечать из неё можно не дольше MAX_AGE_DAYS: дальние дни прогноза
+     * менее точны. Через REFRESH_AFTER_DAYS она устаревает — ещё отвечает, но обновляется в фоне.
+     * Более старая запись годится только на случай, когда API недоступно.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
     public static class CachedForecast { // ← static!
-        public final String text;
+        public static final int REFRESH_AFTER_DAYS = 2;
+        public static final int MAX_AGE_DAYS = 4;
+
+        public final Forecast forecast;
         public final LocalDate cachedAt;
 
         @JsonCreator
         public CachedForecast(
-                @JsonProperty("text") String text,
+                @JsonProperty("forecast") Forecast forecast,
                 @JsonProperty("cachedAt") LocalDate cachedAt
         ) {
-            this.text = text;
+            this.forecast = forecast;
             this.cachedAt = cachedAt;
         }
 
-        public String getText() { return text; }
+        public Forecast getForecast() { return forecast; }
         public LocalDate getCachedAt() { return cachedAt; }
 
+        /**
+         * В прогнозе не осталось ничего на сегодня и позже
+         */
         public boolean isExpired(LocalDate today) {
-            return !cachedAt.equals(today);
+            return forecast == null || !forecast.reaches(today, WeatherService.TZ);
+        }
+
+        /**
+         * Пора загрузить прогноз заново
+         */
+        public boolean isStale(LocalDate today) {
+            return !cachedAt.plusDays(REFRESH_AFTER_DAYS).isAfter(today);
+        }
+
+        /**
+         * Можно ли ответить из записи про день day. Загруженный сегодня прогноз годится
+         * для сегодня, даже если слотов на остаток дня в нём уже нет.
+         */
+        public boolean isUsableFor(LocalDate day) {
+            return !cachedAt.plusDays(MAX_AGE_DAYS).isBefore(day) && hasDataFor(day);
+        }
+
+        /**
+         * Есть ли в записи данные на день day, без учёта возраста
+         */
+        public boolean hasDataFor(LocalDate day) {
+            return !isExpired(day) && (cachedAt.equals(day) || forecast.covers(day, WeatherService.TZ));
         }
     }
-}
\ No newline at end of file
+}
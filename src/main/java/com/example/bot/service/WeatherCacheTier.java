@@ -0,0 +1,44 @@
+package com.example.bot.service;
+
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Второй уровень кэша погоды за локальным WeatherCacheStorage, общий для всех экземпляров бота.
+ * Ключи — те же, что у WeatherService: {@code geo:<geohash>} для ячейки известного города
+ * и название в нижнем регистре для города без координат. Ошибки хранилища не пробрасываются:
+ * недоступный уровень ведёт себя как пустой.
+ */
+public interface WeatherCacheTier {
+
+    /**
+     * Уровень без хранилища: бот работает только с локальным кэшем
+     */
+    WeatherCacheTier NONE = new WeatherCacheTier() {
+        @Override
+        public WeatherCacheStorage.CachedForecast load(String key) {
+            return null;
+        }
+
+        @Override
+        public Map<String, WeatherCacheStorage.CachedForecast> loadSince(LocalDate since) {
+            return Map.of();
+        }
+
+        @Override
+        public void store(String key, WeatherCacheStorage.CachedForecast forecast) {
+        }
+
+        @Override
+        public void removeOlderThan(LocalDate date) {
+        }
+    };
+
+    WeatherCacheStorage.CachedForecast load(String key);
+
+    Map<String, WeatherCacheStorage.CachedForecast> loadSince(LocalDate since);
+
+    void store(String key, WeatherCacheStorage.CachedForecast forecast);
+
+    void removeOlderThan(LocalDate date);
+}
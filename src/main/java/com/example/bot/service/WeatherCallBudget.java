@@ -0,0 +1,94 @@
+package com.example.bot.service;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бюджет запросов к OpenWeather: корзина токенов по лимиту тарифа в минуту.
+ * Фоновые запросы (прогрев, обновление устаревших прогнозов) не трогают последние
+ * interactiveReserve токенов — их тратят только запросы пользователей.
+ */
+public class WeatherCallBudget {
+    public enum Priority {
+        // Запрос пользователя: может взять последние токены
+        INTERACTIVE,
+        // Прогрев и фоновое обновление: оставляют interactiveReserve токенов
+        BACKGROUND
+    }
+
+    // Бесплатный тариф OpenWeather — 60 запросов в минуту
+    public static final int DEFAULT_CALLS_PER_MINUTE = 60;
+    public static final int DEFAULT_INTERACTIVE_RESERVE = 10;
+
+    private final TokenBucket bucket;
+    private final int interactiveReserve;
+    private long granted = 0;
+    private long denied = 0;
+
+    public WeatherCallBudget(int callsPerMinute, int interactiveReserve) {
+        if (callsPerMinute < 1) {
+            throw new IllegalArgumentException("callsPerMinute должен быть >= 1");
+        }
+        if (interactiveReserve < 0 || interactiveReserve >= callsPerMinute) {
+            throw new IllegalArgumentException("interactiveReserve должен быть в пределах [0, callsPerMinute)");
+        }
+        this.bucket = new TokenBucket(callsPerMinute, callsPerMinute / 60.0);
+        this.interactiveReserve = interactiveReserve;
+    }
+
+    /**
+     * Забирает токен, если он есть прямо сейчас
+     */
+    public synchronized boolean tryAcquire(Priority priority) {
+        if (bucket.nanosUntilTokens(System.nanoTime(), required(priority)) > 0) {
+            denied++;
+            return false;
+        }
+        bucket.take(System.nanoTime());
+        granted++;
+        return true;
+    }
+
+    /**
+     * Ждёт токен не дольше maxWait
+     */
+    public boolean acquire(Priority priority, Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                waitNanos = bucket.nanosUntilTokens(now, required(priority));
+                if (waitNanos == 0) {
+                    bucket.take(now);
+                    granted++;
+                    return true;
+                }
+                if (now + waitNanos > deadline) {
+                    denied++;
+                    return false;
+                }
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * API ответило 429: лимит на его стороне уже исчерпан, ждём полного пополнения токенов
+     */
+    public synchronized void exhaust() {
+        bucket.drain(System.nanoTime());
+    }
+
+    public synchronized long getGranted() {
+        return granted;
+    }
+
+    public synchronized long getDenied() {
+        return denied;
+    }
+
+    private int required(Priority priority) {
+        return priority == Priority.BACKGROUND ? 1 + interactiveReserve : 1;
+    }
+}
@@ -1,110 +1,461 @@
 package com.example.bot.service;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.bot.model.City;
+import com.example.bot.model.Forecast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.time.*;
-import java.util.Iterator;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class WeatherService {
 
     private static final Logger logger = LoggerFactory.getLogger(WeatherService.class);
     private static final String FORECAST_URL = "https://api.openweathermap.org/data/2.5/forecast";
-    private static final ZoneId TZ = ZoneId.of("Asia/Yekaterinburg");
+    static final ZoneId TZ = ZoneId.of("Asia/Yekaterinburg");
+    // Прогноз известного города кэшируется на ячейку геохеша (~39×20 км): соседние города делят один запрос к API
+    static final int CELL_PRECISION = 4;
+    // Один запрос к API — не дольше 10 секунд, даже если до срока ответа больше
+    static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    // Срок ответа по умолчанию: запрос к API, разбор и запас на ожидание бюджета
+    public static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(12);
+    // Запрос к API ограничен 10 секундами, ожидающим даём немного больше
+    public static final Duration DEFAULT_WAIT_TIMEOUT = Duration.ofSeconds(15);
+    // Прогрев ждёт бюджет не дольше полного пополнения корзины
+    static final Duration PREFETCH_BUDGET_WAIT = Duration.ofMinutes(1);
+    // Очистка идёт чуть позже полуночи, чтобы часы точно показывали новый день
+    static final Duration ROLLOVER_MARGIN = Duration.ofSeconds(5);
+    private static final DateTimeFormatter STALE_DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM");
+    // Из тела ответа с ошибкой в лог попадает только начало
+    private static final int ERROR_BODY_LOG_LIMIT = 512;
+    private static final String FETCH_ERROR = "🌤️ Ошибка при загрузке прогноза";
+    private static final String BUDGET_ERROR = "🌤️ Сервис погоды перегружен, попробуйте через минуту";
+    private static final String NO_CITY = "🌤️ Город не указан — не могу показать погоду.";
 
     private final String apiKey;
+    // Общий исполнитель: ответы HTTP-клиента, разбор прогнозов, ожидание бюджета и фоновое обновление
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
     private final HttpClient client;
-    private final ObjectMapper objectMapper;
-    private final ConcurrentMap<String, CachedForecast> cache;
+    private final ForecastParser forecastParser;
+    private final ConcurrentMap<String, WeatherCacheStorage.CachedForecast> cache;
     private final WeatherCacheStorage cacheStorage;
     private final Clock clock;
+    private final Duration waitTimeout;
+    private final WeatherCallBudget budget;
+    // Название города → город с координатами (null, если город неизвестен)
+    private final Function<String, City> cityResolver;
+    // Запросы к API, которые выполняются прямо сейчас, по ключу города
+    private final ConcurrentMap<String, Fetch> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong waitTimeouts = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    // Устаревшие записи удаляются раз в сутки, сразу после полуночи, а не на пути запроса
+    private final ScheduledExecutorService rollover = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("weather-cache-rollover").daemon().factory());
 
     // === Конструкторы ===
 
     public WeatherService(String openWeatherApiKey) {
         this(openWeatherApiKey, Clock.systemDefaultZone());
     }
+    // Прогнозы делятся с другими экземплярами бота через sharedTier
+    public WeatherService(String openWeatherApiKey, WeatherCacheTier sharedTier) {
+        this(openWeatherApiKey, Clock.systemDefaultZone(), new WeatherCacheStorage(sharedTier));
+    }
+    // Города из cityService запрашиваются по координатам и кэшируются по ячейке геохеша
+    public WeatherService(String openWeatherApiKey, WeatherCacheTier sharedTier, CityService cityService) {
+        this(openWeatherApiKey, Clock.systemDefaultZone(), new WeatherCacheStorage(sharedTier), DEFAULT_WAIT_TIMEOUT,
+                new WeatherCallBudget(WeatherCallBudget.DEFAULT_CALLS_PER_MINUTE, WeatherCallBudget.DEFAULT_INTERACTIVE_RESERVE),
+                cityService::findCity);
+    }
     // Пакетно-видимый конструктор для продакшена с кастомными часами
     WeatherService(String openWeatherApiKey, Clock clock) {
         this(openWeatherApiKey, clock, new WeatherCacheStorage()); // ← делегирование
     }
     // Пакетно-видимый конструктор для тестов
     WeatherService(String openWeatherApiKey, Clock clock, WeatherCacheStorage cacheStorage) {
+        this(openWeatherApiKey, clock, cacheStorage, DEFAULT_WAIT_TIMEOUT);
+    }
+
+    WeatherService(String openWeatherApiKey, Clock clock, WeatherCacheStorage cacheStorage, Duration waitTimeout) {
+        this(openWeatherApiKey, clock, cacheStorage, waitTimeout, new WeatherCallBudget(
+                WeatherCallBudget.DEFAULT_CALLS_PER_MINUTE, WeatherCallBudget.DEFAULT_INTERACTIVE_RESERVE));
+    }
+
+    WeatherService(String openWeatherApiKey, Clock clock, WeatherCacheStorage cacheStorage, Duration waitTimeout,
+                   WeatherCallBudget budget) {
+        this(openWeatherApiKey, clock, cacheStorage, waitTimeout, budget, name -> null);
+    }
+
+    WeatherService(String openWeatherApiKey, Clock clock, WeatherCacheStorage cacheStorage, Duration waitTimeout,
+                   WeatherCallBudget budget, Function<String, City> cityResolver) {
         if (openWeatherApiKey == null || openWeatherApiKey.trim().isEmpty()) {
             throw new IllegalArgumentException("OpenWeather API key is required");
         }
         this.apiKey = openWeatherApiKey.trim();
         this.clock = clock;
-        this.client = HttpClient.newHttpClient();
-        this.objectMapper = new ObjectMapper();
+        this.client = HttpClient.newBuilder().executor(executor).build();
+        this.forecastParser = new ForecastParser();
         this.cache = new ConcurrentHashMap<>();
         this.cacheStorage = cacheStorage; // ← инжектируем мок
+        this.waitTimeout = waitTimeout;
+        this.budget = budget;
+        this.cityResolver = cityResolver;
+        scheduleRollover();
     }
 
     // === Вложенные классы ===
 
-    private static class CachedForecast {
-        final String text;
-        final LocalDate cachedAt;
+    /**
+     * Результат загрузки: прогноз или текст ошибки для пользователя.
+     * Ошибки сети и API не кэшируются, чтобы следующий запрос попробовал снова.
+     * staleSince — дата загрузки, если прогноз устарел и ответ нужно пометить.
+     */
+    private record FetchedForecast(Forecast forecast, String error, LocalDate staleSince) {
+        static FetchedForecast fresh(Forecast forecast) {
+            return new FetchedForecast(forecast, null, null);
+        }
+
+        static FetchedForecast failed(String error) {
+            return new FetchedForecast(null, error, null);
+        }
+
+        static FetchedForecast stale(WeatherCacheStorage.CachedForecast cached) {
+            return new FetchedForecast(cached.getForecast(), null, cached.getCachedAt());
+        }
+
+        String mark(String text) {
+            return staleSince == null ? text : text + " (данные от " + staleSince.format(STALE_DATE_FORMAT) + ")";
+        }
+
+        boolean cacheable() {
+            return forecast != null;
+        }
+    }
+
+    /**
+     * Куда спрашивать прогноз: ячейка геохеша для известного города, иначе название как есть.
+     *
+     * @param name     название города, как его запросили (для логов и сообщений)
+     * @param cacheKey ключ кэша и общего запроса к API
+     * @param query    параметры запроса к API
+     */
+    private record Location(String name, String cacheKey, String query) {
+    }
 
-        CachedForecast(String text, LocalDate cachedAt) {
-            this.text = text;
-            this.cachedAt = cachedAt;
+    /**
+     * Один запрос к API по городу или ячейке, общий для всех, кто промахнулся, пока он идёт.
+     * Каждый ожидающий получает свою копию результата: его таймаут или отмена не трогают остальных.
+     * Когда отменились все ожидающие, запрос к API прерывается.
+     */
+    private final class Fetch {
+        private final String cacheKey;
+        private final CompletableFuture<FetchedForecast> result = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile CompletableFuture<?> request;
+
+        private Fetch(String cacheKey) {
+            this.cacheKey = cacheKey;
         }
 
-        boolean isExpired(LocalDate today) {
-            return !cachedAt.equals(today);
+        // Результат для одного ожидающего, не позже deadline (System.nanoTime)
+        CompletableFuture<FetchedForecast> join(long deadline) {
+            waiters.incrementAndGet();
+            CompletableFuture<FetchedForecast> waiter = result.copy()
+                    .orTimeout(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            waiter.whenComplete((forecast, e) -> {
+                if (waiter.isCancelled()) {
+                    leave();
+                }
+            });
+            return waiter;
+        }
+
+        void complete(FetchedForecast forecast) {
+            inFlight.remove(cacheKey, this);
+            result.complete(forecast);
+        }
+
+        void fail(Throwable e) {
+            inFlight.remove(cacheKey, this);
+            result.completeExceptionally(e);
+        }
+
+        private void leave() {
+            if (waiters.decrementAndGet() > 0 || result.isDone()) {
+                return;
+            }
+            cancelled.incrementAndGet();
+            CompletableFuture<?> running = request;
+            if (running != null) {
+                running.cancel(true);
+            }
+            complete(FetchedForecast.failed(FETCH_ERROR));
         }
     }
 
     // === Public API ===
 
     /**
-     * Возвращает прогноз погоды на сегодня с кэшированием (1 запрос на город в день).
+     * Возвращает прогноз погоды на сегодня. Прогноз кэшируется на несколько дней целиком,
+     * поэтому сегодняшний день обычно берётся из вчерашнего ответа API.
+     * Блокирует вызывающий поток не дольше DEFAULT_DEADLINE.
      */
     public String getTodayForecast(String cityName) {
+        return await(getTodayForecastAsync(cityName));
+    }
+
+    /**
+     * Прогноз на сегодня без блокировки потока, со сроком DEFAULT_DEADLINE
+     */
+    public CompletableFuture<String> getTodayForecastAsync(String cityName) {
+        return getTodayForecastAsync(cityName, DEFAULT_DEADLINE);
+    }
+
+    /**
+     * Прогноз на сегодня без блокировки потока. К сроку timeout будущее завершается всегда —
+     * прогнозом или текстом ошибки. Отмена будущего прерывает запрос к API, если его больше никто не ждёт.
+     */
+    public CompletableFuture<String> getTodayForecastAsync(String cityName, Duration timeout) {
+        return getDayForecastAsync(cityName, 0, deadlineIn(timeout));
+    }
+
+    /**
+     * Погода сейчас, на сегодня и на завтра без блокировки потока. Все три строки берутся
+     * из одного закэшированного ответа API: сейчас — ближайший 3-часовой слот прогноза
+     */
+    public CompletableFuture<String> getWeatherOverviewAsync(String cityName) {
         if (cityName == null || cityName.isBlank()) {
-            return "🌤️ Город не указан — не могу показать погоду.";
+            return CompletableFuture.completedFuture(NO_CITY);
         }
+        LocalDate today = now();
+        CompletableFuture<FetchedForecast> lookup = lookup(cityName, today, deadlineIn(DEFAULT_DEADLINE));
+        return cancelsUpstream(lookup.thenApply(fetched -> formatOverview(fetched, today)), lookup);
+    }
 
-        String normalizedCity = cityName.trim();
-        String cacheKey = normalizedCity.toLowerCase(Locale.ROOT);
+    private String formatOverview(FetchedForecast fetched, LocalDate today) {
+        if (!fetched.cacheable()) {
+            return fetched.error();
+        }
+        // Пометка устаревших данных — одна на весь блок, а не на каждую строку
+        FetchedForecast unmarked = FetchedForecast.fresh(fetched.forecast());
+        return fetched.mark("Сейчас: " + formatCurrent(unmarked)
+                + "\nСегодня: " + formatDay(unmarked, today, 0)
+                + "\nЗавтра: " + formatDay(unmarked, today.plusDays(1), 1));
+    }
+
+    private String formatCurrent(FetchedForecast fetched) {
+        if (!fetched.cacheable()) {
+            return fetched.error();
+        }
+        Forecast forecast = fetched.forecast();
+        int slot = forecast.nearestSlot(clock.instant());
+        if (slot < 0 || Double.isNaN(forecast.temp(slot))) {
+            return "🌤️ Нет данных о текущей погоде.";
+        }
+        String desc = forecast.description(slot) != null ? capitalize(forecast.description(slot)) : "погода";
+        return fetched.mark(String.format("%s %s, %s°C", getWeatherEmoji(desc), desc,
+                formatTemperature((int) Math.round(forecast.temp(slot)))));
+    }
+
+    private CompletableFuture<String> getDayForecastAsync(String cityName, int daysAhead, long deadline) {
+        if (cityName == null || cityName.isBlank()) {
+            return CompletableFuture.completedFuture(NO_CITY);
+        }
+        LocalDate day = now().plusDays(daysAhead);
+        CompletableFuture<FetchedForecast> lookup = lookup(cityName, day, deadline);
+        return cancelsUpstream(lookup.thenApply(fetched -> formatDay(fetched, day, daysAhead)), lookup);
+    }
+
+    private String formatDay(FetchedForecast fetched, LocalDate day, int daysAhead) {
+        if (!fetched.cacheable()) {
+            return fetched.error();
+        }
+        Forecast.DaySummary summary = fetched.forecast().summarize(day, TZ);
+        if (summary == null) {
+            return daysAhead == 0
+                    ? "🌤️ Прогноз на сегодня не найден для этого города."
+                    : "🌤️ Прогноз на завтра не найден для этого города.";
+        }
+        return fetched.mark(formatSummary(summary));
+    }
+
+    // Прогноз, годный для дня day: из кэша или из API. Устаревший прогноз отдаётся сразу
+    // и обновляется в фоне; если API недоступно или бюджет исчерпан — последний известный.
+    // На потоке вызывающего проверяется только RAM-кэш: хранилище может пойти в общий уровень (БД)
+    private CompletableFuture<FetchedForecast> lookup(String cityName, LocalDate day, long deadline) {
+        Location location = locate(cityName);
         LocalDate today = now();
 
-        // Удаление устаревших записей (защита от утечки памяти)
-        cache.entrySet().removeIf(entry -> entry.getValue().isExpired(today));
-        cacheStorage.removeExpired(today);
-        // Сначала проверяем быстрый RAM-кэш
-        CachedForecast cached = cache.get(cacheKey);
-        if (cached != null && !cached.isExpired(today)) {
-            return cached.text;
-        }
-        //  Если нет в RAM — проверяем файловый кэш
-        WeatherCacheStorage.CachedForecast fileCached = cacheStorage.get(cacheKey);
-        if (fileCached != null && !fileCached.isExpired(today)) {
-            // Загружаем в RAM для ускорения последующих запросов
-            CachedForecast ramCached = new CachedForecast(fileCached.text, fileCached.cachedAt);
-            cache.put(cacheKey, ramCached);
-            return fileCached.getText(); // ← правильно
+        WeatherCacheStorage.CachedForecast cached = cache.get(location.cacheKey());
+        if (cached != null && cached.isUsableFor(day)) {
+            return CompletableFuture.completedFuture(fromCache(location, cached, today));
+        }
+
+        CompletableFuture<FetchedForecast> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    return; // отменён, пока ждал исполнителя
+                }
+                try {
+                    CompletableFuture<FetchedForecast> stored = lookupStored(location, today, day, deadline);
+                    stored.whenComplete((forecast, e) -> {
+                        if (e == null) {
+                            result.complete(forecast);
+                        } else {
+                            result.completeExceptionally(e);
+                        }
+                    });
+                    cancelsUpstream(result, stored);
+                } catch (RuntimeException e) {
+                    logger.error("Ошибка при получении прогноза для города: {}", location.name(), e);
+                    result.complete(FetchedForecast.failed(FETCH_ERROR));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Прогноз для {} не запрошен: сервис остановлен", location.name());
+            result.complete(FetchedForecast.failed(FETCH_ERROR));
+        }
+        return result;
+    }
+
+    private FetchedForecast fromCache(Location location, WeatherCacheStorage.CachedForecast cached, LocalDate today) {
+        cacheHits.incrementAndGet();
+        if (!cached.isStale(today)) {
+            return FetchedForecast.fresh(cached.getForecast());
+        }
+        staleServed.incrementAndGet();
+        refreshInBackground(location, today);
+        return FetchedForecast.stale(cached);
+    }
+
+    // Продолжение lookup на исполнителе: хранилище, затем API
+    private CompletableFuture<FetchedForecast> lookupStored(Location location, LocalDate today,
+                                                            LocalDate day, long deadline) {
+        String cacheKey = location.cacheKey();
+        WeatherCacheStorage.CachedForecast cached = getCached(cacheKey, day);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(fromCache(location, cached, today));
+        }
+
+        cacheMisses.incrementAndGet();
+        CompletableFuture<FetchedForecast> load = load(location, today, day,
+                WeatherCallBudget.Priority.INTERACTIVE, Duration.ZERO, false, deadline);
+        return cancelsUpstream(load.thenApply(loaded -> {
+            if (!loaded.cacheable()) {
+                WeatherCacheStorage.CachedForecast lastKnown = getLastKnown(cacheKey, day);
+                if (lastKnown != null) {
+                    staleServed.incrementAndGet();
+                    return FetchedForecast.stale(lastKnown);
+                }
+            }
+            return loaded;
+        }), load);
+    }
+
+    /**
+     * Заранее загружает в кэш прогнозы для списка городов, не больше parallelism запросов к API одновременно.
+     * Города, уже лежащие в кэше, повторно не запрашиваются.
+     */
+    public PrefetchReport prefetch(Collection<String> cityNames, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism должен быть >= 1");
         }
+        long start = System.nanoTime();
+        LocalDate today = now();
 
-        String forecast = fetchForecastFromApi(normalizedCity);
-        CachedForecast newCached = new CachedForecast(forecast, today);
+        // Один запрос на ячейку: соседние города и разный регистр названия не множат запросы
+        Map<String, Location> cities = new LinkedHashMap<>();
+        for (String cityName : cityNames) {
+            if (cityName != null && !cityName.isBlank()) {
+                Location location = locate(cityName);
+                cities.putIfAbsent(location.cacheKey(), location);
+            }
+        }
+
+        AtomicInteger alreadyCached = new AtomicInteger();
+        AtomicInteger fetched = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Semaphore permits = new Semaphore(parallelism);
+        List<CompletableFuture<FetchedForecast>> loads = new ArrayList<>();
+        for (Location location : cities.values()) {
+            WeatherCacheStorage.CachedForecast cached = getCached(location.cacheKey(), today);
+            if (cached != null && !cached.isStale(today)) {
+                alreadyCached.incrementAndGet();
+                continue;
+            }
+            // Устаревшие прогнозы прогрев обновляет заранее, на фоновом бюджете
+            permits.acquireUninterruptibly();
+            loads.add(load(location, today, today, WeatherCallBudget.Priority.BACKGROUND,
+                    PREFETCH_BUDGET_WAIT, true, deadlineIn(PREFETCH_BUDGET_WAIT.plus(REQUEST_TIMEOUT)))
+                    .whenComplete((forecast, e) -> {
+                        if (forecast != null && forecast.cacheable()) {
+                            fetched.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                        permits.release();
+                    }));
+        }
+        CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).join();
 
-        cache.put(cacheKey, newCached);
-        cacheStorage.save(cacheKey, forecast, today);
-        return forecast;
+        return new PrefetchReport(cities.size(), alreadyCached.get(), fetched.get(), failed.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Попадания и промахи кэша в getTodayForecast с момента запуска (прогрев не учитывается),
+     * сколько запросов дождались чужого обращения к API вместо своего, сколько ответов
+     * дали устаревший прогноз, сколько обращений к API не уложились в бюджет
+     * и сколько было прервано, потому что ответ больше никто не ждал
+     */
+    public CacheStats getCacheStats() {
+        return new CacheStats(cacheHits.get(), cacheMisses.get(), coalesced.get(), waitTimeouts.get(),
+                staleServed.get(), budget.getDenied(), cancelled.get());
+    }
+
+    /**
+     * Сохраняет несохранённый кэш на диск и останавливает фоновую запись
+     */
+    public void shutdown() {
+        rollover.shutdownNow();
+        executor.shutdownNow();
+        cacheStorage.shutdown();
     }
 
     // === Private helpers ===
@@ -113,87 +464,256 @@ public class WeatherService {
         return LocalDate.now(clock.withZone(TZ));
     }
 
-    private String fetchForecastFromApi(String cityName) {
-        System.out.println("🌍 Запрос погоды из API для города: {}"+ cityName);
-
-        try {
-            String encodedCity = URLEncoder.encode(cityName, StandardCharsets.UTF_8);
-            String url = String.format(
-                    "%s?q=%s&appid=%s&units=metric&lang=ru",
-                    FORECAST_URL, encodedCity, apiKey
-            );
+    // Известный город — в ячейку геохеша, запрос по координатам её центра: прогноз ячейки
+    // не зависит от того, какой из соседних городов запросил его первым. Остальные — по названию
+    private Location locate(String cityName) {
+        String normalizedCity = cityName.trim();
+        City city = cityResolver.apply(normalizedCity);
+        if (city != null && (city.getLat() != 0 || city.getLng() != 0)) {
+            String cell = Geohash.encode(city.getLat(), city.getLng(), CELL_PRECISION);
+            double[] center = Geohash.center(cell);
+            return new Location(normalizedCity, "geo:" + cell,
+                    String.format(Locale.ROOT, "lat=%.4f&lon=%.4f", center[0], center[1]));
+        }
+        return new Location(normalizedCity, normalizedCity.toLowerCase(Locale.ROOT),
+                "q=" + URLEncoder.encode(normalizedCity, StandardCharsets.UTF_8));
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .timeout(Duration.ofSeconds(10))
-                    .build();
+    private static long deadlineIn(Duration timeout) {
+        return System.nanoTime() + timeout.toNanos();
+    }
 
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    private static long remainingNanos(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
 
-            if (response.statusCode() != 200) {
-                logger.warn("Forecast API error {}: {}", response.statusCode(), response.body());
-                return "🌤️ Не удалось загрузить прогноз для " + cityName;
+    // Отмена зависимого будущего отменяет и исходное: так отмена доходит до общего запроса к API
+    private static <T> CompletableFuture<T> cancelsUpstream(CompletableFuture<T> dependent, CompletableFuture<?> source) {
+        dependent.whenComplete((value, e) -> {
+            if (dependent.isCancelled()) {
+                source.cancel(false);
             }
+        });
+        return dependent;
+    }
 
-            JsonNode root = objectMapper.readTree(response.body());
-            JsonNode list = root.path("list");
-            if (list.isMissingNode() || list.isEmpty()) {
-                return "🌤️ Прогноз для " + cityName + " пуст";
+    // Синхронная обёртка: срок ответа уже заложен в будущее, прерывание потока отменяет запрос
+    private static String await(CompletableFuture<String> answer) {
+        try {
+            return answer.get();
+        } catch (InterruptedException e) {
+            answer.cancel(false);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            logger.error("Ошибка при получении прогноза", e);
+        }
+        return FETCH_ERROR;
+    }
+
+    // Записи устаревают только со сменой дня: очистка запускается в начале каждых суток по TZ
+    private void scheduleRollover() {
+        ZonedDateTime now = ZonedDateTime.now(clock.withZone(TZ));
+        long untilMidnight = Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay(TZ)).toMillis();
+        rollover.scheduleAtFixedRate(() -> {
+            try {
+                sweepExpired(now());
+            } catch (Exception e) {
+                logger.error("Ошибка при очистке кэша погоды", e);
             }
+        }, untilMidnight + ROLLOVER_MARGIN.toMillis(), TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
 
-            return processForecastData(list, now());
+    // Удаление устаревших записей (защита от утечки памяти). До очистки устаревшее отсекает isUsableFor
+    void sweepExpired(LocalDate today) {
+        cache.entrySet().removeIf(entry -> entry.getValue().isExpired(today));
+        cacheStorage.removeExpired(today);
+    }
 
-        } catch (Exception e) {
-            logger.error("Ошибка при получении прогноза для города: {}", cityName, e);
-            return "🌤️ Ошибка при загрузке прогноза";
+    // Сначала быстрый RAM-кэш, затем хранилище (локальное, а при промахе — общее)
+    private WeatherCacheStorage.CachedForecast getCached(String cacheKey, LocalDate day) {
+        WeatherCacheStorage.CachedForecast cached = cache.get(cacheKey);
+        if (cached != null && cached.isUsableFor(day)) {
+            return cached;
+        }
+        WeatherCacheStorage.CachedForecast fileCached = cacheStorage.get(cacheKey, day);
+        if (fileCached != null && fileCached.isUsableFor(day)) {
+            // Загружаем в RAM для ускорения последующих запросов
+            cache.put(cacheKey, fileCached);
+            return fileCached;
         }
+        return null;
     }
 
-    private String processForecastData(JsonNode list, LocalDate today) {
-        double minTemp = Double.POSITIVE_INFINITY;
-        double maxTemp = Double.NEGATIVE_INFINITY;
-        String description = null;
+    // Запись с данными на день, какой бы старой она ни была
+    private WeatherCacheStorage.CachedForecast getLastKnown(String cacheKey, LocalDate day) {
+        WeatherCacheStorage.CachedForecast cached = cache.get(cacheKey);
+        if (cached == null) {
+            cached = cacheStorage.get(cacheKey);
+        }
+        return cached != null && cached.hasDataFor(day) ? cached : null;
+    }
 
-        for (Iterator<JsonNode> it = list.elements(); it.hasNext(); ) {
-            JsonNode item = it.next();
-            long dt = item.path("dt").asLong(0);
-            if (dt == 0) continue;
+    // Обновление идёт на фоновом бюджете и без ожидания: не хватило токенов — попробуем при следующем запросе
+    private void refreshInBackground(Location location, LocalDate today) {
+        if (inFlight.containsKey(location.cacheKey())) {
+            return;
+        }
+        try {
+            executor.execute(() -> load(location, today, today,
+                    WeatherCallBudget.Priority.BACKGROUND, Duration.ZERO, true, deadlineIn(REQUEST_TIMEOUT)));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Фоновое обновление прогноза для {} пропущено: сервис остановлен", location.name());
+        }
+    }
 
-            LocalDateTime itemTime = Instant.ofEpochSecond(dt).atZone(TZ).toLocalDateTime();
-            if (!itemTime.toLocalDate().equals(today)) {
-                continue;
+    // На один город в API идёт не больше одного запроса: первый промах выполняет его,
+    // остальные ждут его результата, но не дольше waitTimeout. Никто не ждёт дольше своего deadline.
+    // refresh — загрузить заново, даже если в кэше есть устаревший, но ещё годный прогноз
+    private CompletableFuture<FetchedForecast> load(Location location, LocalDate today,
+                                                    LocalDate day, WeatherCallBudget.Priority priority,
+                                                    Duration budgetWait, boolean refresh, long deadline) {
+        Fetch own = new Fetch(location.cacheKey());
+        Fetch running = inFlight.putIfAbsent(location.cacheKey(), own);
+        CompletableFuture<FetchedForecast> waiter;
+        if (running != null) {
+            waiter = running.join(Math.min(deadline, deadlineIn(waitTimeout)));
+            coalesced.incrementAndGet();
+        } else {
+            waiter = own.join(deadline);
+            start(own, location, today, day, priority, budgetWait, refresh, deadline);
+        }
+        return cancelsUpstream(waiter.handle((forecast, e) -> {
+            if (e == null) {
+                return forecast;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                waitTimeouts.incrementAndGet();
+                logger.warn("Не дождались прогноза для {}", location.name());
+            } else if (!(cause instanceof CancellationException)) {
+                logger.error("Ошибка при получении прогноза для города: {}", location.name(), cause);
             }
+            return FetchedForecast.failed(FETCH_ERROR);
+        }), waiter);
+    }
 
-            JsonNode main = item.path("main");
-            if (!main.isMissingNode()) {
-                double temp = main.path("temp").asDouble(Double.NaN);
-                if (!Double.isNaN(temp)) {
-                    minTemp = Math.min(minTemp, temp);
-                    maxTemp = Math.max(maxTemp, temp);
-                }
+    private void start(Fetch fetch, Location location, LocalDate today, LocalDate day,
+                       WeatherCallBudget.Priority priority, Duration budgetWait, boolean refresh, long deadline) {
+        try {
+            // Пока мы промахивались, предыдущий запрос мог успеть положить прогноз в кэш
+            WeatherCacheStorage.CachedForecast cached = getCached(fetch.cacheKey, day);
+            if (cached != null && !(refresh && cached.isStale(today))) {
+                fetch.complete(FetchedForecast.fresh(cached.getForecast()));
+                return;
             }
+            Duration maxBudgetWait = Duration.ofNanos(Math.min(budgetWait.toNanos(), remainingNanos(deadline)));
+            acquireBudget(priority, maxBudgetWait)
+                    .thenCompose(granted -> {
+                        if (!granted) {
+                            logger.warn("Бюджет запросов к OpenWeather исчерпан, прогноз для {} не загружен ({})",
+                                    location.name(), priority);
+                            return CompletableFuture.completedFuture(FetchedForecast.failed(BUDGET_ERROR));
+                        }
+                        return fetchForecastFromApi(fetch, location, deadline);
+                    })
+                    .whenComplete((forecast, e) -> {
+                        if (e != null) {
+                            fetch.fail(e);
+                            return;
+                        }
+                        if (forecast.cacheable()) {
+                            cache.put(fetch.cacheKey, new WeatherCacheStorage.CachedForecast(forecast.forecast(), today));
+                            cacheStorage.save(fetch.cacheKey, forecast.forecast(), today);
+                        }
+                        fetch.complete(forecast);
+                    });
+        } catch (RuntimeException e) {
+            fetch.fail(e);
+        }
+    }
 
-            if (description == null && item.has("weather")) {
-                JsonNode weatherArray = item.get("weather");
-                if (weatherArray.isArray() && !weatherArray.isEmpty()) {
-                    JsonNode weather = weatherArray.get(0);
-                    if (weather.has("description")) {
-                        description = weather.get("description").asText();
-                    }
-                }
+    // Без ожидания токен берётся сразу; ожидание бюджета уходит в общий исполнитель, а не в поток вызывающего
+    private CompletableFuture<Boolean> acquireBudget(WeatherCallBudget.Priority priority, Duration budgetWait) {
+        if (budgetWait.isZero()) {
+            return CompletableFuture.completedFuture(budget.tryAcquire(priority));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.acquire(priority, budgetWait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
+        }, executor);
+    }
+
+    private CompletableFuture<FetchedForecast> fetchForecastFromApi(Fetch fetch, Location location, long deadline) {
+        String cityName = location.name();
+        System.out.println("🌍 Запрос погоды из API для города: {}"+ cityName);
+
+        long remaining = remainingNanos(deadline);
+        if (remaining == 0) {
+            logger.warn("Срок ответа для {} истёк до запроса к API", cityName);
+            return CompletableFuture.completedFuture(FetchedForecast.failed(FETCH_ERROR));
         }
+        String url = String.format(
+                "%s?%s&appid=%s&units=metric&lang=ru",
+                FORECAST_URL, location.query(), apiKey
+        );
+
+        // Запрос не переживает срок ответа, ради которого он сделан
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(Duration.ofNanos(Math.min(remaining, REQUEST_TIMEOUT.toNanos())))
+                .build();
+
+        CompletableFuture<HttpResponse<InputStream>> response =
+                client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        fetch.request = response;
+        return response
+                .thenApplyAsync(r -> readForecast(r, cityName), executor)
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof HttpTimeoutException) {
+                        logger.warn("OpenWeather не ответил вовремя для {}", cityName);
+                    } else if (!(cause instanceof CancellationException)) {
+                        logger.error("Ошибка при получении прогноза для города: {}", cityName, cause);
+                    }
+                    return FetchedForecast.failed(FETCH_ERROR);
+                });
+    }
+
+    // Тело читается потоком прямо в массивы прогноза, без промежуточной строки и дерева JSON
+    private FetchedForecast readForecast(HttpResponse<InputStream> response, String cityName) {
+        try (InputStream body = response.body()) {
+            if (response.statusCode() == 429) {
+                // Лимит тарифа уже исчерпан на стороне API: не тратим следующие запросы впустую
+                budget.exhaust();
+            }
+            if (response.statusCode() != 200) {
+                logger.warn("Forecast API error {}: {}", response.statusCode(),
+                        new String(body.readNBytes(ERROR_BODY_LOG_LIMIT), StandardCharsets.UTF_8));
+                return FetchedForecast.failed("🌤️ Не удалось загрузить прогноз для " + cityName);
+            }
 
-        if (Double.isInfinite(minTemp)) {
-            return "🌤️ Прогноз на сегодня не найден для этого города.";
+            Forecast forecast = forecastParser.parse(body);
+            if (forecast == null || forecast.size() == 0) {
+                return FetchedForecast.failed("🌤️ Прогноз для " + cityName + " пуст");
+            }
+            return FetchedForecast.fresh(forecast);
+        } catch (IOException e) {
+            logger.error("Ошибка при получении прогноза для города: {}", cityName, e);
+            return FetchedForecast.failed(FETCH_ERROR);
         }
+    }
 
-        int min = (int) Math.round(minTemp);
-        int max = (int) Math.round(maxTemp);
+    private String formatSummary(Forecast.DaySummary summary) {
+        int min = (int) Math.round(summary.minTemp());
+        int max = (int) Math.round(summary.maxTemp());
 
         String minStr = formatTemperature(min);
         String maxStr = formatTemperature(max);
-        String desc = description != null ? capitalize(description) : "погода";
+        String desc = summary.description() != null ? capitalize(summary.description()) : "погода";
         String emoji = getWeatherEmoji(desc);
 
         if (min == max) {
@@ -237,4 +757,48 @@ public class WeatherService {
         }
         return "🌤️";
     }
-}
\ No newline at end of file
+
+    /**
+     * Итог прогрева кэша.
+     *
+     * @param cities         различных мест в запросе (ячеек геохеша и городов без координат)
+     * @param alreadyCached  уже были в кэше
+     * @param fetched        загружены из API
+     * @param failed         не удалось загрузить
+     * @param durationMillis длительность прогрева
+     */
+    public record PrefetchReport(int cities, int alreadyCached, int fetched, int failed, long durationMillis) {
+        /**
+         * Доля городов, прогноз которых теперь есть в кэше
+         */
+        public double coverage() {
+            return cities == 0 ? 1.0 : (double) (alreadyCached + fetched) / cities;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d городов: в кэше %d, загружено %d, ошибок %d, покрытие %.0f%% за %d мс",
+                    cities, alreadyCached, fetched, failed, coverage() * 100, durationMillis);
+        }
+    }
+
+    /**
+     * Статистика кэша прогнозов.
+     *
+     * @param hits         ответы из кэша
+     * @param misses       промахи (включая дождавшихся чужого запроса)
+     * @param coalesced    промахи, присоединившиеся к уже идущему запросу того же города
+     * @param waitTimeouts промахи, не дождавшиеся ответа к своему сроку
+     * @param stale        ответы устаревшим прогнозом (с пометкой даты)
+     * @param overBudget   обращения к API, отклонённые бюджетом запросов
+     * @param cancelled    запросы к API, прерванные после отмены всеми ожидающими
+     */
+    public record CacheStats(long hits, long misses, long coalesced, long waitTimeouts, long stale, long overBudget,
+                             long cancelled) {
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", coalesced=" + coalesced + ", waitTimeouts=" + waitTimeouts
+                    + ", stale=" + stale + ", overBudget=" + overBudget + ", cancelled=" + cancelled;
+        }
+    }
+}
@@ -50,7 +50,7 @@ class ChatBotTest {
         chatBot.onUpdateReceived(update);
 
         // Then
-        verify(databaseManager).saveUser(userId, username);
+        verify(databaseManager, timeout(1000)).beginRequest(userId, username);
     }
 
     @Test
@@ -74,7 +74,7 @@ class ChatBotTest {
 
         // When & Then — не должно быть исключений
         assertDoesNotThrow(() -> chatBot.onUpdateReceived(update));
-        verify(databaseManager).saveUser(userId, username);
+        verify(databaseManager, timeout(1000)).beginRequest(userId, username);
     }
 
     @Test
@@ -90,7 +90,7 @@ class ChatBotTest {
         chatBot.onUpdateReceived(update);
 
         // Then
-        verify(databaseManager, never()).saveUser(anyLong(), anyString());
+        verify(databaseManager, never()).beginRequest(anyLong(), anyString());
     }
 
     @Test
@@ -100,7 +100,7 @@ class ChatBotTest {
 
         // When & Then
         assertDoesNotThrow(() -> chatBot.onUpdateReceived(update));
-        verify(databaseManager, never()).saveUser(anyLong(), anyString());
+        verify(databaseManager, never()).beginRequest(anyLong(), anyString());
     }
 
     @Test
@@ -127,7 +127,7 @@ class ChatBotTest {
 
         // Then
         // Пустой текст — всё равно сохраняем пользователя (логика бота такова)
-        verify(databaseManager).saveUser(userId, username);
+        verify(databaseManager, timeout(1000)).beginRequest(userId, username);
     }
 
     @Test
@@ -153,7 +153,7 @@ class ChatBotTest {
         chatBot.onUpdateReceived(update);
 
         // Then
-        verify(databaseManager).saveUser(userId, username);
+        verify(databaseManager, timeout(1000)).beginRequest(userId, username);
     }
 
     @Test
@@ -169,9 +169,9 @@ class ChatBotTest {
         chatBot.onUpdateReceived(update3);
 
         // Then
-        verify(databaseManager).saveUser(123L, "user1");
-        verify(databaseManager).saveUser(456L, "user2");
-        verify(databaseManager).saveUser(789L, "user3");
+        verify(databaseManager, timeout(1000)).beginRequest(123L, "user1");
+        verify(databaseManager, timeout(1000)).beginRequest(456L, "user2");
+        verify(databaseManager, timeout(1000)).beginRequest(789L, "user3");
     }
 
     // Вспомогательный метод для создания Update
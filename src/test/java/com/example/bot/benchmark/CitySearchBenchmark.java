@@ -0,0 +1,69 @@
+package com.example.bot.benchmark;
+
+import com.example.bot.ChatBot;
+import com.example.bot.model.City;
+import com.example.bot.service.CityService;
+import me.xdrop.fuzzywuzzy.FuzzySearch;
+import me.xdrop.fuzzywuzzy.model.ExtractedResult;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Нечёткий поиск города по полному справочнику: перебор всех названий через FuzzySearch.extractTop
+ * (прежний путь) против CityService.findCitiesFuzzy с индексом триграмм.
+ * <p>
+ * Запуск: mvn test-compile, затем main этого класса с тестовым classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CitySearchBenchmark {
+
+    // Опечатки, которые вводят при выборе города
+    @Param({"Масква", "Екатиринбург", "Новгород", "Питер", "Ростов"})
+    public String query;
+
+    private CityService cityService;
+    private Map<String, City> cityByName;
+
+    @Setup
+    public void setUp() {
+        List<City> cities = ChatBot.loadCitiesFromResource();
+        cityService = new CityService(cities);
+        cityByName = cities.stream()
+                .collect(Collectors.toMap(City::getName, Function.identity(), (a, b) -> a));
+    }
+
+    @Benchmark
+    public List<City> bruteForce() {
+        return FuzzySearch.extractTop(query, cityByName.keySet(), 5).stream()
+                .filter(r -> r.getScore() >= 65)
+                .map(ExtractedResult::getString)
+                .map(cityByName::get)
+                .toList();
+    }
+
+    @Benchmark
+    public List<City> trigramIndex() {
+        return cityService.findCitiesFuzzy(query, 5, 65);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CitySearchBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
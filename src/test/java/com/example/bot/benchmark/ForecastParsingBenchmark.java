@@ -0,0 +1,94 @@
+package com.example.bot.benchmark;
+
+import com.example.bot.model.Forecast;
+import com.example.bot.service.ForecastParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор ответа /forecast на 40 слотов: дерево JsonNode из строки (прежний путь)
+ * против потокового ForecastParser. Смотреть стоит на gc.alloc.rate.norm — байты на разбор.
+ * <p>
+ * Запуск: mvn test-compile, затем main этого класса с тестовым classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForecastParsingBenchmark {
+
+    private byte[] payload;
+    private ObjectMapper objectMapper;
+    private ForecastParser forecastParser;
+
+    @Setup
+    public void setUp() {
+        payload = samplePayload(40).getBytes(StandardCharsets.UTF_8);
+        objectMapper = new ObjectMapper();
+        forecastParser = new ForecastParser();
+    }
+
+    @Benchmark
+    public Forecast tree() throws IOException {
+        // Как раньше: всё тело строкой, затем дерево и выборка нужных полей
+        JsonNode list = objectMapper.readTree(new String(payload, StandardCharsets.UTF_8)).path("list");
+        Forecast.Builder builder = Forecast.builder(list.size());
+        for (JsonNode item : list) {
+            long dt = item.path("dt").asLong(0);
+            if (dt == 0) continue;
+            double temp = item.path("main").path("temp").asDouble(Double.NaN);
+            JsonNode weather = item.path("weather");
+            String description = weather.isArray() && !weather.isEmpty() && weather.get(0).has("description")
+                    ? weather.get(0).get("description").asText() : null;
+            builder.add(dt, temp, description);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public Forecast streaming() throws IOException {
+        return forecastParser.parse(new ByteArrayInputStream(payload));
+    }
+
+    // Ответ со всеми полями, которые возвращает OpenWeather
+    static String samplePayload(int slots) {
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",\"message\":0,\"cnt\":").append(slots).append(",\"list\":[");
+        long dt = 1765954800L;
+        for (int i = 0; i < slots; i++, dt += 3 * 3600) {
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(dt)
+                    .append(",\"main\":{\"temp\":").append(-5 + i % 7 * 0.7)
+                    .append(",\"feels_like\":-9.52,\"temp_min\":-5.81,\"temp_max\":-4.1,\"pressure\":1021,")
+                    .append("\"sea_level\":1021,\"grnd_level\":991,\"humidity\":86,\"temp_kf\":1.71},")
+                    .append("\"weather\":[{\"id\":600,\"main\":\"Snow\",\"description\":\"небольшой снег\",\"icon\":\"13n\"}],")
+                    .append("\"clouds\":{\"all\":100},\"wind\":{\"speed\":3.62,\"deg\":211,\"gust\":8.9},")
+                    .append("\"visibility\":10000,\"pop\":0.32,\"snow\":{\"3h\":0.19},\"sys\":{\"pod\":\"n\"},")
+                    .append("\"dt_txt\":\"2025-12-17 06:00:00\"}");
+        }
+        return json.append("],\"city\":{\"id\":1486209,\"name\":\"Екатеринбург\",\"coord\":{\"lat\":56.8575,\"lon\":60.6125},")
+                .append("\"country\":\"RU\",\"population\":1287807,\"timezone\":18000,")
+                .append("\"sunrise\":1765944531,\"sunset\":1765968723}}")
+                .toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ForecastParsingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
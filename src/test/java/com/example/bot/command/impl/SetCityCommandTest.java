@@ -1,5 +1,6 @@
 package com.example.bot.command.impl;
 
+import com.example.bot.command.CommandReply;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.model.City;
 import com.example.bot.service.CityService;
@@ -9,6 +10,8 @@ import org.junit.jupiter.api.Test;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.User;
 
+import java.util.concurrent.CompletableFuture;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -27,8 +30,8 @@ class SetCityCommandTest {
         setCityCommand = new SetCityCommand(mockDatabaseManager, mockCityService, mockWeatherService); // ← передано
 
         // Дефолтный ответ для погоды (на случай, если тест не мокает явно)
-        when(mockWeatherService.getTodayForecast(anyString()))
-                .thenReturn("🌤️ Облачно, +18°C");
+        when(mockWeatherService.getTodayForecastAsync(anyString()))
+                .thenReturn(CompletableFuture.completedFuture("🌤️ Облачно, +18°C"));
     }
 
     private Message createMessage(Long userId, String text) {
@@ -63,8 +66,8 @@ class SetCityCommandTest {
         Long userId = 456L;
         Message message = createMessage(userId, "/setcity");
         when(mockDatabaseManager.getUserCity(userId)).thenReturn("Екатеринбург");
-        when(mockWeatherService.getTodayForecast("Екатеринбург"))
-                .thenReturn("🌧️ Дождь, +12°C");
+        when(mockWeatherService.getTodayForecastAsync("Екатеринбург"))
+                .thenReturn(CompletableFuture.completedFuture("🌧️ Дождь, +12°C"));
 
         // WHEN
         String result = setCityCommand.execute(message);
@@ -75,6 +78,39 @@ class SetCityCommandTest {
         assertTrue(result.contains("🌧️ Дождь, +12°C")); // ← погода добавлена
     }
 
+    @Test
+    void executeDeferred_forecastNotReady_sendsCityThenEditsInWeather() {
+        // GIVEN
+        Long userId = 456L;
+        Message message = createMessage(userId, "/setcity");
+        when(mockDatabaseManager.getUserCity(userId)).thenReturn("Пермь");
+        CompletableFuture<String> forecast = new CompletableFuture<>();
+        when(mockWeatherService.getTodayForecastAsync("Пермь")).thenReturn(forecast);
+
+        // WHEN
+        CommandReply reply = setCityCommand.executeDeferred(message);
+
+        // THEN: город в ответе сразу, погода — после ответа API
+        assertTrue(reply.text().contains("Ваш текущий город: *Пермь*"));
+        assertTrue(reply.text().contains(StatsCommand.WEATHER_PLACEHOLDER));
+        assertFalse(reply.update().isDone());
+
+        forecast.complete("❄️ Снег, -12°C");
+        assertEquals(reply.text().replace(StatsCommand.WEATHER_PLACEHOLDER, "❄️ Снег, -12°C"), reply.update().join());
+    }
+
+    @Test
+    void executeDeferred_cancelledUpdate_cancelsForecast() {
+        Message message = createMessage(456L, "/setcity");
+        when(mockDatabaseManager.getUserCity(456L)).thenReturn("Пермь");
+        CompletableFuture<String> forecast = new CompletableFuture<>();
+        when(mockWeatherService.getTodayForecastAsync("Пермь")).thenReturn(forecast);
+
+        setCityCommand.executeDeferred(message).update().cancel(true);
+
+        assertTrue(forecast.isCancelled());
+    }
+
     @Test
     void execute_validCityName_cityFound_savesAndReturnsSuccessWithWeather() {
         // GIVEN
@@ -108,7 +144,7 @@ class SetCityCommandTest {
         // THEN
         verify(mockDatabaseManager, never()).updateUserCity(anyLong(), anyString());
         // Погода НЕ запрашивается, если город не найден
-        verify(mockWeatherService, never()).getTodayForecast(anyString());
+        verify(mockWeatherService, never()).getTodayForecastAsync(anyString());
 
         assertTrue(result.contains("❌ Город не найден в России"));
         assertTrue(result.contains("Пример: `/setcity Новосибирск`"));
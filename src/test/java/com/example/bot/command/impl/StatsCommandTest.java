@@ -1,5 +1,6 @@
 package com.example.bot.command.impl;
 
+import com.example.bot.command.CommandReply;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.service.WeatherService;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,6 +14,7 @@ import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -36,8 +38,10 @@ class StatsCommandTest {
         when(mockUser.getId()).thenReturn(12345L);
 
         // По умолчанию: погода — заглушка (чтобы не падали тесты)
-        when(mockWeatherService.getTodayForecast(anyString()))
-                .thenReturn("🌤️ Облачно, +18°C");
+        when(mockWeatherService.getTodayForecastAsync(anyString()))
+                .thenReturn(CompletableFuture.completedFuture("🌤️ Облачно, +18°C"));
+        when(mockWeatherService.getWeatherOverviewAsync(anyString()))
+                .thenReturn(CompletableFuture.completedFuture("🌤️ Облачно, +18°C"));
     }
 
     // ============ Тесты для /stats (сегодняшняя статистика) ============
@@ -74,8 +78,8 @@ class StatsCommandTest {
         when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Moscow");
 
         // Мокаем прогноз для "Moscow"
-        when(mockWeatherService.getTodayForecast("Moscow"))
-                .thenReturn("🌤️ Солнечно, +22°C");
+        when(mockWeatherService.getWeatherOverviewAsync("Moscow"))
+                .thenReturn(CompletableFuture.completedFuture("🌤️ Солнечно, +22°C"));
 
         String result = statsCommand.execute(mockMessage);
 
@@ -94,8 +98,8 @@ class StatsCommandTest {
         when(mockDatabaseManager.getTodayStats(12345L)).thenReturn(null);
         when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Екатеринбург");
 
-        when(mockWeatherService.getTodayForecast("Екатеринбург"))
-                .thenReturn("🌧️ Дождь, +15°C");
+        when(mockWeatherService.getWeatherOverviewAsync("Екатеринбург"))
+                .thenReturn(CompletableFuture.completedFuture("🌧️ Дождь, +15°C"));
 
         String result = statsCommand.execute(mockMessage);
 
@@ -120,6 +124,21 @@ class StatsCommandTest {
         assertFalse(result.contains("🌤️")); // никакой погоды
     }
 
+    @Test
+    void execute_statsCommand_showsWeatherNowTodayAndTomorrow() {
+        when(mockMessage.getText()).thenReturn("/stats");
+        when(mockDatabaseManager.getDailyTasks(12345L)).thenReturn(Collections.emptyList());
+        when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Пермь");
+        when(mockWeatherService.getWeatherOverviewAsync("Пермь")).thenReturn(CompletableFuture.completedFuture(
+                "Сейчас: ☀️ Ясно, -2°C\nСегодня: ☀️ Ясно, от -4°C до -1°C\nЗавтра: ❄️ Снег, около -6°C"));
+
+        String result = statsCommand.execute(mockMessage);
+
+        assertTrue(result.contains("Сейчас: ☀️ Ясно, -2°C"));
+        assertTrue(result.contains("Завтра: ❄️ Снег, около -6°C"));
+        verify(mockWeatherService, never()).getTodayForecastAsync(anyString());
+    }
+
     // ============ Тесты для /stats week ============
 
     @Test
@@ -145,8 +164,8 @@ class StatsCommandTest {
         when(mockDatabaseManager.getWeeklyProductivityStats(12345L)).thenReturn(weeklyStats);
         when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Новосибирск");
 
-        when(mockWeatherService.getTodayForecast("Новосибирск"))
-                .thenReturn("⛅ Переменная облачность, +20°C");
+        when(mockWeatherService.getTodayForecastAsync("Новосибирск"))
+                .thenReturn(CompletableFuture.completedFuture("⛅ Переменная облачность, +20°C"));
 
         String result = statsCommand.execute(mockMessage);
 
@@ -186,8 +205,8 @@ class StatsCommandTest {
         when(mockDatabaseManager.getWeeklyProductivityStats(12345L)).thenReturn(List.of(stat));
         when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Екатеринбург");
 
-        when(mockWeatherService.getTodayForecast("Екатеринбург"))
-                .thenReturn("☀️ Ясно, +25°C");
+        when(mockWeatherService.getTodayForecastAsync("Екатеринбург"))
+                .thenReturn(CompletableFuture.completedFuture("☀️ Ясно, +25°C"));
 
         String result = statsCommand.execute(mockMessage);
 
@@ -195,6 +214,56 @@ class StatsCommandTest {
         assertTrue(result.contains("☀️ Ясно, +25°C"));
     }
 
+    // ============ Тесты для отложенной погоды ============
+
+    @Test
+    void executeDeferred_forecastNotReady_sendsPlaceholderThenFullText() {
+        when(mockMessage.getText()).thenReturn("/stats");
+        when(mockDatabaseManager.getDailyTasks(12345L)).thenReturn(Collections.emptyList());
+        when(mockDatabaseManager.getTodayStats(12345L)).thenReturn(null);
+        when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Пермь");
+        CompletableFuture<String> forecast = new CompletableFuture<>();
+        when(mockWeatherService.getWeatherOverviewAsync("Пермь")).thenReturn(forecast);
+
+        CommandReply reply = statsCommand.executeDeferred(mockMessage);
+
+        // Статистика уже в ответе, погода — заглушка
+        assertTrue(reply.text().contains("✅ *Выполнено:* 0/0 задач"));
+        assertTrue(reply.text().contains(StatsCommand.WEATHER_PLACEHOLDER));
+        assertFalse(reply.update().isDone());
+
+        forecast.complete("❄️ Снег, -12°C");
+        String updated = reply.update().join();
+        assertTrue(updated.contains("❄️ Снег, -12°C"));
+        assertFalse(updated.contains(StatsCommand.WEATHER_PLACEHOLDER));
+        assertEquals(reply.text().replace(StatsCommand.WEATHER_PLACEHOLDER, "❄️ Снег, -12°C"), updated);
+    }
+
+    @Test
+    void executeDeferred_forecastCached_repliesAtOnce() {
+        when(mockMessage.getText()).thenReturn("/stats");
+        when(mockDatabaseManager.getDailyTasks(12345L)).thenReturn(Collections.emptyList());
+        when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Moscow");
+
+        CommandReply reply = statsCommand.executeDeferred(mockMessage);
+
+        assertTrue(reply.isComplete());
+        assertTrue(reply.text().contains("🌤️ Облачно, +18°C"));
+    }
+
+    @Test
+    void executeDeferred_cancelledUpdate_cancelsForecast() {
+        when(mockMessage.getText()).thenReturn("/stats");
+        when(mockDatabaseManager.getDailyTasks(12345L)).thenReturn(Collections.emptyList());
+        when(mockDatabaseManager.getUserCity(12345L)).thenReturn("Пермь");
+        CompletableFuture<String> forecast = new CompletableFuture<>();
+        when(mockWeatherService.getWeatherOverviewAsync("Пермь")).thenReturn(forecast);
+
+        statsCommand.executeDeferred(mockMessage).update().cancel(true);
+
+        assertTrue(forecast.isCancelled());
+    }
+
     // ============ Тесты для неверных аргументов ============
 
     @Test
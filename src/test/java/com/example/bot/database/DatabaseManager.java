@@ -1,4 +0,0 @@
-package com.example.bot.database;
-
-public class DatabaseManager {
-}
@@ -4,9 +4,12 @@ package com.example.bot.database;
 import org.junit.jupiter.api.*;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
@@ -40,8 +43,8 @@ class DatabaseManagerIntegrationTest {
         DB_PASSWORD = props.getProperty("db.password");
 
         // Проверяем подключение
-        try (var ignored = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            System.out.println("✅ Успешное подключение к тестовой БД: " + DB_URL);
+        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            System.out.println("✅ Успешное подключение к тестовой БД: " + connection.getMetaData().getURL());
         } catch (Exception e) {
             throw new IllegalStateException("Не удаётся подключиться к БД", e);
         }
@@ -51,6 +54,12 @@ class DatabaseManagerIntegrationTest {
         databaseManager = new DatabaseManager(DB_URL, DB_USER, DB_PASSWORD);
         cleanupDatabase(); // Очищаем перед каждым тестом
     }
+
+    @AfterEach
+    void tearDown() {
+        databaseManager.endRequest();
+        databaseManager.close(); // Возвращаем соединения пула
+    }
     /**
      * Очищает все таблицы перед тестом
      */
@@ -58,6 +67,8 @@ class DatabaseManagerIntegrationTest {
         try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
             try (var stmt = conn.createStatement()) {
                 // Важно: порядок DELETE должен учитывать foreign keys (у вас их нет, но на всякий случай)
+                stmt.execute("DELETE FROM newsletter_runs");
+                stmt.execute("DELETE FROM weather_cache");
                 stmt.execute("DELETE FROM productivity_stats");
                 stmt.execute("DELETE FROM wishlist_locks");
                 stmt.execute("DELETE FROM wishlist");
@@ -135,6 +146,91 @@ class DatabaseManagerIntegrationTest {
         assertTrue(tasks.isEmpty());
     }
 
+    @Test
+    void dailyTasks_areStoredInDayPartitions() throws Exception {
+        databaseManager.saveUser(12345L, "testuser");
+        databaseManager.addDailyTask(12345L, "Задача");
+
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            var partitions = new DailyTaskPartitionManager().listPartitions(conn);
+            LocalDate today = new DailyTaskPartitionManager().currentDate(conn);
+            assertTrue(partitions.contains(today));
+            assertTrue(partitions.contains(today.plusDays(1)), "Завтрашняя партиция создаётся заранее");
+
+            try (var stmt = conn.createStatement();
+                 var rs = stmt.executeQuery("SELECT COUNT(*) FROM " + DailyTaskPartitionManager.partitionName(today))) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    void cleanupAllDailyTasks_dropsPartitionsAndPreparesTomorrow() throws Exception {
+        databaseManager.saveUser(12345L, "testuser");
+        databaseManager.addDailyTask(12345L, "Задача");
+
+        databaseManager.cleanupAllDailyTasks();
+
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            DailyTaskPartitionManager manager = new DailyTaskPartitionManager();
+            LocalDate today = manager.currentDate(conn);
+            var partitions = manager.listPartitions(conn);
+            assertFalse(partitions.contains(today), "Сегодняшняя партиция удалена целиком");
+            assertTrue(partitions.contains(today.plusDays(1)));
+            assertTrue(partitions.contains(today.plusDays(2)));
+        }
+        assertEquals(0, databaseManager.getTaskStats().totalTasks);
+        // Задачи, добавленные после ночной очистки, попадают в партицию по умолчанию
+        assertTrue(databaseManager.addDailyTask(12345L, "После очистки") > 0);
+    }
+
+    @Test
+    void cleanupPastDailyTasks_keepsTodayTasks() throws Exception {
+        databaseManager.saveUser(12345L, "testuser");
+        databaseManager.addDailyTask(12345L, "Сегодня");
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+             var stmt = conn.createStatement()) {
+            stmt.execute("""
+                INSERT INTO daily_tasks (user_id, task_text, created_at, created_on)
+                VALUES (12345, 'Вчера', CURRENT_TIMESTAMP - INTERVAL '1 day', CURRENT_DATE - 1)
+                """);
+        }
+        assertEquals(1, databaseManager.getTaskStats().oldTasks);
+
+        databaseManager.cleanupPastDailyTasks();
+
+        DatabaseManager.TaskStats stats = databaseManager.getTaskStats();
+        assertEquals(0, stats.oldTasks);
+        assertEquals(1, stats.todayTasks);
+        assertEquals(1, databaseManager.getDailyTasks(12345L).size());
+    }
+
+    @Test
+    void ensurePartitions_movesRowsOutOfDefaultPartition() throws Exception {
+        databaseManager.saveUser(12345L, "testuser");
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            DailyTaskPartitionManager manager = new DailyTaskPartitionManager();
+            LocalDate future = manager.currentDate(conn).plusDays(5);
+            try (var stmt = conn.createStatement()) {
+                stmt.execute("INSERT INTO daily_tasks (user_id, task_text, created_on) VALUES (12345, 'Будущее', DATE '" + future + "')");
+            }
+
+            assertEquals(1, manager.ensurePartitions(conn, future, 1));
+
+            try (var stmt = conn.createStatement();
+                 var rs = stmt.executeQuery("SELECT (SELECT COUNT(*) FROM " + DailyTaskPartitionManager.partitionName(future)
+                         + "), (SELECT COUNT(*) FROM " + DailyTaskPartitionManager.DEFAULT_PARTITION + ")")) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+                assertEquals(0, rs.getInt(2));
+            }
+            try (var stmt = conn.createStatement()) {
+                stmt.execute("DROP TABLE " + DailyTaskPartitionManager.partitionName(future));
+            }
+        }
+    }
+
     // ============ Тесты для карты желаний (wishlist) ============
 
     @Test
@@ -315,6 +411,37 @@ class DatabaseManagerIntegrationTest {
             fail("Ошибка: " + e.getMessage());
         }
     }
+    @Test
+    void saveAllUsersProductivityStats_reportsRowsAndRollsUpMissedDays() throws Exception {
+        databaseManager.saveUser(111L, "user1");
+        databaseManager.saveUser(222L, "user2");
+        databaseManager.addDailyTask(111L, "Сегодня");
+        databaseManager.addDailyTask(222L, "Сегодня");
+        // Бот был выключен в 23:59 — вчерашние задачи остались неучтёнными
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+             var stmt = conn.createStatement()) {
+            stmt.execute("""
+                INSERT INTO daily_tasks (user_id, task_text, completed, created_at, created_on)
+                VALUES (111, 'Вчера 1', TRUE, CURRENT_TIMESTAMP - INTERVAL '1 day', CURRENT_DATE - 1),
+                       (111, 'Вчера 2', FALSE, CURRENT_TIMESTAMP - INTERVAL '1 day', CURRENT_DATE - 1)
+                """);
+        }
+
+        DatabaseManager.ProductivityRollup rollup = databaseManager.saveAllUsersProductivityStats();
+
+        assertEquals(2, rollup.users);
+        assertEquals(3, rollup.rows);
+        assertTrue(rollup.durationMillis >= 0);
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+             var stmt = conn.prepareStatement(
+                     "SELECT completion_rate, total_tasks FROM productivity_stats WHERE user_id = 111 AND stat_date = CURRENT_DATE - 1");
+             var rs = stmt.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals(50.0, rs.getDouble("completion_rate"), 0.01);
+            assertEquals(2, rs.getInt("total_tasks"));
+        }
+    }
+
     @Test
     void saveAllUsersProductivityStats_isIdempotent() {
         Long userId = 444L;
@@ -391,8 +518,293 @@ class DatabaseManagerIntegrationTest {
         assertEquals(1, remainingCount); // Только запись из текущей недели осталась
     }
 
+    // ============ Тесты пула соединений ============
+
+    @Test
+    void poolMetrics_connectionsAreReusedAndReturned() {
+        Long userId = 12345L;
+        databaseManager.saveUser(userId, "testuser");
+        databaseManager.addDailyTask(userId, "Задача");
+        databaseManager.getDailyTasks(userId);
+
+        ConnectionPool.PoolMetrics metrics = databaseManager.getPoolMetrics();
+
+        assertTrue(metrics.acquisitions() >= 3, "Каждый запрос должен брать соединение из пула");
+        assertEquals(0, metrics.active(), "Все соединения должны быть возвращены в пул");
+        assertTrue(metrics.total() <= PoolSettings.DEFAULT_MAX_POOL_SIZE);
+        assertEquals(0, metrics.timeouts());
+    }
+
+    @Test
+    void close_shutsDownPool() {
+        DatabaseManager manager = new DatabaseManager(DB_URL, DB_USER, DB_PASSWORD);
+        manager.close();
+
+        // После закрытия пула запросы не падают, а возвращают значения по умолчанию
+        assertTrue(manager.getDailyTasks(12345L).isEmpty());
+        assertNull(manager.getUserCity(12345L));
+    }
+
+    // ============ Тесты миграций ============
+
+    @Test
+    void migrations_allVersionsRecorded() throws Exception {
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+             var stmt = conn.createStatement();
+             var rs = stmt.executeQuery("SELECT COUNT(*), MAX(version) FROM schema_migrations")) {
+            assertTrue(rs.next());
+            List<Migration> migrations = Migrations.all();
+            assertEquals(migrations.size(), rs.getInt(1));
+            assertEquals(migrations.getLast().version(), rs.getInt(2));
+        }
+    }
+
+    @Test
+    void migrate_secondRunAppliesNothing() throws Exception {
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            assertEquals(0, new SchemaMigrator(Migrations.all()).migrate(conn));
+        }
+    }
+
+    @Test
+    void migrate_failedMigrationIsRolledBack() throws Exception {
+        SchemaMigrator migrator = new SchemaMigrator(List.of(Migration.sql(10_000, "Сломанная миграция",
+                "CREATE TABLE migration_probe (id INT)",
+                "SELECT * FROM no_such_table")));
+
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            assertThrows(SQLException.class, () -> migrator.migrate(conn));
+
+            try (var stmt = conn.createStatement();
+                 var rs = stmt.executeQuery("""
+                     SELECT to_regclass('migration_probe') IS NULL,
+                            NOT EXISTS (SELECT 1 FROM schema_migrations WHERE version = 10000)
+                     """)) {
+                assertTrue(rs.next());
+                assertTrue(rs.getBoolean(1), "Таблица из сломанной миграции не должна остаться");
+                assertTrue(rs.getBoolean(2), "Сломанная миграция не должна быть записана");
+            }
+        }
+    }
+
+    @Test
+    void yesterdayTasks_areNotCountedAsToday() throws Exception {
+        Long userId = 12345L;
+        databaseManager.saveUser(userId, "testuser");
+        databaseManager.addDailyTask(userId, "Сегодняшняя задача");
+        try (var conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+             var stmt = conn.createStatement()) {
+            stmt.execute("""
+                INSERT INTO daily_tasks (user_id, task_text, created_at, created_on)
+                VALUES (12345, 'Вчерашняя задача', CURRENT_TIMESTAMP - INTERVAL '1 day', CURRENT_DATE - 1)
+                """);
+        }
+
+        List<DatabaseManager.Task> tasks = databaseManager.getDailyTasks(userId);
+        DatabaseManager.TaskStats stats = databaseManager.getTaskStats();
+
+        assertEquals(1, tasks.size());
+        assertEquals("Сегодняшняя задача", tasks.getFirst().getText());
+        assertEquals(1, databaseManager.getTodayTasksCount());
+        assertEquals(1, stats.oldTasks);
+        assertEquals(1, stats.todayTasks);
+    }
+
+    // ============ Тесты снимка пользователя ============
+
+    @Test
+    void userSnapshot_answersReadsWithOneRoundTrip() {
+        Long userId = 12345L;
+        databaseManager.saveUser(userId, "testuser");
+        databaseManager.updateUserCity(userId, "Екатеринбург");
+        databaseManager.addDailyTask(userId, "Задача 1");
+        int taskId = databaseManager.addDailyTask(userId, "Задача 2");
+        databaseManager.addDailyTask(userId, "Задача 3");
+        databaseManager.completeDailyTask(userId, taskId);
+        databaseManager.addWish(userId, "Желание");
+        databaseManager.lockWishlist(userId);
+
+        long before = databaseManager.getPoolMetrics().acquisitions();
+        DatabaseManager.UserSnapshot snapshot = databaseManager.beginRequest(userId, "testuser");
+
+        String city = databaseManager.getUserCity(userId);
+        List<DatabaseManager.Task> tasks = databaseManager.getDailyTasks(userId);
+        List<DatabaseManager.Wish> wishes = databaseManager.getWishes(userId);
+        int wishCount = databaseManager.getWishCount(userId);
+        boolean locked = databaseManager.isWishlistLocked(userId);
+        LocalDateTime lockUntil = databaseManager.getLockUntil(userId);
+        double rate = databaseManager.getDailyCompletionRate(userId);
+        Double savedRate = databaseManager.getTodayStats(userId);
+        long after = databaseManager.getPoolMetrics().acquisitions();
+        databaseManager.endRequest();
+
+        assertNotNull(snapshot);
+        assertEquals(1, after - before, "Все чтения должны обслуживаться одним запросом");
+        // Из снимка приходят те же данные, что и напрямую из БД
+        assertEquals(databaseManager.getUserCity(userId), city);
+        assertEquals(3, tasks.size());
+        assertEquals(databaseManager.getDailyTasks(userId).stream().map(DatabaseManager.Task::getText).toList(),
+                tasks.stream().map(DatabaseManager.Task::getText).toList());
+        assertEquals(1, wishes.size());
+        assertEquals(databaseManager.getWishCount(userId), wishCount);
+        assertEquals(databaseManager.isWishlistLocked(userId), locked);
+        assertTrue(locked);
+        assertEquals(databaseManager.getLockUntil(userId), lockUntil);
+        assertEquals(databaseManager.getDailyCompletionRate(userId), rate, 0.001);
+        assertEquals(33.33, rate, 0.001);
+        assertEquals(databaseManager.getTodayStats(userId), savedRate);
+    }
+
+    @Test
+    void userSnapshot_writeIsVisibleToNextRead() {
+        Long userId = 12345L;
+        databaseManager.beginRequest(userId, "testuser");
+        assertTrue(databaseManager.getDailyTasks(userId).isEmpty());
+
+        databaseManager.addDailyTask(userId, "Новая задача");
+        databaseManager.updateUserCity(userId, "Москва");
+
+        assertEquals(1, databaseManager.getDailyTasks(userId).size());
+        assertEquals("Москва", databaseManager.getUserCity(userId));
+    }
+
+    @Test
+    void beginRequest_registersNewUser() {
+        DatabaseManager.UserSnapshot snapshot = databaseManager.beginRequest(777L, "newuser");
+        databaseManager.endRequest();
+
+        assertNotNull(snapshot);
+        assertNull(snapshot.getCity());
+        assertTrue(snapshot.getTasks().isEmpty());
+        assertFalse(snapshot.isWishlistLocked());
+        assertNull(snapshot.getSavedCompletionRate());
+        assertTrue(databaseManager.getAllUserIds().contains(777L));
+    }
+
+    // ============ Тесты утренней рассылки ============
+
+    @Test
+    void newsletterRun_resumesWithUndeliveredRecipients() {
+        LocalDate day = LocalDate.of(2025, 12, 16);
+        for (long userId = 1; userId <= 5; userId++) {
+            databaseManager.saveUser(userId, "user" + userId);
+        }
+        databaseManager.updateUserCity(1L, "Москва");
+
+        DatabaseManager.NewsletterRun run = databaseManager.startNewsletterRun(day);
+        assertEquals(DatabaseManager.NewsletterRun.RUNNING, run.status);
+        assertEquals(0, run.sentCount);
+
+        assertEquals(2, databaseManager.recordNewsletterDeliveries(day, List.of(1L, 2L)));
+        // Повторная отметка не считается
+        assertEquals(0, databaseManager.recordNewsletterDeliveries(day, List.of(2L)));
+
+        // «Перезапуск»: тот же запуск, осталось трое
+        DatabaseManager.NewsletterRun resumed = databaseManager.startNewsletterRun(day);
+        assertEquals(2, resumed.sentCount);
+        List<Long> remaining = new ArrayList<>();
+        databaseManager.streamNewsletterRecipients(day, recipient -> remaining.add(recipient.userId));
+        assertEquals(List.of(3L, 4L, 5L), remaining);
+
+        databaseManager.finishNewsletterRun(day, 1);
+        DatabaseManager.NewsletterRun finished = databaseManager.getNewsletterRun(day);
+        assertTrue(finished.isFinished());
+        assertEquals(1, finished.failedCount);
+        assertTrue(databaseManager.startNewsletterRun(day).isFinished());
+    }
+
+    @Test
+    void newsletterRecipients_includeCity() {
+        LocalDate day = LocalDate.of(2025, 12, 16);
+        databaseManager.saveUser(1L, "user1");
+        databaseManager.updateUserCity(1L, "Москва");
+        databaseManager.saveUser(2L, "user2");
+        databaseManager.startNewsletterRun(day);
+
+        List<DatabaseManager.NewsletterRecipient> recipients = new ArrayList<>();
+        assertEquals(2, databaseManager.streamNewsletterRecipients(day, recipients::add));
+        assertEquals("Москва", recipients.get(0).city);
+        assertNull(recipients.get(1).city);
+    }
+
+    @Test
+    void newsletterRecipients_pagedByUserId() {
+        LocalDate day = LocalDate.of(2025, 12, 16);
+        for (long userId = 1; userId <= 7; userId++) {
+            databaseManager.saveUser(userId, "user" + userId);
+        }
+        databaseManager.startNewsletterRun(day);
+        databaseManager.recordNewsletterDeliveries(day, List.of(2L, 5L));
+
+        // Страницы по два: последняя неполная, уже доставленные пропущены
+        List<Long> recipients = new ArrayList<>();
+        assertEquals(5, databaseManager.streamNewsletterRecipients(day, 2, recipient -> recipients.add(recipient.userId)));
+        assertEquals(List.of(1L, 3L, 4L, 6L, 7L), recipients);
+    }
+
+    @Test
+    void startNewsletterRun_removesOldRuns() {
+        LocalDate day = LocalDate.of(2025, 12, 16);
+        LocalDate old = day.minusDays(DatabaseManager.NEWSLETTER_HISTORY_DAYS + 1);
+        databaseManager.saveUser(1L, "user1");
+        databaseManager.startNewsletterRun(old);
+        databaseManager.recordNewsletterDeliveries(old, List.of(1L));
+
+        databaseManager.startNewsletterRun(day);
+
+        assertNull(databaseManager.getNewsletterRun(old));
+    }
+
+    // ============ Тесты общего кэша погоды ============
+
+    @Test
+    void weatherCache_upsertKeepsNewestForecast() {
+        LocalDate day = LocalDate.of(2025, 12, 16);
+        databaseManager.upsertWeatherCache("москва", "{\"v\":1}", day);
+        databaseManager.upsertWeatherCache("москва", "{\"v\":2}", day.plusDays(1));
+        // Запоздавшая запись более старого прогноза не затирает свежий
+        databaseManager.upsertWeatherCache("москва", "{\"v\":0}", day);
+
+        DatabaseManager.WeatherCacheRow row = databaseManager.getWeatherCache("москва");
+        assertEquals("{\"v\":2}", row.payload);
+        assertEquals(day.plusDays(1), row.cachedAt);
+        assertNull(databaseManager.getWeatherCache("казань"));
+    }
+
+    @Test
+    void weatherCache_loadSinceAndDeleteOld() {
+        LocalDate day = LocalDate.of(2025, 12, 16);
+        databaseManager.upsertWeatherCache("москва", "{}", day);
+        databaseManager.upsertWeatherCache("казань", "{}", day.minusDays(5));
+
+        List<DatabaseManager.WeatherCacheRow> rows = databaseManager.getWeatherCacheSince(day.minusDays(1));
+        assertEquals(1, rows.size());
+        assertEquals("москва", rows.getFirst().city);
+
+        assertEquals(1, databaseManager.deleteWeatherCacheBefore(day.minusDays(1)));
+        assertNull(databaseManager.getWeatherCache("казань"));
+    }
+
     // ============ Тесты пользователей ============
 
+    @Test
+    void getDistinctUserCities_skipsEmptyAndDuplicates() {
+        databaseManager.saveUser(1L, "user1");
+        databaseManager.updateUserCity(1L, "Москва");
+        databaseManager.saveUser(2L, "user2");
+        databaseManager.updateUserCity(2L, " Москва ");
+        databaseManager.saveUser(3L, "user3");
+        databaseManager.updateUserCity(3L, "Казань");
+        databaseManager.saveUser(4L, "user4");
+        databaseManager.updateUserCity(4L, "  ");
+        databaseManager.saveUser(5L, "user5");
+
+        List<String> cities = new ArrayList<>(databaseManager.getDistinctUserCities());
+        cities.sort(null);
+
+        assertEquals(List.of("Казань", "Москва"), cities);
+    }
+
     @Test
     void saveAndRetrieveUserCity() {
         Long userId = 12345L;
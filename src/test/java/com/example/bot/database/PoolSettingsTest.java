@@ -0,0 +1,62 @@
+package com.example.bot.database;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoolSettingsTest {
+
+    @Test
+    void defaults_areValid() {
+        PoolSettings settings = PoolSettings.defaults();
+
+        assertEquals(PoolSettings.DEFAULT_MIN_IDLE, settings.minIdle());
+        assertEquals(PoolSettings.DEFAULT_MAX_POOL_SIZE, settings.maxPoolSize());
+        assertTrue(settings.minIdle() <= settings.maxPoolSize());
+    }
+
+    @Test
+    void minIdleGreaterThanMax_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new PoolSettings(
+                11, 10, Duration.ofSeconds(5), Duration.ofSeconds(2), Duration.ZERO, 256));
+    }
+
+    @Test
+    void zeroMaxPoolSize_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new PoolSettings(
+                0, 0, Duration.ofSeconds(5), Duration.ofSeconds(2), Duration.ZERO, 256));
+    }
+
+    @Test
+    void tooShortAcquireTimeout_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new PoolSettings(
+                1, 10, Duration.ofMillis(10), Duration.ofSeconds(2), Duration.ZERO, 256));
+    }
+
+    @Test
+    void leakDetectionBelowHikariMinimum_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new PoolSettings(
+                1, 10, Duration.ofSeconds(5), Duration.ofSeconds(2), Duration.ofMillis(500), 256));
+        assertThrows(IllegalArgumentException.class, () -> new PoolSettings(
+                1, 10, Duration.ofSeconds(5), Duration.ofSeconds(2), Duration.ofMillis(1999), 256));
+        assertEquals(Duration.ofSeconds(2), new PoolSettings(
+                1, 10, Duration.ofSeconds(5), Duration.ofSeconds(2), Duration.ofSeconds(2), 256).leakDetectionThreshold());
+    }
+
+    @Test
+    void negativeStatementCache_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new PoolSettings(
+                1, 10, Duration.ofSeconds(5), Duration.ofSeconds(2), Duration.ZERO, -1));
+    }
+
+    @Test
+    void leakDetectionCanBeDisabled() {
+        PoolSettings settings = new PoolSettings(
+                1, 4, Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ZERO, 0);
+
+        assertEquals(Duration.ZERO, settings.leakDetectionThreshold());
+        assertEquals(0, settings.statementCacheSize());
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.bot.database;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaMigratorTest {
+
+    @Test
+    void migrations_areSortedByVersion() {
+        SchemaMigrator migrator = new SchemaMigrator(List.of(
+                Migration.sql(3, "Третья", "SELECT 3"),
+                Migration.sql(1, "Первая", "SELECT 1"),
+                Migration.sql(2, "Вторая", "SELECT 2")));
+
+        assertEquals(List.of(1, 2, 3), migrator.getMigrations().stream().map(Migration::version).toList());
+    }
+
+    @Test
+    void duplicateVersion_throws() {
+        List<Migration> migrations = List.of(
+                Migration.sql(1, "Первая", "SELECT 1"),
+                Migration.sql(1, "Ещё одна первая", "SELECT 1"));
+
+        assertThrows(IllegalArgumentException.class, () -> new SchemaMigrator(migrations));
+    }
+
+    @Test
+    void nonPositiveVersion_throws() {
+        assertThrows(IllegalArgumentException.class, () -> Migration.sql(0, "Нулевая", "SELECT 1"));
+    }
+
+    @Test
+    void blankDescription_throws() {
+        assertThrows(IllegalArgumentException.class, () -> Migration.sql(1, " ", "SELECT 1"));
+    }
+
+    @Test
+    void bundledMigrations_areValid() {
+        List<Migration> migrations = new SchemaMigrator(Migrations.all()).getMigrations();
+
+        assertEquals(1, migrations.getFirst().version());
+        for (int i = 1; i < migrations.size(); i++) {
+            assertEquals(migrations.get(i - 1).version() + 1, migrations.get(i).version(),
+                    "Версии миграций должны идти подряд");
+        }
+    }
+}
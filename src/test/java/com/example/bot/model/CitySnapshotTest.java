@@ -0,0 +1,66 @@
+package com.example.bot.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CitySnapshotTest {
+
+    private static List<City> loadJson() throws IOException {
+        try (InputStream json = CitySnapshot.class.getClassLoader().getResourceAsStream(CitySnapshot.JSON_RESOURCE)) {
+            assertNotNull(json);
+            return CitySnapshot.fromJson(json);
+        }
+    }
+
+    private static byte[] snapshotOf(List<City> cities) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CitySnapshot.write(cities, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void roundTrip_fullDirectory_keepsEveryCityInOrder() throws IOException {
+        List<City> cities = loadJson();
+
+        byte[] snapshot = snapshotOf(cities);
+        List<City> restored = CitySnapshot.read(snapshot);
+
+        assertEquals(cities.size(), restored.size());
+        for (int i = 0; i < cities.size(); i++) {
+            City expected = cities.get(i);
+            City actual = restored.get(i);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getRegion(), actual.getRegion());
+            assertEquals(expected.getPopulation(), actual.getPopulation());
+            assertEquals(expected.getLat(), actual.getLat());
+            assertEquals(expected.getLng(), actual.getLng());
+        }
+        assertTrue(snapshot.length < 100_000, "Снимок должен быть заметно меньше JSON: " + snapshot.length);
+    }
+
+    @Test
+    void read_sharesPooledStrings() throws IOException {
+        List<City> restored = CitySnapshot.read(snapshotOf(List.of(
+                new City("Екатеринбург", "Свердловская область", 1_544_376L, 56.8389, 60.6057),
+                new City("Нижний Тагил", "Свердловская область", 338_000L, 57.9194, 59.9650)
+        )));
+
+        assertSame(restored.get(0).getRegion(), restored.get(1).getRegion());
+    }
+
+    @Test
+    void read_rejectsForeignOrTruncatedData() throws IOException {
+        byte[] snapshot = snapshotOf(List.of(new City("Москва", "Москва", 12_000_000L, 55.7558, 37.6176)));
+
+        assertThrows(IOException.class, () -> CitySnapshot.read(Arrays.copyOf(snapshot, snapshot.length - 3)));
+        assertThrows(IOException.class, () -> CitySnapshot.read("[{\"name\":\"Москва\"}]".getBytes()));
+        assertThrows(IOException.class, () -> CitySnapshot.read(new byte[0]));
+    }
+}
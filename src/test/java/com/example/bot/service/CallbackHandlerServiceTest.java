@@ -125,7 +125,36 @@ class CallbackHandlerServiceTest {
 
         // Then
         verify(mockUserStateService).startCitySelectionState(eq(123L));
-        verify(mockMessageSender).sendText(eq(123L), contains("Введите название города"));
+        verify(mockMessageSender).sendTextWithKeyboard(eq(123L), contains("Введите название города"), any());
+    }
+
+    // ========= Тест: выбор города из подсказок =========
+    @Test
+    void handleCallback_selectCityFromState_setsCityAndRestoresMainMenu() {
+        // Given
+        CallbackQuery callback = createCallbackQuery(1, "select_city_from_state:Москва");
+        when(mockCommandRegistry.findCommandForMessage(any(Message.class))).thenReturn(mockCommand);
+        when(mockCommand.execute(any(Message.class))).thenReturn("Город установлен");
+
+        // When
+        callbackHandlerService.handleCallback(callback);
+
+        // Then
+        verify(mockMessageSender).sendTextWithKeyboard(eq(123L), eq("Город установлен"), eq(KeyboardService.mainMenu()));
+        verify(mockUserStateService).cancelUserState(eq(123L));
+    }
+
+    @Test
+    void handleCallback_cancelCitySelection_restoresMainMenu() {
+        // Given
+        CallbackQuery callback = createCallbackQuery(1, "cancel_city_selection");
+
+        // When
+        callbackHandlerService.handleCallback(callback);
+
+        // Then
+        verify(mockUserStateService).cancelUserState(eq(123L));
+        verify(mockMessageSender).sendTextWithKeyboard(eq(123L), eq("❌ Выбор города отменён."), eq(KeyboardService.mainMenu()));
     }
 
     // ========= Тест: недельная статистика =========
@@ -157,6 +186,23 @@ class CallbackHandlerServiceTest {
         verify(mockMessageSender).sendText(eq(123L), contains("✍️ *Добавление задачи*"));
     }
 
+    // ========= Тест: снимок пользователя на время обработки =========
+    @Test
+    void handleCallback_loadsUserSnapshotAndReleasesIt() {
+        // Given
+        CallbackQuery callback = createCallbackQuery(1, "todo:complete");
+        when(mockDatabaseManager.getDailyTasks(123L)).thenReturn(Collections.emptyList());
+
+        // When
+        callbackHandlerService.handleCallback(callback);
+
+        // Then
+        var inOrder = inOrder(mockDatabaseManager);
+        inOrder.verify(mockDatabaseManager).beginRequest(eq(123L), any());
+        inOrder.verify(mockDatabaseManager).getDailyTasks(123L);
+        inOrder.verify(mockDatabaseManager).endRequest();
+    }
+
     // ========= Тест: выбор задач для завершения (нет задач) =========
     @Test
     void handleCallback_todoComplete_noTasks_sendsEmptyMessage() {
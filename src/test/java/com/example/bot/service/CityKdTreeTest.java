@@ -0,0 +1,68 @@
+package com.example.bot.service;
+
+import com.example.bot.model.City;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CityKdTreeTest {
+
+    @Test
+    void nearest_matchesLinearScanOnRandomPoints() {
+        Random random = new Random(7);
+        List<City> cities = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            cities.add(new City("Город " + i, "Регион", i,
+                    41 + random.nextDouble() * 40, 20 + random.nextDouble() * 160));
+        }
+        CityKdTree tree = new CityKdTree(cities);
+
+        for (int i = 0; i < 1_000; i++) {
+            double lat = 40 + random.nextDouble() * 42;
+            double lon = 19 + random.nextDouble() * 162;
+            City expected = cities.stream()
+                    .min(Comparator.comparingDouble(c -> haversineKm(lat, lon, c.getLat(), c.getLng())))
+                    .orElseThrow();
+
+            CityService.NearestCity nearest = tree.nearest(lat, lon);
+
+            assertEquals(expected.getName(), nearest.city().getName());
+            assertEquals(haversineKm(lat, lon, expected.getLat(), expected.getLng()), nearest.distanceKm(), 1e-6);
+        }
+    }
+
+    @Test
+    void nearest_acrossAntimeridian() {
+        CityKdTree tree = new CityKdTree(List.of(
+                new City("Анадырь", "Чукотский АО", 15_468L, 64.7337, 177.5089),
+                new City("Певек", "Чукотский АО", 4_329L, 69.7008, 170.3133)
+        ));
+
+        // Долгота -179: по числам далеко от 177, на деле рядом с Анадырем
+        assertEquals("Анадырь", tree.nearest(64.8, -179.0).city().getName());
+    }
+
+    @Test
+    void nearest_skipsCitiesWithoutCoordinates() {
+        CityKdTree tree = new CityKdTree(List.of(
+                new City("Без координат", "Регион", 1L),
+                new City("Москва", "Москва", 12_000_000L, 55.7558, 37.6176)
+        ));
+
+        assertEquals("Москва", tree.nearest(1.0, 1.0).city().getName());
+        assertNull(new CityKdTree(List.of()).nearest(55.0, 37.0));
+    }
+
+    private static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * CityKdTree.EARTH_RADIUS_KM * Math.asin(Math.sqrt(a));
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.bot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CityKeysTest {
+
+    @Test
+    void normalize_foldsCaseYoAndPunctuation() {
+        assertEquals("ростов на дону", CityKeys.normalize("  Ростов-на-Дону "));
+        assertEquals("ростов на дону", CityKeys.normalize("ростов  на — ДОНУ"));
+        assertEquals("орел", CityKeys.normalize("Орёл"));
+        assertEquals("yaroslavl", CityKeys.normalize("Yaroslavl'"));
+    }
+
+    @Test
+    void of_containsNormalizedNameAndTransliterations() {
+        Set<String> keys = CityKeys.of("Нижний Новгород");
+
+        assertTrue(keys.contains("нижний новгород"));
+        assertTrue(keys.contains("nizhnij novgorod"));   // ГОСТ 7.79 Б
+        assertTrue(keys.contains("nizhnii novgorod"));   // загранпаспорт
+        assertTrue(keys.contains("nizhniy novgorod"));   // привычное написание
+        assertTrue(keys.contains("nizhny novgorod"));    // английское написание
+    }
+
+    @Test
+    void of_transliteratesSoftSignAndSibilants() {
+        Set<String> keys = CityKeys.of("Ярославль");
+        assertTrue(keys.contains("yaroslavl"));
+        assertTrue(keys.contains("iaroslavl"));
+
+        assertTrue(CityKeys.of("Щёлково").contains("shchelkovo"));
+        assertTrue(CityKeys.of("Хабаровск").contains("khabarovsk"));
+    }
+
+    @Test
+    void of_englishSpellingIotatesInitialYe() {
+        Set<String> keys = CityKeys.of("Екатеринбург");
+
+        assertTrue(keys.contains("ekaterinburg"));
+        assertTrue(keys.contains("yekaterinburg"));
+    }
+}
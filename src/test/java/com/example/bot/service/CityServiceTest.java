@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -103,4 +104,113 @@ class CityServiceTest {
         assertEquals("Москва", top.get(0));
         assertEquals("СПб", top.get(1));
     }
-}
\ No newline at end of file
+
+    @Test
+    void findCitiesFuzzy_typo_findsCity() {
+        List<City> result = cityService.findCitiesFuzzy("Масква", 5, 65);
+
+        assertFalse(result.isEmpty());
+        assertEquals("Москва", result.get(0).getName());
+    }
+
+    @Test
+    void findCitiesFuzzy_equalScore_largerCityFirst() {
+        CityService service = new CityService(List.of(
+                new City("Великий Новгород", "Новгородская область", 224286L, 58.5213, 31.2710),
+                new City("Нижний Новгород", "Нижегородская область", 1244254L, 56.2965, 43.9369)
+        ));
+
+        List<City> result = service.findCitiesFuzzy("Новгород", 5, 65);
+
+        assertEquals(List.of("Нижний Новгород", "Великий Новгород"),
+                result.stream().map(City::getName).toList());
+    }
+
+    @Test
+    void findCitiesFuzzy_respectsLimitAndMinScore() {
+        assertEquals(1, cityService.findCitiesFuzzy("Ростов", 1, 65).size());
+        assertTrue(cityService.findCitiesFuzzy("Масква", 5, 95).isEmpty());
+    }
+
+    @Test
+    void findCitiesFuzzy_noCommonTrigrams_returnsEmpty() {
+        assertTrue(cityService.findCitiesFuzzy("qwerty", 5, 0).isEmpty());
+        assertTrue(cityService.findCitiesFuzzy("  ", 5, 0).isEmpty());
+    }
+
+    @Test
+    void findCity_ignoresCaseHyphensAndSpaces() {
+        assertEquals("Ростов-на-Дону", cityService.findCity("ростов на  дону").getName());
+        assertEquals("Нижний Новгород", cityService.findCity("НИЖНИЙ-НОВГОРОД").getName());
+    }
+
+    @Test
+    void findCity_yoMatchesYe() {
+        CityService service = new CityService(List.of(
+                new City("Королёв", "Московская область", 224348L, 55.9162, 37.8545)
+        ));
+        assertEquals("Королёв", service.findCity("королев").getName());
+    }
+
+    @Test
+    void findCity_latinTransliteration() {
+        assertEquals("Москва", cityService.findCity("moskva").getName());
+        assertEquals("Екатеринбург", cityService.findCity("Ekaterinburg").getName());
+        assertEquals("Нижний Новгород", cityService.findCity("nizhniy novgorod").getName());
+        assertEquals("Ростов-на-Дону", cityService.findCity("rostov-na-donu").getName());
+    }
+
+    @Test
+    void findCity_customAliases() {
+        CityService service = new CityService(testCities, Map.of("Златоглавая", "Москва", "Атлантида", "Атлантида"));
+
+        assertEquals("Москва", service.findCity("златоглавая").getName());
+        assertNull(service.findCity("Атлантида"));
+        assertNull(service.findCity("мск"));
+    }
+
+    @Test
+    void suggestCities_prefix_largestFirst() {
+        CityService service = new CityService(List.of(
+                new City("Новоуральск", "Свердловская область", 78274L, 57.2472, 60.0956),
+                new City("Новосибирск", "Новосибирская область", 1620162L, 55.0084, 82.9357),
+                new City("Новокузнецк", "Кемеровская область", 537480L, 53.7557, 87.1099)
+        ));
+
+        assertEquals(List.of("Новосибирск", "Новокузнецк", "Новоуральск"),
+                service.suggestCities("Ново", 5).stream().map(City::getName).toList());
+        assertEquals(List.of("Новосибирск"),
+                service.suggestCities("ново", 1).stream().map(City::getName).toList());
+    }
+
+    @Test
+    void suggestCities_matchesWordStartsAndLatin() {
+        assertEquals("Нижний Новгород", cityService.suggestCities("новг", 5).get(0).getName());
+        assertEquals("Екатеринбург", cityService.suggestCities("ekat", 5).get(0).getName());
+        assertEquals("Ростов-на-Дону", cityService.suggestCities("ростов-на-д", 5).get(0).getName());
+    }
+
+    @Test
+    void suggestCities_emptyPrefix_topCities_unknownPrefix_empty() {
+        assertEquals("Москва", cityService.suggestCities("", 3).get(0).getName());
+        assertEquals(3, cityService.suggestCities("", 3).size());
+        assertTrue(cityService.suggestCities("щщщ", 5).isEmpty());
+        assertTrue(cityService.suggestCities(null, 5).isEmpty());
+    }
+
+    @Test
+    void findNearestCity_returnsClosestWithDistance() {
+        // Верхняя Пышма, ~14 км от центра Екатеринбурга
+        CityService.NearestCity nearest = cityService.findNearestCity(56.9755, 60.5650);
+
+        assertEquals("Екатеринбург", nearest.city().getName());
+        assertEquals(15.5, nearest.distanceKm(), 1.5);
+    }
+
+    @Test
+    void findNearestCity_withoutCoordinates_returnsNull() {
+        CityService service = new CityService(List.of(new City("Москва", "Москва", 12_000_000L)));
+
+        assertNull(service.findNearestCity(55.75, 37.61));
+    }
+}
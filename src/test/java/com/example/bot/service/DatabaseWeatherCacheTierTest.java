@@ -0,0 +1,67 @@
+package com.example.bot.service;
+
+import com.example.bot.database.DatabaseManager;
+import com.example.bot.model.Forecast;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class DatabaseWeatherCacheTierTest {
+
+    private static final LocalDate DAY = LocalDate.of(2025, 12, 17);
+
+    private DatabaseManager mockDatabaseManager;
+    private DatabaseWeatherCacheTier tier;
+
+    @BeforeEach
+    void setUp() {
+        mockDatabaseManager = mock(DatabaseManager.class);
+        tier = new DatabaseWeatherCacheTier(mockDatabaseManager);
+    }
+
+    @Test
+    void storeThenLoad_roundTripsForecast() {
+        Forecast forecast = Forecast.builder(2)
+                .add(1765954800L, -4.5, "снег")
+                .add(1765965600L, Double.NaN, null)
+                .build();
+
+        tier.store("москва", new WeatherCacheStorage.CachedForecast(forecast, DAY));
+
+        ArgumentCaptor<String> payload = ArgumentCaptor.forClass(String.class);
+        verify(mockDatabaseManager).upsertWeatherCache(eq("москва"), payload.capture(), eq(DAY));
+        when(mockDatabaseManager.getWeatherCache("москва"))
+                .thenReturn(new DatabaseManager.WeatherCacheRow("москва", payload.getValue(), DAY));
+
+        WeatherCacheStorage.CachedForecast loaded = tier.load("москва");
+        assertEquals(DAY, loaded.getCachedAt());
+        assertArrayEquals(forecast.getTimes(), loaded.getForecast().getTimes());
+        assertArrayEquals(forecast.getTemps(), loaded.getForecast().getTemps());
+        assertArrayEquals(forecast.getDescriptions(), loaded.getForecast().getDescriptions());
+    }
+
+    @Test
+    void loadSince_skipsCorruptedRows() {
+        when(mockDatabaseManager.getWeatherCacheSince(DAY)).thenReturn(List.of(
+                new DatabaseManager.WeatherCacheRow("москва", "{\"times\":[],\"temps\":[],\"descriptions\":[]}", DAY),
+                new DatabaseManager.WeatherCacheRow("казань", "{ broken", DAY)
+        ));
+
+        Map<String, WeatherCacheStorage.CachedForecast> loaded = tier.loadSince(DAY);
+
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.containsKey("москва"));
+    }
+
+    @Test
+    void load_missingCity_returnsNull() {
+        assertNull(tier.load("париж"));
+    }
+}
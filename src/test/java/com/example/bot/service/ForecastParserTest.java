@@ -0,0 +1,80 @@
+package com.example.bot.service;
+
+import com.example.bot.model.Forecast;
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ForecastParserTest {
+
+    private final ForecastParser parser = new ForecastParser();
+
+    @Test
+    void parse_extractsOnlyNeededFields() throws IOException {
+        Forecast forecast = parser.parse(json("""
+            {
+              "cod": "200",
+              "cnt": 2,
+              "list": [
+                {
+                  "dt": 1765954800,
+                  "main": { "temp": -4.5, "feels_like": -9.1, "pressure": 1020 },
+                  "weather": [{ "id": 600, "main": "Snow", "description": "небольшой снег", "icon": "13n" },
+                              { "description": "туман" }],
+                  "clouds": { "all": 100 },
+                  "wind": { "speed": 3.1, "deg": 200 },
+                  "dt_txt": "2025-12-17 07:00:00"
+                },
+                { "dt": 1765965600, "main": { "feels_like": -7.0 }, "weather": [] }
+              ],
+              "city": { "name": "Екатеринбург", "coord": { "lat": 56.8, "lon": 60.6 } }
+            }
+            """));
+
+        assertEquals(2, forecast.size());
+        assertEquals(1765954800L, forecast.time(0).getEpochSecond());
+        assertEquals(-4.5, forecast.temp(0));
+        assertEquals("небольшой снег", forecast.description(0));
+        // Нет температуры и описания — NaN и null, как в прежнем разборе
+        assertTrue(Double.isNaN(forecast.temp(1)));
+        assertNull(forecast.description(1));
+    }
+
+    @Test
+    void parse_skipsSlotsWithoutTimeOrOutOfOrder() throws IOException {
+        Forecast forecast = parser.parse(json("""
+            { "list": [
+                { "dt": 200, "main": { "temp": 1 } },
+                { "main": { "temp": 2 } },
+                { "dt": 100, "main": { "temp": 3 } },
+                "мусор",
+                { "dt": 300, "main": { "temp": 4 } }
+            ] }
+            """));
+
+        assertArrayEquals(new long[]{200, 300}, forecast.getTimes());
+        assertArrayEquals(new double[]{1, 4}, forecast.getTemps());
+    }
+
+    @Test
+    void parse_missingList_returnsNull() throws IOException {
+        assertNull(parser.parse(json("{ \"cod\": \"404\", \"message\": \"city not found\" }")));
+        assertEquals(0, parser.parse(json("{ \"list\": [] }")).size());
+    }
+
+    @Test
+    void parse_notAnObject_throws() {
+        assertThrows(JsonParseException.class, () -> parser.parse(json("[1, 2]")));
+        assertThrows(IOException.class, () -> parser.parse(json("{ \"list\": [ { \"dt\": ")));
+    }
+
+    private static InputStream json(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
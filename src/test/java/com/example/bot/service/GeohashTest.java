@@ -0,0 +1,40 @@
+package com.example.bot.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeohashTest {
+
+    @Test
+    void encode_knownPoint() {
+        // Пример из описания формата
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("u4pr", Geohash.encode(57.64911, 10.40744, 4));
+    }
+
+    @Test
+    void center_liesInsideSameCell() {
+        String cell = Geohash.encode(56.8389, 60.6057, 4);
+        double[] center = Geohash.center(cell);
+
+        assertEquals(cell, Geohash.encode(center[0], center[1], 4));
+        assertEquals(56.8389, center[0], 0.2);
+        assertEquals(60.6057, center[1], 0.2);
+    }
+
+    @Test
+    void nearbyPointsShareCell_distantDoNot() {
+        // Екатеринбург и Берёзовский (~15 км)
+        assertEquals(Geohash.encode(56.8389, 60.6057, 4), Geohash.encode(56.9095, 60.8180, 4));
+        // Екатеринбург и Челябинск (~200 км)
+        assertNotEquals(Geohash.encode(56.8389, 60.6057, 4), Geohash.encode(55.1644, 61.4368, 4));
+    }
+
+    @Test
+    void invalidInput_throws() {
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(91, 0, 4));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.center("u4a!"));
+    }
+}
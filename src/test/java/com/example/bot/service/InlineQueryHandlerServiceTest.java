@@ -0,0 +1,126 @@
+package com.example.bot.service;
+
+import com.example.bot.model.City;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.telegram.telegrambots.meta.api.objects.User;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultsButton;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class InlineQueryHandlerServiceTest {
+
+    @Mock
+    private CityService mockCityService;
+    @Mock
+    private MessageSender mockMessageSender;
+    @Mock
+    private Clock mockClock;
+
+    private InlineQueryHandlerService handler;
+
+    private final City yekaterinburg = new City("Екатеринбург", "Свердловская область", 1544376L, 56.8389, 60.6057);
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        handler = new InlineQueryHandlerService(mockCityService, mockMessageSender, mockClock, Duration.ofSeconds(60));
+        when(mockCityService.suggestCities(anyString(), anyInt())).thenReturn(List.of(yekaterinburg));
+    }
+
+    private InlineQuery createInlineQuery(String id, Long userId, String query) {
+        InlineQuery inlineQuery = new InlineQuery();
+        User user = new User();
+        user.setId(userId);
+        inlineQuery.setFrom(user);
+        inlineQuery.setId(id);
+        inlineQuery.setQuery(query);
+        inlineQuery.setChatType(InlineQueryHandlerService.BOT_CHAT_TYPE);
+        return inlineQuery;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<InlineQueryResult> captureAnswer(String queryId) {
+        ArgumentCaptor<List<InlineQueryResult>> captor = ArgumentCaptor.forClass(List.class);
+        verify(mockMessageSender).answerInlineQuery(eq(42L), eq(queryId), captor.capture(), eq(60));
+        return captor.getValue();
+    }
+
+    @Test
+    void handleInlineQuery_answersWithSetCityArticles() {
+        InlineQuery query = createInlineQuery("q1", 42L, "  Екат");
+        handler.markLatest(query);
+
+        handler.handleInlineQuery(query);
+
+        verify(mockCityService).suggestCities("екат", InlineQueryHandlerService.MAX_RESULTS);
+        List<InlineQueryResult> results = captureAnswer("q1");
+        assertEquals(1, results.size());
+        InlineQueryResultArticle article = (InlineQueryResultArticle) results.get(0);
+        assertEquals("Екатеринбург", article.getTitle());
+        assertEquals("/setcity Екатеринбург",
+                ((InputTextMessageContent) article.getInputMessageContent()).getMessageText());
+    }
+
+    @Test
+    void handleInlineQuery_samePrefixWithinTtl_servedFromCache() {
+        when(mockClock.millis()).thenReturn(0L, 30_000L);
+
+        handler.handleInlineQuery(createInlineQuery("q1", 42L, "Екат"));
+        handler.handleInlineQuery(createInlineQuery("q2", 42L, "екат "));
+
+        verify(mockCityService, times(1)).suggestCities(anyString(), anyInt());
+        verify(mockMessageSender, times(2)).answerInlineQuery(eq(42L), anyString(), anyList(), eq(60));
+    }
+
+    @Test
+    void handleInlineQuery_afterTtl_recomputes() {
+        when(mockClock.millis()).thenReturn(0L, 61_000L);
+
+        handler.handleInlineQuery(createInlineQuery("q1", 42L, "Екат"));
+        handler.handleInlineQuery(createInlineQuery("q2", 42L, "Екат"));
+
+        verify(mockCityService, times(2)).suggestCities("екат", InlineQueryHandlerService.MAX_RESULTS);
+    }
+
+    @Test
+    void handleInlineQuery_supersededByNewerQuery_skipped() {
+        InlineQuery older = createInlineQuery("q1", 42L, "Е");
+        InlineQuery newer = createInlineQuery("q2", 42L, "Ек");
+        handler.markLatest(older);
+        handler.markLatest(newer);
+
+        handler.handleInlineQuery(older);
+        handler.handleInlineQuery(newer);
+
+        verify(mockMessageSender, never()).answerInlineQuery(anyLong(), eq("q1"), anyList(), anyInt());
+        captureAnswer("q2");
+    }
+
+    @Test
+    void handleInlineQuery_outsideBotChat_offersButtonInsteadOfSetCity() {
+        InlineQuery query = createInlineQuery("q1", 42L, "Екат");
+        query.setChatType("group");
+
+        handler.handleInlineQuery(query);
+
+        ArgumentCaptor<InlineQueryResultsButton> captor = ArgumentCaptor.forClass(InlineQueryResultsButton.class);
+        verify(mockMessageSender).answerInlineQuery(eq(42L), eq("q1"), captor.capture());
+        assertEquals(InlineQueryHandlerService.START_PARAMETER, captor.getValue().getStartParameter());
+        verify(mockMessageSender, never()).answerInlineQuery(anyLong(), anyString(), anyList(), anyInt());
+        verifyNoInteractions(mockCityService);
+    }
+}
@@ -3,6 +3,8 @@ package com.example.bot.service;
 
 import com.example.bot.command.Command;
 import com.example.bot.command.CommandRegistry;
+import com.example.bot.command.CommandReply;
+import com.example.bot.command.DeferredCommand;
 import com.example.bot.database.DatabaseManager;
 import com.example.bot.keyboard.InlineKeyboardFactory;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,9 +12,13 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Location;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.User;
 
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -73,13 +79,13 @@ class MessageHandlerServiceTest {
 
         // Then
         verify(mockUserStateService).handleUserState(eq(userId), eq(text), eq(chatId));
-        verify(mockDatabaseManager).saveUser(eq(userId), eq("testuser"));
+        verify(mockDatabaseManager).beginRequest(eq(userId), eq("testuser"));
         verifyNoInteractions(mockCommandRegistry, mockMessageSender); // команда не вызывается
     }
 
     // ========= Тест: состояние с таймаутом =========
     @Test
-    void handleMessage_hasActiveStateButTimedOut_cleansUpAndSendsTimeoutMessage() {
+    void handleMessage_hasActiveStateButTimedOut_expiresState() {
         // Given
         Long userId = 123L;
         Long chatId = 123L;
@@ -92,9 +98,9 @@ class MessageHandlerServiceTest {
         messageHandlerService.handleMessage(message);
 
         // Then
-        verify(mockUserStateService).cleanupEditState(userId);
-        verify(mockMessageSender).sendText(eq(chatId), contains("⏰ *Время редактирования истекло*"));
-        verify(mockDatabaseManager).saveUser(eq(userId), eq("testuser"));
+        verify(mockUserStateService).expireState(userId, chatId);
+        verify(mockUserStateService, never()).handleUserState(anyLong(), anyString(), anyLong());
+        verify(mockDatabaseManager).beginRequest(eq(userId), eq("testuser"));
     }
 
     // ========= Тест: команда /start — отправка reply-клавиатуры =========
@@ -175,6 +181,7 @@ class MessageHandlerServiceTest {
 
         // Then
         verify(mockMessageSender).sendText(eq(100L), eq("Произошла ошибка при обработке команды."));
+        verify(mockDatabaseManager).endRequest(); // снимок не переживает упавший запрос
     }
 
     // ========= Тест: неизвестная команда =========
@@ -233,4 +240,111 @@ class MessageHandlerServiceTest {
         // Then
         verify(mockMessageSender).sendText(eq(400L), eq(response));
     }
-}
\ No newline at end of file
+
+    // ========= Тест: /stats отвечает сразу и правит сообщение, когда пришла погода =========
+    @Test
+    void handleMessage_deferredCommand_sendsNowAndEditsWhenReady() {
+        // Given
+        Message message = createMessage(500L, 500L, "/stats");
+        DeferredCommand deferredCommand = mock(DeferredCommand.class);
+        CompletableFuture<String> update = new CompletableFuture<>();
+        when(mockCommandRegistry.findCommandForMessage(message)).thenReturn(deferredCommand);
+        when(deferredCommand.executeDeferred(message)).thenReturn(new CommandReply("Погода: ⏳", update));
+        Message sent = new Message();
+        sent.setMessageId(42);
+        when(mockMessageSender.sendTextWithInlineKeyboard(eq(500L), eq("Погода: ⏳"), any()))
+                .thenReturn(CompletableFuture.completedFuture(sent));
+
+        // When
+        messageHandlerService.handleMessage(message);
+
+        // Then: ответ ушёл, не дожидаясь погоды
+        verify(mockMessageSender).sendTextWithInlineKeyboard(500L, "Погода: ⏳", InlineKeyboardFactory.getWeekStatsKeyboard());
+        verify(mockMessageSender, never()).editMessageText(anyLong(), anyInt(), anyString(), any());
+        verify(deferredCommand, never()).execute(any());
+
+        update.complete("Погода: ☀️");
+        verify(mockMessageSender).editMessageText(500L, 42, "Погода: ☀️", InlineKeyboardFactory.getWeekStatsKeyboard());
+    }
+
+    // ========= Тест: /setcity правит прогноз, не убирая кнопки смены города =========
+    @Test
+    void handleMessage_deferredSetCity_keepsChangeCityKeyboardOnEdit() {
+        // Given
+        Message message = createMessage(700L, 700L, "/setcity");
+        DeferredCommand deferredCommand = mock(DeferredCommand.class);
+        CompletableFuture<String> update = new CompletableFuture<>();
+        when(mockCommandRegistry.findCommandForMessage(message)).thenReturn(deferredCommand);
+        when(deferredCommand.executeDeferred(message)).thenReturn(new CommandReply("Москва: ⏳", update));
+        when(mockDatabaseManager.getUserCity(700L)).thenReturn("Москва");
+        Message sent = new Message();
+        sent.setMessageId(7);
+        when(mockMessageSender.sendTextWithInlineKeyboard(eq(700L), eq("Москва: ⏳"), any()))
+                .thenReturn(CompletableFuture.completedFuture(sent));
+
+        // When
+        messageHandlerService.handleMessage(message);
+        update.complete("Москва: ☀️");
+
+        // Then
+        verify(mockMessageSender).sendTextWithInlineKeyboard(700L, "Москва: ⏳", InlineKeyboardFactory.getChangeCityConfirmationKeyboard());
+        verify(mockMessageSender).editMessageText(700L, 7, "Москва: ☀️", InlineKeyboardFactory.getChangeCityConfirmationKeyboard());
+        verify(mockDatabaseManager, times(1)).getUserCity(700L);
+    }
+
+    // ========= Тест: ответ не отправился — погоду больше не ждём =========
+    @Test
+    void handleMessage_deferredCommandSendFailed_cancelsUpdate() {
+        // Given
+        Message message = createMessage(600L, 600L, "/stats week");
+        DeferredCommand deferredCommand = mock(DeferredCommand.class);
+        CompletableFuture<String> update = new CompletableFuture<>();
+        when(mockCommandRegistry.findCommandForMessage(message)).thenReturn(deferredCommand);
+        when(deferredCommand.executeDeferred(message)).thenReturn(new CommandReply("Неделя", update));
+        when(mockMessageSender.sendText(600L, "Неделя"))
+                .thenReturn(CompletableFuture.failedFuture(new RuntimeException("Forbidden")));
+
+        // When
+        messageHandlerService.handleMessage(message);
+
+        // Then
+        assertTrue(update.isCancelled());
+        verify(mockMessageSender, never()).editMessageText(anyLong(), anyInt(), anyString(), any());
+    }
+
+    // ========= Тест: геопозиция =========
+    @Test
+    void handleLocation_passesCoordinatesToUserState() {
+        // Given
+        Message message = createMessage(123L, 123L, null);
+        Location location = new Location();
+        location.setLatitude(56.84);
+        location.setLongitude(60.61);
+        message.setLocation(location);
+        when(mockUserStateService.hasActiveState(123L)).thenReturn(true);
+        when(mockUserStateService.isEditTimedOut(123L)).thenReturn(false);
+
+        // When
+        messageHandlerService.handleLocation(message);
+
+        // Then
+        verify(mockUserStateService).handleUserLocation(123L, 56.84, 60.61, 123L);
+        verify(mockDatabaseManager).endRequest();
+    }
+
+    @Test
+    void handleLocation_timedOutState_doesNotResolveCity() {
+        // Given
+        Message message = createMessage(123L, 123L, null);
+        message.setLocation(new Location());
+        when(mockUserStateService.hasActiveState(123L)).thenReturn(true);
+        when(mockUserStateService.isEditTimedOut(123L)).thenReturn(true);
+
+        // When
+        messageHandlerService.handleLocation(message);
+
+        // Then
+        verify(mockUserStateService).expireState(123L, 123L);
+        verify(mockUserStateService, never()).handleUserLocation(anyLong(), anyDouble(), anyDouble(), anyLong());
+    }
+}
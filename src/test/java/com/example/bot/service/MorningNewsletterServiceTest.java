@@ -1,166 +1,288 @@
 package com.example.bot.service;
 
 import com.example.bot.database.DatabaseManager;
+import com.example.bot.database.DatabaseManager.NewsletterRecipient;
+import com.example.bot.database.DatabaseManager.NewsletterRun;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 class MorningNewsletterServiceTest {
 
+    private static final LocalDate DAY = LocalDate.of(2025, 12, 16);
+
     @Mock
     private DatabaseManager mockDatabaseManager;
     @Mock
-    private AbsSender mockBot;
-
-    private MorningNewsletterService newsletterService;
+    private MessageSender mockMessageSender;
+    @Mock
     private WeatherService mockWeatherService;
+    @Mock
     private DailyTarotService mockTarotService;
 
+    private MorningNewsletterService newsletterService;
+
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
+        newsletterService = new MorningNewsletterService(
+                mockDatabaseManager, mockMessageSender, mockWeatherService, mockTarotService, 2, 3);
 
-        // Мокаем зависимости
-        mockWeatherService = mock(WeatherService.class);
-        mockTarotService = mock(DailyTarotService.class);
-
-        // Создаём сервис через рефлексию или сеттеры
-        newsletterService = new MorningNewsletterService(mockDatabaseManager, mockBot, "fake-api-key") {
-            {
-                try {
-                    // Подменяем зависимости
-                    java.lang.reflect.Field weatherField = MorningNewsletterService.class.getDeclaredField("weatherService");
-                    weatherField.setAccessible(true);
-                    weatherField.set(this, mockWeatherService);
-
-                    java.lang.reflect.Field tarotField = MorningNewsletterService.class.getDeclaredField("tarotService");
-                    tarotField.setAccessible(true);
-                    tarotField.set(this, mockTarotService);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        };
+        when(mockDatabaseManager.startNewsletterRun(DAY)).thenReturn(new NewsletterRun(DAY, NewsletterRun.RUNNING, 0, 0));
+        when(mockMessageSender.sendBulk(anyLong(), anyString(), any()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        when(mockTarotService.getRandomReading())
+                .thenReturn(new DailyTarotService.TarotReading("Сила", "Победа над трудностями"));
+        when(mockWeatherService.getCacheStats()).thenReturn(new WeatherService.CacheStats(0, 0, 0, 0, 0, 0, 0));
     }
 
     @Test
-    void sendNewsletterToAllUsers_sendsMessagesToUsersWithAndWithoutCity() throws TelegramApiException {
+    void prefetchWeather_loadsAllUserCities() {
         // GIVEN
-        List<Long> userIds = Arrays.asList(1L, 2L, 3L, 4L);
-        when(mockDatabaseManager.getAllUserIds()).thenReturn(userIds);
+        List<String> cities = List.of("Москва", "Казань");
+        when(mockDatabaseManager.getDistinctUserCities()).thenReturn(cities);
+        WeatherService.PrefetchReport expected = new WeatherService.PrefetchReport(2, 0, 2, 0, 5);
+        when(mockWeatherService.prefetch(cities, MorningNewsletterService.WEATHER_PREFETCH_PARALLELISM))
+                .thenReturn(expected);
 
-        // Города пользователей
-        when(mockDatabaseManager.getUserCity(1L)).thenReturn("Москва");
-        when(mockDatabaseManager.getUserCity(2L)).thenReturn("Санкт-Петербург");
-        when(mockDatabaseManager.getUserCity(3L)).thenReturn(""); // без города
-        when(mockDatabaseManager.getUserCity(4L)).thenReturn(null); // без города
+        // WHEN
+        WeatherService.PrefetchReport report = newsletterService.prefetchWeather();
 
-        // Прогнозы
-        when(mockWeatherService.getTodayForecast("Москва"))
-                .thenReturn("☀️ Ясно, от +5°C до +10°C");
-        when(mockWeatherService.getTodayForecast("Санкт-Петербург"))
-                .thenReturn("⛅ Облачно, от +3°C до +7°C");
+        // THEN
+        assertSame(expected, report);
+        assertEquals(1.0, report.coverage());
+    }
 
-        // Карта дня
-        DailyTarotService.TarotReading mockReading = new DailyTarotService.TarotReading("Сила", "Победа над трудностями");
-        when(mockTarotService.getRandomReading()).thenReturn(mockReading);
+    @Test
+    void sendNewsletter_sendsMessagesToUsersWithAndWithoutCity() {
+        // GIVEN
+        givenRecipients(
+                new NewsletterRecipient(1L, "Москва"),
+                new NewsletterRecipient(2L, "Санкт-Петербург"),
+                new NewsletterRecipient(3L, ""), // без города
+                new NewsletterRecipient(4L, null) // без города
+        );
+        when(mockWeatherService.getTodayForecastAsync("Москва"))
+                .thenReturn(CompletableFuture.completedFuture("☀️ Ясно, от +5°C до +10°C"));
+        when(mockWeatherService.getTodayForecastAsync("Санкт-Петербург"))
+                .thenReturn(CompletableFuture.completedFuture("⛅ Облачно, от +3°C до +7°C"));
 
         // WHEN
-        newsletterService.sendNewsletterToAllUsers();
+        newsletterService.sendNewsletter(DAY);
 
-        // THEN: проверяем отправку 4 сообщений
-        ArgumentCaptor<SendMessage> messageCaptor = ArgumentCaptor.forClass(SendMessage.class);
-        verify(mockBot, times(4)).execute(messageCaptor.capture());
+        // THEN: проверяем отправку 4 сообщений в полосе рассылок
+        ArgumentCaptor<Long> chatCaptor = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<ReplyKeyboard> keyboardCaptor = ArgumentCaptor.forClass(ReplyKeyboard.class);
+        verify(mockMessageSender, times(4)).sendBulk(chatCaptor.capture(), textCaptor.capture(), keyboardCaptor.capture());
 
-        List<SendMessage> messages = messageCaptor.getAllValues();
+        List<Long> chatIds = chatCaptor.getAllValues();
+        List<String> texts = textCaptor.getAllValues();
 
         // Проверка структуры сообщений
-        for (SendMessage msg : messages) {
-            assertNotNull(msg.getText());
-            assertTrue(msg.getText().contains("Доброе утро"));
-            assertTrue(msg.getText().contains("*Карта дня:*"));
-            assertNotNull(msg.getReplyMarkup());
+        for (String text : texts) {
+            assertNotNull(text);
+            assertTrue(text.contains("Доброе утро"));
+            assertTrue(text.contains("*Карта дня:* Сила\n_Победа над трудностями_"));
+            assertTrue(text.contains("/todo"));
         }
+        keyboardCaptor.getAllValues().forEach(Assertions::assertNotNull);
 
-        // Проверка прогноза для пользователя без города
-        SendMessage msgForUser3 = messages.stream()
-                .filter(m -> m.getChatId().equals("3"))
-                .findFirst()
-                .orElseThrow();
-        assertTrue(msgForUser3.getText().contains("Город не указан"));
+        // Проверка прогноза для пользователей без города
+        assertTrue(texts.get(chatIds.indexOf(3L)).contains("Город не указан"));
+        assertTrue(texts.get(chatIds.indexOf(4L)).contains("Город не указан"));
 
         // Проверка прогноза для Москвы
-        SendMessage msgForUser1 = messages.stream()
-                .filter(m -> m.getChatId().equals("1"))
-                .findFirst()
-                .orElseThrow();
-        assertTrue(msgForUser1.getText().contains("Ясно"));
+        assertTrue(texts.get(chatIds.indexOf(1L)).contains("Ясно"));
+        assertTrue(texts.get(chatIds.indexOf(2L)).contains("Облачно"));
     }
 
     @Test
-    void sendNewsletterToAllUsers_handlesTelegramApiException_gracefully() throws TelegramApiException {
+    void sendNewsletter_fetchesWeatherOncePerCity() {
         // GIVEN
-        when(mockDatabaseManager.getAllUserIds()).thenReturn(List.of(1L, 2L));
-        when(mockDatabaseManager.getUserCity(1L)).thenReturn("Москва");
-        when(mockDatabaseManager.getUserCity(2L)).thenReturn("Москва");
+        givenRecipients(
+                new NewsletterRecipient(1L, "Москва"),
+                new NewsletterRecipient(2L, "Москва"),
+                new NewsletterRecipient(3L, " Москва "),
+                new NewsletterRecipient(4L, "Казань")
+        );
+        when(mockWeatherService.getTodayForecastAsync(anyString()))
+                .thenReturn(CompletableFuture.completedFuture("☀️ Ясно"));
 
-        when(mockWeatherService.getTodayForecast("Москва"))
-                .thenReturn("☀️ Ясно");
-        when(mockTarotService.getRandomReading())
-                .thenReturn(new DailyTarotService.TarotReading("Звезда", "Надежда"));
+        // WHEN
+        MorningNewsletterService.NewsletterReport report = newsletterService.sendNewsletter(DAY);
+
+        // THEN
+        verify(mockWeatherService, times(1)).getTodayForecastAsync("Москва");
+        verify(mockWeatherService, times(1)).getTodayForecastAsync("Казань");
+        assertEquals(4, report.loaded().count());
+        assertEquals(2, report.cities().count());
+        assertEquals(4, report.rendered().count());
+        assertEquals(4, report.sent().count());
+    }
+
+    @Test
+    void sendNewsletter_checkpointsDeliveriesAndFinishesRun() {
+        // GIVEN
+        givenRecipients(
+                new NewsletterRecipient(1L, null),
+                new NewsletterRecipient(2L, null),
+                new NewsletterRecipient(3L, null)
+        );
 
-        // Имитируем ошибку при отправке второго сообщения
-        doThrow(new TelegramApiException("Forbidden"))
-                .when(mockBot).execute(any(SendMessage.class));
+        // WHEN
+        MorningNewsletterService.NewsletterReport report = newsletterService.sendNewsletter(DAY);
+
+        // THEN: все доставленные отмечены в БД, запуск завершён
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Long>> batchCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockDatabaseManager, atLeastOnce()).recordNewsletterDeliveries(eq(DAY), batchCaptor.capture());
+        Set<Long> recorded = new HashSet<>();
+        batchCaptor.getAllValues().forEach(recorded::addAll);
+        assertEquals(Set.of(1L, 2L, 3L), recorded);
+        assertEquals(3, report.checkpointed().count());
+        verify(mockDatabaseManager).finishNewsletterRun(DAY, 0);
+    }
+
+    @Test
+    void sendNewsletter_handlesTelegramApiException_gracefully() {
+        // GIVEN
+        givenRecipients(new NewsletterRecipient(1L, "Москва"), new NewsletterRecipient(2L, "Москва"));
+        when(mockWeatherService.getTodayForecastAsync("Москва"))
+                .thenReturn(CompletableFuture.completedFuture("☀️ Ясно"));
+
+        // Имитируем ошибку при отправке сообщений
+        when(mockMessageSender.sendBulk(anyLong(), anyString(), any()))
+                .thenReturn(CompletableFuture.failedFuture(new TelegramApiException("Forbidden")));
 
         // WHEN & THEN — не должно быть исключения
-        assertDoesNotThrow(() -> newsletterService.sendNewsletterToAllUsers());
+        MorningNewsletterService.NewsletterReport report =
+                assertDoesNotThrow(() -> newsletterService.sendNewsletter(DAY));
+
+        // Проверяем, что отправка вызывалась 2 раза, а недоставленные не отмечены
+        verify(mockMessageSender, times(2)).sendBulk(anyLong(), anyString(), any());
+        verify(mockDatabaseManager, never()).recordNewsletterDeliveries(any(), anyList());
+        assertEquals(2, report.failed());
+        verify(mockDatabaseManager).finishNewsletterRun(DAY, 2);
+    }
 
-        // Проверяем, что execute вызывался 2 раза
-        verify(mockBot, times(2)).execute(any(SendMessage.class));
+    @Test
+    void sendNewsletter_stoppedQueue_leavesRunUnfinished() {
+        // GIVEN: очередь отправки остановлена вместе с ботом
+        givenRecipients(new NewsletterRecipient(1L, null));
+        when(mockMessageSender.sendBulk(anyLong(), anyString(), any()))
+                .thenReturn(CompletableFuture.failedFuture(new RejectedExecutionException("Очередь отправки остановлена")));
+
+        // WHEN
+        newsletterService.sendNewsletter(DAY);
+
+        // THEN: запуск не завершается, после перезапуска пользователь получит рассылку
+        verify(mockDatabaseManager, never()).finishNewsletterRun(any(), anyInt());
+    }
+
+    @Test
+    void sendNewsletter_recipientsReadFails_leavesRunUnfinished() {
+        // GIVEN: первая страница прочитана, вторая — ошибка БД
+        when(mockDatabaseManager.streamNewsletterRecipients(eq(DAY), any())).thenAnswer(invocation -> {
+            Consumer<NewsletterRecipient> consumer = invocation.getArgument(1);
+            consumer.accept(new NewsletterRecipient(1L, null));
+            throw new RuntimeException("Failed to read newsletter recipients");
+        });
+
+        // WHEN
+        MorningNewsletterService.NewsletterReport report =
+                assertDoesNotThrow(() -> newsletterService.sendNewsletter(DAY));
+
+        // THEN: прочитанный получатель отправлен, но запуск остаётся RUNNING для остальных
+        verify(mockMessageSender).sendBulk(eq(1L), anyString(), any());
+        assertEquals(1, report.loaded().count());
+        verify(mockDatabaseManager, never()).finishNewsletterRun(any(), anyInt());
     }
 
     @Test
-    void sendNewsletterToAllUsers_emptyUserList_sendsNothing() throws TelegramApiException {
+    void sendNewsletter_finishedRun_sendsNothing() {
         // GIVEN
-        when(mockDatabaseManager.getAllUserIds()).thenReturn(List.of());
+        when(mockDatabaseManager.startNewsletterRun(DAY)).thenReturn(new NewsletterRun(DAY, NewsletterRun.DONE, 10, 0));
 
         // WHEN
-        newsletterService.sendNewsletterToAllUsers();
+        newsletterService.sendNewsletter(DAY);
 
         // THEN
-        verify(mockBot, never()).execute(any(SendMessage.class));
+        verify(mockDatabaseManager, never()).streamNewsletterRecipients(any(), any());
+        verify(mockMessageSender, never()).sendBulk(anyLong(), anyString(), any());
     }
 
     @Test
-    void sendNewsletterToAllUsers_allUsersWithoutCity_sendsNeutralForecast() throws TelegramApiException {
+    void sendNewsletter_emptyUserList_sendsNothing() {
         // GIVEN
-        when(mockDatabaseManager.getAllUserIds()).thenReturn(List.of(1L, 2L));
-        when(mockDatabaseManager.getUserCity(1L)).thenReturn("");
-        when(mockDatabaseManager.getUserCity(2L)).thenReturn(null);
+        givenRecipients();
 
-        when(mockTarotService.getRandomReading())
-                .thenReturn(new DailyTarotService.TarotReading("Отшельник", "Размышление"));
+        // WHEN
+        newsletterService.sendNewsletter(DAY);
+
+        // THEN
+        verify(mockMessageSender, never()).sendBulk(anyLong(), anyString(), any());
+        verify(mockDatabaseManager).finishNewsletterRun(DAY, 0);
+    }
+
+    @Test
+    void sendNewsletter_allUsersWithoutCity_sendsNeutralForecast() {
+        // GIVEN
+        givenRecipients(new NewsletterRecipient(1L, ""), new NewsletterRecipient(2L, null));
 
         // WHEN
-        newsletterService.sendNewsletterToAllUsers();
+        newsletterService.sendNewsletter(DAY);
 
         // THEN
-        ArgumentCaptor<SendMessage> captor = ArgumentCaptor.forClass(SendMessage.class);
-        verify(mockBot, times(2)).execute(captor.capture());
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(mockMessageSender, times(2)).sendBulk(anyLong(), captor.capture(), any());
+
+        for (String text : captor.getAllValues()) {
+            assertTrue(text.contains("Город не указан — не могу показать погоду."));
+        }
+        verify(mockWeatherService, never()).getTodayForecastAsync(anyString());
+    }
 
-        for (SendMessage msg : captor.getAllValues()) {
-            assertTrue(msg.getText().contains("Город не указан — не могу показать погоду."));
+    @Test
+    void sendNewsletter_manyUsers_allDeliveredWithBoundedPendingSends() {
+        // GIVEN: больше получателей, чем разрешено неподтверждённых отправок
+        NewsletterRecipient[] recipients = new NewsletterRecipient[50];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = new NewsletterRecipient((long) i, i % 2 == 0 ? "Москва" : null);
         }
+        givenRecipients(recipients);
+        when(mockWeatherService.getTodayForecastAsync("Москва"))
+                .thenReturn(CompletableFuture.completedFuture("☀️ Ясно"));
+
+        // WHEN
+        MorningNewsletterService.NewsletterReport report = newsletterService.sendNewsletter(DAY);
+
+        // THEN
+        verify(mockMessageSender, times(50)).sendBulk(anyLong(), anyString(), any());
+        assertEquals(50, report.sent().count());
+        assertEquals(50, report.checkpointed().count());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void givenRecipients(NewsletterRecipient... recipients) {
+        when(mockDatabaseManager.streamNewsletterRecipients(eq(DAY), any())).thenAnswer(invocation -> {
+            Consumer<NewsletterRecipient> consumer = invocation.getArgument(1);
+            Arrays.stream(recipients).forEach(consumer);
+            return recipients.length;
+        });
     }
-}
\ No newline at end of file
+}
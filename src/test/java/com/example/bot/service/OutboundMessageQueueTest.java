@@ -0,0 +1,287 @@
+package com.example.bot.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class OutboundMessageQueueTest {
+
+    private OutboundMessageQueue queue;
+
+    @AfterEach
+    void tearDown() {
+        if (queue != null) {
+            queue.shutdown(Duration.ofSeconds(1));
+        }
+    }
+
+    @Test
+    void sameChat_messagesSentInOrder() {
+        RecordingApi api = new RecordingApi();
+        queue = new OutboundMessageQueue(api, 100, 100, 100, 100, 0, Duration.ofSeconds(1));
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(queue.submit(1L, message(1L, "msg-" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add("msg-" + i);
+        }
+        assertEquals(expected, api.texts);
+        assertEquals(20, queue.getMetrics().sent());
+    }
+
+    @Test
+    void perChatLimit_spacesMessagesAfterBurst() {
+        RecordingApi api = new RecordingApi();
+        // Всплеск 2 сообщения, дальше 10 в секунду
+        queue = new OutboundMessageQueue(api, 1000, 10, 2, 100, 0, Duration.ofSeconds(1));
+
+        long start = System.nanoTime();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(queue.submit(1L, message(1L, "msg-" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Два сообщения сразу, ещё три — с интервалом ~100 мс
+        assertTrue(elapsedMillis >= 250, "Прошло " + elapsedMillis + " мс");
+    }
+
+    @Test
+    void globalLimit_appliesAcrossChats() {
+        RecordingApi api = new RecordingApi();
+        queue = new OutboundMessageQueue(api, 20, 100, 100, 100, 0, Duration.ofSeconds(1));
+
+        long start = System.nanoTime();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (long chat = 0; chat < 30; chat++) {
+            futures.add(queue.submit(chat, message(chat, "msg")));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 20 сразу, ещё 10 при 20 в секунду — не раньше чем через ~0.5 с
+        assertTrue(elapsedMillis >= 400, "Прошло " + elapsedMillis + " мс");
+        assertEquals(30, api.texts.size());
+    }
+
+    @Test
+    void tooManyRequests_retriedAfterRetryAfter() {
+        AtomicInteger calls = new AtomicInteger();
+        OutboundMessageQueue.ApiExecutor api = new OutboundMessageQueue.ApiExecutor() {
+            @Override
+            public <T extends Serializable> T execute(BotApiMethod<T> method) throws TelegramApiException {
+                if (calls.incrementAndGet() == 1) {
+                    throw tooManyRequests(1);
+                }
+                return null;
+            }
+        };
+        queue = new OutboundMessageQueue(api, 100, 100, 100, 100, 3, Duration.ofSeconds(1));
+
+        long start = System.nanoTime();
+        queue.submit(1L, message(1L, "msg")).join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2, calls.get());
+        assertTrue(elapsedMillis >= 900, "Повтор должен ждать retry_after, прошло " + elapsedMillis + " мс");
+        assertEquals(1, queue.getMetrics().retries());
+        assertEquals(1, queue.getMetrics().sent());
+    }
+
+    @Test
+    void tooManyRequests_pausesOtherChatsToo() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        OutboundMessageQueue.ApiExecutor api = new OutboundMessageQueue.ApiExecutor() {
+            @Override
+            public <T extends Serializable> T execute(BotApiMethod<T> method) throws TelegramApiException {
+                if (calls.incrementAndGet() == 1) {
+                    throw tooManyRequests(1);
+                }
+                return null;
+            }
+        };
+        queue = new OutboundMessageQueue(api, 100, 100, 100, 100, 3, Duration.ofSeconds(1));
+
+        queue.submit(1L, message(1L, "limited"));
+        // Ждём, пока 429 будет обработан и запрос вернётся в очередь
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (queue.getMetrics().retries() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, queue.getMetrics().retries());
+        long start = System.nanoTime();
+        queue.submit(2L, message(2L, "other chat")).join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // retry_after относится ко всему боту: второй чат тоже ждёт
+        assertTrue(elapsedMillis >= 800, "Другой чат отправлен через " + elapsedMillis + " мс");
+    }
+
+    @Test
+    void tooManyRequests_failsWhenRetriesExhausted() {
+        OutboundMessageQueue.ApiExecutor api = new OutboundMessageQueue.ApiExecutor() {
+            @Override
+            public <T extends Serializable> T execute(BotApiMethod<T> method) throws TelegramApiException {
+                throw tooManyRequests(0);
+            }
+        };
+        queue = new OutboundMessageQueue(api, 100, 100, 100, 100, 2, Duration.ofSeconds(1));
+
+        var future = queue.submit(1L, message(1L, "msg"));
+
+        var thrown = assertThrows(CompletionException.class, future::join);
+        assertInstanceOf(TelegramApiRequestException.class, thrown.getCause());
+        assertEquals(2, queue.getMetrics().retries());
+        assertEquals(1, queue.getMetrics().failed());
+    }
+
+    @Test
+    void fullQueue_rejectsNewMessages() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        OutboundMessageQueue.ApiExecutor api = new OutboundMessageQueue.ApiExecutor() {
+            @Override
+            public <T extends Serializable> T execute(BotApiMethod<T> method) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+        queue = new OutboundMessageQueue(api, 100, 100, 100, 1, 0, Duration.ofMillis(50));
+
+        var first = queue.submit(1L, message(1L, "first"));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        var second = queue.submit(2L, message(2L, "second"));
+
+        var thrown = assertThrows(CompletionException.class, second::join);
+        assertInstanceOf(RejectedExecutionException.class, thrown.getCause());
+        assertEquals(1, queue.getMetrics().rejected());
+
+        release.countDown();
+        first.join();
+    }
+
+    @Test
+    void shutdown_sendsAcceptedMessagesAndRejectsNewOnes() {
+        RecordingApi api = new RecordingApi();
+        queue = new OutboundMessageQueue(api, 100, 100, 100, 100, 0, Duration.ofSeconds(1));
+        for (int i = 0; i < 10; i++) {
+            queue.submit(1L, message(1L, "msg-" + i));
+        }
+
+        assertTrue(queue.shutdown(Duration.ofSeconds(5)));
+        assertEquals(10, api.texts.size());
+
+        var late = queue.submit(1L, message(1L, "late"));
+        assertTrue(late.isCompletedExceptionally());
+    }
+
+    @Test
+    void interactive_overtakesQueuedBulk() {
+        RecordingApi api = new RecordingApi();
+        // Без резерва и с большим весом: интерактивные всегда идут первыми
+        queue = new OutboundMessageQueue(api, 10, 100, 100, 100, 0, Duration.ofSeconds(1), 100, 0);
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (long chat = 0; chat < 15; chat++) {
+            futures.add(queue.submit(chat, message(chat, "bulk-" + chat), OutboundMessageQueue.Priority.BULK));
+        }
+        for (long chat = 100; chat < 103; chat++) {
+            futures.add(queue.submit(chat, message(chat, "live-" + chat)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        // Первые 10 массовых ушли сразу, остальные 5 — только после интерактивных
+        List<String> tail = api.texts.subList(api.texts.size() - 5, api.texts.size());
+        assertTrue(tail.stream().allMatch(text -> text.startsWith("bulk-")), "Порядок отправки: " + api.texts);
+
+        OutboundMessageQueue.QueueMetrics metrics = queue.getMetrics();
+        assertEquals(3, metrics.interactive().sent());
+        assertEquals(15, metrics.bulk().sent());
+        assertEquals(0, metrics.bulk().queued());
+        assertTrue(metrics.bulk().throughputPerSecond() > 0);
+        assertTrue(metrics.bulk().maxQueueMillis() >= metrics.interactive().maxQueueMillis(),
+                "Массовые должны ждать дольше: " + metrics);
+    }
+
+    @Test
+    void bulk_leavesReserveForInteractive() {
+        RecordingApi api = new RecordingApi();
+        // Лимит 10 в секунду, массовые не трогают последние 5 токенов
+        queue = new OutboundMessageQueue(api, 10, 100, 100, 100, 0, Duration.ofSeconds(1), 4, 5);
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (long chat = 0; chat < 10; chat++) {
+            futures.add(queue.submit(chat, message(chat, "bulk-" + chat), OutboundMessageQueue.Priority.BULK));
+        }
+        long start = System.nanoTime();
+        queue.submit(100L, message(100L, "live")).join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        // Ответ ушёл из резерва, не дожидаясь пополнения лимита
+        assertTrue(elapsedMillis < 90, "Ответ ждал " + elapsedMillis + " мс");
+        assertTrue(api.texts.indexOf("live") <= 5, "Порядок отправки: " + api.texts);
+    }
+
+    @Test
+    void invalidLaneWeights_throw() {
+        RecordingApi api = new RecordingApi();
+        assertThrows(IllegalArgumentException.class,
+                () -> new OutboundMessageQueue(api, 10, 1, 1, 10, 0, Duration.ofSeconds(1), 0, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new OutboundMessageQueue(api, 10, 1, 1, 10, 0, Duration.ofSeconds(1), 4, 10));
+    }
+
+    private static SendMessage message(Long chatId, String text) {
+        return SendMessage.builder().chatId(chatId.toString()).text(text).build();
+    }
+
+    private static TelegramApiRequestException tooManyRequests(int retryAfterSeconds) {
+        ResponseParameters parameters = mock(ResponseParameters.class);
+        when(parameters.getRetryAfter()).thenReturn(retryAfterSeconds);
+        TelegramApiRequestException exception = mock(TelegramApiRequestException.class);
+        when(exception.getParameters()).thenReturn(parameters);
+        when(exception.getErrorCode()).thenReturn(429);
+        return exception;
+    }
+
+    private static class RecordingApi implements OutboundMessageQueue.ApiExecutor {
+        private final List<String> texts = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public <T extends Serializable> T execute(BotApiMethod<T> method) {
+            texts.add(((SendMessage) method).getText());
+            return null;
+        }
+    }
+}
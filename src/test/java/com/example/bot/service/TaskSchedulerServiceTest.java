@@ -92,7 +92,7 @@ class TaskSchedulerServiceTest {
         ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
         ArgumentCaptor<Long> delayCaptor = ArgumentCaptor.forClass(Long.class);
 
-        verify(mockScheduler, times(4)).scheduleAtFixedRate(
+        verify(mockScheduler, times(5)).scheduleAtFixedRate(
                 captor.capture(),
                 delayCaptor.capture(),
                 anyLong(),
@@ -110,6 +110,63 @@ class TaskSchedulerServiceTest {
         verify(mockNewsletterService).sendNewsletterToAllUsers();
     }
 
+    @Test
+    void startMorningNewsletter_schedulesWeatherPrefetchAt06_45() {
+        // GIVEN: сейчас 2025-12-16 20:00 → прогрев завтра в 06:45
+        Instant fixedInstant = ZonedDateTime.of(2025, 12, 16, 20, 0, 0, 0, TZ).toInstant();
+        Clock fixedClock = Clock.fixed(fixedInstant, TZ);
+
+        TaskSchedulerService service = new TaskSchedulerService(
+                mockDatabaseManager, mockNewsletterService, mockMessageSender, fixedClock) {
+            @Override
+            protected ScheduledExecutorService createScheduler() {
+                return mockScheduler;
+            }
+        };
+
+        service.startAllTasks();
+
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Long> delayCaptor = ArgumentCaptor.forClass(Long.class);
+        verify(mockScheduler, times(5)).scheduleAtFixedRate(
+                captor.capture(),
+                delayCaptor.capture(),
+                anyLong(),
+                eq(TimeUnit.SECONDS)
+        );
+
+        // Прогрев — третий по порядку, сразу после рассылки
+        assertEquals(38700L, delayCaptor.getAllValues().get(2), "Задержка до 06:45 должна быть 10ч45м");
+
+        captor.getAllValues().get(2).run();
+        verify(mockNewsletterService).prefetchWeather();
+        verify(mockNewsletterService, never()).sendNewsletterToAllUsers();
+    }
+
+    @Test
+    void startMorningNewsletter_resumesUnfinishedRun() {
+        // GIVEN: бот перезапущен в 07:10, сегодняшняя рассылка не завершена
+        Instant fixedInstant = ZonedDateTime.of(2025, 12, 16, 7, 10, 0, 0, TZ).toInstant();
+        Clock fixedClock = Clock.fixed(fixedInstant, TZ);
+        when(mockNewsletterService.hasUnfinishedRun()).thenReturn(true);
+
+        TaskSchedulerService service = new TaskSchedulerService(
+                mockDatabaseManager, mockNewsletterService, mockMessageSender, fixedClock) {
+            @Override
+            protected ScheduledExecutorService createScheduler() {
+                return mockScheduler;
+            }
+        };
+
+        service.startAllTasks();
+
+        // THEN: рассылка продолжается сразу, не дожидаясь завтрашних 07:00
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockScheduler).execute(captor.capture());
+        captor.getValue().run();
+        verify(mockNewsletterService).sendNewsletterToAllUsers();
+    }
+
     @Test
     void sendReminderToAllUsers_sendsMessages() {
         // GIVEN
@@ -123,8 +180,8 @@ class TaskSchedulerServiceTest {
         service.sendReminderToAllUsers("1h");
 
         // THEN
-        verify(mockMessageSender).sendText(eq(100L), anyString());
-        verify(mockMessageSender).sendText(eq(200L), anyString());
+        verify(mockMessageSender).sendBulk(eq(100L), anyString(), isNull());
+        verify(mockMessageSender).sendBulk(eq(200L), anyString(), isNull());
     }
 
     @Test
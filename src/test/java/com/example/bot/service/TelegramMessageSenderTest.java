@@ -2,16 +2,25 @@
 package com.example.bot.service;
 
 import com.example.bot.ChatBot;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultsButton;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentCaptor.forClass;
 import static org.mockito.Mockito.*;
@@ -29,6 +38,11 @@ class TelegramMessageSenderTest {
         messageSender = new TelegramMessageSender(mockChatBot);
     }
 
+    @AfterEach
+    void tearDown() {
+        messageSender.shutdown(Duration.ofSeconds(1));
+    }
+
     // ========= sendText =========
 
     @Test
@@ -38,7 +52,7 @@ class TelegramMessageSenderTest {
         String text = "Привет, мир!";
 
         // When
-        messageSender.sendText(chatId, text);
+        messageSender.sendText(chatId, text).join();
 
         // Then
         var captor = forClass(SendMessage.class);
@@ -59,9 +73,11 @@ class TelegramMessageSenderTest {
         doThrow(new TelegramApiException("API error")).when(mockChatBot).execute(any(SendMessage.class));
 
         // When
-        messageSender.sendText(123L, "Текст");
+        var result = messageSender.sendText(123L, "Текст");
 
-        // Then: не должно быть исключения — только логирование (проверяем, что execute вызван)
+        // Then: вызывающий поток не получает исключения — ошибка приходит в future и логируется
+        var thrown = assertThrows(CompletionException.class, result::join);
+        assertInstanceOf(TelegramApiException.class, thrown.getCause());
         verify(mockChatBot).execute(any(SendMessage.class));
     }
 
@@ -75,7 +91,7 @@ class TelegramMessageSenderTest {
         ReplyKeyboardMarkup keyboard = ReplyKeyboardMarkup.builder().build();
 
         // When
-        messageSender.sendTextWithKeyboard(chatId, text, keyboard);
+        messageSender.sendTextWithKeyboard(chatId, text, keyboard).join();
 
         // Then
         var captor = forClass(SendMessage.class);
@@ -100,7 +116,7 @@ class TelegramMessageSenderTest {
         InlineKeyboardMarkup inlineKeyboard = InlineKeyboardMarkup.builder().build();
 
         // When
-        messageSender.sendTextWithInlineKeyboard(chatId, text, inlineKeyboard);
+        messageSender.sendTextWithInlineKeyboard(chatId, text, inlineKeyboard).join();
 
         // Then
         var captor = forClass(SendMessage.class);
@@ -115,6 +131,25 @@ class TelegramMessageSenderTest {
         );
     }
 
+    // ========= sendBulk =========
+
+    @Test
+    void sendBulk_goesToBulkLane() throws TelegramApiException {
+        // Given
+        ReplyKeyboardMarkup keyboard = new ReplyKeyboardMarkup();
+
+        // When
+        messageSender.sendBulk(789L, "Рассылка", keyboard).join();
+
+        // Then
+        var captor = forClass(SendMessage.class);
+        verify(mockChatBot).execute(captor.capture());
+        assertEquals("789", captor.getValue().getChatId());
+        assertEquals(keyboard, captor.getValue().getReplyMarkup());
+        assertEquals(1, messageSender.getMetrics().bulk().sent());
+        assertEquals(0, messageSender.getMetrics().interactive().sent());
+    }
+
     // ========= editMessageText =========
 
     @Test
@@ -126,7 +161,7 @@ class TelegramMessageSenderTest {
         InlineKeyboardMarkup keyboard = InlineKeyboardMarkup.builder().build();
 
         // When
-        messageSender.editMessageText(chatId, messageId, text, keyboard);
+        messageSender.editMessageText(chatId, messageId, text, keyboard).join();
 
         // Then
         var captor = forClass(EditMessageText.class);
@@ -146,7 +181,7 @@ class TelegramMessageSenderTest {
     void editMessageText_handlesNullKeyboard() throws TelegramApiException {
         // Given
         // When
-        messageSender.editMessageText(200L, 10, "Текст без клавиатуры", null);
+        messageSender.editMessageText(200L, 10, "Текст без клавиатуры", null).join();
 
         // Then
         var captor = forClass(EditMessageText.class);
@@ -155,4 +190,57 @@ class TelegramMessageSenderTest {
         EditMessageText editMsg = captor.getValue();
         assertNull(editMsg.getReplyMarkup());
     }
-}
\ No newline at end of file
+
+    // ========= answerInlineQuery =========
+
+    @Test
+    void answerInlineQuery_callsExecuteWithSharedCacheTime() throws TelegramApiException {
+        // Given
+        InlineQueryResultArticle article = InlineQueryResultArticle.builder()
+                .id("city:0")
+                .title("Москва")
+                .inputMessageContent(InputTextMessageContent.builder().messageText("/setcity Москва").build())
+                .build();
+        when(mockChatBot.execute(any(AnswerInlineQuery.class))).thenReturn(true);
+
+        // When
+        messageSender.answerInlineQuery(300L, "query-1", List.of(article), 60).join();
+
+        // Then
+        var captor = forClass(AnswerInlineQuery.class);
+        verify(mockChatBot).execute(captor.capture());
+
+        AnswerInlineQuery answer = captor.getValue();
+        assertAll(
+                () -> assertEquals("query-1", answer.getInlineQueryId()),
+                () -> assertEquals(List.of(article), answer.getResults()),
+                () -> assertEquals(60, answer.getCacheTime()),
+                () -> assertFalse(answer.getIsPersonal())
+        );
+    }
+
+    @Test
+    void answerInlineQuery_withButton_sendsUncachedButtonOnly() throws TelegramApiException {
+        // Given
+        InlineQueryResultsButton button = InlineQueryResultsButton.builder()
+                .text("Выбрать город в чате с ботом")
+                .startParameter("setcity")
+                .build();
+        when(mockChatBot.execute(any(AnswerInlineQuery.class))).thenReturn(true);
+
+        // When
+        messageSender.answerInlineQuery(300L, "query-1", button).join();
+
+        // Then
+        var captor = forClass(AnswerInlineQuery.class);
+        verify(mockChatBot).execute(captor.capture());
+
+        AnswerInlineQuery answer = captor.getValue();
+        assertAll(
+                () -> assertEquals(button, answer.getButton()),
+                () -> assertTrue(answer.getResults().isEmpty()),
+                () -> assertEquals(0, answer.getCacheTime()),
+                () -> assertDoesNotThrow(answer::validate)
+        );
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.bot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void emptyBucket_refillsAtRate() {
+        TokenBucket bucket = new TokenBucket(2, 2);
+        long now = System.nanoTime();
+        bucket.take(now);
+        bucket.take(now);
+
+        // Два токена в секунду: следующий через полсекунды
+        assertEquals(SECOND / 2, bucket.nanosUntilTokens(now, 1), TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(0, bucket.nanosUntilTokens(now + SECOND / 2, 1));
+        assertTrue(bucket.isFull(now + SECOND * 2));
+    }
+
+    @Test
+    void pauseUntil_noTokensBeforePauseEnds() {
+        TokenBucket bucket = new TokenBucket(5, 2);
+        long now = System.nanoTime();
+
+        bucket.pauseUntil(now + SECOND);
+
+        // Полная корзина опустела, пополнение начнётся только после паузы
+        assertEquals(SECOND + SECOND / 2, bucket.nanosUntilTokens(now, 1), TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(0, bucket.nanosUntilTokens(now + SECOND + SECOND / 2, 1));
+        // Более ранняя пауза не сокращает уже назначенную
+        bucket.pauseUntil(now + SECOND / 2);
+        assertFalse(bucket.isFull(now + SECOND));
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.bot.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpdateDispatcherTest {
+
+    private UpdateDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() {
+        dispatcher = new UpdateDispatcher(8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.shutdown(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void sameKey_processedInSubmissionOrder() {
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 100; i++) {
+            int index = i;
+            dispatcher.submit(1L, () -> processed.add(index));
+        }
+        assertTrue(dispatcher.shutdown(Duration.ofSeconds(5)));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, processed);
+    }
+
+    @Test
+    void slowChat_doesNotBlockOtherChats() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+
+        dispatcher.submit(1L, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.submit(2L, otherDone::countDown);
+
+        assertTrue(otherDone.await(2, TimeUnit.SECONDS), "Второй чат не должен ждать первый");
+        release.countDown();
+    }
+
+    @Test
+    void inFlightUpdates_neverExceedCap() {
+        UpdateDispatcher limited = new UpdateDispatcher(2);
+        AtomicInteger current = new AtomicInteger();
+        AtomicInteger maxObserved = new AtomicInteger();
+
+        for (long chat = 0; chat < 20; chat++) {
+            limited.submit(chat, () -> {
+                maxObserved.accumulateAndGet(current.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                current.decrementAndGet();
+            });
+        }
+        assertTrue(limited.shutdown(Duration.ofSeconds(5)));
+
+        assertTrue(maxObserved.get() <= 2, "В работе было " + maxObserved.get() + " обновлений");
+        assertEquals(20, limited.getMetrics().completed());
+    }
+
+    @Test
+    void shutdown_drainsAcceptedUpdatesAndRejectsNewOnes() {
+        AtomicInteger processed = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            dispatcher.submit(1L, () -> {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.incrementAndGet();
+            });
+        }
+
+        assertTrue(dispatcher.shutdown(Duration.ofSeconds(5)));
+        assertEquals(10, processed.get());
+
+        assertFalse(dispatcher.submit(1L, processed::incrementAndGet));
+        assertEquals(1, dispatcher.getMetrics().rejected());
+    }
+
+    @Test
+    void failingUpdate_isCountedAndDoesNotStopQueue() {
+        AtomicInteger processed = new AtomicInteger();
+
+        dispatcher.submit(1L, () -> {
+            throw new IllegalStateException("Ошибка обработчика");
+        });
+        dispatcher.submit(1L, processed::incrementAndGet);
+        assertTrue(dispatcher.shutdown(Duration.ofSeconds(5)));
+
+        UpdateDispatcher.DispatcherMetrics metrics = dispatcher.getMetrics();
+        assertEquals(1, processed.get());
+        assertEquals(1, metrics.failed());
+        assertEquals(1, metrics.completed());
+        assertEquals(0, metrics.pending());
+        assertEquals(0, metrics.activeKeys());
+    }
+
+    @Test
+    void invalidCap_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new UpdateDispatcher(0));
+    }
+}
@@ -12,7 +12,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyDouble;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -124,10 +126,48 @@ class UserStateServiceTest {
         userStateService.handleUserState(userId, "Москва", chatId);
 
         verify(mockDatabaseManager).updateUserCity(userId, "Москва");
-        verify(mockMessageSender).sendText(eq(chatId), contains("✅ Город установлен: *Москва*"));
+        verify(mockMessageSender).sendTextWithKeyboard(eq(chatId), contains("✅ Город установлен: *Москва*"),
+                eq(KeyboardService.mainMenu()));
         assertFalse(userStateService.hasActiveState(userId));
     }
 
+    @Test
+    void handleUserState_settingCity_cancel_restoresMainMenu() {
+        Long userId = 456L;
+        Long chatId = 456L;
+        userStateService.startCitySelectionState(userId);
+
+        userStateService.handleUserState(userId, "отмена", chatId);
+
+        assertFalse(userStateService.hasActiveState(userId));
+        verify(mockMessageSender).sendTextWithKeyboard(eq(chatId), eq("❌ Действие отменено."), eq(KeyboardService.mainMenu()));
+        verify(mockMessageSender, never()).sendText(anyLong(), anyString());
+    }
+
+    @Test
+    void expireState_settingCity_restoresMainMenu() {
+        Long userId = 456L;
+        userStateService.startCitySelectionState(userId);
+
+        userStateService.expireState(userId, userId);
+
+        assertFalse(userStateService.hasActiveState(userId));
+        verify(mockMessageSender).sendTextWithKeyboard(eq(userId), contains("⏰ *Время редактирования истекло*"),
+                eq(KeyboardService.mainMenu()));
+    }
+
+    @Test
+    void expireState_todoEdit_sendsTimeoutWithoutKeyboard() {
+        Long userId = 123L;
+        userStateService.startTodoEditState(userId, 1);
+
+        userStateService.expireState(userId, userId);
+
+        assertFalse(userStateService.hasActiveState(userId));
+        verify(mockMessageSender).sendText(eq(userId), contains("⏰ *Время редактирования истекло*"));
+        verify(mockMessageSender, never()).sendTextWithKeyboard(anyLong(), anyString(), any());
+    }
+
     @Test
     void handleUserState_settingCity_invalidCity_sendsError() {
         Long userId = 456L;
@@ -178,4 +218,43 @@ class UserStateServiceTest {
         verify(mockMessageSender).sendText(eq(chatId), eq("✨ Желание добавлено!"));
         assertFalse(userStateService.hasActiveState(userId));
     }
-}
\ No newline at end of file
+
+    @Test
+    void handleUserLocation_settingCity_setsNearestCity() {
+        Long userId = 456L;
+        City city = new City("Екатеринбург", "Свердловская область", 1_544_376L, 56.8389, 60.6057);
+
+        userStateService.startCitySelectionState(userId);
+        when(mockCityService.findNearestCity(56.9, 60.7)).thenReturn(new CityService.NearestCity(city, 8.6));
+
+        userStateService.handleUserLocation(userId, 56.9, 60.7, userId);
+
+        verify(mockDatabaseManager).updateUserCity(userId, "Екатеринбург");
+        verify(mockMessageSender).sendTextWithKeyboard(eq(userId), contains("~9 км"), any());
+        assertFalse(userStateService.hasActiveState(userId));
+    }
+
+    @Test
+    void handleUserLocation_tooFarFromAnyCity_keepsState() {
+        Long userId = 456L;
+        City city = new City("Певек", "Чукотский АО", 4_329L, 69.7008, 170.3133);
+
+        userStateService.startCitySelectionState(userId);
+        when(mockCityService.findNearestCity(anyDouble(), anyDouble()))
+                .thenReturn(new CityService.NearestCity(city, UserStateService.MAX_NEAREST_CITY_KM + 1));
+
+        userStateService.handleUserLocation(userId, 80.0, 100.0, userId);
+
+        verify(mockDatabaseManager, never()).updateUserCity(anyLong(), any());
+        verify(mockMessageSender).sendText(eq(userId), contains("нет городов России"));
+        assertTrue(userStateService.hasActiveState(userId));
+    }
+
+    @Test
+    void handleUserLocation_withoutCityState_explainsHowToUse() {
+        userStateService.handleUserLocation(456L, 55.75, 37.61, 456L);
+
+        verify(mockCityService, never()).findNearestCity(anyDouble(), anyDouble());
+        verify(mockMessageSender).sendText(eq(456L), contains("/setcity"));
+    }
+}
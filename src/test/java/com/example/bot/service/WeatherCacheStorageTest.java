@@ -1,5 +1,6 @@
 package com.example.bot.service;
 
+import com.example.bot.model.Forecast;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -7,36 +8,53 @@ import org.junit.jupiter.api.io.TempDir;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
 
 class WeatherCacheStorageTest {
 
     @TempDir
     Path tempDir;
 
+    private static final LocalDate DAY = LocalDate.of(2025, 12, 19);
+
     private Path cacheFile;
+    private Path journalFile;
     private WeatherCacheStorage cacheStorage;
 
     @BeforeEach
     void setUp() {
         cacheFile = tempDir.resolve("weather_cache.json");
+        journalFile = tempDir.resolve("weather_cache.json.journal");
         cacheStorage = new WeatherCacheStorage(cacheFile);
     }
 
     @Test
     void saveAndLoad_CacheRoundTrip() {
         String city = "Екатеринбург";
-        String forecast = "❄️ Снег";
-        LocalDate date = LocalDate.of(2025, 12, 19);
+        Forecast forecast = Forecast.builder(2)
+                .add(at(DAY, 9), -7.5, "снег")
+                .add(at(DAY.plusDays(1), 9), Double.NaN, null)
+                .build();
 
-        cacheStorage.save(city, forecast, date);
-        var loaded = cacheStorage.get(city);
+        cacheStorage.save(city, forecast, DAY);
+        cacheStorage.flush();
+        var loaded = new WeatherCacheStorage(cacheFile).get(city);
 
         assertNotNull(loaded);
-        assertEquals(forecast, loaded.getText());
-        assertEquals(date, loaded.getCachedAt());
+        assertArrayEquals(forecast.getTimes(), loaded.getForecast().getTimes());
+        assertArrayEquals(forecast.getTemps(), loaded.getForecast().getTemps());
+        assertArrayEquals(forecast.getDescriptions(), loaded.getForecast().getDescriptions());
+        assertEquals(DAY, loaded.getCachedAt());
     }
 
     @Test
@@ -47,40 +65,46 @@ class WeatherCacheStorageTest {
 
     @Test
     void caseInsensitiveKeys() {
-        cacheStorage.save("MOSCOW", "🌤️", LocalDate.of(2025, 12, 19));
+        Forecast forecast = forecast(DAY, "ясно");
+        cacheStorage.save("MOSCOW", forecast, DAY);
         WeatherCacheStorage.CachedForecast result1 = cacheStorage.get("moscow");
         WeatherCacheStorage.CachedForecast result2 = cacheStorage.get("Moscow");
 
         assertNotNull(result1);
         assertNotNull(result2);
-        assertEquals("🌤️", result1.getText());
-        assertEquals("🌤️", result2.getText());
+        assertSame(forecast, result1.getForecast());
+        assertSame(forecast, result2.getForecast());
     }
 
     @Test
     void removeExpired_RemovesOnlyOldEntries() {
-        LocalDate today = LocalDate.of(2025, 12, 19);
-
-        cacheStorage.save("OldCity", "🌧️", LocalDate.of(2025, 12, 18));
-        cacheStorage.save("TodayCity", "☀️", today);
+        // Прогноз закончился вчера
+        cacheStorage.save("OldCity", forecast(DAY.minusDays(1), "дождь"), DAY.minusDays(2));
+        // Загружен давно, но доходит до сегодня — хранится на случай недоступности API
+        cacheStorage.save("StaleCity", forecast(DAY, "снег"),
+                DAY.minusDays(WeatherCacheStorage.CachedForecast.MAX_AGE_DAYS + 1));
+        // Загружен вчера и покрывает сегодня
+        cacheStorage.save("FreshCity", forecast(DAY, "ясно"), DAY.minusDays(1));
 
-        cacheStorage.removeExpired(today);
+        cacheStorage.removeExpired(DAY);
 
         assertNull(cacheStorage.get("OldCity"));        // удалён
-        assertNotNull(cacheStorage.get("TodayCity"));   // остался
+        assertNotNull(cacheStorage.get("StaleCity"));   // остался
+        assertNull(cacheStorage.get("StaleCity", DAY)); // но для ответа не годится
+        assertNotNull(cacheStorage.get("FreshCity"));   // остался
     }
 
     @Test
     void loadFromExistingValidFile() throws IOException {
         // Given: создаём файл вручную в ТОМ ЖЕ пути
-        String json = """
+        String json = String.format("""
         {
           "екатеринбург": {
-            "text": "❄️ Снег",
+            "forecast": { "times": [%d], "temps": [-4.0], "descriptions": ["снег"] },
             "cachedAt": "2025-12-19"
           }
         }
-        """;
+        """, at(DAY, 12));
         Files.writeString(cacheFile, json, java.nio.charset.StandardCharsets.UTF_8);
 
         // When: создаём НОВЫЙ кэш, указывая ТОТ ЖЕ файл
@@ -89,10 +113,47 @@ class WeatherCacheStorageTest {
         // Then
         WeatherCacheStorage.CachedForecast loaded = newCache.get("Екатеринбург");
         assertNotNull(loaded);
-        assertEquals("❄️ Снег", loaded.getText());
+        assertEquals("снег", loaded.getForecast().description(0));
         assertEquals(LocalDate.of(2025, 12, 19), loaded.getCachedAt());
     }
 
+    @Test
+    void loadFromOldTextFormat_dropsEntries() throws IOException {
+        // Файл от прошлой версии: готовый текст на один день без слотов
+        String json = """
+        {
+          "екатеринбург": {
+            "text": "❄️ Снег",
+            "cachedAt": "2025-12-19"
+          }
+        }
+        """;
+        Files.writeString(cacheFile, json, java.nio.charset.StandardCharsets.UTF_8);
+
+        WeatherCacheStorage newCache = new WeatherCacheStorage(cacheFile);
+
+        assertNull(newCache.get("Екатеринбург"));
+    }
+
+    @Test
+    void isUsableFor_checksDayCoverage() {
+        WeatherCacheStorage.CachedForecast cached = new WeatherCacheStorage.CachedForecast(
+                Forecast.builder(2).add(at(DAY, 21), 1.0, "ясно").add(at(DAY.plusDays(1), 9), 2.0, "ясно").build(),
+                DAY);
+
+        assertTrue(cached.isUsableFor(DAY));
+        assertTrue(cached.isUsableFor(DAY.plusDays(1)));
+        assertFalse(cached.isUsableFor(DAY.plusDays(2)));
+    }
+
+    @Test
+    void isStale_afterRefreshPeriod() {
+        WeatherCacheStorage.CachedForecast cached = new WeatherCacheStorage.CachedForecast(forecast(DAY, "ясно"), DAY);
+
+        assertFalse(cached.isStale(DAY.plusDays(WeatherCacheStorage.CachedForecast.REFRESH_AFTER_DAYS - 1)));
+        assertTrue(cached.isStale(DAY.plusDays(WeatherCacheStorage.CachedForecast.REFRESH_AFTER_DAYS)));
+    }
+
     @Test
     void handlesEmptyFileGracefully() throws IOException {
         Files.write(cacheFile, new byte[0]); // пустой файл
@@ -108,24 +169,192 @@ class WeatherCacheStorageTest {
     }
 
     @Test
-    void fileIsCreatedOnFirstSave() throws IOException {
+    void journalIsCreatedOnFlush() throws IOException {
+        assertFalse(Files.exists(journalFile));
+
+        cacheStorage.save("Test", forecast(DAY, "ясно"), DAY);
+        // Сохранение не пишет на диск сразу
+        assertFalse(Files.exists(journalFile));
+
+        cacheStorage.flush();
+        assertEquals(1, Files.readAllLines(journalFile).size());
+        // Полный снимок пишется только при сворачивании журнала
         assertFalse(Files.exists(cacheFile));
+    }
+
+    @Test
+    void flush_appendsOnlyChangesToJournal() throws IOException {
+        cacheStorage.save("City1", forecast(DAY, "ясно"), DAY);
+        cacheStorage.save("City2", forecast(DAY, "дождь"), DAY);
+        cacheStorage.flush();
+
+        cacheStorage.save("City1", forecast(DAY, "снег"), DAY);
+        cacheStorage.flush();
+
+        assertEquals(3, Files.readAllLines(journalFile).size());
+        assertEquals(3, cacheStorage.getJournalEntries());
+        assertEquals("снег", new WeatherCacheStorage(cacheFile).get("City1").getForecast().description(0));
+    }
+
+    @Test
+    void removals_replayedFromJournal() {
+        cacheStorage.save("OldCity", forecast(DAY.minusDays(1), "дождь"), DAY.minusDays(1));
+        cacheStorage.save("FreshCity", forecast(DAY, "ясно"), DAY);
+        cacheStorage.removeExpired(DAY);
+        cacheStorage.flush();
+
+        WeatherCacheStorage reloaded = new WeatherCacheStorage(cacheFile);
+        assertNull(reloaded.get("OldCity"));
+        assertNotNull(reloaded.get("FreshCity"));
+    }
+
+    @Test
+    void largeJournal_compactedIntoSnapshot() throws IOException {
+        for (int i = 0; i < WeatherCacheStorage.COMPACT_MIN_ENTRIES; i++) {
+            cacheStorage.save("City" + (i % 10), forecast(DAY, "ясно"), DAY);
+        }
+        cacheStorage.flush();
 
-        cacheStorage.save("Test", "🌤️", LocalDate.now());
         assertTrue(Files.exists(cacheFile));
-        assertTrue(Files.size(cacheFile) > 0);
+        assertFalse(Files.exists(journalFile));
+        assertFalse(Files.exists(tempDir.resolve("weather_cache.json.tmp")));
+        assertEquals(0, cacheStorage.getJournalEntries());
+
+        WeatherCacheStorage reloaded = new WeatherCacheStorage(cacheFile);
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(reloaded.get("City" + i));
+        }
+    }
+
+    @Test
+    void truncatedJournalLine_isSkipped() throws IOException {
+        cacheStorage.save("Kazan", forecast(DAY, "снег"), DAY);
+        cacheStorage.flush();
+        // Сбой посреди дозаписи оставил неполную строку
+        Files.writeString(journalFile, "{\"city\":\"perm\",\"value\":{\"fore", StandardOpenOption.APPEND);
+
+        WeatherCacheStorage reloaded = new WeatherCacheStorage(cacheFile);
+        assertNotNull(reloaded.get("Kazan"));
+        assertNull(reloaded.get("Perm"));
+    }
+
+    @Test
+    void concurrentSavesAndSweeps_doNotCorruptCache() throws Exception {
+        WeatherCacheStorage storage = new WeatherCacheStorage(cacheFile, Duration.ofMillis(1));
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        storage.save("City" + thread + "-" + i, forecast(DAY, "ясно"), DAY);
+                        storage.save("Old" + thread + "-" + i, forecast(DAY.minusDays(1), "дождь"), DAY.minusDays(1));
+                        if (i % 50 == 0) {
+                            storage.removeExpired(DAY);
+                            storage.flush();
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+        storage.removeExpired(DAY);
+        storage.shutdown();
+
+        WeatherCacheStorage reloaded = new WeatherCacheStorage(cacheFile);
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 200; i++) {
+                assertNotNull(reloaded.get("City" + t + "-" + i));
+                assertNull(reloaded.get("Old" + t + "-" + i));
+            }
+        }
+    }
+
+    @Test
+    void saves_flushedInBackgroundOnce() throws Exception {
+        WeatherCacheStorage storage = new WeatherCacheStorage(cacheFile, Duration.ofMillis(100));
+        for (int i = 0; i < 20; i++) {
+            storage.save("City" + i, forecast(DAY, "ясно"), DAY);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (storage.getJournalWrites() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, storage.getJournalWrites());
+        Thread.sleep(200);
+
+        // Серия сохранений записана одним разом, новых записей без изменений нет
+        assertEquals(1, storage.getJournalWrites());
+        assertEquals(20, storage.getJournalEntries());
+        assertEquals(20, Files.readAllLines(journalFile).size());
+        assertNotNull(new WeatherCacheStorage(cacheFile).get("City19"));
+        storage.shutdown();
+    }
+
+    @Test
+    void shutdown_flushesPendingChanges() {
+        cacheStorage.save("Kazan", forecast(DAY, "снег"), DAY);
+
+        cacheStorage.shutdown();
+
+        assertNotNull(new WeatherCacheStorage(cacheFile).get("Kazan"));
     }
 
     @Test
     void preservesExistingNonExpiredEntriesAfterSave() {
-        LocalDate today = LocalDate.of(2025, 12, 19);
-        cacheStorage.save("City1", "🌤️", today);
-        cacheStorage.save("City2", "🌧️", today);
+        cacheStorage.save("City1", forecast(DAY, "ясно"), DAY);
+        cacheStorage.save("City2", forecast(DAY, "дождь"), DAY);
+
+        cacheStorage.save("City3", forecast(DAY, "снег"), DAY);
+
+        assertEquals("ясно", cacheStorage.get("City1").getForecast().description(0));
+        assertEquals("дождь", cacheStorage.get("City2").getForecast().description(0));
+        assertEquals("снег", cacheStorage.get("City3").getForecast().description(0));
+    }
+
+    @Test
+    void sharedTier_warmsUpLocalCacheAtStart() {
+        LocalDate today = LocalDate.now(WeatherService.TZ);
+        WeatherCacheTier tier = mock(WeatherCacheTier.class);
+        when(tier.loadSince(today.minusDays(WeatherCacheStorage.CachedForecast.MAX_AGE_DAYS))).thenReturn(Map.of(
+                "москва", new WeatherCacheStorage.CachedForecast(forecast(today, "ясно"), today),
+                "казань", new WeatherCacheStorage.CachedForecast(forecast(today.minusDays(1), "снег"), today.minusDays(1))
+        ));
+
+        WeatherCacheStorage storage = new WeatherCacheStorage(cacheFile, Duration.ofSeconds(5), tier);
+
+        assertNotNull(storage.get("Москва"));
+        assertNull(storage.get("Казань")); // прогноз уже не доходит до сегодня
+    }
+
+    @Test
+    void sharedTier_consultedOnLocalMissAndUpdatedOnSave() {
+        WeatherCacheTier tier = mock(WeatherCacheTier.class);
+        when(tier.loadSince(any())).thenReturn(Map.of());
+        WeatherCacheStorage.CachedForecast shared = new WeatherCacheStorage.CachedForecast(forecast(DAY, "ясно"), DAY);
+        when(tier.load("москва")).thenReturn(shared);
+        WeatherCacheStorage storage = new WeatherCacheStorage(cacheFile, Duration.ofSeconds(5), tier);
+
+        // Загружен другим экземпляром — берём из общего уровня и запоминаем локально
+        assertSame(shared, storage.get("Москва", DAY));
+        assertSame(shared, storage.get("Москва", DAY));
+        verify(tier, times(1)).load("москва");
+        // Общий прогноз не покрывает следующий день
+        assertNull(storage.get("Москва", DAY.plusDays(1)));
 
-        cacheStorage.save("City3", "❄️", today);
+        Forecast fetched = forecast(DAY, "снег");
+        storage.save("Казань", fetched, DAY);
+        verify(tier).store(eq("казань"), argThat(cached -> cached.getForecast() == fetched && DAY.equals(cached.getCachedAt())));
+        assertSame(fetched, storage.get("Казань", DAY).getForecast());
+        verify(tier, never()).load("казань");
+    }
+
+    private static long at(LocalDate day, int hour) {
+        return ZonedDateTime.of(day.atTime(hour, 0), WeatherService.TZ).toEpochSecond();
+    }
 
-        assertEquals("🌤️", cacheStorage.get("City1").getText());
-        assertEquals("🌧️", cacheStorage.get("City2").getText());
-        assertEquals("❄️", cacheStorage.get("City3").getText());
+    // Прогноз из одного слота в полдень дня day
+    private static Forecast forecast(LocalDate day, String description) {
+        return Forecast.builder(1).add(at(day, 12), 0.0, description).build();
     }
 }
\ No newline at end of file
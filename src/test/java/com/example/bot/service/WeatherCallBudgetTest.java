@@ -0,0 +1,61 @@
+package com.example.bot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WeatherCallBudgetTest {
+
+    @Test
+    void background_leavesReserveForInteractive() {
+        WeatherCallBudget budget = new WeatherCallBudget(5, 2);
+
+        // Фоновые забирают только 3 из 5 токенов
+        for (int i = 0; i < 3; i++) {
+            assertTrue(budget.tryAcquire(WeatherCallBudget.Priority.BACKGROUND));
+        }
+        assertFalse(budget.tryAcquire(WeatherCallBudget.Priority.BACKGROUND));
+
+        // Резерв достаётся запросам пользователей
+        assertTrue(budget.tryAcquire(WeatherCallBudget.Priority.INTERACTIVE));
+        assertTrue(budget.tryAcquire(WeatherCallBudget.Priority.INTERACTIVE));
+        assertFalse(budget.tryAcquire(WeatherCallBudget.Priority.INTERACTIVE));
+
+        assertEquals(5, budget.getGranted());
+        assertEquals(2, budget.getDenied());
+    }
+
+    @Test
+    void acquire_waitsForRefill() throws InterruptedException {
+        // 600 в минуту — токен каждые 100 мс
+        WeatherCallBudget budget = new WeatherCallBudget(600, 0);
+        budget.exhaust();
+
+        long start = System.nanoTime();
+        assertTrue(budget.acquire(WeatherCallBudget.Priority.BACKGROUND, Duration.ofSeconds(1)));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMillis >= 50, "Прошло " + elapsedMillis + " мс");
+    }
+
+    @Test
+    void acquire_givesUpWhenWaitTooLong() throws InterruptedException {
+        WeatherCallBudget budget = new WeatherCallBudget(1, 0);
+        budget.exhaust();
+
+        long start = System.nanoTime();
+        assertFalse(budget.acquire(WeatherCallBudget.Priority.BACKGROUND, Duration.ofMillis(100)));
+        // Не ждёт впустую, если токен всё равно не успеет появиться
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        assertEquals(1, budget.getDenied());
+    }
+
+    @Test
+    void invalidSettings_throw() {
+        assertThrows(IllegalArgumentException.class, () -> new WeatherCallBudget(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new WeatherCallBudget(10, 10));
+    }
+}
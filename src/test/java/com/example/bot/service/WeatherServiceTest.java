@@ -1,13 +1,29 @@
 package com.example.bot.service;
 
+import com.example.bot.model.City;
+import com.example.bot.model.Forecast;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.*;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -25,12 +41,25 @@ class WeatherServiceTest {
     void setUp() {
         mockHttpClient = mock(HttpClient.class);
         mockCacheStorage = mock(WeatherCacheStorage.class);
+        weatherService = createService(WeatherService.DEFAULT_WAIT_TIMEOUT);
+    }
+
+    private WeatherService createService(Duration waitTimeout) {
+        return createService(waitTimeout, new WeatherCallBudget(
+                WeatherCallBudget.DEFAULT_CALLS_PER_MINUTE, WeatherCallBudget.DEFAULT_INTERACTIVE_RESERVE));
+    }
+
+    private WeatherService createService(Duration waitTimeout, WeatherCallBudget budget) {
+        return createService(waitTimeout, budget, name -> null);
+    }
+
+    private WeatherService createService(Duration waitTimeout, WeatherCallBudget budget, Function<String, City> cityResolver) {
         Clock fixedClock = Clock.fixed(
                 LocalDate.of(2025, 12, 17).atStartOfDay(TZ).toInstant(),
                 TZ
         );
 
-        weatherService = new WeatherService(API_KEY, fixedClock, mockCacheStorage) {
+        return new WeatherService(API_KEY, fixedClock, mockCacheStorage, waitTimeout, budget, cityResolver) {
             {
                 try {
                     java.lang.reflect.Field clientField = WeatherService.class.getDeclaredField("client");
@@ -77,15 +106,15 @@ class WeatherServiceTest {
         }
         """, dt1, dt2);
 
-        HttpResponse<String> mockResponse = mock(HttpResponse.class);
+        HttpResponse<InputStream> mockResponse = mockResponse();
         when(mockResponse.statusCode()).thenReturn(200);
-        when(mockResponse.body()).thenReturn(jsonResponse);
+        when(mockResponse.body()).thenAnswer(invocation -> body(jsonResponse));
 
-        when(mockHttpClient.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
-                .thenReturn(mockResponse);
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
 
         // Мокаем кэш: сначала пустой
-        when(mockCacheStorage.get("moscow")).thenReturn(null);
+        when(mockCacheStorage.get(eq("moscow"), any())).thenReturn(null);
 
         String result = weatherService.getTodayForecast("Moscow");
 
@@ -93,56 +122,56 @@ class WeatherServiceTest {
         assertTrue(result.contains("от +4°C до +5°C") || result.contains("от +3°C до +5°C"));
 
         // Проверяем, что результат сохранён в кэш
-        verify(mockCacheStorage).save("moscow", result, LocalDate.of(2025, 12, 17));
+        verify(mockCacheStorage).save(eq("moscow"), any(Forecast.class), eq(LocalDate.of(2025, 12, 17)));
     }
 
     @Test
     void getTodayForecast_usesFileCacheIfAvailable() throws Exception {
-        String cachedForecast = "🌤️ Ясно, около +0°C";
         LocalDate today = LocalDate.of(2025, 12, 17);
 
         // Создаём РЕАЛЬНЫЙ объект
         WeatherCacheStorage.CachedForecast cached =
-                new WeatherCacheStorage.CachedForecast(cachedForecast, today);
+                new WeatherCacheStorage.CachedForecast(forecast(at(17, 12), 0.2, "ясно"), today);
 
-        doReturn(cached).when(mockCacheStorage).get("london");
+        doReturn(cached).when(mockCacheStorage).get(eq("london"), any());
 
         String result = weatherService.getTodayForecast("London");
 
-        assertEquals(cachedForecast, result);
-        verify(mockHttpClient, never()).send(any(), any());
+        assertEquals("☀️ Ясно, около +0°C", result);
+        verify(mockHttpClient, never()).sendAsync(any(), any());
     }
 
     @Test
     void getTodayForecast_fileCacheExpired_fetchesFromApi() throws Exception {
         WeatherCacheStorage.CachedForecast mockCached = mock(WeatherCacheStorage.CachedForecast.class);
         when(mockCached.isExpired(any(LocalDate.class))).thenReturn(true);
-        when(mockCacheStorage.get("tokyo")).thenReturn(mockCached);
+        when(mockCached.isUsableFor(any(LocalDate.class))).thenReturn(false);
+        when(mockCacheStorage.get(eq("tokyo"), any())).thenReturn(mockCached);
 
         String jsonResponse = """
         { "list": [{ "dt": 1765987200, "main": { "temp": 10.0 }, "weather": [{ "description": "облачно" }] }] }
         """;
-        HttpResponse<String> mockResponse = mock(HttpResponse.class);
+        HttpResponse<InputStream> mockResponse = mockResponse();
         when(mockResponse.statusCode()).thenReturn(200);
-        when(mockResponse.body()).thenReturn(jsonResponse);
-        when(mockHttpClient.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
-                .thenReturn(mockResponse);
+        when(mockResponse.body()).thenAnswer(invocation -> body(jsonResponse));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
 
         String result = weatherService.getTodayForecast("Tokyo");
 
         assertTrue(result.contains("Облачно"));
-        verify(mockHttpClient).send(any(), any()); // ← API вызывается
+        verify(mockHttpClient).sendAsync(any(), any()); // ← API вызывается
     }
 
     @Test
     void getTodayForecast_apiReturns404_returnsFallbackMessage() throws Exception {
-        when(mockCacheStorage.get("nonexistentcity")).thenReturn(null);
+        when(mockCacheStorage.get(eq("nonexistentcity"), any())).thenReturn(null);
 
-        HttpResponse<String> mockResponse = mock(HttpResponse.class);
+        HttpResponse<InputStream> mockResponse = mockResponse();
         when(mockResponse.statusCode()).thenReturn(404);
-        when(mockResponse.body()).thenReturn("{\"message\":\"city not found\"}");
-        when(mockHttpClient.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
-                .thenReturn(mockResponse);
+        when(mockResponse.body()).thenAnswer(invocation -> body("{\"message\":\"city not found\"}"));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
 
         String result = weatherService.getTodayForecast("NonExistentCity");
         assertEquals("🌤️ Не удалось загрузить прогноз для NonExistentCity", result);
@@ -150,7 +179,7 @@ class WeatherServiceTest {
 
     @Test
     void getTodayForecast_noDataForToday_returnsNotFoundMessage() throws Exception {
-        when(mockCacheStorage.get("paris")).thenReturn(null);
+        when(mockCacheStorage.get(eq("paris"), any())).thenReturn(null);
 
         String jsonResponse = """
             {
@@ -159,11 +188,11 @@ class WeatherServiceTest {
               ]
             }
             """;
-        HttpResponse<String> mockResponse = mock(HttpResponse.class);
+        HttpResponse<InputStream> mockResponse = mockResponse();
         when(mockResponse.statusCode()).thenReturn(200);
-        when(mockResponse.body()).thenReturn(jsonResponse);
-        when(mockHttpClient.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
-                .thenReturn(mockResponse);
+        when(mockResponse.body()).thenAnswer(invocation -> body(jsonResponse));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
 
         String result = weatherService.getTodayForecast("Paris");
         assertEquals("🌤️ Прогноз на сегодня не найден для этого города.", result);
@@ -171,10 +200,10 @@ class WeatherServiceTest {
 
     @Test
     void getTodayForecast_networkError_returnsErrorMessage() throws Exception {
-        when(mockCacheStorage.get("berlin")).thenReturn(null);
+        when(mockCacheStorage.get(eq("berlin"), any())).thenReturn(null);
 
-        when(mockHttpClient.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
-                .thenThrow(new java.io.IOException("Connection timeout"));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.failedFuture(new java.io.IOException("Connection timeout")));
 
         String result = weatherService.getTodayForecast("Berlin");
         assertEquals("🌤️ Ошибка при загрузке прогноза", result);
@@ -182,35 +211,465 @@ class WeatherServiceTest {
     @Test
     void getTodayForecast_caseInsensitiveCaching() throws Exception {
         // === Первый вызов: MOSCOW (кэш пуст) ===
-        doReturn(null).when(mockCacheStorage).get("moscow");
+        doReturn(null).when(mockCacheStorage).get(eq("moscow"), any());
 
-        HttpResponse<String> mockResponse = mock(HttpResponse.class);
+        HttpResponse<InputStream> mockResponse = mockResponse();
         when(mockResponse.statusCode()).thenReturn(200);
-        when(mockResponse.body()).thenReturn("""
+        when(mockResponse.body()).thenAnswer(invocation -> body("""
         { "list": [{ "dt": 1765987200, "main": { "temp": 0.0 }, "weather": [{ "description": "ясно" }] }] }
-        """);
-        when(mockHttpClient.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
-                .thenReturn(mockResponse);
+        """));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
 
         String result1 = weatherService.getTodayForecast("MOSCOW");
         assertTrue(result1.contains("ясно") || result1.contains("Ясно"),
                 "Ожидалось 'ясно' в ответе: " + result1);
 
         // Проверяем, что сохранено в кэш
-        verify(mockCacheStorage).save(eq("moscow"), eq(result1), eq(LocalDate.of(2025, 12, 17)));
+        ArgumentCaptor<Forecast> saved = ArgumentCaptor.forClass(Forecast.class);
+        verify(mockCacheStorage).save(eq("moscow"), saved.capture(), eq(LocalDate.of(2025, 12, 17)));
 
         // === Второй вызов: moscow → из кэша ===
         // Создаём РЕАЛЬНЫЙ объект CachedForecast
         WeatherCacheStorage.CachedForecast cachedFromStorage =
-                new WeatherCacheStorage.CachedForecast(result1, LocalDate.of(2025, 12, 17));
+                new WeatherCacheStorage.CachedForecast(saved.getValue(), LocalDate.of(2025, 12, 17));
 
-        doReturn(cachedFromStorage).when(mockCacheStorage).get("moscow");
+        doReturn(cachedFromStorage).when(mockCacheStorage).get(eq("moscow"), any());
 
         String result2 = weatherService.getTodayForecast("moscow");
 
         // Then: результат из кэша, API вызван только 1 раз
         assertEquals(result1, result2);
-        verify(mockHttpClient, times(1)).send(any(), any());
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+    }
+
+
+    @Test
+    void getTodayForecast_networkError_isNotCached() throws Exception {
+        when(mockCacheStorage.get(eq("berlin"), any())).thenReturn(null);
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.failedFuture(new java.io.IOException("Connection timeout")));
+
+        weatherService.getTodayForecast("Berlin");
+        weatherService.getTodayForecast("Berlin");
+
+        // Ошибка не сохраняется: второй запрос снова идёт в API
+        verify(mockHttpClient, times(2)).sendAsync(any(), any());
+        verify(mockCacheStorage, never()).save(anyString(), any(), any());
+        assertEquals(new WeatherService.CacheStats(0, 2, 0, 0, 0, 0, 0), weatherService.getCacheStats());
+    }
+
+    @Test
+    void prefetch_fetchesOnlyMissingCitiesOnce() throws Exception {
+        LocalDate today = LocalDate.of(2025, 12, 17);
+        doReturn(new WeatherCacheStorage.CachedForecast(forecast(at(17, 12), 1.0, "ясно"), today))
+                .when(mockCacheStorage).get(eq("london"), any());
+
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(200);
+        when(mockResponse.body()).thenAnswer(invocation -> body("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": 0.0 }, "weather": [{ "description": "ясно" }] }] }
+        """));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
+
+        WeatherService.PrefetchReport report = weatherService.prefetch(
+                List.of("London", "Moscow", " moscow ", "Tokyo", ""), 2);
+
+        assertEquals(3, report.cities());
+        assertEquals(1, report.alreadyCached());
+        assertEquals(2, report.fetched());
+        assertEquals(0, report.failed());
+        assertEquals(1.0, report.coverage());
+        verify(mockHttpClient, times(2)).sendAsync(any(), any());
+
+        // Рассылка после прогрева берёт всё из кэша
+        weatherService.getTodayForecast("Moscow");
+        weatherService.getTodayForecast("Tokyo");
+        verify(mockHttpClient, times(2)).sendAsync(any(), any());
+        assertEquals(new WeatherService.CacheStats(2, 0, 0, 0, 0, 0, 0), weatherService.getCacheStats());
+    }
+
+    @Test
+    void prefetch_reportsFailedCities() throws Exception {
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(500);
+        when(mockResponse.body()).thenAnswer(invocation -> body("{}"));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
+
+        WeatherService.PrefetchReport report = weatherService.prefetch(List.of("Moscow", "Tokyo"), 4);
+
+        assertEquals(2, report.failed());
+        assertEquals(0.0, report.coverage());
+    }
+
+    @Test
+    void getTodayForecast_concurrentMisses_shareOneApiCall() throws Exception {
+        CompletableFuture<HttpResponse<InputStream>> pending = new CompletableFuture<>();
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(200);
+        when(mockResponse.body()).thenAnswer(invocation -> body("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": 0.0 }, "weather": [{ "description": "ясно" }] }] }
+        """));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(pending);
+
+        List<Future<String>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 20; i++) {
+                String city = i % 2 == 0 ? "Moscow" : " MOSCOW ";
+                results.add(executor.submit(() -> weatherService.getTodayForecast(city)));
+            }
+            // Ждём, пока все, кроме первого, присоединятся к его запросу
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (weatherService.getCacheStats().coalesced() < 19 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            pending.complete(mockResponse);
+        }
+
+        String first = results.getFirst().get();
+        assertTrue(first.contains("Ясно"));
+        for (Future<String> result : results) {
+            assertEquals(first, result.get());
+        }
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+        assertEquals(new WeatherService.CacheStats(0, 20, 19, 0, 0, 0, 0), weatherService.getCacheStats());
+    }
+
+    @Test
+    void getTodayForecast_waiterTimesOut_requestContinues() throws Exception {
+        WeatherService service = createService(Duration.ofMillis(50));
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<HttpResponse<InputStream>> pending = new CompletableFuture<>();
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(200);
+        when(mockResponse.body()).thenAnswer(invocation -> body("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": 0.0 }, "weather": [{ "description": "ясно" }] }] }
+        """));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenAnswer(invocation -> {
+                    started.countDown();
+                    return pending;
+                });
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> leader = executor.submit(() -> service.getTodayForecast("Moscow"));
+            assertTrue(started.await(1, TimeUnit.SECONDS));
+
+            // Ожидающий уходит по таймауту, ошибка не кэшируется
+            assertEquals("🌤️ Ошибка при загрузке прогноза", service.getTodayForecast("Moscow"));
+            assertEquals(1, service.getCacheStats().waitTimeouts());
+
+            // Первый запрос при этом не отменён и кладёт прогноз в кэш
+            pending.complete(mockResponse);
+            assertTrue(leader.get().contains("Ясно"));
+        }
+        verify(mockCacheStorage).save(eq("moscow"), any(Forecast.class), eq(LocalDate.of(2025, 12, 17)));
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+    }
+
+    @Test
+    void getWeatherOverview_tomorrowServedFromSameApiResponse() throws Exception {
+        givenApiResponse(String.format("""
+        { "list": [
+          { "dt": %d, "main": { "temp": -3.0 }, "weather": [{ "description": "ясно" }] },
+          { "dt": %d, "main": { "temp": -8.4 }, "weather": [{ "description": "снег" }] },
+          { "dt": %d, "main": { "temp": -5.6 }, "weather": [{ "description": "снег" }] }
+        ] }
+        """, at(17, 12), at(18, 6), at(18, 15)));
+
+        assertEquals("☀️ Ясно, около -3°C", weatherService.getTodayForecast("Moscow"));
+        assertEquals("Сейчас: ☀️ Ясно, -3°C\nСегодня: ☀️ Ясно, около -3°C\nЗавтра: ❄️ Снег, от -8°C до -6°C",
+                weatherService.getWeatherOverviewAsync("Moscow").join());
+
+        // Завтрашний день уже был в ответе — повторного запроса нет
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+        assertEquals(new WeatherService.CacheStats(1, 1, 0, 0, 0, 0, 0), weatherService.getCacheStats());
+    }
+
+    @Test
+    void getTodayForecast_yesterdaysFetchCoversToday_noApiCall() throws Exception {
+        // Прогноз загружен вчера, но в нём есть слоты на сегодня
+        WeatherCacheStorage.CachedForecast cached = new WeatherCacheStorage.CachedForecast(
+                Forecast.builder(2).add(at(16, 21), 1.0, "облачно").add(at(17, 9), 4.4, "облачно").build(),
+                LocalDate.of(2025, 12, 16));
+        doReturn(cached).when(mockCacheStorage).get(eq("kazan"), any());
+
+        assertEquals("⛅ Облачно, около +4°C", weatherService.getTodayForecast("Kazan"));
+        verify(mockHttpClient, never()).sendAsync(any(), any());
+    }
+
+    @Test
+    void getWeatherOverview_tomorrowNotInCache_noApiCall() throws Exception {
+        // Вчерашний прогноз не доходит до завтра: сегодняшнего хватает, за завтрашним API не дёргаем
+        doReturn(new WeatherCacheStorage.CachedForecast(forecast(at(17, 9), 1.0, "ясно"), LocalDate.of(2025, 12, 16)))
+                .when(mockCacheStorage).get(eq("kazan"), any());
+
+        assertEquals("Сейчас: ☀️ Ясно, +1°C\nСегодня: ☀️ Ясно, около +1°C\n"
+                        + "Завтра: 🌤️ Прогноз на завтра не найден для этого города.",
+                weatherService.getWeatherOverviewAsync("Kazan").join());
+        verify(mockHttpClient, never()).sendAsync(any(), any());
+    }
+
+    @Test
+    void getWeatherOverview_nowIsNearestSlot() throws Exception {
+        // Часы сервиса стоят на полуночи 17 декабря
+        doReturn(new WeatherCacheStorage.CachedForecast(
+                Forecast.builder(3).add(at(16, 21), -1.2, "туман").add(at(17, 0), -2.0, "ясно").add(at(17, 3), -4.0, "снег").build(),
+                LocalDate.of(2025, 12, 16))).when(mockCacheStorage).get(eq("perm"), any());
+
+        assertTrue(weatherService.getWeatherOverviewAsync("Perm").join().startsWith("Сейчас: ☀️ Ясно, -2°C\n"));
+        assertEquals("🌤️ Город не указан — не могу показать погоду.", weatherService.getWeatherOverviewAsync(" ").join());
+        verify(mockHttpClient, never()).sendAsync(any(), any());
+    }
+
+    @Test
+    void lookups_doNotSweepCache() {
+        LocalDate today = LocalDate.of(2025, 12, 17);
+        doReturn(new WeatherCacheStorage.CachedForecast(forecast(at(17, 12), 1.0, "ясно"), today))
+                .when(mockCacheStorage).get(anyString(), any());
+
+        for (int i = 0; i < 5; i++) {
+            weatherService.getTodayForecast("London");
+        }
+        weatherService.getWeatherOverviewAsync("Moscow").join();
+
+        // Очистка — задача смены дня, а не запроса
+        verify(mockCacheStorage, never()).removeExpired(any());
+    }
+
+    @Test
+    void sweepExpired_dropsExpiredEntriesFromMemoryAndStorage() throws Exception {
+        // Вчерашний прогноз только на вчера: после смены дня он не нужен
+        givenApiResponse(String.format("""
+        { "list": [{ "dt": %d, "main": { "temp": 1.0 }, "weather": [{ "description": "ясно" }] }] }
+        """, at(17, 12)));
+        weatherService.getTodayForecast("Moscow");
+
+        weatherService.sweepExpired(LocalDate.of(2025, 12, 18));
+
+        verify(mockCacheStorage).removeExpired(LocalDate.of(2025, 12, 18));
+        // В памяти записи больше нет: прогноз на 17-е приходится загружать снова
+        weatherService.getTodayForecast("Moscow");
+        verify(mockHttpClient, times(2)).sendAsync(any(), any());
+    }
+
+    @Test
+    void staleForecast_servedWithMarkerAndRefreshedInBackground() throws Exception {
+        // Прогноз загружен три дня назад и ещё покрывает сегодня
+        doReturn(new WeatherCacheStorage.CachedForecast(forecast(at(17, 12), -6.0, "снег"), LocalDate.of(2025, 12, 14)))
+                .when(mockCacheStorage).get(eq("omsk"), any());
+        givenApiResponse(String.format("""
+        { "list": [{ "dt": %d, "main": { "temp": -1.0 }, "weather": [{ "description": "облачно" }] }] }
+        """, at(17, 12)));
+
+        String result = weatherService.getTodayForecast("Omsk");
+
+        // Ответ не ждёт API: старые данные с датой загрузки
+        assertEquals("❄️ Снег, около -6°C (данные от 14.12)", result);
+        verify(mockCacheStorage, timeout(2000)).save(eq("omsk"), any(Forecast.class), eq(LocalDate.of(2025, 12, 17)));
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+        assertEquals(1, weatherService.getCacheStats().stale());
+
+        // После обновления — свежий прогноз без пометки
+        assertEquals("⛅ Облачно, около -1°C", weatherService.getTodayForecast("Omsk"));
+    }
+
+    @Test
+    void budgetExhausted_interactiveMissGetsBusyMessage() throws Exception {
+        WeatherService service = createService(WeatherService.DEFAULT_WAIT_TIMEOUT, new WeatherCallBudget(1, 0));
+        givenApiResponse("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": 0.0 }, "weather": [{ "description": "ясно" }] }] }
+        """);
+
+        assertTrue(service.getTodayForecast("Moscow").contains("Ясно"));
+        assertEquals("🌤️ Сервис погоды перегружен, попробуйте через минуту", service.getTodayForecast("Tokyo"));
+
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+        assertEquals(1, service.getCacheStats().overBudget());
+    }
+
+    @Test
+    void apiError_servesLastKnownForecast() throws Exception {
+        // Прогноз старше MAX_AGE_DAYS: сам по себе не используется, но данные на сегодня в нём есть
+        doReturn(new WeatherCacheStorage.CachedForecast(forecast(at(17, 12), 3.0, "дождь"), LocalDate.of(2025, 12, 12)))
+                .when(mockCacheStorage).get("riga");
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(429);
+        when(mockResponse.body()).thenAnswer(invocation -> body("{\"cod\":429}"));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
+
+        assertEquals("🌧️ Дождь, около +3°C (данные от 12.12)", weatherService.getTodayForecast("Riga"));
+
+        // 429 исчерпал бюджет: следующий промах в API уже не идёт
+        assertEquals("🌤️ Сервис погоды перегружен, попробуйте через минуту", weatherService.getTodayForecast("Oslo"));
+        verify(mockHttpClient, times(1)).sendAsync(any(), any());
+    }
+
+    @Test
+    void getTodayForecastAsync_doesNotBlockOnApiCall() throws Exception {
+        CompletableFuture<HttpResponse<InputStream>> pending = new CompletableFuture<>();
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(200);
+        when(mockResponse.body()).thenAnswer(invocation -> body("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": 0.0 }, "weather": [{ "description": "ясно" }] }] }
+        """));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(pending);
+
+        CompletableFuture<String> result = weatherService.getTodayForecastAsync("Moscow");
+
+        // Вызов вернулся сразу, ответ придёт вместе с API
+        assertFalse(result.isDone());
+        pending.complete(mockResponse);
+        assertEquals("☀️ Ясно, около +0°C", result.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void getTodayForecastAsync_deadlineBoundsRequestAndAnswer() throws Exception {
+        // API так и не отвечает
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(new CompletableFuture<>());
+
+        long start = System.nanoTime();
+        String result = weatherService.getTodayForecastAsync("Moscow", Duration.ofMillis(100)).get(2, TimeUnit.SECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("🌤️ Ошибка при загрузке прогноза", result);
+        assertTrue(elapsedMillis < 1000, "Ответ ждал " + elapsedMillis + " мс");
+        assertEquals(1, weatherService.getCacheStats().waitTimeouts());
+
+        // Таймаут самого запроса не длиннее срока ответа
+        ArgumentCaptor<HttpRequest> request = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(mockHttpClient).sendAsync(request.capture(), any());
+        assertTrue(request.getValue().timeout().orElseThrow().compareTo(Duration.ofMillis(100)) <= 0);
+    }
+
+    @Test
+    void getTodayForecastAsync_cancelledByAllWaiters_cancelsApiRequest() throws Exception {
+        CompletableFuture<HttpResponse<InputStream>> pending = new CompletableFuture<>();
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(pending);
+
+        // Хранилище и API опрашиваются на исполнителе: ждём, пока оба запроса дойдут до общего обращения к API
+        CompletableFuture<String> first = weatherService.getTodayForecastAsync("Moscow");
+        verify(mockHttpClient, timeout(1000)).sendAsync(any(), any());
+        CompletableFuture<String> second = weatherService.getTodayForecastAsync("moscow");
+        awaitTrue(() -> weatherService.getCacheStats().coalesced() == 1);
+
+        // Пока ответ нужен второму, запрос продолжается
+        first.cancel(true);
+        assertFalse(pending.isCancelled());
+        assertFalse(second.isDone());
+
+        second.cancel(true);
+        awaitTrue(pending::isCancelled);
+        assertEquals(1, weatherService.getCacheStats().cancelled());
+
+        // Прерванный запрос не мешает следующему
+        weatherService.getTodayForecastAsync("Moscow");
+        verify(mockHttpClient, timeout(1000).times(2)).sendAsync(any(), any());
     }
 
-}
\ No newline at end of file
+    @Test
+    void getTodayForecastAsync_doesNotBlockOnStorage() throws Exception {
+        // Промах RAM-кэша: хранилище ищет прогноз в общем уровне, и это долго
+        CountDownLatch storageReleased = new CountDownLatch(1);
+        WeatherCacheStorage.CachedForecast stored = new WeatherCacheStorage.CachedForecast(
+                forecast(at(17, 12), 1.0, "ясно"), LocalDate.of(2025, 12, 17));
+        doAnswer(invocation -> {
+            storageReleased.await();
+            return stored;
+        }).when(mockCacheStorage).get(eq("moscow"), any());
+
+        CompletableFuture<String> result = weatherService.getTodayForecastAsync("Moscow");
+
+        // Вызов вернулся, не дожидаясь хранилища
+        assertFalse(result.isDone());
+        storageReleased.countDown();
+        assertEquals("☀️ Ясно, около +1°C", result.get(1, TimeUnit.SECONDS));
+        verify(mockHttpClient, never()).sendAsync(any(), any());
+    }
+
+    @Test
+    void nearbyCities_shareOneCellAndOneApiCall() throws Exception {
+        // Берёзовский и Екатеринбург — в одной ячейке геохеша, Москва — далеко
+        Map<String, City> cities = Map.of(
+                "Екатеринбург", new City("Екатеринбург", "Свердловская область", 1_500_000, 56.8389, 60.6057),
+                "Берёзовский", new City("Берёзовский", "Свердловская область", 60_000, 56.9095, 60.8180),
+                "Москва", new City("Москва", "Москва", 13_000_000, 55.7558, 37.6173));
+        WeatherService service = createService(WeatherService.DEFAULT_WAIT_TIMEOUT, new WeatherCallBudget(
+                WeatherCallBudget.DEFAULT_CALLS_PER_MINUTE, WeatherCallBudget.DEFAULT_INTERACTIVE_RESERVE), cities::get);
+        givenApiResponse("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": -7.0 }, "weather": [{ "description": "снег" }] }] }
+        """);
+
+        WeatherService.PrefetchReport report = service.prefetch(List.of("Екатеринбург", "Берёзовский", "Москва"), 2);
+
+        assertEquals(2, report.cities());
+        ArgumentCaptor<HttpRequest> requests = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(mockHttpClient, times(2)).sendAsync(requests.capture(), any());
+        for (HttpRequest request : requests.getAllValues()) {
+            // По координатам центра ячейки, без названия города
+            assertTrue(request.uri().getQuery().matches("lat=[0-9.]+&lon=[0-9.]+&appid=.*"), request.uri().toString());
+        }
+        String cell = Geohash.encode(56.8389, 60.6057, WeatherService.CELL_PRECISION);
+        verify(mockCacheStorage).save(eq("geo:" + cell), any(Forecast.class), eq(LocalDate.of(2025, 12, 17)));
+
+        // Соседний город берёт прогноз ячейки из кэша
+        assertEquals("❄️ Снег, около -7°C", service.getTodayForecast("Берёзовский"));
+        verify(mockHttpClient, times(2)).sendAsync(any(), any());
+    }
+
+    @Test
+    void unknownCity_queriedByName() throws Exception {
+        givenApiResponse("""
+        { "list": [{ "dt": 1765987200, "main": { "temp": 1.0 }, "weather": [{ "description": "ясно" }] }] }
+        """);
+
+        weatherService.getTodayForecast("Нижний Новгород");
+
+        ArgumentCaptor<HttpRequest> request = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(mockHttpClient).sendAsync(request.capture(), any());
+        assertTrue(request.getValue().uri().getRawQuery().startsWith("q=%D0%9D"), request.getValue().uri().toString());
+        verify(mockCacheStorage).save(eq("нижний новгород"), any(Forecast.class), any());
+    }
+
+    private void givenApiResponse(String json) throws Exception {
+        HttpResponse<InputStream> mockResponse = mockResponse();
+        when(mockResponse.statusCode()).thenReturn(200);
+        when(mockResponse.body()).thenAnswer(invocation -> body(json));
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofInputStream())))
+                .thenReturn(CompletableFuture.completedFuture(mockResponse));
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Условие не выполнилось за секунду");
+            Thread.sleep(5);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HttpResponse<InputStream> mockResponse() {
+        return mock(HttpResponse.class);
+    }
+
+    // Каждый вызов body() — новый поток, как у настоящего ответа
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Время слота в декабре 2025 по часовому поясу сервиса
+    private static long at(int day, int hour) {
+        return ZonedDateTime.of(2025, 12, day, hour, 0, 0, 0, TZ).toEpochSecond();
+    }
+
+    private static Forecast forecast(long time, double temp, String description) {
+        return Forecast.builder(1).add(time, temp, description).build();
+    }
+}